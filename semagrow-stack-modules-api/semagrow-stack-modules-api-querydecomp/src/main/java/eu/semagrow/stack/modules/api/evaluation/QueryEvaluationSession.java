@@ -10,4 +10,15 @@ public interface QueryEvaluationSession {
 
     EvaluationStrategy getEvaluationStrategy();
 
+    /**
+     * Sets the time in milliseconds the evaluation may take, after which it is cancelled.
+     * A non-positive time means no limit.
+     */
+    void setMaxExecutionTime(long maxExecutionTime);
+
+    /**
+     * Cancels the evaluation; the remote requests that are still in flight are aborted.
+     */
+    void cancel();
+
 }
@@ -1,7 +1,67 @@
 package eu.semagrow.stack.modules.api.source;
 
+import org.openrdf.model.URI;
+
 /**
+ * Reports a change in the observed health of an endpoint.
  * Created by angel on 6/14/14.
  */
 public class SourceStatusEvent {
+
+    public enum Status {
+        /** The endpoint answers normally. */
+        AVAILABLE,
+        /** The endpoint answers, but slowly or with frequent errors, or it is being probed after an outage. */
+        DEGRADED,
+        /** The endpoint is failing and requests to it are refused. */
+        UNAVAILABLE
+    }
+
+    private final URI endpoint;
+
+    private final Status status;
+
+    private final double errorRate;
+
+    private final long latencyMedian;
+
+    private final long latency95;
+
+    private final long timestamp;
+
+    public SourceStatusEvent(URI endpoint, Status status, double errorRate, long latencyMedian, long latency95) {
+        this.endpoint = endpoint;
+        this.status = status;
+        this.errorRate = errorRate;
+        this.latencyMedian = latencyMedian;
+        this.latency95 = latency95;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public URI getEndpoint() { return endpoint; }
+
+    public Status getStatus() { return status; }
+
+    /**
+     * @return the fraction of the recent requests that failed.
+     */
+    public double getErrorRate() { return errorRate; }
+
+    /**
+     * @return the median latency of the recent requests in milliseconds.
+     */
+    public long getLatencyMedian() { return latencyMedian; }
+
+    /**
+     * @return the 95th percentile of the latency of the recent requests in milliseconds.
+     */
+    public long getLatency95() { return latency95; }
+
+    public long getTimestamp() { return timestamp; }
+
+    @Override
+    public String toString() {
+        return "SourceStatusEvent{" + endpoint + " " + status + ", errorRate=" + errorRate +
+                ", p50=" + latencyMedian + "ms, p95=" + latency95 + "ms}";
+    }
 }
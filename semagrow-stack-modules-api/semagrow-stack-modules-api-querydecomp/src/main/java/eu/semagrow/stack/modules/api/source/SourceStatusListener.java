@@ -0,0 +1,10 @@
+package eu.semagrow.stack.modules.api.source;
+
+/**
+ * Receives notifications about changes in the health of the endpoints.
+ */
+public interface SourceStatusListener {
+
+    void sourceStatusChanged(SourceStatusEvent event);
+
+}
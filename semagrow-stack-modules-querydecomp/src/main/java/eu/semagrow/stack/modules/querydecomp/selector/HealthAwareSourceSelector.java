@@ -0,0 +1,102 @@
+package eu.semagrow.stack.modules.querydecomp.selector;
+
+import eu.semagrow.stack.modules.api.source.SourceMetadata;
+import eu.semagrow.stack.modules.api.source.SourceSelector;
+import eu.semagrow.stack.modules.api.source.SourceStatusEvent;
+import eu.semagrow.stack.modules.api.source.SourceStatusListener;
+import org.openrdf.model.URI;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A source selector that skips the endpoints that are reported unavailable.
+ * Unavailable mirrors are removed from the endpoints of a source; a source
+ * whose endpoints are all unavailable is not selected at all.
+ */
+public class HealthAwareSourceSelector extends SourceSelectorWrapper implements SourceStatusListener {
+
+    private final Logger logger = LoggerFactory.getLogger(HealthAwareSourceSelector.class);
+
+    private final Set<URI> unavailable = Collections.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
+
+    public HealthAwareSourceSelector(SourceSelector selector) {
+        super(selector);
+    }
+
+    public void sourceStatusChanged(SourceStatusEvent event) {
+        if (event.getStatus() == SourceStatusEvent.Status.UNAVAILABLE)
+            unavailable.add(event.getEndpoint());
+        else
+            unavailable.remove(event.getEndpoint());
+    }
+
+    public boolean isAvailable(URI endpoint) { return !unavailable.contains(endpoint); }
+
+    @Override
+    public List<SourceMetadata> getSources(StatementPattern pattern, Dataset dataset, BindingSet bindings) {
+        return filter(super.getSources(pattern, dataset, bindings));
+    }
+
+    @Override
+    public List<SourceMetadata> getSources(Iterable<StatementPattern> patterns, Dataset dataset, BindingSet bindings) {
+        return filter(super.getSources(patterns, dataset, bindings));
+    }
+
+    @Override
+    public List<SourceMetadata> getSources(TupleExpr expr, Dataset dataset, BindingSet bindings) {
+        return filter(super.getSources(expr, dataset, bindings));
+    }
+
+    private List<SourceMetadata> filter(List<SourceMetadata> list) {
+        if (unavailable.isEmpty())
+            return list;
+
+        List<SourceMetadata> filtered = new LinkedList<SourceMetadata>();
+
+        for (SourceMetadata metadata : list) {
+            List<URI> endpoints = metadata.getEndpoints();
+
+            if (Collections.disjoint(endpoints, unavailable)) {
+                filtered.add(metadata);
+            } else {
+                SourceMetadata available = new AvailableSourceMetadata(metadata);
+                if (available.getEndpoints().isEmpty())
+                    logger.debug("Skipping unavailable source " + endpoints);
+                else
+                    filtered.add(available);
+            }
+        }
+        return filtered;
+    }
+
+    protected class AvailableSourceMetadata implements SourceMetadata {
+
+        private final SourceMetadata metadata;
+        private final List<URI> endpoints;
+
+        public AvailableSourceMetadata(final SourceMetadata metadata) {
+            this.metadata = metadata;
+            this.endpoints = new LinkedList<URI>(metadata.getEndpoints());
+            this.endpoints.removeAll(unavailable);
+        }
+
+        public List<URI> getEndpoints() { return endpoints; }
+
+        public StatementPattern original() { return metadata.original(); }
+
+        public StatementPattern target() { return metadata.target(); }
+
+        public Collection<URI> getSchema(String var) { return metadata.getSchema(var); }
+
+        public boolean isTransformed() { return metadata.isTransformed(); }
+
+        public double getSemanticProximity() { return metadata.getSemanticProximity(); }
+    }
+}
@@ -12,11 +12,21 @@ import eu.semagrow.stack.modules.querydecomp.selector.*;
 import eu.semagrow.stack.modules.sails.semagrow.estimator.CardinalityEstimatorImpl;
 import eu.semagrow.stack.modules.sails.semagrow.estimator.CostEstimatorImpl;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryEvaluationImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.async.AsyncHttpClient;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.RequestCoalescer;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ReplicaSelector;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ResultParserPool;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.HashJoinIteration;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.ResultCache;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.FileManager;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.*;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.QueryLogFactory;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.rdf.RDFQueryLogFactory;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
 import eu.semagrow.stack.modules.sails.semagrow.optimizer.DynamicProgrammingDecomposer;
 import org.openrdf.model.URI;
 import org.openrdf.model.ValueFactory;
@@ -39,14 +49,14 @@ import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.StackableSail;
 import org.openrdf.sail.helpers.SailBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.Collection;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Semagrow Sail implementation.
@@ -62,6 +72,8 @@ import java.util.concurrent.Executors;
  */
 public class SemagrowSail extends SailBase {
 
+    private final Logger logger = LoggerFactory.getLogger(SemagrowSail.class);
+
     private FederatedQueryEvaluation queryEvaluation;
 
     private QueryLogWriter handler;
@@ -70,7 +82,31 @@ public class SemagrowSail extends SailBase {
     private CostEstimator costEstimator;
     private CardinalityEstimator cardinalityEstimator;
 
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    private RequestScheduler requestScheduler = new RequestScheduler();
+
+    private EndpointRegistry endpointRegistry = new EndpointRegistry();
+
+    private ResultCache resultCache;
+
+    private RequestCoalescer requestCoalescer = new RequestCoalescer();
+
+    private EndpointHealthRegistry healthRegistry = new EndpointHealthRegistry();
+
+    private ReplicaSelector replicaSelector = new ReplicaSelector();
+
+    private AsyncHttpClient asyncHttpClient;
+
+    private ResultParserPool parserPool;
+
+    private ValueDictionary valueDictionary;
+
+    private int valueDictionarySize = ValueDictionary.DEFAULT_MAX_SIZE;
+
+    private long joinMemoryBudget = HashJoinIteration.DEFAULT_MEMORY_BUDGET;
+
+    private long symmetricJoinThreshold = DynamicProgrammingDecomposer.DEFAULT_SYMMETRIC_JOIN_THRESHOLD;
+
+    private boolean preferFirstRows = false;
 
     public SemagrowSail() { }
 
@@ -104,7 +140,11 @@ public class SemagrowSail extends SailBase {
         selector = new RestrictiveSourceSelector(selector, includeOnly, exclude);
         CostEstimator costEstimator = getCostEstimator();
         CardinalityEstimator cardinalityEstimator = getCardinalityEstimator();
-        return new DynamicProgrammingDecomposer(costEstimator, cardinalityEstimator, selector);
+        DynamicProgrammingDecomposer decomposer =
+                new DynamicProgrammingDecomposer(costEstimator, cardinalityEstimator, selector);
+        decomposer.setSymmetricJoinThreshold(symmetricJoinThreshold);
+        decomposer.setPreferFirstRows(preferFirstRows);
+        return decomposer;
     }
 
     public SourceSelector getSourceSelector() { return sourceSelector; }
@@ -130,7 +170,20 @@ public class SemagrowSail extends SailBase {
         if (queryEvaluation == null) {
             MaterializationManager manager = getManager();
             handler = getRecordLog();
-            queryEvaluation = new QueryEvaluationImpl(manager, handler, executor);
+            endpointRegistry.initialize();
+            QueryEvaluationImpl evaluation =
+                    new QueryEvaluationImpl(manager, handler, requestScheduler.getExecutor(), endpointRegistry);
+            evaluation.setRequestScheduler(requestScheduler);
+            evaluation.setResultCache(resultCache);
+            evaluation.setRequestCoalescer(requestCoalescer);
+            evaluation.setHealthRegistry(healthRegistry);
+            evaluation.setReplicaSelector(replicaSelector);
+            evaluation.setAsyncHttpClient(asyncHttpClient);
+            evaluation.setParserPool(parserPool);
+            evaluation.setValueDictionary(valueDictionary);
+            evaluation.setValueDictionarySize(valueDictionarySize);
+            evaluation.setJoinMemoryBudget(joinMemoryBudget);
+            queryEvaluation = evaluation;
         }
 
         return queryEvaluation;
@@ -140,13 +193,106 @@ public class SemagrowSail extends SailBase {
         this.queryEvaluation = queryEvaluation;
     }
 
+    /**
+     * Gets the registry of the remote endpoints that is shared
+     * by all the queries evaluated by this sail.
+     */
+    public EndpointRegistry getEndpointRegistry() { return endpointRegistry; }
+
+    /**
+     * Gets the cache of remote query results or null if results are not cached.
+     */
+    public ResultCache getResultCache() { return resultCache; }
+
+    public void setResultCache(ResultCache resultCache) { this.resultCache = resultCache; }
+
+    /**
+     * Gets the coalescer of identical in-flight remote requests or null if requests are not coalesced.
+     */
+    public RequestCoalescer getRequestCoalescer() { return requestCoalescer; }
+
+    public void setRequestCoalescer(RequestCoalescer coalescer) { this.requestCoalescer = coalescer; }
+
+    /**
+     * Gets the registry that tracks the health of the remote endpoints or null if health is not tracked.
+     */
+    public EndpointHealthRegistry getHealthRegistry() { return healthRegistry; }
+
+    public void setHealthRegistry(EndpointHealthRegistry healthRegistry) { this.healthRegistry = healthRegistry; }
+
+    /**
+     * Gets the selector that spreads the requests over mirrored endpoints or null if the plan order is kept.
+     */
+    public ReplicaSelector getReplicaSelector() { return replicaSelector; }
+
+    /**
+     * Gets the non-blocking client that carries the remote requests or null if they are sent by the blocking client.
+     */
+    public AsyncHttpClient getAsyncHttpClient() { return asyncHttpClient; }
+
+    public void setAsyncHttpClient(AsyncHttpClient client) { this.asyncHttpClient = client; }
+
+    /**
+     * Gets the pool that parses the result streams or null if every stream is parsed on a thread of its own.
+     */
+    public ResultParserPool getParserPool() { return parserPool; }
+
+    public void setParserPool(ResultParserPool parserPool) { this.parserPool = parserPool; }
+
+    /**
+     * Gets the dictionary of values shared by all the queries or null if each query has a dictionary of its own.
+     */
+    public ValueDictionary getValueDictionary() { return valueDictionary; }
+
+    public void setValueDictionary(ValueDictionary dictionary) { this.valueDictionary = dictionary; }
+
+    /**
+     * Gets the maximum size of the dictionary of values of each query, or 0 if values are not encoded.
+     */
+    public int getValueDictionarySize() { return valueDictionarySize; }
+
+    public void setValueDictionarySize(int size) { this.valueDictionarySize = size; }
+
+    public long getJoinMemoryBudget() { return joinMemoryBudget; }
+
+    public void setJoinMemoryBudget(long budget) { this.joinMemoryBudget = budget; }
+
+    /**
+     * Gets the estimated cardinality up to which the inputs of a join of two remote plans
+     * are joined by a symmetric hash join.
+     */
+    public long getSymmetricJoinThreshold() { return symmetricJoinThreshold; }
+
+    public void setSymmetricJoinThreshold(long threshold) { this.symmetricJoinThreshold = threshold; }
+
+    /**
+     * Whether the plans are chosen among those that return their first rows early,
+     * which joins remote plans by a symmetric hash join whatever their cardinalities.
+     */
+    public boolean isPreferFirstRows() { return preferFirstRows; }
+
+    public void setPreferFirstRows(boolean preferFirstRows) { this.preferFirstRows = preferFirstRows; }
+
+    public void setReplicaSelector(ReplicaSelector replicaSelector) { this.replicaSelector = replicaSelector; }
+
+    /**
+     * Gets the scheduler that admits the remote requests and owns the threads of the query evaluation.
+     */
+    public RequestScheduler getRequestScheduler() { return requestScheduler; }
+
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        assert requestScheduler != null;
+        this.requestScheduler = requestScheduler;
+    }
+
     public MaterializationManager getManager() {
         File baseDir = new File("/var/tmp/");
         TupleQueryResultFormat resultFF = TupleQueryResultFormat.BINARY;
 
         TupleQueryResultWriterRegistry  registry = TupleQueryResultWriterRegistry.getInstance();
         TupleQueryResultWriterFactory writerFactory = registry.get(resultFF);
-        MaterializationManager manager = new FileManager(baseDir, writerFactory);
+        FileManager manager = new FileManager(baseDir, writerFactory);
+        manager.setParserPool(parserPool);
 
         return manager;
     }
@@ -173,6 +319,37 @@ public class SemagrowSail extends SailBase {
 
     @Override
     protected void shutDownInternal() throws SailException {
+        logger.info("Bind join batch sizes: " + endpointRegistry.getBatchSizes());
+        endpointRegistry.shutDown();
+
+        if (resultCache != null) {
+            logger.info("Result cache statistics: " + resultCache);
+            resultCache.clear();
+        }
+
+        if (requestCoalescer != null)
+            logger.info("Request coalescing statistics: " + requestCoalescer);
+
+        if (healthRegistry != null)
+            logger.info("Endpoint health: " + healthRegistry);
+
+        if (replicaSelector != null)
+            logger.info("Endpoint load: " + replicaSelector);
+
+        logger.info("Request scheduling statistics: " + requestScheduler);
+        requestScheduler.shutDown();
+
+        if (asyncHttpClient != null)
+            asyncHttpClient.shutDown();
+
+        if (parserPool != null) {
+            logger.info("Result parsing statistics: " + parserPool);
+            parserPool.shutDown();
+        }
+
+        if (valueDictionary != null)
+            logger.info("Shared value dictionary: " + valueDictionary);
+
         if (handler != null) {
             try {
                 handler.endQueryLog();
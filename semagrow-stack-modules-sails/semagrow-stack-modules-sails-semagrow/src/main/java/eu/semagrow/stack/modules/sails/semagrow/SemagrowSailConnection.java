@@ -79,6 +79,22 @@ public class SemagrowSailConnection extends SailConnectionBase {
             Collection<URI> includeOnlySources, Collection<URI> excludeSources)
             throws SailException
     {
+        return evaluate(tupleExpr, dataset, bindings, includeInferred, includeProvenance,
+                includeOnlySources, excludeSources, 0);
+    }
+
+    /**
+     * Evaluates a query that is cancelled, along with all its remote requests,
+     * if it does not complete within the given time.
+     * @param maxExecutionTime the time limit in milliseconds or 0 for no limit
+     */
+    public final CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(
+            TupleExpr tupleExpr, Dataset dataset, BindingSet bindings,
+            boolean includeInferred, boolean includeProvenance,
+            Collection<URI> includeOnlySources, Collection<URI> excludeSources,
+            long maxExecutionTime)
+            throws SailException
+    {
 
         //FIXME: flushPendingUpdates();
         connectionLock.readLock().lock();
@@ -88,7 +104,7 @@ public class SemagrowSailConnection extends SailConnectionBase {
             CloseableIteration<? extends BindingSet, QueryEvaluationException> iteration =
                     evaluateInternal(tupleExpr, dataset, bindings,
                             includeInferred, includeProvenance,
-                            includeOnlySources, excludeSources);
+                            includeOnlySources, excludeSources, maxExecutionTime);
             try {
                 CloseableIteration<? extends BindingSet, QueryEvaluationException> registeredIteration =
                         registerIteration(iteration);
@@ -130,6 +146,19 @@ public class SemagrowSailConnection extends SailConnectionBase {
                          Collection<URI> excludeSources)
             throws SailException {
 
+        return evaluateInternal(tupleExpr, dataset, bindings, b, p, includeOnlySources, excludeSources, 0);
+    }
+
+    protected CloseableIteration<? extends BindingSet, QueryEvaluationException>
+        evaluateInternal(TupleExpr tupleExpr,
+                         Dataset dataset,
+                         BindingSet bindings,
+                         boolean b, boolean p,
+                         Collection<URI> includeOnlySources,
+                         Collection<URI> excludeSources,
+                         long maxExecutionTime)
+            throws SailException {
+
         logger.debug("Starting decomposition of " + tupleExpr.toString());
 
         TupleExpr decomposed = null;
@@ -141,7 +170,7 @@ public class SemagrowSailConnection extends SailConnectionBase {
         logger.debug("Query decomposed to " + decomposed.toString());
         logger.info("Decomposed query: " + decomposed.toString());
 
-        return evaluateOnly(decomposed, dataset, bindings, b, p);
+        return evaluateOnly(decomposed, dataset, bindings, b, p, maxExecutionTime);
     }
 
     public CloseableIteration<? extends BindingSet, QueryEvaluationException>
@@ -150,10 +179,24 @@ public class SemagrowSailConnection extends SailConnectionBase {
                          BindingSet bindings,
                          boolean b, boolean p) throws SailException {
 
+        return evaluateOnly(tupleExpr, dataset, bindings, b, p, 0);
+    }
+
+    public CloseableIteration<? extends BindingSet, QueryEvaluationException>
+        evaluateOnly(TupleExpr tupleExpr,
+                         Dataset dataset,
+                         BindingSet bindings,
+                         boolean b, boolean p,
+                         long maxExecutionTime) throws SailException {
+
+        FederatedQueryEvaluationSession session = null;
+
         try {
             logger.info("Query evaluation started.");
 
-            FederatedQueryEvaluationSession session = queryEvaluation.createSession(tupleExpr, dataset, bindings);
+            session = queryEvaluation.createSession(tupleExpr, dataset, bindings);
+
+            session.setMaxExecutionTime(maxExecutionTime);
 
             FederatedEvaluationStrategy evaluationStrategy = session.getEvaluationStrategy();
 
@@ -166,6 +209,8 @@ public class SemagrowSailConnection extends SailConnectionBase {
 
             return result;
         } catch (QueryEvaluationException e) {
+            if (session != null)
+                session.cancel();
             throw new SailException(e);
         }
     }
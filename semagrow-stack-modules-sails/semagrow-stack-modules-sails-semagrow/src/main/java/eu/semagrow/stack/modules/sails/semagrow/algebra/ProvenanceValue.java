@@ -41,6 +41,11 @@ public class ProvenanceValue implements Value {
         return sb.toString();
     }
 
+    /**
+     * @return the endpoints of the provenance, in the order they were added.
+     */
+    public List<URI> getProvenances() { return Collections.unmodifiableList(provenances); }
+
     public void merge(ProvenanceValue pv) {
         provenances.addAll(pv.provenances);
     }
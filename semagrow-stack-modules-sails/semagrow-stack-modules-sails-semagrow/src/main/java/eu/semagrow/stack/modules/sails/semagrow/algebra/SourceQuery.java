@@ -5,8 +5,13 @@ import org.openrdf.query.algebra.QueryModelVisitor;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.UnaryTupleOperator;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by angel on 4/26/14.
@@ -19,6 +24,12 @@ public class SourceQuery extends UnaryTupleOperator {
     // we choose sequential with the hope that some of the sources will not be needed eventually
     // (because of some LIMIT)
 
+    // alternative endpoints (mirrors) of each source; every mirror contains the same triples
+    Map<URI, List<URI>> mirrors = new HashMap<URI, List<URI>>();
+
+    // the variables requested from the sources; null to request all of them
+    Set<String> projection;
+
     public SourceQuery(TupleExpr expr) {
         super(expr);
     }
@@ -34,8 +45,64 @@ public class SourceQuery extends UnaryTupleOperator {
         this.sources = new LinkedList<URI>(sources);
     }
 
+    /**
+     * Creates a query to a single source that is served by several mirrored endpoints.
+     * @param mirrors the endpoints of the source, starting with the preferred one
+     */
+    public SourceQuery(TupleExpr expr, URI source, List<URI> mirrors) {
+        this(expr, source);
+        setMirrors(source, mirrors);
+    }
+
     public List<URI> getSources() { return sources; }
 
+    /**
+     * Gets the endpoints that can answer the query for the given source.
+     * @return the mirrors of the source, or only the source itself if it has no mirrors
+     */
+    public List<URI> getMirrors(URI source) {
+        List<URI> m = mirrors.get(source);
+        return (m != null) ? m : Collections.singletonList(source);
+    }
+
+    public void setMirrors(URI source, List<URI> sourceMirrors) {
+        List<URI> m = new LinkedList<URI>();
+        m.add(source);
+        for (URI mirror : sourceMirrors)
+            if (!m.contains(mirror))
+                m.add(mirror);
+        mirrors.put(source, Collections.unmodifiableList(m));
+    }
+
+    /**
+     * Gets the variables of the query that are used by the rest of the plan.
+     * @return the variables to request from the sources, or null to request all of them
+     */
+    public Set<String> getProjection() { return projection; }
+
+    public void setProjection(Set<String> projection) {
+        this.projection = (projection == null) ? null : Collections.unmodifiableSet(new HashSet<String>(projection));
+    }
+
+    @Override
+    public Set<String> getBindingNames() {
+        return project(super.getBindingNames());
+    }
+
+    @Override
+    public Set<String> getAssuredBindingNames() {
+        return project(super.getAssuredBindingNames());
+    }
+
+    private Set<String> project(Set<String> names) {
+        if (projection == null)
+            return names;
+
+        Set<String> projected = new HashSet<String>(names);
+        projected.retainAll(projection);
+        return projected;
+    }
+
     public <X extends Exception> void visit(QueryModelVisitor<X> xQueryModelVisitor) throws X {
         xQueryModelVisitor.meetOther(this);
     }
@@ -47,6 +114,17 @@ public class SourceQuery extends UnaryTupleOperator {
         for (URI src : sources) {
             sb.append(" (source = ");
             sb.append(src.toString());
+            List<URI> m = getMirrors(src);
+            if (m.size() > 1) {
+                sb.append(", mirrors = ");
+                sb.append(m.subList(1, m.size()).toString());
+            }
+            sb.append(")");
+        }
+
+        if (projection != null) {
+            sb.append(" (projection = ");
+            sb.append(projection.toString());
             sb.append(")");
         }
 
@@ -0,0 +1,30 @@
+package eu.semagrow.stack.modules.sails.semagrow.algebra;
+
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.TupleExpr;
+
+/**
+ * Will read both arguments concurrently and join every row of one argument
+ * with the rows of the other argument that have been read so far,
+ * so the joined rows are returned before either argument is exhausted.
+ */
+public class SymmetricHashJoin extends Join {
+
+    public SymmetricHashJoin(TupleExpr e1, TupleExpr e2) {
+        super(e1,e2);
+    }
+
+    @Override
+    public int hashCode() {
+        return "symmetric".hashCode() + super.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof SymmetricHashJoin) {
+            SymmetricHashJoin j = (SymmetricHashJoin) o;
+            return getLeftArg().equals(j.getLeftArg()) && getRightArg().equals(j.getRightArg());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+package eu.semagrow.stack.modules.sails.semagrow.config;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.BindJoinMode;
+import org.openrdf.model.*;
+import org.openrdf.model.util.GraphUtil;
+import org.openrdf.model.util.GraphUtilException;
+import org.openrdf.sail.config.SailConfigException;
+
+/**
+ * Configuration options that apply to a single remote endpoint.
+ */
+public class EndpointConfig {
+
+    private URI endpoint;
+
+    private BindJoinMode bindJoinMode;
+
+    private Long resultCacheTTL;
+
+    private Integer maxRequests;
+
+    public EndpointConfig() { }
+
+    public EndpointConfig(URI endpoint) { this.endpoint = endpoint; }
+
+    public URI getEndpoint() { return endpoint; }
+
+    public void setEndpoint(URI endpoint) { this.endpoint = endpoint; }
+
+    /**
+     * @return the bind join mode of the endpoint or null to use the default.
+     */
+    public BindJoinMode getBindJoinMode() { return bindJoinMode; }
+
+    public void setBindJoinMode(BindJoinMode mode) { this.bindJoinMode = mode; }
+
+    /**
+     * @return the time-to-live of the cached results of the endpoint or null to use the default.
+     */
+    public Long getResultCacheTTL() { return resultCacheTTL; }
+
+    public void setResultCacheTTL(Long ttl) { this.resultCacheTTL = ttl; }
+
+    /**
+     * @return the maximum number of concurrent requests to the endpoint or null to use the default.
+     */
+    public Integer getMaxRequests() { return maxRequests; }
+
+    public void setMaxRequests(Integer max) { this.maxRequests = max; }
+
+    public Resource export(Graph graph) {
+        ValueFactory vf = graph.getValueFactory();
+        BNode node = vf.createBNode();
+
+        graph.add(node, SemagrowSchema.ENDPOINTURI, endpoint);
+
+        if (bindJoinMode != null)
+            graph.add(node, SemagrowSchema.BINDJOINMODE, vf.createLiteral(bindJoinMode.name()));
+
+        if (resultCacheTTL != null)
+            graph.add(node, SemagrowSchema.RESULTCACHETTL, vf.createLiteral(resultCacheTTL));
+
+        if (maxRequests != null)
+            graph.add(node, SemagrowSchema.MAXREQUESTSPERENDPOINT, vf.createLiteral(maxRequests));
+
+        return node;
+    }
+
+    public void parse(Graph graph, Resource node) throws SailConfigException {
+        try {
+            setEndpoint(GraphUtil.getUniqueObjectURI(graph, node, SemagrowSchema.ENDPOINTURI));
+
+            Literal modeLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.BINDJOINMODE);
+            if (modeLit != null)
+                setBindJoinMode(parseBindJoinMode(modeLit));
+
+            Literal ttlLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.RESULTCACHETTL);
+            if (ttlLit != null)
+                setResultCacheTTL(ttlLit.longValue());
+
+            Literal maxRequestsLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.MAXREQUESTSPERENDPOINT);
+            if (maxRequestsLit != null)
+                setMaxRequests(maxRequestsLit.intValue());
+
+        } catch (GraphUtilException | NumberFormatException e) {
+            throw new SailConfigException(e);
+        }
+    }
+
+    static BindJoinMode parseBindJoinMode(Literal lit) throws SailConfigException {
+        try {
+            return BindJoinMode.valueOf(lit.getLabel().trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new SailConfigException("Unknown bind join mode " + lit.getLabel());
+        }
+    }
+}
@@ -2,6 +2,15 @@ package eu.semagrow.stack.modules.sails.semagrow.config;
 
 import eu.semagrow.modules.fileutils.FileUtils;
 import eu.semagrow.stack.modules.sails.config.SEVODInferencerConfig;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.BindJoinMode;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.async.AsyncHttpClient;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ResultParserPool;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.ResultCache;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.HashJoinIteration;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import eu.semagrow.stack.modules.sails.semagrow.optimizer.DynamicProgrammingDecomposer;
 import org.openrdf.model.*;
 import org.openrdf.model.util.GraphUtil;
 import org.openrdf.model.util.GraphUtilException;
@@ -32,6 +41,36 @@ public class SemagrowSailConfig extends SailImplConfigBase {
     private String queryTransformationPassword;
     private String queryTransformationDBString;
 
+    private int maxConnectionsPerEndpoint = EndpointRegistry.DEFAULT_MAX_CONNECTIONS;
+    private long connectionIdleTimeout = EndpointRegistry.DEFAULT_IDLE_TIMEOUT;
+
+    private BindJoinMode bindJoinMode = BindJoinMode.VALUES;
+
+    private boolean resultCacheEnabled = false;
+    private long resultCacheSize = ResultCache.DEFAULT_MAX_SIZE;
+    private long resultCacheTTL = ResultCache.DEFAULT_TTL;
+
+    private boolean coalesceRequests = true;
+
+    private int maxRequestsPerEndpoint = RequestScheduler.DEFAULT_MAX_REQUESTS_PER_ENDPOINT;
+    private int maxThreads = RequestScheduler.DEFAULT_MAX_THREADS;
+
+    private boolean asyncQueryExecutor = false;
+    private int asyncThreads = AsyncHttpClient.DEFAULT_THREADS;
+
+    private int parserThreads = ResultParserPool.DEFAULT_THREADS;
+
+    private int valueDictionarySize = ValueDictionary.DEFAULT_MAX_SIZE;
+    private boolean globalValueDictionary = false;
+
+    private long joinMemoryBudget = HashJoinIteration.DEFAULT_MEMORY_BUDGET;
+
+    private long symmetricJoinThreshold = DynamicProgrammingDecomposer.DEFAULT_SYMMETRIC_JOIN_THRESHOLD;
+
+    private boolean preferFirstRows = false;
+
+    private List<EndpointConfig> endpointConfigs = new LinkedList<EndpointConfig>();
+
     public SemagrowSailConfig() { super(SemagrowSailFactory.SAIL_TYPE); }
 
     public SourceSelectorImplConfig getSourceSelectorConfig() {
@@ -82,6 +121,28 @@ public class SemagrowSailConfig extends SailImplConfigBase {
             graph.add(implNode, SemagrowSchema.QUERYTRANSFORMUSER, graph.getValueFactory().createLiteral(getQueryTransformationUser()));
             graph.add(implNode, SemagrowSchema.QUERYTRANSFORMPASSWORD, graph.getValueFactory().createLiteral(getQueryTransformationPassword()));
         }
+
+        graph.add(implNode, SemagrowSchema.MAXCONNECTIONSPERENDPOINT, graph.getValueFactory().createLiteral(getMaxConnectionsPerEndpoint()));
+        graph.add(implNode, SemagrowSchema.CONNECTIONIDLETIMEOUT, graph.getValueFactory().createLiteral(getConnectionIdleTimeout()));
+        graph.add(implNode, SemagrowSchema.BINDJOINMODE, graph.getValueFactory().createLiteral(getBindJoinMode().name()));
+        graph.add(implNode, SemagrowSchema.RESULTCACHE, graph.getValueFactory().createLiteral(isResultCacheEnabled()));
+        graph.add(implNode, SemagrowSchema.RESULTCACHESIZE, graph.getValueFactory().createLiteral(getResultCacheSize()));
+        graph.add(implNode, SemagrowSchema.RESULTCACHETTL, graph.getValueFactory().createLiteral(getResultCacheTTL()));
+        graph.add(implNode, SemagrowSchema.COALESCEREQUESTS, graph.getValueFactory().createLiteral(isCoalesceRequests()));
+        graph.add(implNode, SemagrowSchema.MAXREQUESTSPERENDPOINT, graph.getValueFactory().createLiteral(getMaxRequestsPerEndpoint()));
+        graph.add(implNode, SemagrowSchema.MAXTHREADS, graph.getValueFactory().createLiteral(getMaxThreads()));
+        graph.add(implNode, SemagrowSchema.ASYNCQUERYEXECUTOR, graph.getValueFactory().createLiteral(isAsyncQueryExecutor()));
+        graph.add(implNode, SemagrowSchema.ASYNCTHREADS, graph.getValueFactory().createLiteral(getAsyncThreads()));
+        graph.add(implNode, SemagrowSchema.PARSERTHREADS, graph.getValueFactory().createLiteral(getParserThreads()));
+        graph.add(implNode, SemagrowSchema.VALUEDICTIONARYSIZE, graph.getValueFactory().createLiteral(getValueDictionarySize()));
+        graph.add(implNode, SemagrowSchema.GLOBALVALUEDICTIONARY, graph.getValueFactory().createLiteral(isGlobalValueDictionary()));
+        graph.add(implNode, SemagrowSchema.JOINMEMORYBUDGET, graph.getValueFactory().createLiteral(getJoinMemoryBudget()));
+        graph.add(implNode, SemagrowSchema.SYMMETRICJOINTHRESHOLD, graph.getValueFactory().createLiteral(getSymmetricJoinThreshold()));
+        graph.add(implNode, SemagrowSchema.PREFERFIRSTROWS, graph.getValueFactory().createLiteral(isPreferFirstRows()));
+
+        for (EndpointConfig endpointConfig : endpointConfigs) {
+            graph.add(implNode, SemagrowSchema.ENDPOINT, endpointConfig.export(graph));
+        }
         return implNode;
     }
 
@@ -93,6 +154,99 @@ public class SemagrowSailConfig extends SailImplConfigBase {
             filenames.add(o.stringValue());
         }
 
+        try {
+            Literal maxConnLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.MAXCONNECTIONSPERENDPOINT);
+            Literal idleTimeoutLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.CONNECTIONIDLETIMEOUT);
+
+            if (maxConnLit != null)
+                setMaxConnectionsPerEndpoint(maxConnLit.intValue());
+
+            if (idleTimeoutLit != null)
+                setConnectionIdleTimeout(idleTimeoutLit.longValue());
+
+            Literal bindJoinModeLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.BINDJOINMODE);
+
+            if (bindJoinModeLit != null)
+                setBindJoinMode(EndpointConfig.parseBindJoinMode(bindJoinModeLit));
+
+            Literal cacheLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.RESULTCACHE);
+            Literal cacheSizeLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.RESULTCACHESIZE);
+            Literal cacheTTLLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.RESULTCACHETTL);
+
+            if (cacheLit != null)
+                setResultCacheEnabled(cacheLit.booleanValue());
+
+            if (cacheSizeLit != null)
+                setResultCacheSize(cacheSizeLit.longValue());
+
+            if (cacheTTLLit != null)
+                setResultCacheTTL(cacheTTLLit.longValue());
+
+            Literal coalesceLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.COALESCEREQUESTS);
+
+            if (coalesceLit != null)
+                setCoalesceRequests(coalesceLit.booleanValue());
+
+            Literal maxRequestsLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.MAXREQUESTSPERENDPOINT);
+            Literal maxThreadsLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.MAXTHREADS);
+
+            if (maxRequestsLit != null)
+                setMaxRequestsPerEndpoint(maxRequestsLit.intValue());
+
+            if (maxThreadsLit != null)
+                setMaxThreads(maxThreadsLit.intValue());
+
+            Literal asyncLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.ASYNCQUERYEXECUTOR);
+            Literal asyncThreadsLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.ASYNCTHREADS);
+
+            if (asyncLit != null)
+                setAsyncQueryExecutor(asyncLit.booleanValue());
+
+            if (asyncThreadsLit != null)
+                setAsyncThreads(asyncThreadsLit.intValue());
+
+            Literal parserThreadsLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.PARSERTHREADS);
+
+            if (parserThreadsLit != null)
+                setParserThreads(parserThreadsLit.intValue());
+
+            Literal dictionarySizeLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.VALUEDICTIONARYSIZE);
+            Literal globalDictionaryLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.GLOBALVALUEDICTIONARY);
+
+            if (dictionarySizeLit != null)
+                setValueDictionarySize(dictionarySizeLit.intValue());
+
+            if (globalDictionaryLit != null)
+                setGlobalValueDictionary(globalDictionaryLit.booleanValue());
+
+            Literal joinBudgetLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.JOINMEMORYBUDGET);
+
+            if (joinBudgetLit != null)
+                setJoinMemoryBudget(joinBudgetLit.longValue());
+
+            Literal symmetricLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.SYMMETRICJOINTHRESHOLD);
+
+            if (symmetricLit != null)
+                setSymmetricJoinThreshold(symmetricLit.longValue());
+
+            Literal firstRowsLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.PREFERFIRSTROWS);
+
+            if (firstRowsLit != null)
+                setPreferFirstRows(firstRowsLit.booleanValue());
+
+        } catch (GraphUtilException | IllegalArgumentException e) {
+            throw new SailConfigException(e);
+        }
+
+        for (Value o : GraphUtil.getObjects(graph, node, SemagrowSchema.ENDPOINT))
+        {
+            if (o instanceof Resource) {
+                EndpointConfig endpointConfig = new EndpointConfig();
+                endpointConfig.parse(graph, (Resource) o);
+                endpointConfigs.add(endpointConfig);
+            }
+        }
+
         try {
             Literal dbLit = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.QUERYTRANSFORMDB);
             Literal dbUser = GraphUtil.getOptionalObjectLiteral(graph, node, SemagrowSchema.QUERYTRANSFORMUSER);
@@ -121,4 +275,95 @@ public class SemagrowSailConfig extends SailImplConfigBase {
         this.queryTransformationUser = username;
         this.queryTransformationPassword = password;
     }
+
+    public int getMaxConnectionsPerEndpoint() { return maxConnectionsPerEndpoint; }
+
+    public void setMaxConnectionsPerEndpoint(int max) { this.maxConnectionsPerEndpoint = max; }
+
+    public long getConnectionIdleTimeout() { return connectionIdleTimeout; }
+
+    public void setConnectionIdleTimeout(long timeout) { this.connectionIdleTimeout = timeout; }
+
+    public BindJoinMode getBindJoinMode() { return bindJoinMode; }
+
+    public void setBindJoinMode(BindJoinMode mode) { this.bindJoinMode = mode; }
+
+    public boolean isResultCacheEnabled() { return resultCacheEnabled; }
+
+    public void setResultCacheEnabled(boolean enabled) { this.resultCacheEnabled = enabled; }
+
+    public long getResultCacheSize() { return resultCacheSize; }
+
+    public void setResultCacheSize(long size) { this.resultCacheSize = size; }
+
+    public long getResultCacheTTL() { return resultCacheTTL; }
+
+    public void setResultCacheTTL(long ttl) { this.resultCacheTTL = ttl; }
+
+    public boolean isCoalesceRequests() { return coalesceRequests; }
+
+    public void setCoalesceRequests(boolean coalesce) { this.coalesceRequests = coalesce; }
+
+    public int getMaxRequestsPerEndpoint() { return maxRequestsPerEndpoint; }
+
+    public void setMaxRequestsPerEndpoint(int max) { this.maxRequestsPerEndpoint = max; }
+
+    public int getMaxThreads() { return maxThreads; }
+
+    public void setMaxThreads(int max) { this.maxThreads = max; }
+
+    /**
+     * @return true if the remote requests are sent by the non-blocking client.
+     */
+    public boolean isAsyncQueryExecutor() { return asyncQueryExecutor; }
+
+    public void setAsyncQueryExecutor(boolean async) { this.asyncQueryExecutor = async; }
+
+    /**
+     * @return the number of threads of the non-blocking client.
+     */
+    public int getAsyncThreads() { return asyncThreads; }
+
+    public void setAsyncThreads(int threads) { this.asyncThreads = threads; }
+
+    /**
+     * @return the number of threads that parse the result streams, or 0 to parse every stream on a thread of its own.
+     */
+    public int getParserThreads() { return parserThreads; }
+
+    public void setParserThreads(int threads) { this.parserThreads = threads; }
+
+    /**
+     * @return the maximum number of values in the dictionary of a query, or 0 to keep the values as they are parsed.
+     */
+    public int getValueDictionarySize() { return valueDictionarySize; }
+
+    public void setValueDictionarySize(int size) { this.valueDictionarySize = size; }
+
+    /**
+     * @return true if a single dictionary of values is shared by all the queries.
+     */
+    public boolean isGlobalValueDictionary() { return globalValueDictionary; }
+
+    public void setGlobalValueDictionary(boolean global) { this.globalValueDictionary = global; }
+
+    /**
+     * @return the estimated memory in bytes that the build side of a hash join can hold before the
+     * join spills its inputs to temporary files, or 0 to keep the build side in memory.
+     */
+    public long getJoinMemoryBudget() { return joinMemoryBudget; }
+
+    public void setJoinMemoryBudget(long budget) { this.joinMemoryBudget = budget; }
+
+    public long getSymmetricJoinThreshold() { return symmetricJoinThreshold; }
+
+    public void setSymmetricJoinThreshold(long threshold) { this.symmetricJoinThreshold = threshold; }
+
+    public boolean isPreferFirstRows() { return preferFirstRows; }
+
+    public void setPreferFirstRows(boolean preferFirstRows) { this.preferFirstRows = preferFirstRows; }
+
+    public List<EndpointConfig> getEndpointConfigs() { return endpointConfigs; }
+
+    public void addEndpointConfig(EndpointConfig endpointConfig) { endpointConfigs.add(endpointConfig); }
 }
@@ -2,16 +2,21 @@ package eu.semagrow.stack.modules.sails.semagrow.config;
 
 import eu.semagrow.stack.modules.alignment.QueryTransformationImpl;
 import eu.semagrow.stack.modules.api.estimator.CardinalityEstimator;
-import eu.semagrow.stack.modules.api.estimator.CostEstimator;
 import eu.semagrow.stack.modules.api.source.SourceSelector;
 import eu.semagrow.stack.modules.api.statistics.Statistics;
 import eu.semagrow.stack.modules.api.transformation.QueryTransformation;
+import eu.semagrow.stack.modules.querydecomp.selector.HealthAwareSourceSelector;
 import eu.semagrow.stack.modules.querydecomp.selector.SourceSelectorWithQueryTransform;
 import eu.semagrow.stack.modules.querydecomp.selector.VOIDSourceSelector;
 import eu.semagrow.stack.modules.querydecomp.selector.VOIDStatistics;
 import eu.semagrow.stack.modules.sails.semagrow.SemagrowSail;
 import eu.semagrow.stack.modules.sails.semagrow.estimator.CardinalityEstimatorImpl;
 import eu.semagrow.stack.modules.sails.semagrow.estimator.CostEstimatorImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.async.AsyncHttpClient;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.ResultCache;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ResultParserPool;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
@@ -65,15 +70,63 @@ public class SemagrowSailFactory implements SailFactory, RepositoryResolverClien
 
             SourceSelector selector = getSourceSelector(metadata, config, config.getSourceSelectorConfig());
 
-            sail.setSourceSelector(selector);
+            HealthAwareSourceSelector healthAwareSelector = new HealthAwareSourceSelector(selector);
+            sail.getHealthRegistry().addListener(healthAwareSelector);
+
+            sail.setSourceSelector(healthAwareSelector);
 
             CardinalityEstimator cardEstimator = getCardinalityEstimator(metadata, config);
 
-            CostEstimator costEstimator = new CostEstimatorImpl(cardEstimator);
+            CostEstimatorImpl costEstimator = new CostEstimatorImpl(cardEstimator);
+            sail.getHealthRegistry().addListener(costEstimator);
 
             sail.setCostEstimator(costEstimator);
             sail.setCardinalityEstimator(cardEstimator);
 
+            sail.getEndpointRegistry().setMaxConnectionsPerEndpoint(config.getMaxConnectionsPerEndpoint());
+            sail.getEndpointRegistry().setIdleTimeout(config.getConnectionIdleTimeout());
+            sail.getEndpointRegistry().setDefaultBindJoinMode(config.getBindJoinMode());
+
+            RequestScheduler scheduler = new RequestScheduler(config.getMaxThreads());
+            scheduler.setMaxRequestsPerEndpoint(config.getMaxRequestsPerEndpoint());
+            sail.setRequestScheduler(scheduler);
+
+            if (config.isAsyncQueryExecutor())
+                sail.setAsyncHttpClient(new AsyncHttpClient(config.getAsyncThreads()));
+
+            if (config.getParserThreads() > 0)
+                sail.setParserPool(new ResultParserPool(config.getParserThreads()));
+
+            sail.setValueDictionarySize(config.getValueDictionarySize());
+
+            if (config.isGlobalValueDictionary() && config.getValueDictionarySize() > 0)
+                sail.setValueDictionary(new ValueDictionary(config.getValueDictionarySize()));
+
+            sail.setJoinMemoryBudget(config.getJoinMemoryBudget());
+            sail.setSymmetricJoinThreshold(config.getSymmetricJoinThreshold());
+            sail.setPreferFirstRows(config.isPreferFirstRows());
+
+            ResultCache resultCache = null;
+
+            if (config.isResultCacheEnabled()) {
+                resultCache = new ResultCache(config.getResultCacheSize(), config.getResultCacheTTL());
+                sail.setResultCache(resultCache);
+            }
+
+            if (!config.isCoalesceRequests())
+                sail.setRequestCoalescer(null);
+
+            for (EndpointConfig endpointConfig : config.getEndpointConfigs()) {
+                if (endpointConfig.getBindJoinMode() != null)
+                    sail.getEndpointRegistry().setBindJoinMode(endpointConfig.getEndpoint(), endpointConfig.getBindJoinMode());
+
+                if (resultCache != null && endpointConfig.getResultCacheTTL() != null)
+                    resultCache.setTTL(endpointConfig.getEndpoint(), endpointConfig.getResultCacheTTL());
+
+                if (endpointConfig.getMaxRequests() != null)
+                    scheduler.setMaxRequests(endpointConfig.getEndpoint(), endpointConfig.getMaxRequests());
+            }
+
             return sail;
 
         } catch (Exception e) {
@@ -24,6 +24,36 @@ public class SemagrowSchema {
     public static final URI QUERYTRANSFORMUSER;
     public static final URI QUERYTRANSFORMPASSWORD;
 
+    public static final URI MAXCONNECTIONSPERENDPOINT;
+    public static final URI CONNECTIONIDLETIMEOUT;
+
+    public static final URI BINDJOINMODE;
+
+    public static final URI RESULTCACHE;
+    public static final URI RESULTCACHESIZE;
+    public static final URI RESULTCACHETTL;
+
+    public static final URI COALESCEREQUESTS;
+
+    public static final URI MAXREQUESTSPERENDPOINT;
+    public static final URI MAXTHREADS;
+
+    public static final URI ASYNCQUERYEXECUTOR;
+    public static final URI ASYNCTHREADS;
+
+    public static final URI PARSERTHREADS;
+
+    public static final URI VALUEDICTIONARYSIZE;
+    public static final URI GLOBALVALUEDICTIONARY;
+
+    public static final URI JOINMEMORYBUDGET;
+
+    public static final URI SYMMETRICJOINTHRESHOLD;
+    public static final URI PREFERFIRSTROWS;
+
+    public static final URI ENDPOINT;
+    public static final URI ENDPOINTURI;
+
     // queryLog handler
     // source selection
     // decomposition algorithm
@@ -37,5 +67,24 @@ public class SemagrowSchema {
         QUERYTRANSFORMDB = vf.createURI(NAMESPACE, "queryTransformDB");
         QUERYTRANSFORMUSER = vf.createURI(NAMESPACE, "queryTransformUser");
         QUERYTRANSFORMPASSWORD = vf.createURI(NAMESPACE, "queryTransformPass");
+        MAXCONNECTIONSPERENDPOINT = vf.createURI(NAMESPACE, "maxConnectionsPerEndpoint");
+        CONNECTIONIDLETIMEOUT = vf.createURI(NAMESPACE, "connectionIdleTimeout");
+        BINDJOINMODE = vf.createURI(NAMESPACE, "bindJoinMode");
+        RESULTCACHE = vf.createURI(NAMESPACE, "resultCache");
+        RESULTCACHESIZE = vf.createURI(NAMESPACE, "resultCacheSize");
+        RESULTCACHETTL = vf.createURI(NAMESPACE, "resultCacheTTL");
+        COALESCEREQUESTS = vf.createURI(NAMESPACE, "coalesceRequests");
+        MAXREQUESTSPERENDPOINT = vf.createURI(NAMESPACE, "maxRequestsPerEndpoint");
+        MAXTHREADS = vf.createURI(NAMESPACE, "maxThreads");
+        ASYNCQUERYEXECUTOR = vf.createURI(NAMESPACE, "asyncQueryExecutor");
+        ASYNCTHREADS = vf.createURI(NAMESPACE, "asyncThreads");
+        PARSERTHREADS = vf.createURI(NAMESPACE, "parserThreads");
+        VALUEDICTIONARYSIZE = vf.createURI(NAMESPACE, "valueDictionarySize");
+        GLOBALVALUEDICTIONARY = vf.createURI(NAMESPACE, "globalValueDictionary");
+        JOINMEMORYBUDGET = vf.createURI(NAMESPACE, "joinMemoryBudget");
+        SYMMETRICJOINTHRESHOLD = vf.createURI(NAMESPACE, "symmetricJoinThreshold");
+        PREFERFIRSTROWS = vf.createURI(NAMESPACE, "preferFirstRows");
+        ENDPOINT = vf.createURI(NAMESPACE, "endpoint");
+        ENDPOINTURI = vf.createURI(NAMESPACE, "endpointURI");
     }
 }
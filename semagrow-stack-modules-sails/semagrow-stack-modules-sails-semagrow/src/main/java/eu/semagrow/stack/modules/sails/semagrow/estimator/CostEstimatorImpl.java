@@ -2,27 +2,39 @@ package eu.semagrow.stack.modules.sails.semagrow.estimator;
 
 import eu.semagrow.stack.modules.api.estimator.CardinalityEstimator;
 import eu.semagrow.stack.modules.api.estimator.CostEstimator;
+import eu.semagrow.stack.modules.api.source.SourceStatusEvent;
+import eu.semagrow.stack.modules.api.source.SourceStatusListener;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.BindJoin;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.HashJoin;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.MergeJoin;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.SourceQuery;
+import eu.semagrow.stack.modules.sails.semagrow.algebra.SymmetricHashJoin;
 import eu.semagrow.stack.modules.sails.semagrow.optimizer.Plan;
 import org.openrdf.model.URI;
 import org.openrdf.query.algebra.*;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * Created by angel on 4/28/14.
  */
-public class CostEstimatorImpl implements CostEstimator {
+public class CostEstimatorImpl implements CostEstimator, SourceStatusListener {
 
     private CardinalityEstimator cardinalityEstimator;
 
+    private ConcurrentMap<URI, SourceStatusEvent.Status> sourceStatus =
+            new ConcurrentHashMap<URI, SourceStatusEvent.Status>();
+
     private static double C_TRANSFER_TUPLE = 0.001;
     private static double C_TRANSFER_QUERY = 0.005;
 
     private static double C_PROBE_TUPLE = 0.001;   //cost to probe a tuple against a hash table
     private static double C_HASH_TUPLE = 0.003;    //cost to hash a tuple to a hash table
 
+    private static double P_DEGRADED = 10;         //communication cost factor of a degraded source
+    private static double P_UNAVAILABLE = 1000;    //communication cost factor of an unavailable source
+
     public CostEstimatorImpl(CardinalityEstimator cardinalityEstimator) {
         this.cardinalityEstimator = cardinalityEstimator;
     }
@@ -62,11 +74,50 @@ public class CostEstimatorImpl implements CostEstimator {
         double communCost = C_TRANSFER_QUERY +
                 cardinalityEstimator.getCardinality(expr.getArg()) * C_TRANSFER_TUPLE;
 
+        communCost *= getPenalty(expr, source);
+
         double cost = getCost(expr.getArg()) + communCost;
 
         return cost;
     }
 
+    public void sourceStatusChanged(SourceStatusEvent event) {
+        if (event.getStatus() == SourceStatusEvent.Status.AVAILABLE)
+            sourceStatus.remove(event.getEndpoint());
+        else
+            sourceStatus.put(event.getEndpoint(), event.getStatus());
+    }
+
+    /**
+     * Penalizes the communication with sources that are reported degraded or unavailable.
+     * All the sources of a query are contacted, so the worst of them determines the penalty.
+     */
+    private double getPenalty(SourceQuery expr, URI source) {
+        if (sourceStatus.isEmpty())
+            return 1;
+
+        double penalty = 1;
+
+        if (source != null)
+            penalty = getPenalty(source);
+        else
+            for (URI s : expr.getSources())
+                penalty = Math.max(penalty, getPenalty(s));
+
+        return penalty;
+    }
+
+    private double getPenalty(URI source) {
+        SourceStatusEvent.Status status = sourceStatus.get(source);
+
+        if (status == SourceStatusEvent.Status.UNAVAILABLE)
+            return P_UNAVAILABLE;
+        else if (status == SourceStatusEvent.Status.DEGRADED)
+            return P_DEGRADED;
+        else
+            return 1;
+    }
+
     public double getCost(BindJoin join, URI source) {
         // long cardinalityOfLeft = cardinalityEstimator.getCardinality(join.getLeftArg());
         // long costLeftArgument = estimateCost(join.getLeftArg());
@@ -95,6 +146,15 @@ public class CostEstimatorImpl implements CostEstimator {
                 + C_HASH_TUPLE*leftCard + C_PROBE_TUPLE*rightCard;
     }
 
+    public double getCost(SymmetricHashJoin join, URI source) {
+        long leftCard = cardinalityEstimator.getCardinality(join.getLeftArg());
+        long rightCard = cardinalityEstimator.getCardinality(join.getRightArg());
+
+        // every row is hashed to the table of its argument and probed against the other
+        return getCost(join.getLeftArg()) + getCost(join.getRightArg())
+                + (C_HASH_TUPLE + C_PROBE_TUPLE) * (leftCard + rightCard);
+    }
+
     public double getCost(MergeJoin join, URI source) {
         double cost1 = getCost(join.getLeftArg(), source);
         double cost2 = getCost(join.getRightArg(), source);
@@ -106,6 +166,8 @@ public class CostEstimatorImpl implements CostEstimator {
             return getCost((BindJoin)join, source);
         else if (join instanceof HashJoin)
             return getCost((HashJoin)join, source);
+        else if (join instanceof SymmetricHashJoin)
+            return getCost((SymmetricHashJoin)join, source);
         else if (join instanceof MergeJoin)
             return getCost((MergeJoin)join, source);
 
@@ -0,0 +1,266 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+/**
+ * Tunes the number of bindings that are shipped in each request of a bind join.
+ * <p>
+ * Every completed request (a probe) reports the number of bindings it carried,
+ * the estimated size of the bindings in the request, its round-trip time and
+ * the number of rows it returned. A probe can also report its round-trip time as
+ * soon as its response starts and the number of its rows once it is read, so that
+ * the next batch is sized while the current one is still being read. The controller hill-climbs on the throughput
+ * in bindings per millisecond: it keeps growing (or shrinking) the batch while
+ * the throughput improves and turns around when it gets worse. Failed requests
+ * halve the batch size and temporarily cap it below the size that failed.
+ * The batch size is further limited so that the expected request size and
+ * the expected number of rows per request stay within their limits.
+ * <p>
+ * A controller can have a parent, typically the controller of an endpoint;
+ * it starts from the batch size of its parent and reports every probe to it,
+ * so that new joins start from what was learned by the previous ones.
+ */
+public class BatchSizeController {
+
+    public static final int DEFAULT_INITIAL_BATCH_SIZE = 10;
+
+    public static final int DEFAULT_MIN_BATCH_SIZE = 1;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    public static final long DEFAULT_MAX_REQUEST_SIZE = 64 * 1024;
+
+    public static final long DEFAULT_MAX_ROWS_PER_REQUEST = 10000;
+
+    private static final double GROWTH = 1.5;
+
+    private static final double SHRINK = 0.75;
+
+    // relative change in throughput that is considered noise
+    private static final double TOLERANCE = 0.05;
+
+    // weight of the latest probe in the moving averages
+    private static final double ALPHA = 0.3;
+
+    // number of successful probes after which the cap set by a failure is relaxed
+    private static final int RECOVERY_PROBES = 10;
+
+    private final BatchSizeController parent;
+
+    private final int minBatchSize;
+
+    private final int maxBatchSize;
+
+    private final long maxRequestSize;
+
+    private final long maxRowsPerRequest;
+
+    // guarded by this
+    private int batchSize;
+    private int ceiling;
+    private int direction = 1;
+    private double lastThroughput = 0;
+    private int sinceFailure = 0;
+
+    private double avgRoundTripTime = 0;
+    private double avgRowsPerBinding = 0;
+    private double avgBytesPerBinding = 0;
+
+    private long probes = 0;
+    private long failures = 0;
+
+    public BatchSizeController() {
+        this(DEFAULT_INITIAL_BATCH_SIZE, DEFAULT_MIN_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE,
+                DEFAULT_MAX_REQUEST_SIZE, DEFAULT_MAX_ROWS_PER_REQUEST);
+    }
+
+    /**
+     * @param initialBatchSize the batch size of the first request
+     * @param minBatchSize the smallest batch size the controller can choose
+     * @param maxBatchSize the largest batch size the controller can choose
+     * @param maxRequestSize the maximum estimated size in bytes of the bindings of a request
+     * @param maxRowsPerRequest the maximum expected number of rows returned by a request
+     */
+    public BatchSizeController(int initialBatchSize, int minBatchSize, int maxBatchSize,
+                               long maxRequestSize, long maxRowsPerRequest)
+    {
+        if (minBatchSize <= 0 || maxBatchSize < minBatchSize)
+            throw new IllegalArgumentException("Invalid batch size limits");
+
+        this.parent = null;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxRequestSize = maxRequestSize;
+        this.maxRowsPerRequest = maxRowsPerRequest;
+        this.batchSize = clamp(initialBatchSize, minBatchSize, maxBatchSize);
+        this.ceiling = maxBatchSize;
+    }
+
+    /**
+     * Creates a controller that starts from the current state of the given parent.
+     */
+    public BatchSizeController(BatchSizeController parent) {
+        this.parent = parent;
+        this.minBatchSize = parent.minBatchSize;
+        this.maxBatchSize = parent.maxBatchSize;
+        this.maxRequestSize = parent.maxRequestSize;
+        this.maxRowsPerRequest = parent.maxRowsPerRequest;
+
+        synchronized (parent) {
+            this.batchSize = parent.batchSize;
+            this.ceiling = parent.ceiling;
+            this.avgRoundTripTime = parent.avgRoundTripTime;
+            this.avgRowsPerBinding = parent.avgRowsPerBinding;
+            this.avgBytesPerBinding = parent.avgBytesPerBinding;
+        }
+    }
+
+    public synchronized int getBatchSize() { return batchSize; }
+
+    /**
+     * Records a successful request.
+     * @param bindings the number of bindings shipped with the request
+     * @param requestSize the estimated size of the bindings in bytes
+     * @param roundTripTime the time in milliseconds until the first row of the response
+     * @param rows the number of rows returned
+     */
+    public void update(int bindings, long requestSize, long roundTripTime, long rows) {
+        if (bindings <= 0)
+            return;
+
+        synchronized (this) {
+            avgRowsPerBinding = average(avgRowsPerBinding, (double) rows / bindings);
+            adjust(bindings, requestSize, roundTripTime);
+        }
+
+        if (parent != null)
+            parent.update(bindings, requestSize, roundTripTime, rows);
+    }
+
+    /**
+     * Records the start of the response to a request, which is followed by
+     * {@link #completed(int, long)} once the response has been read.
+     * @param bindings the number of bindings shipped with the request
+     * @param requestSize the estimated size of the bindings in bytes
+     * @param roundTripTime the time in milliseconds until the first row of the response
+     */
+    public void responded(int bindings, long requestSize, long roundTripTime) {
+        if (bindings <= 0)
+            return;
+
+        synchronized (this) {
+            adjust(bindings, requestSize, roundTripTime);
+        }
+
+        if (parent != null)
+            parent.responded(bindings, requestSize, roundTripTime);
+    }
+
+    /**
+     * Records the number of rows of a request whose response has been read.
+     * @param bindings the number of bindings shipped with the request
+     * @param rows the number of rows returned
+     */
+    public void completed(int bindings, long rows) {
+        if (bindings <= 0)
+            return;
+
+        synchronized (this) {
+            avgRowsPerBinding = average(avgRowsPerBinding, (double) rows / bindings);
+            batchSize = limit(batchSize);
+        }
+
+        if (parent != null)
+            parent.completed(bindings, rows);
+    }
+
+    // must be called while holding the monitor
+    private void adjust(int bindings, long requestSize, long roundTripTime) {
+        probes++;
+
+        avgRoundTripTime = average(avgRoundTripTime, roundTripTime);
+        avgBytesPerBinding = average(avgBytesPerBinding, (double) requestSize / bindings);
+
+        if (ceiling < maxBatchSize && ++sinceFailure >= RECOVERY_PROBES) {
+            ceiling = Math.min(maxBatchSize, Math.max(ceiling + 1, (int) (ceiling * GROWTH)));
+            sinceFailure = 0;
+        }
+
+        // a smaller batch (the last one of a join) says little about the current size
+        if (bindings >= batchSize) {
+            double throughput = (double) bindings / Math.max(roundTripTime, 1);
+
+            if (lastThroughput > 0 && throughput < lastThroughput * (1 - TOLERANCE))
+                direction = -direction;
+
+            int next = (direction > 0)
+                    ? Math.max(batchSize + 1, (int) (batchSize * GROWTH))
+                    : (int) (batchSize * SHRINK);
+
+            batchSize = limit(next);
+            lastThroughput = throughput;
+        } else {
+            batchSize = limit(batchSize);
+        }
+    }
+
+    /**
+     * Records a failed or timed-out request.
+     */
+    public void failure() {
+        synchronized (this) {
+            failures++;
+            ceiling = Math.max(minBatchSize, batchSize - 1);
+            batchSize = limit(batchSize / 2);
+            direction = 1;
+            lastThroughput = 0;
+            sinceFailure = 0;
+        }
+
+        if (parent != null)
+            parent.failure();
+    }
+
+    // must be called while holding the monitor
+    private int limit(int size) {
+        int max = ceiling;
+
+        if (avgBytesPerBinding > 0)
+            max = (int) Math.min(max, maxRequestSize / avgBytesPerBinding);
+
+        if (avgRowsPerBinding > 0)
+            max = (int) Math.min(max, maxRowsPerRequest / avgRowsPerBinding);
+
+        return clamp(size, minBatchSize, Math.max(max, minBatchSize));
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static double average(double avg, double value) {
+        return (avg == 0) ? value : (1 - ALPHA) * avg + ALPHA * value;
+    }
+
+    public int getMinBatchSize() { return minBatchSize; }
+
+    public int getMaxBatchSize() { return maxBatchSize; }
+
+    public synchronized long getProbes() { return probes; }
+
+    public synchronized long getFailures() { return failures; }
+
+    /**
+     * @return the moving average of the round-trip time in milliseconds.
+     */
+    public synchronized double getAverageRoundTripTime() { return avgRoundTripTime; }
+
+    /**
+     * @return the moving average of the rows returned per shipped binding.
+     */
+    public synchronized double getAverageRowsPerBinding() { return avgRowsPerBinding; }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchSizeController{batchSize=" + batchSize + ", probes=" + probes + ", failures=" + failures +
+                ", rtt=" + Math.round(avgRoundTripTime) + "ms, rowsPerBinding=" + avgRowsPerBinding + "}";
+    }
+}
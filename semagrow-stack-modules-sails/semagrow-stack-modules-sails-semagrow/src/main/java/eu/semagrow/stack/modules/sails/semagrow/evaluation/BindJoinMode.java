@@ -0,0 +1,25 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+/**
+ * The way a batch of bindings is shipped to a remote endpoint
+ * during a bind join.
+ */
+public enum BindJoinMode {
+
+    /**
+     * One query per batch; the bindings are attached as a SPARQL 1.1 VALUES clause.
+     */
+    VALUES,
+
+    /**
+     * One query per batch; the subquery is repeated for each binding with its variables
+     * renamed by a suffix that identifies the binding, and the copies are combined with UNION.
+     * For endpoints that do not support VALUES.
+     */
+    UNION,
+
+    /**
+     * One query per binding.
+     */
+    SEQUENTIAL
+}
@@ -4,21 +4,33 @@ import eu.semagrow.stack.modules.api.evaluation.FederatedEvaluationStrategy;
 import eu.semagrow.stack.modules.api.evaluation.QueryExecutor;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.*;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.*;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealth;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointUnavailableException;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ReplicaSelector;
 import eu.semagrow.stack.modules.sails.semagrow.optimizer.Plan;
 import info.aduna.iteration.*;
 import org.openrdf.model.*;
 import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
 import org.openrdf.query.algebra.*;
 import org.openrdf.query.algebra.evaluation.TripleSource;
 import org.openrdf.query.algebra.evaluation.federation.JoinExecutorBase;
 import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
 import org.openrdf.query.impl.EmptyBindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
@@ -31,8 +43,28 @@ public class EvaluationStrategyImpl
     extends  org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl
     implements FederatedEvaluationStrategy {
 
+    private static final Logger logger = LoggerFactory.getLogger(EvaluationStrategyImpl.class);
+
     private int batchSize = 10;
 
+    private int unionBufferSize = ConcurrentUnionIteration.DEFAULT_CAPACITY;
+
+    private EndpointRegistry endpointRegistry;
+
+    private EndpointHealthRegistry healthRegistry;
+
+    private ReplicaSelector replicaSelector;
+
+    private QueryContext queryContext;
+
+    private MaterializationManager materializationManager;
+
+    private long joinMemoryBudget = HashJoinIteration.DEFAULT_MEMORY_BUDGET;
+
+    public static final long DEFAULT_HEDGE_DELAY = 1000;
+
+    private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+
     private boolean includeProvenance = false;
 
     public static String provenanceField = "__endpoint";
@@ -65,6 +97,68 @@ public class EvaluationStrategyImpl
 
     public boolean getIncludeProvenance() { return this.includeProvenance; }
 
+    /**
+     * Sets the number of rows that the sources of a multi-source query can produce ahead of the consumer.
+     */
+    public void setUnionBufferSize(int unionBufferSize) { this.unionBufferSize = unionBufferSize; }
+
+    public int getUnionBufferSize() { return unionBufferSize; }
+
+    /**
+     * Sets the registry that keeps the batch sizes learned for each endpoint.
+     * Without a registry every bind join starts from the default batch size.
+     */
+    public void setEndpointRegistry(EndpointRegistry endpointRegistry) { this.endpointRegistry = endpointRegistry; }
+
+    public EndpointRegistry getEndpointRegistry() { return endpointRegistry; }
+
+    /**
+     * Sets the registry whose latency statistics decide when a request is hedged to a mirror.
+     */
+    public void setHealthRegistry(EndpointHealthRegistry healthRegistry) { this.healthRegistry = healthRegistry; }
+
+    public EndpointHealthRegistry getHealthRegistry() { return healthRegistry; }
+
+    /**
+     * Sets the selector that spreads the requests to a source over its mirrors.
+     * Without a selector the requests go to the mirrors in the order given by the plan.
+     */
+    public void setReplicaSelector(ReplicaSelector replicaSelector) { this.replicaSelector = replicaSelector; }
+
+    public ReplicaSelector getReplicaSelector() { return replicaSelector; }
+
+    /**
+     * Sets the context of the evaluated query; bind joins stop producing requests once it is cancelled.
+     */
+    public void setQueryContext(QueryContext queryContext) { this.queryContext = queryContext; }
+
+    public QueryContext getQueryContext() { return queryContext; }
+
+    /**
+     * Sets the manager of the temporary files that the hash joins spill their inputs to.
+     * Without a manager the hash joins keep their build side in memory whatever its size.
+     */
+    public void setMaterializationManager(MaterializationManager materializationManager) {
+        this.materializationManager = materializationManager;
+    }
+
+    public MaterializationManager getMaterializationManager() { return materializationManager; }
+
+    /**
+     * Sets the estimated memory in bytes that the build side of a hash join can hold before it is spilled.
+     */
+    public void setJoinMemoryBudget(long joinMemoryBudget) { this.joinMemoryBudget = joinMemoryBudget; }
+
+    public long getJoinMemoryBudget() { return joinMemoryBudget; }
+
+    /**
+     * Sets the time in milliseconds after which a request is hedged to a mirror
+     * when there are not enough latency statistics for the endpoint.
+     */
+    public void setHedgeDelay(long hedgeDelay) { this.hedgeDelay = hedgeDelay; }
+
+    public long getHedgeDelay() { return hedgeDelay; }
+
     public void setQueryExecutor(QueryExecutor executor) {
         assert executor != null;
         queryExecutor = executor;
@@ -109,50 +203,96 @@ public class EvaluationStrategyImpl
             return new EmptyIteration<BindingSet, QueryEvaluationException>();
 
         if (expr.getSources().size() == 1)
-            return evaluateSource(expr.getSources().get(0), innerExpr, bindings);
+            return evaluateSource(expr.getMirrors(expr.getSources().get(0)), innerExpr, bindings);
 
         for (URI endpoint : expr.getSources()) {
             CloseableIteration<BindingSet,QueryEvaluationException> iter =
-                    evaluateSourceAsync(endpoint, innerExpr, bindings);
+                    evaluateSourceDelayed(expr.getMirrors(endpoint), innerExpr, bindings);
              results.add(iter);
         }
 
-        return new UnionIteration<BindingSet, QueryEvaluationException>(results);
+        return new ConcurrentUnionIteration<BindingSet>(executor, results, unionBufferSize);
     }
 
     private CloseableIteration<BindingSet,QueryEvaluationException>
-        evaluateSourceDelayed(final URI endpoint, final TupleExpr expr, final BindingSet bindings)
+        evaluateSourceDelayed(final List<URI> mirrors, final TupleExpr expr, final BindingSet bindings)
             throws QueryEvaluationException {
 
         return new DelayedIteration<BindingSet, QueryEvaluationException>() {
             @Override
             protected Iteration<? extends BindingSet, ? extends QueryEvaluationException> createIteration()
                     throws QueryEvaluationException {
-                return evaluateSource(endpoint, expr, bindings);
+                return evaluateSource(mirrors, expr, bindings);
             }
         };
     }
 
-
+    /**
+     * Evaluates the expression on a source that may be served by several mirrors.
+     * The request is sent to the least loaded mirror and hedged to the next ones if it is slow to respond.
+     */
     private CloseableIteration<BindingSet,QueryEvaluationException>
-        evaluateSourceAsync(final URI endpoint, final TupleExpr expr, final BindingSet bindings)
+        evaluateSource(List<URI> mirrors, final TupleExpr expr, final BindingSet bindings)
             throws QueryEvaluationException {
 
-        return new AsyncCursor<BindingSet, QueryEvaluationException>(executor) {
-            @Override
-            protected Iteration<BindingSet, QueryEvaluationException> createIteration()
-                    throws QueryEvaluationException {
-                return evaluateSource(endpoint, expr, bindings);
-            }
-        };
+        mirrors = selectReplicas(mirrors);
+
+        if (mirrors.size() == 1)
+            return evaluateSource(mirrors.get(0), expr, bindings);
+
+        List<Callable<CloseableIteration<BindingSet, QueryEvaluationException>>> attempts =
+                new ArrayList<Callable<CloseableIteration<BindingSet, QueryEvaluationException>>>(mirrors.size());
+
+        for (final URI endpoint : mirrors) {
+            attempts.add(new Callable<CloseableIteration<BindingSet, QueryEvaluationException>>() {
+                @Override
+                public CloseableIteration<BindingSet, QueryEvaluationException> call() throws Exception {
+                    return evaluateSource(endpoint, expr, bindings);
+                }
+            });
+        }
+
+        return new HedgedIteration<BindingSet>(executor, attempts, getHedgeDelay(mirrors.get(0)));
+    }
+
+    /**
+     * Orders the mirrors of a source so that the first one is the least loaded.
+     */
+    protected List<URI> selectReplicas(List<URI> mirrors) {
+        if (replicaSelector == null)
+            return mirrors;
+        else
+            return replicaSelector.select(mirrors);
+    }
+
+    /**
+     * Gets the time to wait for an endpoint before hedging a request to one of its mirrors,
+     * that is the 95th percentile of its recent latencies.
+     */
+    protected long getHedgeDelay(URI endpoint) {
+        if (healthRegistry != null) {
+            EndpointHealth health = healthRegistry.getHealth(endpoint);
+            if (health.getRequests() >= healthRegistry.getMinRequests())
+                return Math.max(health.getLatencyPercentile(0.95), 1);
+        }
+        return hedgeDelay;
     }
 
     private CloseableIteration<BindingSet,QueryEvaluationException>
         evaluateSource(URI endpoint, TupleExpr expr, BindingSet bindings)
             throws QueryEvaluationException {
 
-        CloseableIteration<BindingSet,QueryEvaluationException> result =
-                queryExecutor.evaluate(endpoint, expr, bindings);
+        long start = requestStarted(endpoint);
+
+        CloseableIteration<BindingSet,QueryEvaluationException> result;
+        try {
+            result = queryExecutor.evaluate(endpoint, expr, bindings);
+        } catch (QueryEvaluationException | RuntimeException e) {
+            requestFinished(endpoint);
+            throw e;
+        }
+
+        result = trackLoad(endpoint, start, result);
 
         if (getIncludeProvenance()) {
             ProvenanceValue provenance = new ProvenanceValue(endpoint);
@@ -161,6 +301,26 @@ public class EvaluationStrategyImpl
         return result;
     }
 
+    private long requestStarted(URI endpoint) {
+        if (replicaSelector != null)
+            replicaSelector.started(endpoint);
+        return System.currentTimeMillis();
+    }
+
+    private void requestFinished(URI endpoint) {
+        if (replicaSelector != null)
+            replicaSelector.finished(endpoint);
+    }
+
+    private CloseableIteration<BindingSet,QueryEvaluationException>
+        trackLoad(URI endpoint, long start, CloseableIteration<BindingSet,QueryEvaluationException> result)
+    {
+        if (replicaSelector == null)
+            return result;
+        else
+            return new LoadIteration(result, replicaSelector, endpoint, start);
+    }
+
     public CloseableIteration<BindingSet,QueryEvaluationException>
         evaluate(Transform expr, BindingSet bindings) throws QueryEvaluationException {
 
@@ -177,6 +337,8 @@ public class EvaluationStrategyImpl
             return evaluate((BindJoin)join, bindings);
         else if (join instanceof HashJoin)
             return evaluate((HashJoin)join, bindings);
+        else if (join instanceof SymmetricHashJoin)
+            return evaluate((SymmetricHashJoin)join, bindings);
         else
             return super.evaluate(join, bindings);
     }
@@ -184,7 +346,19 @@ public class EvaluationStrategyImpl
     public CloseableIteration<BindingSet,QueryEvaluationException>
         evaluate(HashJoin join, BindingSet bindings) throws QueryEvaluationException {
 
-        return new HashJoinIteration(this, join, bindings);
+        HashJoinIteration iter = new HashJoinIteration(this, join, bindings, executor);
+        if (joinMemoryBudget > 0)
+            iter.setMaterializationManager(materializationManager, joinMemoryBudget);
+        return iter;
+    }
+
+    public CloseableIteration<BindingSet,QueryEvaluationException>
+        evaluate(SymmetricHashJoin join, BindingSet bindings) throws QueryEvaluationException {
+
+        SymmetricHashJoinIteration iter = new SymmetricHashJoinIteration(this, join, bindings, executor);
+        if (joinMemoryBudget > 0)
+            iter.setMaterializationManager(materializationManager, joinMemoryBudget);
+        return iter;
     }
 
     public CloseableIteration<BindingSet,QueryEvaluationException>
@@ -199,7 +373,7 @@ public class EvaluationStrategyImpl
         evaluate(TupleExpr expr, CloseableIteration<BindingSet, QueryEvaluationException> bIter)
             throws QueryEvaluationException
     {
-        BatchingIteration iter = new BatchingIteration(bIter, expr, batchSize);
+        BatchingIteration iter = new BatchingIteration(bIter, expr, createBatchSizeController(expr));
         executor.execute(iter);
         return iter;
         //return new BatchingIteration(bIter, expr, batchSize);
@@ -214,6 +388,8 @@ public class EvaluationStrategyImpl
             return evaluateInternal((Union) expr, iterable);
         } else if (expr instanceof Plan) {
             return evaluateInternal((Plan) expr, iterable);
+        } else if (expr instanceof SourceQuery && ((SourceQuery) expr).getSources().size() == 1) {
+            return evaluateInternal((SourceQuery) expr, iterable);
         } else {
 
             CloseableIteration<BindingSet, QueryEvaluationException> bIter =
@@ -254,6 +430,39 @@ public class EvaluationStrategyImpl
         return new UnionIteration<BindingSet, QueryEvaluationException>(leftArg, rightArg);
     }
 
+    /**
+     * Evaluates a batch of a bind join on a source; the batch can be replayed,
+     * so the request can be hedged to the mirrors of the source.
+     */
+    protected CloseableIteration<BindingSet, QueryEvaluationException>
+        evaluateInternal(final SourceQuery expr, final Iterable<BindingSet> iterable)
+            throws QueryEvaluationException
+    {
+        List<URI> mirrors = selectReplicas(expr.getMirrors(expr.getSources().get(0)));
+
+        if (mirrors.size() == 1)
+            return evaluateSourceInternal(mirrors.get(0), expr.getArg(), iterate(iterable));
+
+        List<Callable<CloseableIteration<BindingSet, QueryEvaluationException>>> attempts =
+                new ArrayList<Callable<CloseableIteration<BindingSet, QueryEvaluationException>>>(mirrors.size());
+
+        for (final URI endpoint : mirrors) {
+            attempts.add(new Callable<CloseableIteration<BindingSet, QueryEvaluationException>>() {
+                @Override
+                public CloseableIteration<BindingSet, QueryEvaluationException> call() throws Exception {
+                    return evaluateSourceInternal(endpoint, expr.getArg(), iterate(iterable));
+                }
+            });
+        }
+
+        return new HedgedIteration<BindingSet>(executor, attempts, getHedgeDelay(mirrors.get(0)));
+    }
+
+    private static CloseableIteration<BindingSet, QueryEvaluationException> iterate(Iterable<BindingSet> iterable) {
+        return new IterationWrapper<BindingSet, QueryEvaluationException>(
+                new IteratorIteration<BindingSet, QueryEvaluationException>(iterable.iterator()));
+    }
+
     protected CloseableIteration<BindingSet, QueryEvaluationException>
         evaluateInternal(final Plan plan, final Iterable<BindingSet> iterable)
             throws QueryEvaluationException
@@ -277,10 +486,24 @@ public class EvaluationStrategyImpl
         evaluateInternal(SourceQuery expr, CloseableIteration<BindingSet, QueryEvaluationException> bIter)
             throws QueryEvaluationException {
 
-        URI endpoint = expr.getSources().get(0);
+        return evaluateSourceInternal(expr.getSources().get(0), expr.getArg(), bIter);
+    }
+
+    private CloseableIteration<BindingSet,QueryEvaluationException>
+        evaluateSourceInternal(URI endpoint, TupleExpr expr, CloseableIteration<BindingSet, QueryEvaluationException> bIter)
+            throws QueryEvaluationException {
 
-        CloseableIteration<BindingSet,QueryEvaluationException> result =
-                queryExecutor.evaluate(endpoint, expr.getArg(), bIter);
+        long start = requestStarted(endpoint);
+
+        CloseableIteration<BindingSet,QueryEvaluationException> result;
+        try {
+            result = queryExecutor.evaluate(endpoint, expr, bIter);
+        } catch (QueryEvaluationException | RuntimeException e) {
+            requestFinished(endpoint);
+            throw e;
+        }
+
+        result = trackLoad(endpoint, start, result);
 
         if (getIncludeProvenance()) {
             ProvenanceValue provenance = new ProvenanceValue(endpoint);
@@ -305,48 +528,163 @@ public class EvaluationStrategyImpl
         evaluateInternalDefault(TupleExpr expr, CloseableIteration<BindingSet, QueryEvaluationException> bIter)
             throws QueryEvaluationException {
 
-        BatchingIteration iter = new BatchingIteration(bIter, expr, batchSize);
+        BatchingIteration iter = new BatchingIteration(bIter, expr, createBatchSizeController(expr));
         executor.execute(iter);
         return iter;
         //return new BatchingIteration(bIter, expr, 20);
     }
 
+    /**
+     * Creates the batch size controller of a bind join. Joins with a single remote
+     * source start from the batch size learned for that endpoint and report back to it.
+     */
+    protected BatchSizeController createBatchSizeController(TupleExpr expr) {
+        while (expr instanceof Plan)
+            expr = ((Plan) expr).getArg();
+
+        if (endpointRegistry != null && expr instanceof SourceQuery) {
+            List<URI> sources = ((SourceQuery) expr).getSources();
+            if (sources.size() == 1)
+                return new BatchSizeController(endpointRegistry.getBatchSizeController(sources.get(0)));
+        }
+
+        return new BatchSizeController(batchSize,
+                BatchSizeController.DEFAULT_MIN_BATCH_SIZE, BatchSizeController.DEFAULT_MAX_BATCH_SIZE,
+                BatchSizeController.DEFAULT_MAX_REQUEST_SIZE, BatchSizeController.DEFAULT_MAX_ROWS_PER_REQUEST);
+    }
+
     protected class BatchingIteration extends JoinExecutorBase<BindingSet> implements Runnable {
 
-        private final int blockSize;
+        private final BatchSizeController controller;
         private TupleExpr expr;
 
+        // the thread that runs handleBindings, guarded by this
+        private Thread producer;
+
+        // the batch that was sent last, which may not have been read yet, guarded by this
+        private ProbeIteration pending;
+
         public BatchingIteration(CloseableIteration<BindingSet,QueryEvaluationException> leftIter,
                                  TupleExpr expr, int blockSize)
                 throws QueryEvaluationException {
+            this(leftIter, expr, new BatchSizeController(blockSize, blockSize, blockSize,
+                    Long.MAX_VALUE, Long.MAX_VALUE));
+        }
+
+        public BatchingIteration(CloseableIteration<BindingSet,QueryEvaluationException> leftIter,
+                                 TupleExpr expr, BatchSizeController controller)
+                throws QueryEvaluationException {
             super(leftIter, expr, EmptyBindingSet.getInstance());
 
             this.expr = expr;
-            this.blockSize = blockSize;
+            this.controller = controller;
             //run();
         }
 
+        public BatchSizeController getBatchSizeController() { return controller; }
+
+        /**
+         * Stops the thread that produces the batches: it may be blocked reading the
+         * left argument or waiting for room in the queue of the right results.
+         */
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            ProbeIteration last;
+            synchronized (this) {
+                closed = true;
+                if (producer != null)
+                    producer.interrupt();
+                last = pending;
+            }
+            try {
+                super.handleClose();
+            } finally {
+                try {
+                    if (last != null)
+                        last.close();
+                } finally {
+                    leftIter.close();
+                }
+            }
+        }
+
         @Override
         protected void handleBindings() throws Exception {
+            synchronized (this) {
+                if (closed)
+                    return;
+                producer = Thread.currentThread();
+            }
+            try {
+                produceBatches();
+            } finally {
+                synchronized (this) {
+                    producer = null;
+                    // do not leak an interrupt meant for this iteration to the next task of the thread
+                    if (closed)
+                        Thread.interrupted();
+                }
+            }
+        }
+
+        /**
+         * Produces the batches one after the other. The request of a batch is sent as soon
+         * as the previous batch starts to be read, so that sending it overlaps with reading
+         * the previous one, and its size is chosen after the response of the previous request
+         * has started and reported its round-trip time to the controller.
+         */
+        private void produceBatches() throws Exception {
+            QueryContext context = queryContext;
+            ProbeIteration previous = null;
+
             while (!closed && leftIter.hasNext()) {
 
+                if (context != null)
+                    context.check();
+
+                // stay a single request ahead of the batch that is read
+                if (previous != null)
+                    previous.awaitRead();
+
+                int blockSize = controller.getBatchSize();
+                ProbeIteration probe;
+
                 if (blockSize == 1) {
-                    addResult(evaluate(expr, leftIter.next()));
-                    continue;
+                    final BindingSet b = leftIter.next();
+                    probe = new ProbeIteration(controller, 1, estimateSize(b)) {
+                        @Override
+                        protected CloseableIteration<BindingSet, QueryEvaluationException> createIteration()
+                                throws QueryEvaluationException
+                        {
+                            return evaluate(expr, b);
+                        }
+                    };
                 } else {
                     //CloseableIteration<BindingSet, QueryEvaluationException>
                     //        materializedIter = createBatchIter(leftIter, blockSize);
-                    final Iterable<BindingSet> iterable = createIterable(leftIter, blockSize);
-                    addResult(new DelayedIteration<BindingSet, QueryEvaluationException>() {
+                    final List<BindingSet> iterable = createIterable(leftIter, blockSize);
+                    probe = new ProbeIteration(controller, iterable.size(), estimateSize(iterable)) {
                         @Override
-                        protected Iteration<? extends BindingSet, ? extends QueryEvaluationException> createIteration()
+                        protected CloseableIteration<BindingSet, QueryEvaluationException> createIteration()
                                 throws QueryEvaluationException
                         {
 
                             return evaluateInternal(expr,iterable);
                         }
-                    });
+                    };
+                }
+
+                synchronized (this) {
+                    if (closed) {
+                        probe.close();
+                        return;
+                    }
+                    pending = probe;
                 }
+
+                probe.send();
+                addResult(probe);
+                previous = probe;
             }
         }
 
@@ -368,7 +706,7 @@ public class EvaluationStrategyImpl
             return materializedIter;
         }
 
-        protected Iterable<BindingSet> createIterable(CloseableIteration<BindingSet, QueryEvaluationException> iter, int blockSize)
+        protected List<BindingSet> createIterable(CloseableIteration<BindingSet, QueryEvaluationException> iter, int blockSize)
             throws QueryEvaluationException
         {
             ArrayList<BindingSet> blockBindings = new ArrayList<BindingSet>(blockSize);
@@ -382,4 +720,225 @@ public class EvaluationStrategyImpl
 
     }
 
+    private static long estimateSize(Iterable<BindingSet> bindings) {
+        long size = 0;
+        for (BindingSet b : bindings)
+            size += estimateSize(b);
+        return size;
+    }
+
+    private static long estimateSize(BindingSet bindings) {
+        long size = 0;
+        for (Binding b : bindings)
+            size += b.getName().length() + b.getValue().stringValue().length() + 4;
+        return size;
+    }
+
+    /**
+     * Evaluates one request of a bind join and reports to the batch size controller
+     * its round-trip time as soon as its response starts, then the number of rows it
+     * returned or its failure. The request is sent by {@link #send()}, or when the
+     * iteration is first read if it has not been sent by then.
+     */
+    protected abstract static class ProbeIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final BatchSizeController controller;
+
+        private final int bindings;
+
+        private final long requestSize;
+
+        // guarded by this
+        private CloseableIteration<BindingSet, QueryEvaluationException> iter;
+        private boolean sent = false;
+        private boolean responded = false;
+        private boolean closed = false;
+        private boolean reported = false;
+
+        // written by send before the response is published
+        private Exception failure;
+
+        private long rows = 0;
+
+        // counted down once the iteration is first read or closed
+        private final CountDownLatch read = new CountDownLatch(1);
+
+        public ProbeIteration(BatchSizeController controller, int bindings, long requestSize) {
+            this.controller = controller;
+            this.bindings = bindings;
+            this.requestSize = requestSize;
+        }
+
+        protected abstract CloseableIteration<BindingSet, QueryEvaluationException>
+            createIteration() throws QueryEvaluationException;
+
+        /**
+         * Sends the request and waits until its response starts. Does nothing if the
+         * request has already been sent or the iteration is closed.
+         */
+        public void send() {
+            synchronized (this) {
+                if (sent || closed)
+                    return;
+                sent = true;
+            }
+
+            long start = System.currentTimeMillis();
+            CloseableIteration<BindingSet, QueryEvaluationException> result = null;
+            Exception error = null;
+            try {
+                result = createIteration();
+                result.hasNext();
+                controller.responded(bindings, requestSize, System.currentTimeMillis() - start);
+            } catch (QueryEvaluationException | RuntimeException e) {
+                failed(e);
+                error = e;
+            }
+
+            boolean discard;
+            synchronized (this) {
+                failure = error;
+                iter = result;
+                responded = true;
+                discard = closed;
+                notifyAll();
+            }
+
+            if (discard && result != null) {
+                try {
+                    result.close();
+                } catch (QueryEvaluationException e) {
+                    logger.debug("Failed to close the result of a request of a closed bind join", e);
+                }
+            }
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            read.countDown();
+            send();
+
+            CloseableIteration<BindingSet, QueryEvaluationException> it;
+            synchronized (this) {
+                while (!responded && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new QueryInterruptedException(e);
+                    }
+                }
+                if (closed)
+                    return null;
+                it = iter;
+            }
+
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure != null)
+                throw (QueryEvaluationException) failure;
+
+            try {
+                if (!it.hasNext()) {
+                    completed();
+                    return null;
+                }
+
+                rows++;
+                return it.next();
+            } catch (QueryEvaluationException | RuntimeException e) {
+                failed(e);
+                throw e;
+            }
+        }
+
+        private synchronized void completed() {
+            if (!reported) {
+                reported = true;
+                controller.completed(bindings, rows);
+            }
+        }
+
+        private synchronized void failed(Exception e) {
+            if (!reported) {
+                reported = true;
+                // neither the interruption of the query nor a refused request says anything about the batch size
+                if (!(e instanceof QueryInterruptedException || e instanceof EndpointUnavailableException))
+                    controller.failure();
+            }
+        }
+
+        /**
+         * Waits until the iteration is first read or closed.
+         */
+        public void awaitRead() throws InterruptedException {
+            read.await();
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            CloseableIteration<BindingSet, QueryEvaluationException> it;
+            synchronized (this) {
+                closed = true;
+                it = iter;
+                notifyAll();
+            }
+            read.countDown();
+
+            try {
+                super.handleClose();
+            } finally {
+                if (it != null)
+                    it.close();
+            }
+        }
+    }
+
+    /**
+     * Reports to the replica selector when a request to an endpoint starts
+     * responding and when it is over, that is when its result is closed.
+     */
+    protected static class LoadIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final CloseableIteration<BindingSet, QueryEvaluationException> iter;
+
+        private final ReplicaSelector selector;
+
+        private final URI endpoint;
+
+        private final long start;
+
+        private boolean responded = false;
+
+        public LoadIteration(CloseableIteration<BindingSet, QueryEvaluationException> iter,
+                             ReplicaSelector selector, URI endpoint, long start)
+        {
+            this.iter = iter;
+            this.selector = selector;
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            boolean hasNext = iter.hasNext();
+
+            if (!responded) {
+                responded = true;
+                selector.responded(endpoint, System.currentTimeMillis() - start);
+            }
+
+            return hasNext ? iter.next() : null;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            try {
+                super.handleClose();
+                iter.close();
+            } finally {
+                selector.finished(endpoint);
+            }
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.IterationWrapper;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cancellation state of the evaluation of a single query.
+ * <p>
+ * The results of the remote requests of the query are registered while they are open.
+ * When the query is cancelled, because its result was closed or its deadline passed,
+ * the registered results are closed, which aborts their HTTP responses and returns
+ * their connections, no matter which thread is reading them. Requests that are
+ * about to be sent fail with a {@link QueryInterruptedException}.
+ */
+public class QueryContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryContext.class);
+
+    private static final ScheduledThreadPoolExecutor timer;
+
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "semagrow-query-deadline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private volatile boolean cancelled = false;
+
+    private volatile long deadline = 0;
+
+    // guarded by this
+    private final Set<CloseableIteration<?, QueryEvaluationException>> inFlight =
+            Collections.newSetFromMap(new IdentityHashMap<CloseableIteration<?, QueryEvaluationException>, Boolean>());
+
+    private ScheduledFuture<?> timeout;
+
+    private boolean timedOut = false;
+
+    /**
+     * Sets the time in milliseconds the query may run, counting from now,
+     * after which it is cancelled. A non-positive time removes the limit.
+     */
+    public synchronized void setMaxExecutionTime(long maxExecutionTime) {
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+
+        if (maxExecutionTime <= 0) {
+            deadline = 0;
+            return;
+        }
+
+        deadline = System.currentTimeMillis() + maxExecutionTime;
+        timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() { expire(); }
+        }, maxExecutionTime, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean hasDeadline() { return deadline > 0; }
+
+    /**
+     * @return the time in milliseconds until the deadline, 0 if it has passed
+     *         or {@link Long#MAX_VALUE} if there is no deadline.
+     */
+    public long getRemainingTime() {
+        long d = deadline;
+        if (d <= 0)
+            return Long.MAX_VALUE;
+        return Math.max(0, d - System.currentTimeMillis());
+    }
+
+    public boolean isCancelled() {
+        if (!cancelled && hasDeadline() && getRemainingTime() == 0)
+            expire();
+        return cancelled;
+    }
+
+    /**
+     * @throws QueryInterruptedException if the query has been cancelled or its deadline has passed.
+     */
+    public void check() throws QueryInterruptedException {
+        if (isCancelled()) {
+            synchronized (this) {
+                if (timedOut)
+                    throw new QueryInterruptedException("Query evaluation exceeded its maximum execution time");
+            }
+            throw new QueryInterruptedException("Query evaluation was cancelled");
+        }
+    }
+
+    /**
+     * Registers the result of a remote request, so that it is closed if the query is cancelled.
+     * @return the result, which unregisters itself when it is closed
+     * @throws QueryInterruptedException if the query is already cancelled; the result is closed
+     */
+    public <E> CloseableIteration<E, QueryEvaluationException>
+        track(CloseableIteration<E, QueryEvaluationException> result) throws QueryEvaluationException
+    {
+        final CloseableIteration<E, QueryEvaluationException> tracked =
+                new IterationWrapper<E, QueryEvaluationException>(result) {
+                    @Override
+                    protected void handleClose() throws QueryEvaluationException {
+                        untrack(this);
+                        super.handleClose();
+                    }
+                };
+
+        synchronized (this) {
+            if (!cancelled) {
+                inFlight.add(tracked);
+                return tracked;
+            }
+        }
+
+        tracked.close();
+        check();
+        return tracked;
+    }
+
+    private synchronized void untrack(CloseableIteration<?, QueryEvaluationException> result) {
+        inFlight.remove(result);
+    }
+
+    /**
+     * @return the number of remote results that are currently open.
+     */
+    public synchronized int getInFlight() { return inFlight.size(); }
+
+    private void expire() {
+        synchronized (this) {
+            if (cancelled)
+                return;
+            timedOut = true;
+        }
+        logger.info("Query exceeded its maximum execution time; cancelling " + getInFlight() + " remote requests");
+        cancel();
+    }
+
+    /**
+     * Cancels the query and closes the results of its remote requests that are still open.
+     */
+    public void cancel() {
+        List<CloseableIteration<?, QueryEvaluationException>> toClose;
+
+        synchronized (this) {
+            if (cancelled)
+                return;
+            cancelled = true;
+
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+
+            toClose = new ArrayList<CloseableIteration<?, QueryEvaluationException>>(inFlight);
+            inFlight.clear();
+        }
+
+        for (CloseableIteration<?, QueryEvaluationException> result : toClose) {
+            try {
+                result.close();
+            } catch (QueryEvaluationException | RuntimeException e) {
+                logger.debug("Failed to close the result of a cancelled request", e);
+            }
+        }
+    }
+}
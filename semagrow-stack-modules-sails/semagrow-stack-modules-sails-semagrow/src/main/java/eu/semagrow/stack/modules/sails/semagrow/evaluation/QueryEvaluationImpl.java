@@ -4,12 +4,23 @@ import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 import eu.semagrow.stack.modules.api.evaluation.*;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.async.AsyncHttpClient;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.async.AsyncQueryExecutor;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.base.FederatedQueryEvaluationSessionImplBase;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.HashJoinIteration;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.RequestCoalescer;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.ResultCache;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ReplicaSelector;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ResultParserPool;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.interceptors.InterceptingQueryExecutorWrapper;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.interceptors.QueryExecutionInterceptor;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.QueryLogHandler;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.QueryLogInterceptor;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
 
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.impl.QueryLogRecordFactoryImpl;
 import org.openrdf.query.BindingSet;
@@ -31,12 +42,42 @@ public class QueryEvaluationImpl implements FederatedQueryEvaluation {
 
     private ExecutorService executorService;
 
+    private EndpointRegistry endpointRegistry;
+
+    private ResultCache resultCache;
+
+    private RequestCoalescer requestCoalescer;
+
+    private EndpointHealthRegistry healthRegistry;
+
+    private ReplicaSelector replicaSelector;
+
+    private RequestScheduler requestScheduler;
+
+    private AsyncHttpClient asyncHttpClient;
+
+    private ResultParserPool parserPool;
+
+    private ValueDictionary valueDictionary;
+
+    private int valueDictionarySize = ValueDictionary.DEFAULT_MAX_SIZE;
+
+    private long joinMemoryBudget = HashJoinIteration.DEFAULT_MEMORY_BUDGET;
+
     public QueryEvaluationImpl(MaterializationManager manager,
                                QueryLogHandler queryLogHandler,
                                ExecutorService executor) {
+        this(manager, queryLogHandler, executor, new EndpointRegistry());
+    }
+
+    public QueryEvaluationImpl(MaterializationManager manager,
+                               QueryLogHandler queryLogHandler,
+                               ExecutorService executor,
+                               EndpointRegistry endpointRegistry) {
         this.materializationManager = manager;
         this.queryLogHandler = queryLogHandler;
         this.executorService = executor;
+        this.endpointRegistry = endpointRegistry;
     }
 
     public MaterializationManager getMaterializationManager() {
@@ -47,6 +88,106 @@ public class QueryEvaluationImpl implements FederatedQueryEvaluation {
         return queryLogHandler;
     }
 
+    public EndpointRegistry getEndpointRegistry() {
+        return endpointRegistry;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public EndpointHealthRegistry getHealthRegistry() {
+        return healthRegistry;
+    }
+
+    public void setHealthRegistry(EndpointHealthRegistry healthRegistry) {
+        this.healthRegistry = healthRegistry;
+    }
+
+    public ReplicaSelector getReplicaSelector() {
+        return replicaSelector;
+    }
+
+    public void setReplicaSelector(ReplicaSelector replicaSelector) {
+        this.replicaSelector = replicaSelector;
+    }
+
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
+    public AsyncHttpClient getAsyncHttpClient() {
+        return asyncHttpClient;
+    }
+
+    public void setAsyncHttpClient(AsyncHttpClient asyncHttpClient) {
+        this.asyncHttpClient = asyncHttpClient;
+    }
+
+    public ResultParserPool getParserPool() {
+        return parserPool;
+    }
+
+    public void setParserPool(ResultParserPool parserPool) {
+        this.parserPool = parserPool;
+    }
+
+    public ValueDictionary getValueDictionary() {
+        return valueDictionary;
+    }
+
+    /**
+     * Sets the dictionary that is shared by all the sessions, or null to give each session its own.
+     */
+    public void setValueDictionary(ValueDictionary valueDictionary) {
+        this.valueDictionary = valueDictionary;
+    }
+
+    public int getValueDictionarySize() {
+        return valueDictionarySize;
+    }
+
+    /**
+     * Sets the maximum size of the dictionary of each session, or 0 to keep the values as they are parsed.
+     */
+    public void setValueDictionarySize(int valueDictionarySize) {
+        this.valueDictionarySize = valueDictionarySize;
+    }
+
+    public long getJoinMemoryBudget() {
+        return joinMemoryBudget;
+    }
+
+    /**
+     * Sets the estimated memory in bytes that the build side of a hash join can hold before
+     * the join spills its inputs to the materialization manager, or 0 to never spill.
+     */
+    public void setJoinMemoryBudget(long joinMemoryBudget) {
+        this.joinMemoryBudget = joinMemoryBudget;
+    }
+
+    protected ValueDictionary createValueDictionary() {
+        if (valueDictionary != null)
+            return valueDictionary;
+        return (valueDictionarySize > 0) ? new ValueDictionary(valueDictionarySize) : null;
+    }
+
 
     public FederatedQueryEvaluationSession
         createSession(TupleExpr expr, Dataset dataset, BindingSet bindings)
@@ -64,16 +205,36 @@ public class QueryEvaluationImpl implements FederatedQueryEvaluation {
 
         private ExecutorService executor;
 
+        private final ValueDictionary dictionary = createValueDictionary();
+
         public FederatedQueryEvaluationSessionImpl(ExecutorService executor) {
             this.executor = executor;
         }
 
         protected FederatedEvaluationStrategy getEvaluationStrategyInternal() {
-            return new InterceptingEvaluationStrategyImpl(getQueryExecutor(), getExecutor());
+            InterceptingEvaluationStrategyImpl strategy =
+                    new InterceptingEvaluationStrategyImpl(getQueryExecutor(), getExecutor());
+            strategy.setEndpointRegistry(getEndpointRegistry());
+            strategy.setHealthRegistry(getHealthRegistry());
+            strategy.setReplicaSelector(getReplicaSelector());
+            strategy.setQueryContext(getQueryContext());
+            strategy.setMaterializationManager(getMaterializationManager());
+            strategy.setJoinMemoryBudget(getJoinMemoryBudget());
+            return strategy;
         }
 
         protected QueryExecutor getQueryExecutorInternal() {
-            return new InterceptingQueryExecutorWrapper(new QueryExecutorImpl());
+            QueryExecutorImpl executor = (getAsyncHttpClient() != null)
+                    ? new AsyncQueryExecutor(getEndpointRegistry(), getAsyncHttpClient())
+                    : new QueryExecutorImpl(getEndpointRegistry());
+            executor.setResultCache(getResultCache());
+            executor.setRequestCoalescer(getRequestCoalescer());
+            executor.setHealthRegistry(getHealthRegistry());
+            executor.setQueryContext(getQueryContext());
+            executor.setParserPool(getParserPool());
+            executor.setValueDictionary(dictionary);
+            executor.setRequestScheduler(getRequestScheduler(), getSessionId());
+            return new InterceptingQueryExecutorWrapper(executor);
         }
 
         protected ExecutorService getExecutor() { return executor; }
@@ -96,6 +257,7 @@ public class QueryEvaluationImpl implements FederatedQueryEvaluation {
 
         @Override
         public void closeSession(){
+            super.closeSession();
             logger.debug("Session " + getSessionId() + " closed");
 
         }
@@ -1,8 +1,20 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation;
 
 import eu.semagrow.stack.modules.api.evaluation.QueryExecutor;
+import eu.semagrow.stack.modules.sails.semagrow.algebra.SourceQuery;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.RequestCoalescer;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.RequestKey;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.cache.ResultCache;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointUnavailableException;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.EncodeValuesIteration;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.HashJoinIteration;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.InsertUnionBindingsIteration;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.InsertValuesBindingsIteration;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ResultParserPool;
 import info.aduna.iteration.*;
 import org.openrdf.model.Literal;
 import org.openrdf.model.URI;
@@ -10,7 +22,6 @@ import org.openrdf.model.Value;
 import org.openrdf.query.*;
 import org.openrdf.query.algebra.*;
 import org.openrdf.query.algebra.evaluation.QueryBindingSet;
-import org.openrdf.query.algebra.evaluation.federation.JoinExecutorBase;
 import org.openrdf.query.algebra.evaluation.federation.ServiceCrossProductIteration;
 import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
@@ -18,51 +29,154 @@ import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.query.parser.ParsedBooleanQuery;
 import org.openrdf.query.parser.ParsedTupleQuery;
 import org.openrdf.queryrender.sparql.SPARQLQueryRenderer;
-import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
-import org.openrdf.repository.sparql.SPARQLRepository;
 import org.openrdf.repository.sparql.query.InsertBindingSetCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by angel on 6/6/14.
  */
-//FIXME: Shutdown connections and repositories properly
 public class QueryExecutorImpl implements QueryExecutor {
 
     private final Logger logger = LoggerFactory.getLogger(QueryExecutorImpl.class);
 
-    private Map<URI,Repository> repoMap = new HashMap<URI,Repository>();
+    private EndpointRegistry endpointRegistry;
+
+    private ResultCache resultCache;
+
+    private RequestCoalescer requestCoalescer;
+
+    private EndpointHealthRegistry healthRegistry;
+
+    private QueryContext queryContext;
+
+    private ResultParserPool parserPool;
+
+    private ValueDictionary valueDictionary;
+
+    private RequestScheduler requestScheduler;
+
+    private Object session;
 
     private boolean rowIdOpt = false;
 
-    private int countconn = 0;
+    private static final int MAX_TEMPLATES = 1024;
+
+    // templates and variables are cached per expression instance; the executor
+    // lives as long as the evaluation session, so are the expressions.
+    private final ConcurrentMap<TemplateKey, QueryTemplate> templates =
+            new ConcurrentHashMap<TemplateKey, QueryTemplate>();
+
+    private final Map<TupleExpr, Set<String>> exprVars =
+            Collections.synchronizedMap(new IdentityHashMap<TupleExpr, Set<String>>());
+
+    private final Map<TupleExpr, Set<String>> exprProjections =
+            Collections.synchronizedMap(new IdentityHashMap<TupleExpr, Set<String>>());
+
+    public QueryExecutorImpl() {
+        this(new EndpointRegistry());
+    }
+
+    public QueryExecutorImpl(EndpointRegistry endpointRegistry) {
+        assert endpointRegistry != null;
+        this.endpointRegistry = endpointRegistry;
+    }
 
     public void initialize() { }
 
     public void shutdown() { }
 
-    public RepositoryConnection getConnection(URI endpoint) throws RepositoryException {
-        Repository repo = null;
+    public EndpointRegistry getEndpointRegistry() { return endpointRegistry; }
 
-        if (!repoMap.containsKey(endpoint)) {
-            repo = new SPARQLRepository(endpoint.stringValue());
-            repoMap.put(endpoint,repo);
-        } else {
-            repo = repoMap.get(endpoint);
-        }
+    public ResultCache getResultCache() { return resultCache; }
 
-        if (!repo.isInitialized())
-            repo.initialize();
+    /**
+     * Sets the cache of the results of the remote queries or null to disable caching.
+     */
+    public void setResultCache(ResultCache resultCache) { this.resultCache = resultCache; }
 
-        RepositoryConnection conn = repo.getConnection();
-        logger.debug("Connection " + conn.toString() +" started, currently open " + countconn);
-        countconn++;
-        return conn;
+    public RequestCoalescer getRequestCoalescer() { return requestCoalescer; }
+
+    /**
+     * Sets the coalescer of identical in-flight requests or null to send every request.
+     */
+    public void setRequestCoalescer(RequestCoalescer coalescer) { this.requestCoalescer = coalescer; }
+
+    public EndpointHealthRegistry getHealthRegistry() { return healthRegistry; }
+
+    /**
+     * Sets the registry that records the outcome of every request or null to disable health tracking.
+     */
+    public void setHealthRegistry(EndpointHealthRegistry healthRegistry) { this.healthRegistry = healthRegistry; }
+
+    public QueryContext getQueryContext() { return queryContext; }
+
+    /**
+     * Sets the context of the query whose requests this executor sends. Requests are not sent after
+     * the query is cancelled, their results are closed when it is cancelled and the remote endpoints
+     * are asked to give up at the deadline of the query.
+     */
+    public void setQueryContext(QueryContext queryContext) { this.queryContext = queryContext; }
+
+    public ResultParserPool getParserPool() { return parserPool; }
+
+    /**
+     * Sets the pool that parses the results of the remote queries, or null to parse
+     * each of them on a thread of its own.
+     */
+    public void setParserPool(ResultParserPool parserPool) { this.parserPool = parserPool; }
+
+    public RequestScheduler getRequestScheduler() { return requestScheduler; }
+
+    /**
+     * Sets the scheduler that admits the requests of this executor, or null to send them at once.
+     * A request holds its slot until the response of the endpoint starts to arrive, so neither
+     * the reading of a result nor the requests that depend on it keep a slot busy.
+     * @param session the session whose requests are grouped together by the scheduler
+     */
+    public void setRequestScheduler(RequestScheduler requestScheduler, Object session) {
+        this.requestScheduler = requestScheduler;
+        this.session = session;
+    }
+
+    /**
+     * Waits for a slot to send a request to the endpoint.
+     * @return the slot, or null if the requests are not scheduled
+     */
+    protected RequestScheduler.Slot acquireSlot(URI endpoint) throws QueryEvaluationException {
+        RequestScheduler scheduler = requestScheduler;
+        return (scheduler != null) ? scheduler.acquire(endpoint, session) : null;
+    }
+
+    protected static void releaseSlot(RequestScheduler.Slot slot) {
+        if (slot != null)
+            slot.release();
+    }
+
+    public ValueDictionary getValueDictionary() { return valueDictionary; }
+
+    /**
+     * Sets the dictionary that encodes the values of the results of the remote queries,
+     * or null to keep the values as they are parsed.
+     */
+    public void setValueDictionary(ValueDictionary dictionary) { this.valueDictionary = dictionary; }
+
+    public RepositoryConnection getConnection(URI endpoint) throws RepositoryException {
+        return endpointRegistry.getConnection(endpoint);
+    }
+
+    protected void releaseConnection(URI endpoint, RepositoryConnection conn) {
+        endpointRegistry.releaseConnection(endpoint, conn);
+    }
+
+    protected void invalidateConnection(URI endpoint, RepositoryConnection conn) {
+        endpointRegistry.invalidateConnection(endpoint, conn);
     }
 
     public CloseableIteration<BindingSet, QueryEvaluationException>
@@ -71,11 +185,26 @@ public class QueryExecutorImpl implements QueryExecutor {
 
         CloseableIteration<BindingSet,QueryEvaluationException> result = null;
         try {
-            Set<String> freeVars = computeVars(expr);
+            Set<String> vars = getVars(expr);
+
+            List<String> relevant = getRelevantBindingNames(bindings, vars);
+
+            if (isShippable(bindings, relevant) && !hasParameterVars(vars)) {
+                QueryTemplate template = getTemplate(expr, relevant);
+                String sparqlQuery = template.instantiate(bindings);
+
+                if (template.isAsk()) {
+                    result = askToIteration(endpoint, sparqlQuery, bindings, EmptyBindingSet.getInstance());
+                } else {
+                    result = sendTupleQuery(endpoint, sparqlQuery, EmptyBindingSet.getInstance());
+                    result = new InsertBindingSetCursor(result, bindings);
+                }
+                return result;
+            }
 
-            List<String> relevant = getRelevantBindingNames(bindings, freeVars);
             final BindingSet relevantBindings = filterRelevant(bindings, relevant);
 
+            Set<String> freeVars = new HashSet<String>(vars);
             freeVars.removeAll(bindings.getBindingNames());
 
             if (freeVars.isEmpty()) {
@@ -105,7 +234,7 @@ public class QueryExecutorImpl implements QueryExecutor {
                 */
 
             } else {
-                String sparqlQuery = buildSPARQLQuery(expr, freeVars);
+                String sparqlQuery = buildSPARQLQuery(expr, project(expr, freeVars));
                 result = sendTupleQuery(endpoint, sparqlQuery, relevantBindings);
                 result = new InsertBindingSetCursor(result, bindings);
             }
@@ -157,22 +286,19 @@ public class QueryExecutorImpl implements QueryExecutor {
                 return result;
             }
 
-            /*
-            try {
-                result = evaluateInternal(endpoint, expr, bindings);
-                return result;
-            } catch(QueryEvaluationException e) {
-                logger.debug("Failover to sequential iteration", e);
-                return new SequentialQueryIteration(endpoint, expr, bindings);
-            }
-            */
-            return new SequentialQueryIteration(endpoint, expr, bindings);
+            BindJoinMode mode = endpointRegistry.getBindJoinMode(endpoint);
 
-        } /*catch (MalformedQueryException e) {
-                // this exception must not be silenced, bug in our code
-                throw new QueryEvaluationException(e);
-        }*/
-        catch (QueryEvaluationException e) {
+            if (mode == BindJoinMode.VALUES)
+                result = evaluateValues(endpoint, expr, bindings);
+            else if (mode == BindJoinMode.UNION)
+                result = evaluateUnion(endpoint, expr, bindings);
+
+            if (result == null)
+                result = new SequentialQueryIteration(endpoint, expr, bindings);
+
+            return result;
+
+        } catch (QueryEvaluationException e) {
             if (result != null)
                 Iterations.closeCloseable(result);
             throw e;
@@ -183,37 +309,149 @@ public class QueryExecutorImpl implements QueryExecutor {
         }
     }
 
+    /**
+     * Evaluates the expression for a batch of bindings using a single query with a VALUES clause.
+     * If the endpoint rejects that query, when it is sent or before its first row is read, it is
+     * marked to be evaluated sequentially from now on and the batch is evaluated sequentially;
+     * other failures, such as timeouts or the interruption of the query, are thrown.
+     * @return the result iteration or null if the batch cannot be shipped as a VALUES clause
+     */
+    protected CloseableIteration<BindingSet, QueryEvaluationException>
+        evaluateValues(URI endpoint, TupleExpr expr, List<BindingSet> bindings)
+            throws Exception {
+
+        List<String> relevant = getRelevantBindingNames(bindings, getVars(expr));
 
+        if (relevant.isEmpty())
+            return evaluateCrossProduct(endpoint, expr, bindings);
+
+        if (!isValuesCompatible(bindings, relevant))
+            return null;
+
+        Collections.sort(relevant);
+
+        String sparqlQuery = getValuesTemplate(expr, relevant).instantiate(bindings);
+
+        try {
+            return new FallbackIteration(endpoint, expr, bindings, "VALUES",
+                    evaluateInternal(endpoint, sparqlQuery, bindings, relevant));
+        } catch (QueryEvaluationException | MalformedQueryException e) {
+            if (!QueryRejectedException.isRejection(e))
+                throw e;
+            failOver(endpoint, "VALUES", e);
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates the expression for a batch of bindings using a single query that contains
+     * one renamed copy of the expression per binding combined with UNION.
+     * If the endpoint rejects that query, when it is sent or before its first row is read, it is
+     * marked to be evaluated sequentially from now on and the batch is evaluated sequentially;
+     * other failures, such as timeouts or the interruption of the query, are thrown.
+     * @return the result iteration or null if the batch cannot be shipped as a UNION query
+     */
     protected CloseableIteration<BindingSet, QueryEvaluationException>
-        evaluateInternal(URI endpoint, TupleExpr expr, List<BindingSet> bindings)
+        evaluateUnion(URI endpoint, TupleExpr expr, List<BindingSet> bindings)
             throws Exception {
 
-        CloseableIteration<BindingSet, QueryEvaluationException> result = null;
+        List<String> relevant = getRelevantBindingNames(bindings, getVars(expr));
 
-        Set<String> exprVars = computeVars(expr);
+        if (relevant.isEmpty())
+            return evaluateCrossProduct(endpoint, expr, bindings);
 
-        List<String> relevant = getRelevantBindingNames(bindings, exprVars);
+        String sparqlQuery = buildSPARQLQueryUNION(expr, bindings, relevant);
 
-        String sparqlQuery = buildSPARQLQueryVALUES(expr, bindings, relevant);
+        if (sparqlQuery == null)
+            return null;
+
+        try {
+            CloseableIteration<BindingSet, QueryEvaluationException> result =
+                    sendTupleQuery(endpoint, sparqlQuery, EmptyBindingSet.getInstance());
+            return new FallbackIteration(endpoint, expr, bindings, "UNION",
+                    new InsertUnionBindingsIteration(result, bindings));
+        } catch (QueryEvaluationException | MalformedQueryException e) {
+            if (!QueryRejectedException.isRejection(e))
+                throw e;
+            failOver(endpoint, "UNION", e);
+            return null;
+        }
+    }
+
+    /**
+     * Marks the endpoint to evaluate bind joins sequentially from now on.
+     */
+    private void failOver(URI endpoint, String kind, Exception cause) {
+        logger.warn("Endpoint " + endpoint + " rejected a " + kind + " query; " +
+                    "failing over to sequential bind joins", cause);
+        endpointRegistry.setBindJoinMode(endpoint, BindJoinMode.SEQUENTIAL);
+    }
+
+    /**
+     * The expression does not depend on any of the bindings; evaluate it
+     * once and combine the result with every binding.
+     */
+    private CloseableIteration<BindingSet, QueryEvaluationException>
+        evaluateCrossProduct(URI endpoint, TupleExpr expr, List<BindingSet> bindings)
+            throws QueryEvaluationException {
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                evaluate(endpoint, expr, EmptyBindingSet.getInstance());
+        return new ServiceCrossProductIteration(result, bindings);
+    }
+
+    protected CloseableIteration<BindingSet, QueryEvaluationException>
+        evaluateInternal(URI endpoint, String sparqlQuery, List<BindingSet> bindings, List<String> relevant)
+            throws Exception {
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result = null;
 
         result = sendTupleQuery(endpoint, sparqlQuery, EmptyBindingSet.getInstance());
 
-        if (!relevant.isEmpty()) {
-            if (rowIdOpt)
-                result = new InsertValuesBindingsIteration(result, bindings);
-            else {
-                result = new HashJoinIteration(
-                                new CollectionIteration<BindingSet, QueryEvaluationException>(bindings),
-                                result,
-                                new HashSet<String>(relevant));
-            }
+        if (rowIdOpt)
+            result = new InsertValuesBindingsIteration(result, bindings);
+        else {
+            result = new HashJoinIteration(
+                            new CollectionIteration<BindingSet, QueryEvaluationException>(bindings),
+                            result,
+                            new HashSet<String>(relevant));
         }
-        else
-            result = new ServiceCrossProductIteration(result, bindings);
 
         return result;
     }
 
+    /**
+     * Checks whether every binding assigns a value to each relevant variable and that
+     * these values can be written in a VALUES clause. Partial bindings (UNDEF) would break the
+     * subsequent join with the input bindings, and blank nodes cannot be shipped to the endpoint.
+     */
+    private boolean isValuesCompatible(List<BindingSet> bindings, List<String> relevant) {
+        for (BindingSet b : bindings) {
+            for (String name : relevant) {
+                Value v = b.getValue(name);
+                if (v == null || !QueryTemplate.isShippable(v))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isShippable(BindingSet bindings, List<String> relevant) {
+        for (String name : relevant) {
+            if (!QueryTemplate.isShippable(bindings.getValue(name)))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean hasParameterVars(Set<String> vars) {
+        for (String name : vars) {
+            if (QueryTemplate.isParameterVar(name))
+                return true;
+        }
+        return false;
+    }
+
     private BindingSet filterRelevant(BindingSet bindings, List<String> relevant) {
         QueryBindingSet newBindings = new QueryBindingSet();
         for (Binding b : bindings) {
@@ -225,8 +463,14 @@ public class QueryExecutorImpl implements QueryExecutor {
     }
 
     private List<String> getRelevantBindingNames(List<BindingSet> bindings, Set<String> exprVars) {
-
-        return getRelevantBindingNames(bindings.get(0), exprVars);
+        Set<String> relevantBindingNames = new LinkedHashSet<String>();
+        for (BindingSet b : bindings) {
+            for (String bName : b.getBindingNames()) {
+                if (exprVars.contains(bName))
+                    relevantBindingNames.add(bName);
+            }
+        }
+        return new ArrayList<String>(relevantBindingNames);
     }
 
     private List<String> getRelevantBindingNames(BindingSet bindings, Set<String> exprVars){
@@ -239,6 +483,130 @@ public class QueryExecutorImpl implements QueryExecutor {
         return relevantBindingNames;
     }
 
+    /**
+     * Gets the variable names occurring in the expression, computing them
+     * only the first time the expression is seen.
+     * @return an unmodifiable set of variable names
+     */
+    private Set<String> getVars(TupleExpr expr) {
+        Set<String> vars = exprVars.get(expr);
+        if (vars == null) {
+            vars = Collections.unmodifiableSet(computeVars(expr));
+            exprVars.put(expr, vars);
+        }
+        return vars;
+    }
+
+    /**
+     * Gets the variables of the expression that the rest of the plan needs, as annotated
+     * on the {@link SourceQuery} that contains the expression, or all of its variables.
+     * @return an unmodifiable set of variable names
+     */
+    private Set<String> getProjection(TupleExpr expr) {
+        Set<String> projection = exprProjections.get(expr);
+        if (projection == null) {
+            projection = getVars(expr);
+
+            QueryModelNode parent = expr.getParentNode();
+            if (parent instanceof SourceQuery && ((SourceQuery) parent).getProjection() != null) {
+                Set<String> needed = new HashSet<String>(projection);
+                needed.retainAll(((SourceQuery) parent).getProjection());
+                projection = Collections.unmodifiableSet(needed);
+            }
+            exprProjections.put(expr, projection);
+        }
+        return projection;
+    }
+
+    /**
+     * Restricts the free variables of the expression to those that are needed.
+     * One free variable is kept even if none is needed, since a query without
+     * free variables would become an ASK query and lose the multiplicity of its solutions.
+     */
+    private Set<String> project(TupleExpr expr, Set<String> freeVars) {
+        Set<String> projection = new HashSet<String>(freeVars);
+        projection.retainAll(getProjection(expr));
+
+        if (projection.isEmpty() && !freeVars.isEmpty())
+            projection.add(Collections.min(freeVars));
+
+        return projection;
+    }
+
+    /**
+     * Gets the template of the query that evaluates the expression
+     * with the given variables bound.
+     */
+    private QueryTemplate getTemplate(TupleExpr expr, List<String> boundVars) throws Exception {
+        List<String> params = new ArrayList<String>(boundVars);
+        Collections.sort(params);
+
+        TemplateKey key = new TemplateKey(expr, params, false);
+        QueryTemplate template = templates.get(key);
+
+        if (template == null) {
+            template = compileTemplate(expr, params);
+            cacheTemplate(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * Gets the template of the query that evaluates the expression
+     * followed by a VALUES clause over the given variables.
+     */
+    private QueryTemplate getValuesTemplate(TupleExpr expr, List<String> valuesVars) throws Exception {
+        TemplateKey key = new TemplateKey(expr, valuesVars, true);
+        QueryTemplate template = templates.get(key);
+
+        if (template == null) {
+            // the bound variables are needed to join the result back to the bindings
+            Set<String> freeVars = project(expr, getVars(expr));
+            freeVars.addAll(valuesVars);
+
+            if (rowIdOpt)
+                freeVars.add(InsertValuesBindingsIteration.INDEX_BINDING_NAME);
+
+            template = QueryTemplate.createValues(buildSPARQLQuery(expr, freeVars), valuesVars,
+                    InsertValuesBindingsIteration.INDEX_BINDING_NAME, rowIdOpt);
+
+            cacheTemplate(key, template);
+        }
+        return template;
+    }
+
+    private void cacheTemplate(TemplateKey key, QueryTemplate template) {
+        if (templates.size() >= MAX_TEMPLATES)
+            templates.clear();
+        templates.putIfAbsent(key, template);
+    }
+
+    private QueryTemplate compileTemplate(TupleExpr expr, final List<String> params) throws Exception {
+
+        TupleExpr body = expr.clone();
+
+        body.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meet(Var node) throws RuntimeException {
+                if (node.hasValue() || node.isAnonymous())
+                    return;
+
+                int i = params.indexOf(node.getName());
+                if (i >= 0)
+                    node.setName(QueryTemplate.getParameterVar(i));
+            }
+        });
+
+        Set<String> freeVars = new HashSet<String>(getVars(expr));
+        freeVars.removeAll(params);
+
+        Set<String> projection = project(expr, freeVars);
+
+        String sparqlQuery = buildSPARQLQuery(body, projection);
+
+        return QueryTemplate.create(sparqlQuery, params, projection.isEmpty());
+    }
+
     /**
      * Compute the variable names occurring in the service expression using tree
      * traversal, since these are necessary for building the SPARQL query.
@@ -267,85 +635,259 @@ public class QueryExecutorImpl implements QueryExecutor {
         sendTupleQuery(URI endpoint, String sparqlQuery, BindingSet bindings)
             throws QueryEvaluationException, MalformedQueryException, RepositoryException {
 
-        RepositoryConnection conn = getConnection(endpoint);
-        TupleQuery query = conn.prepareTupleQuery(QueryLanguage.SPARQL, sparqlQuery);
+        QueryContext context = queryContext;
 
-        for (Binding b : bindings)
-            query.setBinding(b.getName(), b.getValue());
+        if (context == null)
+            return encode(sendTupleQueryShared(endpoint, sparqlQuery, bindings));
 
-        logger.debug("Sending to " + endpoint.stringValue() + " query " + sparqlQuery.replace('\n', ' ')+ " with bindings " + bindings.toString());
-        return closeConnAfter(this, conn, query.evaluate());
+        context.check();
+        return context.track(encode(sendTupleQueryShared(endpoint, sparqlQuery, bindings)));
     }
 
-    private static <E,X extends Exception> CloseableIteration<E,X> closeConnAfter(QueryExecutorImpl t, RepositoryConnection conn, CloseableIteration<E,X> iter) {
-        return new CloseConnAfterIteration<E,X>(t, conn,iter);
+    /**
+     * Encodes the values of a result, after it is cached or shared with other queries,
+     * so that the rows of other queries keep the values of their own dictionary.
+     */
+    private CloseableIteration<BindingSet, QueryEvaluationException>
+        encode(CloseableIteration<BindingSet, QueryEvaluationException> result)
+    {
+        ValueDictionary dictionary = valueDictionary;
+        return (dictionary == null) ? result : new EncodeValuesIteration(result, dictionary);
     }
 
-    protected boolean
-        sendBooleanQuery(URI endpoint, String sparqlQuery, BindingSet bindings)
+    /**
+     * Sends a query, unless its result is cached or the same query is already in flight.
+     */
+    private CloseableIteration<BindingSet, QueryEvaluationException>
+        sendTupleQueryShared(final URI endpoint, final String sparqlQuery, final BindingSet bindings)
             throws QueryEvaluationException, MalformedQueryException, RepositoryException {
 
-        RepositoryConnection conn = getConnection(endpoint);
-        BooleanQuery query = conn.prepareBooleanQuery(QueryLanguage.SPARQL, sparqlQuery);
+        final ResultCache cache = resultCache;
+        RequestCoalescer coalescer = requestCoalescer;
 
-        for (Binding b : bindings)
-            query.setBinding(b.getName(), b.getValue());
+        if (cache == null && coalescer == null)
+            return sendTupleQueryInternal(endpoint, sparqlQuery, bindings);
 
-        logger.debug("Sending to " + endpoint.stringValue() + " query " + sparqlQuery.replace('\n', ' ') + " with bindings " + bindings.toString());
-        boolean answer = query.evaluate();
-        conn.close();
-        logger.debug("Connection " + conn.toString() + " closed, currently open "+ countconn);
-        countconn--;
-        return answer;
+        final RequestKey key = RequestKey.create(endpoint, sparqlQuery, bindings, false);
+
+        if (cache != null) {
+            CloseableIteration<BindingSet, QueryEvaluationException> cached = cache.getTuples(key);
+            if (cached != null) {
+                logger.debug("Using cached result of query " + sparqlQuery.replace('\n', ' ') + " to " + endpoint.stringValue());
+                return cached;
+            }
+        }
+
+        if (coalescer == null)
+            return cache.cache(key, sendTupleQueryInternal(endpoint, sparqlQuery, bindings));
+
+        try {
+            return coalescer.getTuples(key, new RequestCoalescer.TupleRequest() {
+                @Override
+                public CloseableIteration<BindingSet, QueryEvaluationException> send() throws Exception {
+                    CloseableIteration<BindingSet, QueryEvaluationException> result =
+                            sendTupleQueryInternal(endpoint, sparqlQuery, bindings);
+                    return (cache != null) ? cache.cache(key, result) : result;
+                }
+            }, queryContext);
+        } catch (QueryEvaluationException | MalformedQueryException | RepositoryException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new QueryEvaluationException(e);
+        }
+    }
+
+    protected CloseableIteration<BindingSet, QueryEvaluationException>
+        sendTupleQueryInternal(URI endpoint, String sparqlQuery, BindingSet bindings)
+            throws QueryEvaluationException, MalformedQueryException, RepositoryException {
+
+        EndpointHealthRegistry health = healthRegistry;
+
+        if (health != null && !health.allowRequest(endpoint))
+            throw new EndpointUnavailableException(endpoint);
+
+        // the time spent waiting for a slot is local congestion, not slowness of the endpoint
+        RequestScheduler.Slot slot = acquireSlot(endpoint);
+
+        long start = System.currentTimeMillis();
+        RepositoryConnection conn;
+        try {
+            conn = getConnection(endpoint);
+        } catch (RepositoryException | RuntimeException e) {
+            releaseSlot(slot);
+            throw e;
+        }
+        try {
+            TupleQuery query = conn.prepareTupleQuery(QueryLanguage.SPARQL, sparqlQuery);
+
+            for (Binding b : bindings)
+                query.setBinding(b.getName(), b.getValue());
+
+            setMaxQueryTime(query);
+
+            logger.debug("Sending to " + endpoint.stringValue() + " query " + sparqlQuery.replace('\n', ' ')+ " with bindings " + bindings.toString());
+
+            if (parserPool != null)
+                return parserPool.parse(new RemoteParseTask(endpoint, conn, query, health, slot));
+
+            CloseableIteration<BindingSet, QueryEvaluationException> result;
+            try {
+                result = closeConnAfter(this, endpoint, conn, query.evaluate());
+            } finally {
+                releaseSlot(slot);
+            }
+
+            if (health != null) {
+                health.recordSuccess(endpoint, System.currentTimeMillis() - start);
+                result = new RecordFailureIteration(health, endpoint, start, result);
+            }
+            return result;
+        } catch (QueryEvaluationException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            recordFailure(health, endpoint, start);
+            throw e;
+        } catch (MalformedQueryException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            throw e;
+        } catch (RepositoryException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            recordFailure(health, endpoint, start);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            recordFailure(health, endpoint, start);
+            throw e;
+        }
     }
 
     /**
-     * Computes the VALUES clause for the set of relevant input bindings. The
-     * VALUES clause is attached to a subquery for block-nested-loop evaluation.
-     * Implementation note: we use a special binding to mark the rowIndex of the
-     * input binding.
-     *
-     * @param bindings
-     * @param relevantBindingNames
-     * @return a string with the VALUES clause for the given set of relevant
-     *         input bindings
-     * @throws QueryEvaluationException
+     * Passes the time left until the deadline of the query on to the remote query.
      */
-    private String buildVALUESClause(List<BindingSet> bindings, List<String> relevantBindingNames)
-            throws QueryEvaluationException
-    {
+    private void setMaxQueryTime(Query query) {
+        QueryContext context = queryContext;
+        if (context != null && context.hasDeadline())
+            query.setMaxQueryTime((int) Math.max(1, (context.getRemainingTime() + 999) / 1000));
+    }
 
-        if (relevantBindingNames.isEmpty())
-            return "";
+    private static void recordFailure(EndpointHealthRegistry health, URI endpoint, long start) {
+        if (health != null)
+            health.recordFailure(endpoint, System.currentTimeMillis() - start);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(" VALUES (");
+    private static <E,X extends Exception> CloseableIteration<E,X> closeConnAfter(QueryExecutorImpl t, URI endpoint, RepositoryConnection conn, CloseableIteration<E,X> iter) {
+        return new CloseConnAfterIteration<E,X>(t, endpoint, conn, iter);
+    }
 
-        if (rowIdOpt)
-            sb.append(" ?"+ InsertValuesBindingsIteration.INDEX_BINDING_NAME);
+    protected boolean
+        sendBooleanQuery(final URI endpoint, final String sparqlQuery, final BindingSet bindings)
+            throws QueryEvaluationException, MalformedQueryException, RepositoryException {
 
-        for (String bName : relevantBindingNames) {
-            sb.append(" ?").append(bName);
-        }
+        if (queryContext != null)
+            queryContext.check();
 
-        sb.append(") { ");
+        ResultCache cache = resultCache;
+        RequestCoalescer coalescer = requestCoalescer;
 
-        int rowIdx = 0;
-        for (BindingSet b : bindings) {
-            sb.append(" (");
+        if (cache == null && coalescer == null)
+            return sendBooleanQueryInternal(endpoint, sparqlQuery, bindings);
+
+        RequestKey key = RequestKey.create(endpoint, sparqlQuery, bindings, true);
 
-            if (rowIdOpt) {
-                sb.append("\"").append(rowIdx++).append("\" "); // identification of the row for post processing
+        if (cache != null) {
+            Boolean cached = cache.getBoolean(key);
+            if (cached != null) {
+                logger.debug("Using cached answer of query " + sparqlQuery.replace('\n', ' ') + " to " + endpoint.stringValue());
+                return cached;
             }
+        }
+
+        boolean answer;
 
-            for (String bName : relevantBindingNames) {
-                appendValueAsString(sb, b.getValue(bName)).append(" ");
+        if (coalescer == null) {
+            answer = sendBooleanQueryInternal(endpoint, sparqlQuery, bindings);
+        } else {
+            try {
+                answer = coalescer.getBoolean(key, new RequestCoalescer.BooleanRequest() {
+                    @Override
+                    public boolean send() throws Exception {
+                        return sendBooleanQueryInternal(endpoint, sparqlQuery, bindings);
+                    }
+                }, queryContext);
+            } catch (QueryEvaluationException | MalformedQueryException | RepositoryException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new QueryEvaluationException(e);
             }
-            sb.append(")");
         }
 
-        sb.append(" }");
-        return sb.toString();
+        if (cache != null)
+            cache.putBoolean(key, answer);
+
+        return answer;
+    }
+
+    protected boolean
+        sendBooleanQueryInternal(URI endpoint, String sparqlQuery, BindingSet bindings)
+            throws QueryEvaluationException, MalformedQueryException, RepositoryException {
+
+        EndpointHealthRegistry health = healthRegistry;
+
+        if (health != null && !health.allowRequest(endpoint))
+            throw new EndpointUnavailableException(endpoint);
+
+        // the time spent waiting for a slot is local congestion, not slowness of the endpoint
+        RequestScheduler.Slot slot = acquireSlot(endpoint);
+
+        long start = System.currentTimeMillis();
+        RepositoryConnection conn;
+        try {
+            conn = getConnection(endpoint);
+        } catch (RepositoryException | RuntimeException e) {
+            releaseSlot(slot);
+            throw e;
+        }
+        boolean answer;
+        try {
+            BooleanQuery query = conn.prepareBooleanQuery(QueryLanguage.SPARQL, sparqlQuery);
+
+            for (Binding b : bindings)
+                query.setBinding(b.getName(), b.getValue());
+
+            setMaxQueryTime(query);
+
+            logger.debug("Sending to " + endpoint.stringValue() + " query " + sparqlQuery.replace('\n', ' ') + " with bindings " + bindings.toString());
+            answer = query.evaluate();
+            releaseSlot(slot);
+        } catch (QueryEvaluationException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            recordFailure(health, endpoint, start);
+            throw e;
+        } catch (MalformedQueryException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            throw e;
+        } catch (RepositoryException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            recordFailure(health, endpoint, start);
+            throw e;
+        } catch (RuntimeException e) {
+            releaseSlot(slot);
+            invalidateConnection(endpoint, conn);
+            recordFailure(health, endpoint, start);
+            throw e;
+        }
+        releaseConnection(endpoint, conn);
+
+        if (health != null)
+            health.recordSuccess(endpoint, System.currentTimeMillis() - start);
+
+        return answer;
     }
 
     private String buildSPARQLQuery(TupleExpr expr, Collection<String> projection) throws Exception {
@@ -358,6 +900,8 @@ public class QueryExecutorImpl implements QueryExecutor {
     private String buildSelectSPARQLQuery(TupleExpr expr, Collection<String> projection)
             throws Exception {
 
+        if (SPARQLSerializer.isSupported(expr))
+            return SPARQLSerializer.serializeSelect(expr, projection);
 
         TupleExpr body = expr.clone();
 
@@ -381,44 +925,95 @@ public class QueryExecutorImpl implements QueryExecutor {
 
     private String buildAskSPARQLQuery(TupleExpr expr)
             throws Exception {
+
+        if (SPARQLSerializer.isSupported(expr))
+            return SPARQLSerializer.serializeAsk(expr);
+
         ParsedBooleanQuery query = new ParsedBooleanQuery(expr);
         return new SPARQLQueryRenderer().render(query);
     }
 
-    private String buildSPARQLQueryVALUES(TupleExpr expr, List<BindingSet> bindings, List<String> relevantBindingNames)
+    /**
+     * Builds a query that evaluates the expression for all the bindings at once.
+     * The i-th binding is substituted in a copy of the expression whose remaining
+     * variables are renamed by appending the suffix "_i"; the copies are combined
+     * with UNION. The suffix is used by {@link InsertUnionBindingsIteration} to
+     * join each result back to the binding that produced it.
+     * @return the query string or null if some binding cannot be shipped to the endpoint
+     */
+    private String buildSPARQLQueryUNION(TupleExpr expr, List<BindingSet> bindings, List<String> relevantBindingNames)
             throws Exception {
 
-        Set<String> freeVars = computeVars(expr);
-
-        if (rowIdOpt)
-            freeVars.add(InsertValuesBindingsIteration.INDEX_BINDING_NAME);
+        Set<String> exprVars = getVars(expr);
+        Set<String> projection = new LinkedHashSet<String>();
+        TupleExpr union = null;
 
-        //freeVars.removeAll(relevantBindingNames);
+        int rowIdx = 0;
+        for (BindingSet b : bindings) {
+            String suffix = "_" + rowIdx++;
+
+            // a copy with all of its variables bound has no variable to carry the suffix;
+            // keep one of them free and restrict it with a filter instead.
+            String marker = null;
+            if (b.getBindingNames().containsAll(exprVars)) {
+                for (String name : relevantBindingNames) {
+                    if (b.hasBinding(name)) {
+                        marker = name;
+                        break;
+                    }
+                }
+            }
 
-        return buildSPARQLQuery(expr,freeVars) + buildVALUESClause(bindings,relevantBindingNames);
-    }
+            TupleExpr branch = expr.clone();
 
-    private String buildSPARQLQueryUNION(TupleExpr expr, List<BindingSet> bindings, List<String> relevantBindingNames)
-            throws Exception {
+            if (!renameVars(branch, b, suffix, marker, projection))
+                return null;
 
-        return null;
-    }
+            if (marker != null) {
+                branch = new Filter(branch,
+                            new SameTerm(new Var(marker + suffix), new ValueConstant(b.getValue(marker))));
+                projection.add(marker + suffix);
+            }
 
-    protected StringBuilder appendValueAsString(StringBuilder sb, Value value) {
+            union = (union == null) ? branch : new Union(union, branch);
+        }
 
-        // TODO check if there is some convenient method in Sesame!
+        return buildSelectSPARQLQuery(union, projection);
+    }
 
-        if (value == null)
-            return sb.append("UNDEF"); // see grammar for BINDINGs def
+    /**
+     * Substitutes the bound variables of the expression with their values
+     * and renames the rest of the variables by appending the suffix.
+     * @return false if a value cannot be written in the query
+     */
+    private boolean renameVars(TupleExpr expr, final BindingSet bindings, final String suffix,
+                               final String marker, final Set<String> renamed) {
 
-        else if (value instanceof URI)
-            return appendURI(sb, (URI)value);
+        final boolean[] shippable = { true };
 
-        else if (value instanceof Literal)
-            return appendLiteral(sb, (Literal)value);
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            public void meet(Var node) throws RuntimeException {
+                if (node.hasValue() || node.isAnonymous())
+                    return;
+
+                String name = node.getName();
+                Value v = bindings.getValue(name);
+
+                node.setName(name + suffix);
+
+                if (v != null && !name.equals(marker)) {
+                    if (QueryTemplate.isShippable(v))
+                        node.setValue(v);
+                    else
+                        shippable[0] = false;
+                } else {
+                    renamed.add(node.getName());
+                }
+            }
+        });
 
-        // XXX check for other types ? BNode ?
-        throw new RuntimeException("Type not supported: " + value.getClass().getCanonicalName());
+        return shippable[0];
     }
 
     /**
@@ -429,8 +1024,7 @@ public class QueryExecutorImpl implements QueryExecutor {
      * @return the StringBuilder, for convenience
      */
     protected static StringBuilder appendURI(StringBuilder sb, URI uri) {
-        sb.append("<").append(uri.stringValue()).append(">");
-        return sb;
+        return SPARQLSerializer.appendValue(sb, uri);
     }
 
     /**
@@ -441,79 +1035,286 @@ public class QueryExecutorImpl implements QueryExecutor {
      * @return the StringBuilder, for convenience
      */
     protected static StringBuilder appendLiteral(StringBuilder sb, Literal lit) {
-        sb.append('"');
-        sb.append(lit.getLabel().replace("\"", "\\\""));
-        sb.append('"');
+        return SPARQLSerializer.appendValue(sb, lit);
+    }
+
+    /**
+     * Sends a query and parses its result into the handler, on the thread that runs it.
+     */
+    private class RemoteParseTask extends ResultParserPool.ParseTask {
+
+        private final URI endpoint;
+
+        private final RepositoryConnection conn;
+
+        private final TupleQuery query;
 
-        //if (Literals.isLanguageLiteral(lit)) {
-        //    sb.append('@');
-        //    sb.append(lit.getLanguage());
-       // }
-        //else {
-            sb.append("^^<");
-            sb.append(lit.getDatatype().stringValue());
-            sb.append('>');
-        //}
-        return sb;
+        private final EndpointHealthRegistry health;
+
+        // taken when the task runs, after it has waited for a thread of the pool
+        private long start;
+
+        private final RequestScheduler.Slot slot;
+
+        public RemoteParseTask(URI endpoint, RepositoryConnection conn, TupleQuery query,
+                               EndpointHealthRegistry health, RequestScheduler.Slot slot)
+        {
+            this.endpoint = endpoint;
+            this.conn = conn;
+            this.query = query;
+            this.health = health;
+            this.slot = slot;
+        }
+
+        @Override
+        public void parse(final TupleQueryResultHandler handler) throws Exception {
+            start = System.currentTimeMillis();
+            try {
+                // the slot is free for the next request once the response has started
+                query.evaluate(new TupleQueryResultHandler() {
+                    @Override
+                    public void startQueryResult(List<String> bindingNames) throws TupleQueryResultHandlerException {
+                        releaseSlot(slot);
+                        handler.startQueryResult(bindingNames);
+                    }
+
+                    @Override
+                    public void endQueryResult() throws TupleQueryResultHandlerException {
+                        handler.endQueryResult();
+                    }
+
+                    @Override
+                    public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+                        handler.handleSolution(bindingSet);
+                    }
+
+                    @Override
+                    public void handleBoolean(boolean value) throws QueryResultHandlerException {
+                        handler.handleBoolean(value);
+                    }
+
+                    @Override
+                    public void handleLinks(List<String> linkUrls) throws QueryResultHandlerException {
+                        handler.handleLinks(linkUrls);
+                    }
+                });
+            } catch (TupleQueryResultHandlerException e) {
+                // the result was closed before the end of the stream
+                invalidateConnection(endpoint, conn);
+                throw e;
+            } catch (Exception e) {
+                invalidateConnection(endpoint, conn);
+                recordFailure(health, endpoint, start);
+                throw e;
+            } finally {
+                releaseSlot(slot);
+            }
+
+            releaseConnection(endpoint, conn);
+
+            if (health != null)
+                health.recordSuccess(endpoint, System.currentTimeMillis() - start);
+        }
+
+        @Override
+        public void cancel() {
+            releaseSlot(slot);
+            releaseConnection(endpoint, conn);
+        }
     }
 
-    protected class SequentialQueryIteration extends JoinExecutorBase<BindingSet> {
+    /**
+     * Evaluates the expression for one binding after the other. The request of a binding
+     * is sent only after the result of the previous one has been read, so the batch never
+     * holds more than one connection of the endpoint, however large it is.
+     */
+    protected class SequentialQueryIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
 
-        private TupleExpr expr;
-        private URI endpoint;
-        private Collection<BindingSet> bindings;
+        private final TupleExpr expr;
+        private final URI endpoint;
+        private final Iterator<BindingSet> bindings;
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> current;
+
+        public SequentialQueryIteration(URI endpoint, TupleExpr expr, Collection<BindingSet> bindings) {
+            this.endpoint = endpoint;
+            this.expr = expr;
+            this.bindings = bindings.iterator();
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (current == null || !current.hasNext()) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+
+                if (!bindings.hasNext())
+                    return null;
+
+                current = evaluate(endpoint, expr, bindings.next());
+            }
+            return current.next();
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * The result of a batched query. The rejection of the query may only surface when its
+     * result is first read, as when it is parsed on another thread or its response arrives
+     * asynchronously; if the query is rejected before its first row, the endpoint is failed
+     * over to sequential bind joins and the batch is evaluated one binding after the other.
+     */
+    protected class FallbackIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final URI endpoint;
+        private final TupleExpr expr;
+        private final List<BindingSet> bindings;
+        private final String kind;
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> iter;
+
+        private boolean started = false;
 
-        public SequentialQueryIteration(URI endpoint, TupleExpr expr, Collection<BindingSet> bindings)
-                throws QueryEvaluationException {
-            super(null, null, EmptyBindingSet.getInstance());
+        public FallbackIteration(URI endpoint, TupleExpr expr, List<BindingSet> bindings, String kind,
+                                 CloseableIteration<BindingSet, QueryEvaluationException> iter) {
             this.endpoint = endpoint;
             this.expr = expr;
             this.bindings = bindings;
-            run();
+            this.kind = kind;
+            this.iter = iter;
         }
 
         @Override
-        protected void handleBindings() throws QueryEvaluationException {
-            for (final BindingSet b : bindings) {
-                /*
-                CloseableIteration<BindingSet,QueryEvaluationException> result = new DelayedIteration<BindingSet, QueryEvaluationException>() {
-                    @Override
-                    protected Iteration<? extends BindingSet, ? extends QueryEvaluationException> createIteration() throws QueryEvaluationException {
-                        return evaluate(endpoint, expr, b);
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            if (!started) {
+                try {
+                    iter.hasNext();
+                } catch (QueryEvaluationException e) {
+                    if (!QueryRejectedException.isRejection(e))
+                        throw e;
+
+                    failOver(endpoint, kind, e);
+                    try {
+                        iter.close();
+                    } catch (QueryEvaluationException x) {
+                        logger.debug("Failed to close the rejected result", x);
                     }
-                };*/
-                CloseableIteration<BindingSet,QueryEvaluationException> result = evaluate(endpoint, expr, b);
-                addResult(result);
+                    iter = new SequentialQueryIteration(endpoint, expr, bindings);
+                }
+                started = true;
             }
+            return iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            iter.close();
+        }
+    }
+
+    private static class TemplateKey {
+
+        private final TupleExpr expr;
+
+        private final List<String> vars;
+
+        private final boolean values;
+
+        public TemplateKey(TupleExpr expr, List<String> vars, boolean values) {
+            this.expr = expr;
+            this.vars = vars;
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof TemplateKey))
+                return false;
+
+            TemplateKey k = (TemplateKey) o;
+            return expr == k.expr && values == k.values && vars.equals(k.vars);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(expr) + vars.hashCode()) + (values ? 1 : 0);
         }
     }
 
+    /**
+     * Records a failure of the endpoint if reading the response fails after it has started.
+     */
+    private static class RecordFailureIteration extends IterationWrapper<BindingSet, QueryEvaluationException> {
 
+        private final EndpointHealthRegistry health;
+        private final URI endpoint;
+        private final long start;
+
+        public RecordFailureIteration(EndpointHealthRegistry health, URI endpoint, long start,
+                                      Iteration<? extends BindingSet, ? extends QueryEvaluationException> iter) {
+            super(iter);
+            this.health = health;
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+
+        @Override
+        public boolean hasNext() throws QueryEvaluationException {
+            try {
+                return super.hasNext();
+            } catch (QueryEvaluationException e) {
+                recordFailure(health, endpoint, start);
+                throw e;
+            }
+        }
+
+        @Override
+        public BindingSet next() throws QueryEvaluationException {
+            try {
+                return super.next();
+            } catch (QueryEvaluationException e) {
+                recordFailure(health, endpoint, start);
+                throw e;
+            }
+        }
+    }
 
     private static class CloseConnAfterIteration<E,X extends Exception> extends IterationWrapper<E,X> {
 
         private RepositoryConnection conn;
+        private URI endpoint;
         private QueryExecutorImpl impl;
 
-        public CloseConnAfterIteration(QueryExecutorImpl impl, RepositoryConnection conn, Iteration<? extends E, ? extends X> iter) {
+        public CloseConnAfterIteration(QueryExecutorImpl impl, URI endpoint, RepositoryConnection conn, Iteration<? extends E, ? extends X> iter) {
             super(iter);
             assert conn != null;
             this.conn = conn;
+            this.endpoint = endpoint;
             this.impl = impl;
         }
 
         @Override
         public void handleClose() throws X {
-            super.handleClose();
-
             try {
-                if (conn != null && conn.isOpen()) {
-                    conn.close();
-                    impl.logger.debug("Connection " + conn.toString() + " closed, currently open "+ impl.countconn);
-                    impl.countconn--;
+                super.handleClose();
+            } finally {
+                if (conn != null) {
+                    impl.releaseConnection(endpoint, conn);
+                    conn = null;
                 }
-            } catch (RepositoryException e) {
-
             }
         }
     }
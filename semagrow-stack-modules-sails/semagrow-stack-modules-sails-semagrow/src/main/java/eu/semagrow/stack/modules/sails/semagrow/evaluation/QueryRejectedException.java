@@ -0,0 +1,45 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+
+/**
+ * Thrown when an endpoint refuses to evaluate a query, as opposed to failing
+ * while evaluating it; sending the same query again will fail the same way.
+ */
+public class QueryRejectedException extends QueryEvaluationException {
+
+    private final URI endpoint;
+
+    private final int status;
+
+    public QueryRejectedException(URI endpoint, int status, String message) {
+        super("Endpoint " + endpoint + " returned status " + status + (message.isEmpty() ? "" : ": " + message));
+        this.endpoint = endpoint;
+        this.status = status;
+    }
+
+    public URI getEndpoint() { return endpoint; }
+
+    public int getStatus() { return status; }
+
+    /**
+     * Checks whether an HTTP status means that the endpoint refused the request itself:
+     * a client error other than a timeout or a rate limit.
+     */
+    public static boolean isRejection(int status) {
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+
+    /**
+     * Checks whether a failure, or one of its causes, is a rejection of the query.
+     */
+    public static boolean isRejection(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof QueryRejectedException || t instanceof MalformedQueryException)
+                return true;
+        }
+        return false;
+    }
+}
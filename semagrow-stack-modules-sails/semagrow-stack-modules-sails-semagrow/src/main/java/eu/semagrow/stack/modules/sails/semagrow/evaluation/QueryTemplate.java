@@ -0,0 +1,184 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A remote query that is rendered once and instantiated many times.
+ * The query text is kept as a sequence of fixed segments separated by
+ * parameters; instantiating the template for a binding only appends the
+ * serialized values of the parameters between the segments. A template
+ * may additionally end in a VALUES clause whose rows are appended on
+ * instantiation.
+ */
+public class QueryTemplate {
+
+    private static final String PARAMETER_PREFIX = "sgparam";
+
+    // a parameter is a whole variable name, so ?sgparam1_x is not parameter 1
+    private static final Pattern PARAMETER_PATTERN =
+            Pattern.compile("[?$]" + PARAMETER_PREFIX + "(\\d+)_(?!\\w)");
+
+    private static final Pattern PARAMETER_NAME =
+            Pattern.compile(PARAMETER_PREFIX + "\\d+_");
+
+    // estimate of the length of a serialized value, used to size the buffers
+    private static final int VALUE_LENGTH = 48;
+
+    private final String[] segments;
+
+    private final String[] parameters;
+
+    private final String[] valuesVars;
+
+    private final boolean rowIds;
+
+    private final boolean ask;
+
+    private final int length;
+
+    private QueryTemplate(String[] segments, String[] parameters,
+                          String[] valuesVars, boolean rowIds, boolean ask) {
+        this.segments = segments;
+        this.parameters = parameters;
+        this.valuesVars = valuesVars;
+        this.rowIds = rowIds;
+        this.ask = ask;
+
+        int l = 0;
+        for (String s : segments)
+            l += s.length();
+        this.length = l;
+    }
+
+    /**
+     * Gets the name of the variable that must be used in place of the
+     * i-th parameter when the query is rendered.
+     */
+    public static String getParameterVar(int i) {
+        return PARAMETER_PREFIX + i + "_";
+    }
+
+    /**
+     * Checks whether a variable name has the form of the name of a parameter; an expression
+     * with such a variable cannot be turned into a template.
+     */
+    public static boolean isParameterVar(String name) {
+        return PARAMETER_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Creates a template from a rendered query that mentions the variables
+     * returned by {@link #getParameterVar(int)} for the i-th parameter.
+     * @param query the rendered query
+     * @param parameters the binding names that are substituted for each parameter
+     * @param ask whether the query is an ASK query
+     */
+    public static QueryTemplate create(String query, List<String> parameters, boolean ask) {
+        List<String> segments = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+
+        Matcher m = PARAMETER_PATTERN.matcher(query);
+        int start = 0;
+        while (m.find()) {
+            int i = Integer.parseInt(m.group(1));
+            segments.add(query.substring(start, m.start()));
+            names.add(parameters.get(i));
+            start = m.end();
+        }
+        segments.add(query.substring(start));
+
+        return new QueryTemplate(
+                segments.toArray(new String[segments.size()]),
+                names.toArray(new String[names.size()]),
+                null, false, ask);
+    }
+
+    /**
+     * Creates a template of a query that is followed by a VALUES clause over the given variables.
+     * @param rowIds whether every row is prefixed with its index
+     *               (see {@link eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.InsertValuesBindingsIteration})
+     */
+    public static QueryTemplate createValues(String query, List<String> valuesVars,
+                                             String rowIdVar, boolean rowIds) {
+        StringBuilder sb = new StringBuilder(query.length() + 16 * valuesVars.size());
+        sb.append(query).append(" VALUES (");
+
+        if (rowIds)
+            sb.append(" ?").append(rowIdVar);
+
+        for (String var : valuesVars)
+            sb.append(" ?").append(var);
+
+        sb.append(") { ");
+
+        return new QueryTemplate(
+                new String[] { sb.toString() }, new String[0],
+                valuesVars.toArray(new String[valuesVars.size()]), rowIds, false);
+    }
+
+    public boolean isAsk() { return ask; }
+
+    public boolean hasValues() { return valuesVars != null; }
+
+    /**
+     * Instantiates the template substituting the parameters with their values in the given bindings.
+     */
+    public String instantiate(BindingSet bindings) {
+        StringBuilder sb = new StringBuilder(length + VALUE_LENGTH * parameters.length);
+        sb.append(segments[0]);
+        for (int i = 0; i < parameters.length; i++) {
+            appendValue(sb, bindings.getValue(parameters[i]));
+            sb.append(segments[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Instantiates the template appending a row to the VALUES clause for each of the given bindings.
+     */
+    public String instantiate(List<BindingSet> bindings) {
+        assert hasValues();
+
+        StringBuilder sb = new StringBuilder(length + 4 +
+                bindings.size() * (8 + VALUE_LENGTH * valuesVars.length));
+        sb.append(segments[0]);
+
+        int rowIdx = 0;
+        for (BindingSet b : bindings) {
+            sb.append(" (");
+
+            if (rowIds)
+                sb.append('"').append(rowIdx++).append("\" ");
+
+            for (String var : valuesVars)
+                appendValue(sb, b.getValue(var)).append(' ');
+
+            sb.append(')');
+        }
+
+        sb.append(" }");
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the value can be written in the query text.
+     */
+    public static boolean isShippable(Value v) {
+        return v instanceof URI || v instanceof Literal;
+    }
+
+    private static StringBuilder appendValue(StringBuilder sb, Value value) {
+        if (value == null)
+            return sb.append("UNDEF");
+        else
+            return SPARQLSerializer.appendValue(sb, value);
+    }
+}
@@ -0,0 +1,557 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.algebra.*;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes the subset of the algebra that is shipped to the remote endpoints
+ * (basic graph patterns, Filter, Union, Slice, Projection, Order, Distinct)
+ * directly as SPARQL text. It is a lightweight alternative to the
+ * {@link org.openrdf.queryrender.sparql.SPARQLQueryRenderer}; callers should check
+ * {@link #isSupported(TupleExpr)} and fall back to the general renderer otherwise.
+ */
+public final class SPARQLSerializer {
+
+    private static final Set<Class<? extends QueryModelNode>> supported;
+
+    static {
+        Set<Class<? extends QueryModelNode>> s = new HashSet<Class<? extends QueryModelNode>>();
+
+        s.add(QueryRoot.class);
+        s.add(StatementPattern.class);
+        s.add(Join.class);
+        s.add(Union.class);
+        s.add(Filter.class);
+        s.add(SingletonSet.class);
+        s.add(Projection.class);
+        s.add(ProjectionElemList.class);
+        s.add(ProjectionElem.class);
+        s.add(Slice.class);
+        s.add(Order.class);
+        s.add(OrderElem.class);
+        s.add(Distinct.class);
+        s.add(Reduced.class);
+
+        s.add(Var.class);
+        s.add(ValueConstant.class);
+        s.add(Compare.class);
+        s.add(And.class);
+        s.add(Or.class);
+        s.add(Not.class);
+        s.add(SameTerm.class);
+        s.add(Bound.class);
+        s.add(IsURI.class);
+        s.add(IsLiteral.class);
+        s.add(IsBNode.class);
+        s.add(IsNumeric.class);
+        s.add(Str.class);
+        s.add(Lang.class);
+        s.add(Datatype.class);
+        s.add(LangMatches.class);
+        s.add(Regex.class);
+        s.add(MathExpr.class);
+        s.add(FunctionCall.class);
+
+        supported = Collections.unmodifiableSet(s);
+    }
+
+    private static final int MAX_BUFFER_CAPACITY = 64 * 1024;
+
+    private static final String ESCAPE_PREFIX = "_sg";
+
+    private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() { return new StringBuilder(1024); }
+    };
+
+    private SPARQLSerializer() { }
+
+    /**
+     * Checks whether every node of the expression can be written by this serializer.
+     */
+    public static boolean isSupported(TupleExpr expr) {
+        final boolean[] result = { true };
+
+        expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+            @Override
+            protected void meetNode(QueryModelNode node) throws RuntimeException {
+                if (!result[0])
+                    return;
+
+                if (!supported.contains(node.getClass()) ||
+                    (node instanceof Var && ((Var) node).getValue() instanceof BNode) ||
+                    (node instanceof ValueConstant && ((ValueConstant) node).getValue() instanceof BNode))
+                {
+                    result[0] = false;
+                    return;
+                }
+
+                super.meetNode(node);
+            }
+        });
+
+        return result[0];
+    }
+
+    /**
+     * Serializes the expression as a SELECT query.
+     * @param projection the variables to project or null to use the projection of the expression
+     */
+    public static String serializeSelect(TupleExpr expr, Collection<String> projection) {
+        StringBuilder sb = getBuffer();
+        appendSelect(sb, expr, projection);
+        return sb.toString();
+    }
+
+    /**
+     * Serializes the expression as an ASK query.
+     */
+    public static String serializeAsk(TupleExpr expr) {
+        StringBuilder sb = getBuffer();
+        appendAsk(sb, expr);
+        return sb.toString();
+    }
+
+    public static StringBuilder appendSelect(StringBuilder sb, TupleExpr expr, Collection<String> projection) {
+        try {
+            appendSelect((Appendable) sb, expr, projection);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb;
+    }
+
+    public static StringBuilder appendAsk(StringBuilder sb, TupleExpr expr) {
+        try {
+            appendAsk((Appendable) sb, expr);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb;
+    }
+
+    public static void appendSelect(Appendable out, TupleExpr expr, Collection<String> projection)
+            throws IOException
+    {
+        expr = skipRoot(expr);
+
+        if (projection == null) {
+            appendQuery(out, expr);
+        } else {
+            Order order = null;
+            if (expr instanceof Order) {
+                order = (Order) expr;
+                expr = order.getArg();
+            }
+
+            out.append("SELECT");
+            if (projection.isEmpty())
+                out.append(" *");
+            for (String var : projection)
+                appendVar(out.append(' '), var);
+
+            appendWhere(out, expr);
+            appendModifiers(out, order, null);
+        }
+    }
+
+    public static void appendAsk(Appendable out, TupleExpr expr) throws IOException {
+        out.append("ASK");
+        appendWhere(out, skipRoot(expr));
+    }
+
+    private static TupleExpr skipRoot(TupleExpr expr) {
+        return (expr instanceof QueryRoot) ? ((QueryRoot) expr).getArg() : expr;
+    }
+
+    private static StringBuilder getBuffer() {
+        StringBuilder sb = buffer.get();
+        if (sb.capacity() > MAX_BUFFER_CAPACITY) {
+            sb = new StringBuilder(1024);
+            buffer.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    /**
+     * Writes a query whose solution modifiers are taken from the top of the expression,
+     * in the order Slice, Distinct or Reduced, Projection, Order.
+     */
+    private static void appendQuery(Appendable out, TupleExpr expr) throws IOException {
+        Slice slice = null;
+        UnaryTupleOperator distinct = null;
+        Projection projection = null;
+        Order order = null;
+
+        if (expr instanceof Slice) {
+            slice = (Slice) expr;
+            expr = slice.getArg();
+        }
+        if (expr instanceof Distinct || expr instanceof Reduced) {
+            distinct = (UnaryTupleOperator) expr;
+            expr = distinct.getArg();
+        }
+        if (expr instanceof Projection) {
+            projection = (Projection) expr;
+            expr = projection.getArg();
+        }
+        if (expr instanceof Order) {
+            order = (Order) expr;
+            expr = order.getArg();
+        }
+
+        out.append("SELECT");
+
+        if (distinct instanceof Distinct)
+            out.append(" DISTINCT");
+        else if (distinct instanceof Reduced)
+            out.append(" REDUCED");
+
+        if (projection == null) {
+            out.append(" *");
+        } else {
+            for (ProjectionElem elem : projection.getProjectionElemList().getElements()) {
+                out.append(' ');
+                if (elem.getSourceName().equals(elem.getTargetName())) {
+                    appendVar(out, elem.getTargetName());
+                } else {
+                    appendVar(out.append('('), elem.getSourceName());
+                    appendVar(out.append(" AS "), elem.getTargetName());
+                    out.append(')');
+                }
+            }
+        }
+
+        appendWhere(out, expr);
+        appendModifiers(out, order, slice);
+    }
+
+    private static void appendWhere(Appendable out, TupleExpr expr) throws IOException {
+        out.append("\nWHERE ");
+        appendGroup(out, expr);
+    }
+
+    private static void appendModifiers(Appendable out, Order order, Slice slice) throws IOException {
+        if (order != null) {
+            out.append("\nORDER BY");
+            for (OrderElem elem : order.getElements()) {
+                out.append(elem.isAscending() ? " ASC(" : " DESC(");
+                appendValueExpr(out, elem.getExpr());
+                out.append(')');
+            }
+        }
+
+        if (slice != null) {
+            if (slice.hasLimit())
+                out.append("\nLIMIT ").append(Long.toString(slice.getLimit()));
+            if (slice.hasOffset())
+                out.append("\nOFFSET ").append(Long.toString(slice.getOffset()));
+        }
+    }
+
+    private static void appendGroup(Appendable out, TupleExpr expr) throws IOException {
+        out.append("{ ");
+        appendGroupContent(out, expr);
+        out.append("}");
+    }
+
+    private static void appendGroupContent(Appendable out, TupleExpr expr) throws IOException {
+        if (expr instanceof Filter) {
+            // the filter applies to the whole group, so it must be the only content of the group.
+            Filter filter = (Filter) expr;
+            appendGroupContent(out, filter.getArg());
+            out.append("FILTER (");
+            appendValueExpr(out, filter.getCondition());
+            out.append(") ");
+        }
+        else if (expr instanceof Join) {
+            appendJoinArg(out, ((Join) expr).getLeftArg());
+            appendJoinArg(out, ((Join) expr).getRightArg());
+        }
+        else {
+            appendJoinArg(out, expr);
+        }
+    }
+
+    private static void appendJoinArg(Appendable out, TupleExpr expr) throws IOException {
+        if (expr instanceof StatementPattern) {
+            appendStatementPattern(out, (StatementPattern) expr);
+        }
+        else if (expr instanceof Join) {
+            appendJoinArg(out, ((Join) expr).getLeftArg());
+            appendJoinArg(out, ((Join) expr).getRightArg());
+        }
+        else if (expr instanceof Union) {
+            appendUnionArg(out, ((Union) expr).getLeftArg());
+            out.append("UNION ");
+            appendUnionArg(out, ((Union) expr).getRightArg());
+        }
+        else if (expr instanceof Filter) {
+            appendGroup(out, expr);
+            out.append(' ');
+        }
+        else if (expr instanceof Slice || expr instanceof Distinct || expr instanceof Reduced ||
+                 expr instanceof Projection || expr instanceof Order) {
+            out.append("{ ");
+            appendQuery(out, expr);
+            out.append(" } ");
+        }
+        else if (expr instanceof QueryRoot) {
+            appendJoinArg(out, ((QueryRoot) expr).getArg());
+        }
+        else if (!(expr instanceof SingletonSet)) {
+            throw new IllegalArgumentException("Unsupported expression " + expr.getSignature());
+        }
+    }
+
+    private static void appendUnionArg(Appendable out, TupleExpr expr) throws IOException {
+        if (expr instanceof Union) {
+            appendJoinArg(out, expr);
+        } else {
+            appendGroup(out, expr);
+            out.append(' ');
+        }
+    }
+
+    private static void appendStatementPattern(Appendable out, StatementPattern pattern) throws IOException {
+        Var ctx = pattern.getContextVar();
+        boolean graph = ctx != null && pattern.getScope() == StatementPattern.Scope.NAMED_CONTEXTS;
+
+        if (graph) {
+            out.append("GRAPH ");
+            appendVarOrValue(out, ctx);
+            out.append(" { ");
+        }
+
+        appendVarOrValue(out, pattern.getSubjectVar());
+        out.append(' ');
+        appendVarOrValue(out, pattern.getPredicateVar());
+        out.append(' ');
+        appendVarOrValue(out, pattern.getObjectVar());
+        out.append(" . ");
+
+        if (graph)
+            out.append("} ");
+    }
+
+    private static void appendValueExpr(Appendable out, ValueExpr expr) throws IOException {
+        if (expr instanceof Var) {
+            appendVarOrValue(out, (Var) expr);
+        }
+        else if (expr instanceof ValueConstant) {
+            appendValue(out, ((ValueConstant) expr).getValue());
+        }
+        else if (expr instanceof Compare) {
+            Compare c = (Compare) expr;
+            appendBinary(out, c.getLeftArg(), c.getOperator().getSymbol(), c.getRightArg());
+        }
+        else if (expr instanceof MathExpr) {
+            MathExpr m = (MathExpr) expr;
+            appendBinary(out, m.getLeftArg(), m.getOperator().getSymbol(), m.getRightArg());
+        }
+        else if (expr instanceof And) {
+            appendBinary(out, ((And) expr).getLeftArg(), "&&", ((And) expr).getRightArg());
+        }
+        else if (expr instanceof Or) {
+            appendBinary(out, ((Or) expr).getLeftArg(), "||", ((Or) expr).getRightArg());
+        }
+        else if (expr instanceof Not) {
+            out.append("!(");
+            appendValueExpr(out, ((Not) expr).getArg());
+            out.append(')');
+        }
+        else if (expr instanceof SameTerm) {
+            appendFunction(out, "sameTerm", ((SameTerm) expr).getLeftArg(), ((SameTerm) expr).getRightArg());
+        }
+        else if (expr instanceof LangMatches) {
+            appendFunction(out, "langMatches", ((LangMatches) expr).getLeftArg(), ((LangMatches) expr).getRightArg());
+        }
+        else if (expr instanceof Bound) {
+            appendFunction(out, "bound", ((Bound) expr).getArg());
+        }
+        else if (expr instanceof IsURI) {
+            appendFunction(out, "isIRI", ((IsURI) expr).getArg());
+        }
+        else if (expr instanceof IsLiteral) {
+            appendFunction(out, "isLiteral", ((IsLiteral) expr).getArg());
+        }
+        else if (expr instanceof IsBNode) {
+            appendFunction(out, "isBlank", ((IsBNode) expr).getArg());
+        }
+        else if (expr instanceof IsNumeric) {
+            appendFunction(out, "isNumeric", ((IsNumeric) expr).getArg());
+        }
+        else if (expr instanceof Str) {
+            appendFunction(out, "str", ((Str) expr).getArg());
+        }
+        else if (expr instanceof Lang) {
+            appendFunction(out, "lang", ((Lang) expr).getArg());
+        }
+        else if (expr instanceof Datatype) {
+            appendFunction(out, "datatype", ((Datatype) expr).getArg());
+        }
+        else if (expr instanceof Regex) {
+            Regex r = (Regex) expr;
+            if (r.getFlagsArg() != null)
+                appendFunction(out, "regex", r.getArg(), r.getPatternArg(), r.getFlagsArg());
+            else
+                appendFunction(out, "regex", r.getArg(), r.getPatternArg());
+        }
+        else if (expr instanceof FunctionCall) {
+            FunctionCall f = (FunctionCall) expr;
+            List<ValueExpr> args = f.getArgs();
+            out.append('<').append(f.getURI()).append(">(");
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0)
+                    out.append(", ");
+                appendValueExpr(out, args.get(i));
+            }
+            out.append(')');
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported expression " + expr.getSignature());
+        }
+    }
+
+    private static void appendBinary(Appendable out, ValueExpr left, String op, ValueExpr right)
+            throws IOException
+    {
+        out.append('(');
+        appendValueExpr(out, left);
+        out.append(' ').append(op).append(' ');
+        appendValueExpr(out, right);
+        out.append(')');
+    }
+
+    private static void appendFunction(Appendable out, String name, ValueExpr... args) throws IOException {
+        out.append(name).append('(');
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0)
+                out.append(", ");
+            appendValueExpr(out, args[i]);
+        }
+        out.append(')');
+    }
+
+    public static StringBuilder appendValue(StringBuilder sb, Value value) {
+        try {
+            appendValue((Appendable) sb, value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb;
+    }
+
+    private static void appendVarOrValue(Appendable out, Var var) throws IOException {
+        if (var.hasValue())
+            appendValue(out, var.getValue());
+        else
+            appendVar(out, var.getName());
+    }
+
+    /**
+     * Writes a variable. Names that are not valid SPARQL variable names (e.g. the names of
+     * anonymous variables) are escaped so that distinct names stay distinct: the name is
+     * prefixed with "_sg" and every character other than a letter or a digit
+     * is written as an underscore followed by its four hex digits. Valid names that start with
+     * the prefix are escaped as well, so that they cannot be mistaken for an escaped name.
+     */
+    private static void appendVar(Appendable out, String name) throws IOException {
+        out.append('?');
+
+        if (!needsEscaping(name)) {
+            out.append(name);
+            return;
+        }
+
+        out.append(ESCAPE_PREFIX);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (isLetterOrDigit(c)) {
+                out.append(c);
+            } else {
+                out.append('_');
+                String hex = Integer.toHexString(c);
+                for (int j = hex.length(); j < 4; j++)
+                    out.append('0');
+                out.append(hex);
+            }
+        }
+    }
+
+    private static boolean needsEscaping(String name) {
+        if (name.isEmpty() || name.startsWith(ESCAPE_PREFIX))
+            return true;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!isLetterOrDigit(c) && c != '_')
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    public static Appendable appendValue(Appendable out, Value value) throws IOException {
+        if (value instanceof URI)
+            return appendURI(out, (URI) value);
+        else if (value instanceof Literal)
+            return appendLiteral(out, (Literal) value);
+
+        throw new IllegalArgumentException("Value cannot be written in a query: " + value);
+    }
+
+    public static Appendable appendURI(Appendable out, URI uri) throws IOException {
+        return out.append('<').append(uri.stringValue()).append('>');
+    }
+
+    /**
+     * Writes a literal as a double-quoted string followed by its language tag or datatype.
+     */
+    public static Appendable appendLiteral(Appendable out, Literal lit) throws IOException {
+        out.append('"');
+        appendEscaped(out, lit.getLabel());
+        out.append('"');
+
+        if (lit.getLanguage() != null)
+            out.append('@').append(lit.getLanguage());
+        else if (lit.getDatatype() != null)
+            appendURI(out.append("^^"), lit.getDatatype());
+
+        return out;
+    }
+
+    /**
+     * Writes a string escaping the characters that are not allowed in a double-quoted SPARQL string.
+     */
+    public static Appendable appendEscaped(Appendable out, String label) throws IOException {
+        int start = 0;
+        for (int i = 0; i < label.length(); i++) {
+            String escape;
+            switch (label.charAt(i)) {
+                case '\\': escape = "\\\\"; break;
+                case '"':  escape = "\\\""; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                case '\b': escape = "\\b"; break;
+                case '\f': escape = "\\f"; break;
+                default:   continue;
+            }
+            out.append(label, start, i).append(escape);
+            start = i + 1;
+        }
+        return out.append(label, start, label.length());
+    }
+}
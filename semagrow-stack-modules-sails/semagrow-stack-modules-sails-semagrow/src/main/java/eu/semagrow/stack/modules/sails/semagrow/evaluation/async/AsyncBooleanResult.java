@@ -0,0 +1,142 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryRejectedException;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import org.openrdf.model.URI;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.resultio.BooleanQueryResultFormat;
+import org.openrdf.query.resultio.QueryResultIO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The answer of an ASK query sent through an {@link AsyncHttpClient}.
+ * The answer is small, so the response is collected and parsed when it is complete.
+ */
+public class AsyncBooleanResult implements AsyncHttpClient.ResponseHandler {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final URI endpoint;
+
+    private final EndpointHealthRegistry health;
+
+    private final long start = System.currentTimeMillis();
+
+    private int status;
+
+    private String mimeType;
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    // guarded by this
+    private Boolean answer;
+    private QueryEvaluationException failure;
+    private AsyncHttpClient.Exchange exchange;
+
+    public AsyncBooleanResult(URI endpoint, EndpointHealthRegistry health) {
+        this.endpoint = endpoint;
+        this.health = health;
+    }
+
+    public void send(AsyncHttpClient client, java.net.URI url, Map<String, String> headers,
+                     String contentType, byte[] content) throws IOException
+    {
+        synchronized (this) {
+            exchange = client.post(url, headers, contentType, content, this);
+        }
+    }
+
+    /**
+     * Waits for the answer.
+     */
+    public boolean get() throws QueryEvaluationException {
+        synchronized (this) {
+            try {
+                while (answer == null && failure == null)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (exchange != null)
+                    exchange.cancel();
+                throw new QueryInterruptedException(e);
+            }
+
+            if (failure != null)
+                throw failure;
+            return answer;
+        }
+    }
+
+    @Override
+    public void onHeaders(int status, Map<String, String> headers) {
+        this.status = status;
+        mimeType = headers.get("content-type");
+        if (mimeType != null) {
+            int semicolon = mimeType.indexOf(';');
+            if (semicolon >= 0)
+                mimeType = mimeType.substring(0, semicolon);
+            mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    @Override
+    public boolean onContent(ByteBuffer content) {
+        body.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        return true;
+    }
+
+    @Override
+    public void onComplete() {
+        if (status != 200) {
+            if (status >= 500)
+                recordFailure();
+            String message = new String(body.toByteArray(), UTF8).trim();
+            complete(null, QueryRejectedException.isRejection(status)
+                    ? new QueryRejectedException(endpoint, status, message)
+                    : new QueryEvaluationException("Endpoint " + endpoint + " returned status " + status + ": " + message));
+            return;
+        }
+
+        try {
+            BooleanQueryResultFormat format = (mimeType == null) ? null : QueryResultIO.getBooleanParserFormatForMIMEType(mimeType);
+            if (format == null)
+                throw new QueryEvaluationException("Unsupported result format " + mimeType + " from endpoint " + endpoint);
+
+            boolean b = QueryResultIO.parse(new ByteArrayInputStream(body.toByteArray()), format);
+
+            if (health != null)
+                health.recordSuccess(endpoint, System.currentTimeMillis() - start);
+
+            complete(b, null);
+        } catch (QueryEvaluationException e) {
+            complete(null, e);
+        } catch (Exception e) {
+            complete(null, new QueryEvaluationException(e));
+        }
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+        recordFailure();
+        complete(null, new QueryEvaluationException("Request to " + endpoint + " failed", t));
+    }
+
+    private void recordFailure() {
+        if (health != null)
+            health.recordFailure(endpoint, System.currentTimeMillis() - start);
+    }
+
+    private synchronized void complete(Boolean answer, QueryEvaluationException failure) {
+        this.answer = answer;
+        this.failure = failure;
+        notifyAll();
+    }
+}
@@ -0,0 +1,419 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal non-blocking HTTP/1.1 client.
+ * <p>
+ * Every exchange is driven by completion handlers on a small, fixed group of
+ * threads, so no thread waits for a remote endpoint while a request is in flight.
+ * The response body is pushed to a {@link ResponseHandler} as it arrives; the
+ * handler can pause the exchange when it cannot take more data and resume it later.
+ * Only plain http is supported and every exchange uses its own connection.
+ */
+public class AsyncHttpClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncHttpClient.class);
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public static final long DEFAULT_READ_TIMEOUT = 60000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final AsynchronousChannelGroup group;
+
+    private volatile long readTimeout = DEFAULT_READ_TIMEOUT;
+
+    public AsyncHttpClient() throws IOException {
+        this(DEFAULT_THREADS);
+    }
+
+    public AsyncHttpClient(int threads) throws IOException {
+        final AtomicInteger count = new AtomicInteger(0);
+        group = AsynchronousChannelGroup.withFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "semagrow-nio-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public long getReadTimeout() { return readTimeout; }
+
+    /**
+     * Sets the time in milliseconds an exchange may wait for data before it fails.
+     */
+    public void setReadTimeout(long readTimeout) { this.readTimeout = readTimeout; }
+
+    /**
+     * @return true if the client can send requests to the given URL.
+     */
+    public static boolean supports(URI url) {
+        return "http".equalsIgnoreCase(url.getScheme()) && url.getHost() != null;
+    }
+
+    /**
+     * Starts a POST request. The method returns as soon as the connection is initiated;
+     * the outcome is reported to the handler.
+     */
+    public Exchange post(URI url, Map<String, String> headers, String contentType, byte[] body,
+                         ResponseHandler handler) throws IOException
+    {
+        if (!supports(url))
+            throw new IOException("Unsupported URL " + url);
+
+        StringBuilder request = new StringBuilder();
+        String path = url.getRawPath();
+        if (path == null || path.isEmpty())
+            path = "/";
+        if (url.getRawQuery() != null)
+            path = path + "?" + url.getRawQuery();
+
+        int port = (url.getPort() > 0) ? url.getPort() : 80;
+
+        request.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() > 0)
+            request.append(':').append(port);
+        request.append("\r\n");
+        request.append("Connection: close\r\n");
+        request.append("Content-Type: ").append(contentType).append("\r\n");
+        request.append("Content-Length: ").append(body.length).append("\r\n");
+        for (Map.Entry<String, String> h : headers.entrySet())
+            request.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        request.append("\r\n");
+
+        byte[] head = request.toString().getBytes(ASCII);
+        ByteBuffer out = ByteBuffer.allocate(head.length + body.length);
+        out.put(head).put(body).flip();
+
+        Exchange exchange = new Exchange(AsynchronousSocketChannel.open(group), handler);
+        exchange.start(new InetSocketAddress(url.getHost(), port), out);
+        return exchange;
+    }
+
+    public void shutDown() {
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            logger.warn("Failed to shut down the HTTP client", e);
+        }
+    }
+
+    /**
+     * Receives the response of an exchange. All the methods are called
+     * by the threads of the client, one at a time.
+     */
+    public interface ResponseHandler {
+
+        /**
+         * @param headers the response headers, with lower case names
+         */
+        void onHeaders(int status, Map<String, String> headers);
+
+        /**
+         * @return true to keep reading, false to pause until {@link Exchange#resume()} is called
+         */
+        boolean onContent(ByteBuffer content);
+
+        void onComplete();
+
+        /**
+         * Not called if the exchange was cancelled.
+         */
+        void onFailure(Throwable t);
+    }
+
+    private enum Phase { HEADERS, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE, DONE }
+
+    /**
+     * A request and its response.
+     */
+    public class Exchange {
+
+        private final AsynchronousSocketChannel channel;
+
+        private final ResponseHandler handler;
+
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // accessed only by the thread that runs the current completion handler
+        private Phase phase = Phase.HEADERS;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private long remaining;
+
+        // guarded by this
+        private boolean paused = false;
+        private boolean resumePending = false;
+
+        private volatile boolean cancelled = false;
+
+        Exchange(AsynchronousSocketChannel channel, ResponseHandler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        void start(InetSocketAddress address, final ByteBuffer request) {
+            channel.connect(address, null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void result, Void attachment) { write(request); }
+
+                @Override
+                public void failed(Throwable t, Void attachment) { fail(t); }
+            });
+        }
+
+        private void write(final ByteBuffer request) {
+            channel.write(request, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer written, Void attachment) {
+                    if (request.hasRemaining())
+                        write(request);
+                    else
+                        read();
+                }
+
+                @Override
+                public void failed(Throwable t, Void attachment) { fail(t); }
+            });
+        }
+
+        private void read() {
+            if (cancelled)
+                return;
+
+            in.clear();
+            channel.read(in, readTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer n, Void attachment) {
+                    if (cancelled)
+                        return;
+                    try {
+                        in.flip();
+                        boolean more = (n < 0) ? endOfStream() : process(in);
+                        if (phase == Phase.DONE)
+                            complete();
+                        else
+                            readMore(more);
+                    } catch (Exception e) {
+                        fail(e);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable t, Void attachment) { fail(t); }
+            });
+        }
+
+        private void readMore(boolean more) {
+            synchronized (this) {
+                if (!more) {
+                    if (!resumePending) {
+                        paused = true;
+                        return;
+                    }
+                    resumePending = false;
+                }
+            }
+            read();
+        }
+
+        /**
+         * Continues an exchange paused by its handler.
+         */
+        public void resume() {
+            synchronized (this) {
+                if (!paused) {
+                    resumePending = true;
+                    return;
+                }
+                paused = false;
+            }
+            read();
+        }
+
+        /**
+         * Aborts the exchange and closes its connection.
+         */
+        public void cancel() {
+            cancelled = true;
+            close();
+        }
+
+        public boolean isCancelled() { return cancelled; }
+
+        private boolean endOfStream() throws IOException {
+            if (phase == Phase.UNTIL_CLOSE) {
+                phase = Phase.DONE;
+                return true;
+            }
+            throw new IOException("Connection closed before the end of the response");
+        }
+
+        /**
+         * Consumes the bytes that have been read.
+         * @return false if the handler asked to pause
+         */
+        private boolean process(ByteBuffer buf) throws IOException {
+            boolean more = true;
+
+            while (buf.hasRemaining() && phase != Phase.DONE) {
+                switch (phase) {
+                    case HEADERS:
+                        if (readLine(buf) && headersComplete())
+                            startBody();
+                        break;
+                    case LENGTH:
+                    case CHUNK_DATA:
+                    case UNTIL_CLOSE: {
+                        int n = buf.remaining();
+                        if (phase != Phase.UNTIL_CLOSE)
+                            n = (int) Math.min(n, remaining);
+                        ByteBuffer content = buf.slice();
+                        content.limit(n);
+                        buf.position(buf.position() + n);
+                        more = handler.onContent(content) && more;
+                        if (phase != Phase.UNTIL_CLOSE) {
+                            remaining -= n;
+                            if (remaining == 0)
+                                phase = (phase == Phase.LENGTH) ? Phase.DONE : Phase.CHUNK_END;
+                        }
+                        break;
+                    }
+                    case CHUNK_SIZE:
+                        if (readLine(buf)) {
+                            String size = takeLine();
+                            int ext = size.indexOf(';');
+                            if (ext >= 0)
+                                size = size.substring(0, ext);
+                            remaining = Long.parseLong(size.trim(), 16);
+                            phase = (remaining == 0) ? Phase.TRAILER : Phase.CHUNK_DATA;
+                        }
+                        break;
+                    case CHUNK_END:
+                        if (readLine(buf)) {
+                            takeLine();
+                            phase = Phase.CHUNK_SIZE;
+                        }
+                        break;
+                    case TRAILER:
+                        if (readLine(buf) && takeLine().isEmpty())
+                            phase = Phase.DONE;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return more;
+        }
+
+        // the status line and the headers, one per line
+        private final StringBuilder head = new StringBuilder();
+        private int status;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private boolean headersComplete() {
+            String l = takeLine();
+            if (!l.isEmpty()) {
+                head.append(l).append('\n');
+                return false;
+            }
+            if (head.length() == 0)
+                return false;   // tolerate empty lines before the status line
+
+            String[] lines = head.toString().split("\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            status = Integer.parseInt(statusLine[1]);
+
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0)
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                                lines[i].substring(colon + 1).trim());
+            }
+            return true;
+        }
+
+        private void startBody() {
+            handler.onHeaders(status, headers);
+
+            String encoding = headers.get("transfer-encoding");
+            String length = headers.get("content-length");
+
+            if (encoding != null && encoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+                phase = Phase.CHUNK_SIZE;
+            } else if (length != null) {
+                remaining = Long.parseLong(length);
+                phase = (remaining == 0) ? Phase.DONE : Phase.LENGTH;
+            } else if (status == 204 || status == 304) {
+                phase = Phase.DONE;
+            } else {
+                phase = Phase.UNTIL_CLOSE;
+            }
+        }
+
+        /**
+         * Accumulates bytes up to the end of a line.
+         * @return true if a complete line is available
+         */
+        private boolean readLine(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n')
+                    return true;
+                if (b != '\r')
+                    line.write(b);
+                if (line.size() > BUFFER_SIZE)
+                    throw new IOException("Line too long in the HTTP response");
+            }
+            return false;
+        }
+
+        private String takeLine() {
+            String l = new String(line.toByteArray(), ASCII);
+            line.reset();
+            return l;
+        }
+
+        private void complete() {
+            close();
+            handler.onComplete();
+        }
+
+        private void fail(Throwable t) {
+            close();
+            if (!cancelled)
+                handler.onFailure(t);
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close connection", e);
+            }
+        }
+    }
+}
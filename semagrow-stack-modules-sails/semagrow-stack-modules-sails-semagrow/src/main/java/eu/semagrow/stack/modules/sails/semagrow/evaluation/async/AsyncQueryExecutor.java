@@ -0,0 +1,200 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryExecutorImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.SPARQLSerializer;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointUnavailableException;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.BNode;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.repository.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link QueryExecutorImpl} that sends its requests through an {@link AsyncHttpClient}.
+ * <p>
+ * A request returns as soon as it is sent, with a result that is filled by the
+ * threads of the client while the response arrives. No thread is held while a
+ * request waits for its endpoint, so thousands of subqueries can be in flight at
+ * once; the only threads that block are the consumers of results whose rows have
+ * not arrived yet. Query building, caching, coalescing, health tracking and
+ * cancellation are those of {@link QueryExecutorImpl}; only the transport differs.
+ * Endpoints that are not plain http are served by the blocking transport.
+ * <p>
+ * The format of the results of every endpoint is negotiated by its {@link ResultFormatSelector},
+ * which is kept by the {@link EndpointRegistry} so that what is learned survives across queries.
+ */
+public class AsyncQueryExecutor extends QueryExecutorImpl {
+
+    private final Logger logger = LoggerFactory.getLogger(AsyncQueryExecutor.class);
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private static final Map<String, String> BOOLEAN_HEADERS;
+
+    static {
+        Map<String, String> bool = new HashMap<String, String>();
+        bool.put("Accept", "application/sparql-results+xml, application/sparql-results+json;q=0.9, text/boolean;q=0.8");
+        BOOLEAN_HEADERS = Collections.unmodifiableMap(bool);
+    }
+
+    private final AsyncHttpClient client;
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private int bufferCapacity = AsyncTupleResult.DEFAULT_CAPACITY;
+
+    public AsyncQueryExecutor(EndpointRegistry endpointRegistry, AsyncHttpClient client) {
+        super(endpointRegistry);
+        this.client = client;
+    }
+
+    public AsyncHttpClient getClient() { return client; }
+
+    public int getBufferCapacity() { return bufferCapacity; }
+
+    /**
+     * Sets the number of rows of a result that are buffered before its response is paused.
+     */
+    public void setBufferCapacity(int capacity) { this.bufferCapacity = capacity; }
+
+    @Override
+    protected CloseableIteration<BindingSet, QueryEvaluationException>
+        sendTupleQueryInternal(URI endpoint, String sparqlQuery, BindingSet bindings)
+            throws QueryEvaluationException, MalformedQueryException, RepositoryException {
+
+        java.net.URI url = getURL(endpoint);
+
+        if (url == null)
+            return super.sendTupleQueryInternal(endpoint, sparqlQuery, bindings);
+
+        EndpointHealthRegistry health = getHealthRegistry();
+
+        if (health != null && !health.allowRequest(endpoint))
+            throw new EndpointUnavailableException(endpoint);
+
+        String query = bindQuery(sparqlQuery, bindings);
+
+        logger.debug("Sending to " + endpoint.stringValue() + " query " + query.replace('\n', ' '));
+
+        ResultFormatSelector selector = getEndpointRegistry().getResultFormatSelector(endpoint);
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", selector.getAcceptHeader());
+        if (selector.isCompressionEnabled())
+            headers.put("Accept-Encoding", "gzip");
+
+        // the result times the request from its creation, after the wait for a slot
+        RequestScheduler.Slot slot = acquireSlot(endpoint);
+        AsyncTupleResult result = new AsyncTupleResult(endpoint, health, vf, selector, bufferCapacity);
+        result.setSlot(slot);
+        try {
+            result.send(client, url, headers, FORM_CONTENT_TYPE, encodeForm(query));
+        } catch (IOException e) {
+            result.close();
+            if (health != null)
+                health.recordFailure(endpoint, 0);
+            throw new QueryEvaluationException("Request to " + endpoint + " failed", e);
+        } catch (QueryEvaluationException | RuntimeException e) {
+            // closing the result gives its slot back
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean
+        sendBooleanQueryInternal(URI endpoint, String sparqlQuery, BindingSet bindings)
+            throws QueryEvaluationException, MalformedQueryException, RepositoryException {
+
+        java.net.URI url = getURL(endpoint);
+
+        if (url == null)
+            return super.sendBooleanQueryInternal(endpoint, sparqlQuery, bindings);
+
+        EndpointHealthRegistry health = getHealthRegistry();
+
+        if (health != null && !health.allowRequest(endpoint))
+            throw new EndpointUnavailableException(endpoint);
+
+        String query = bindQuery(sparqlQuery, bindings);
+
+        logger.debug("Sending to " + endpoint.stringValue() + " query " + query.replace('\n', ' '));
+
+        RequestScheduler.Slot slot = acquireSlot(endpoint);
+        AsyncBooleanResult result = new AsyncBooleanResult(endpoint, health);
+        try {
+            result.send(client, url, BOOLEAN_HEADERS, FORM_CONTENT_TYPE, encodeForm(query));
+            return result.get();
+        } catch (IOException e) {
+            if (health != null)
+                health.recordFailure(endpoint, 0);
+            throw new QueryEvaluationException("Request to " + endpoint + " failed", e);
+        } finally {
+            releaseSlot(slot);
+        }
+    }
+
+    private static java.net.URI getURL(URI endpoint) {
+        try {
+            java.net.URI url = new java.net.URI(endpoint.stringValue());
+            return AsyncHttpClient.supports(url) ? url : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encodeForm(String query) throws QueryEvaluationException {
+        try {
+            return ("query=" + URLEncoder.encode(query, "UTF-8")).getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new QueryEvaluationException(e);
+        }
+    }
+
+    /**
+     * Substitutes the bound variables in the graph pattern of the query with their values,
+     * the way the blocking transport does. Blank nodes cannot be sent, so they are left
+     * out and are joined back in by the caller.
+     */
+    static String bindQuery(String sparqlQuery, BindingSet bindings) {
+        if (bindings.size() == 0)
+            return sparqlQuery;
+
+        int brace = sparqlQuery.indexOf('{');
+        if (brace < 0)
+            return sparqlQuery;
+
+        String select = sparqlQuery.substring(0, brace);
+        String where = sparqlQuery.substring(brace);
+
+        for (Binding b : bindings) {
+            if (b.getValue() instanceof BNode)
+                continue;
+
+            String value = SPARQLSerializer.appendValue(new StringBuilder(), b.getValue()).toString();
+            where = where.replaceAll("[\\?\\$]" + Pattern.quote(b.getName()) + "(?=\\W)", Matcher.quoteReplacement(value));
+        }
+        return select + where;
+    }
+}
@@ -0,0 +1,378 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryRejectedException;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.health.EndpointHealthRegistry;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.RequestScheduler;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.TupleQueryResultHandlerBase;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.resultio.QueryResultIO;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The result of a SELECT query sent through an {@link AsyncHttpClient}.
+ * <p>
+ * The rows are parsed by the threads of the client as the response arrives and
+ * are handed to the consumer through a bounded buffer. When the buffer is full
+ * the exchange is paused, and it is resumed once the consumer has drained half
+ * of the buffer, so a slow consumer never holds a thread of the client.
+ * Results in the TSV format are parsed incrementally; other formats are
+ * collected and parsed when the response is complete, SPARQL/JSON by a
+ * {@link JSONResultParser} that reads the collected bytes in place. Gzip encoded responses
+ * are decoded as they arrive. The format of the response, its size and the time
+ * spent parsing it are reported to the {@link ResultFormatSelector} of the endpoint.
+ */
+public class AsyncTupleResult extends LookAheadIteration<BindingSet, QueryEvaluationException>
+        implements AsyncHttpClient.ResponseHandler
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final URI endpoint;
+
+    private final EndpointHealthRegistry health;
+
+    private final ValueFactory vf;
+
+    private final ResultFormatSelector selector;
+
+    private final int capacity;
+
+    private final long start = System.currentTimeMillis();
+
+    private volatile RequestScheduler.Slot slot;
+
+    // guarded by this
+    private final ArrayDeque<BindingSet> rows = new ArrayDeque<BindingSet>();
+    private boolean done = false;
+    private boolean paused = false;
+    private QueryEvaluationException failure;
+    private AsyncHttpClient.Exchange exchange;
+
+    // accessed by the threads of the client, one at a time
+    private int status;
+    private TSVResultParser tsvParser;
+    private TupleQueryResultFormat format;
+    private ResponseBody body;
+    private GzipDecoder decoder;
+    private long received = 0;
+    private long rowCount = 0;
+    private long parseTime = 0;
+    private final List<BindingSet> parsed = new ArrayList<BindingSet>();
+
+    public AsyncTupleResult(URI endpoint, EndpointHealthRegistry health, ValueFactory vf, int capacity) {
+        this(endpoint, health, vf, null, capacity);
+    }
+
+    public AsyncTupleResult(URI endpoint, EndpointHealthRegistry health, ValueFactory vf,
+                            ResultFormatSelector selector, int capacity)
+    {
+        this.endpoint = endpoint;
+        this.health = health;
+        this.vf = vf;
+        this.selector = selector;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the slot of the scheduler that the request holds until its response starts.
+     * Must be called before the request is sent.
+     */
+    public void setSlot(RequestScheduler.Slot slot) { this.slot = slot; }
+
+    private void releaseSlot() {
+        RequestScheduler.Slot s = slot;
+        if (s != null) {
+            slot = null;
+            s.release();
+        }
+    }
+
+    /**
+     * Starts the exchange that produces this result.
+     */
+    public void send(AsyncHttpClient client, java.net.URI url, Map<String, String> headers,
+                     String contentType, byte[] content) throws IOException
+    {
+        // the handler methods wait until the exchange is known, so that it can always be paused and closed
+        synchronized (this) {
+            exchange = client.post(url, headers, contentType, content, this);
+        }
+    }
+
+    @Override
+    public void onHeaders(int status, Map<String, String> headers) {
+        releaseSlot();
+        this.status = status;
+
+        if ("gzip".equalsIgnoreCase(headers.get("content-encoding")))
+            decoder = new GzipDecoder();
+
+        if (status != 200) {
+            body = new ResponseBody();
+            return;
+        }
+
+        if (health != null)
+            health.recordSuccess(endpoint, System.currentTimeMillis() - start);
+
+        String mimeType = headers.get("content-type");
+        if (mimeType != null) {
+            int semicolon = mimeType.indexOf(';');
+            if (semicolon >= 0)
+                mimeType = mimeType.substring(0, semicolon);
+            mimeType = mimeType.trim().toLowerCase(Locale.ENGLISH);
+        }
+
+        if (mimeType == null || mimeType.equals(TSVResultParser.MIME_TYPE)) {
+            tsvParser = new TSVResultParser(vf);
+            format = TupleQueryResultFormat.TSV;
+        } else {
+            format = QueryResultIO.getParserFormatForMIMEType(mimeType);
+            body = new ResponseBody();
+        }
+
+        if (format != null && selector != null)
+            selector.recordFormat(format);
+    }
+
+    @Override
+    public boolean onContent(ByteBuffer content) {
+        received += content.remaining();
+
+        if (decoder != null) {
+            try {
+                content = decoder.decode(content);
+            } catch (IOException e) {
+                if (selector != null)
+                    selector.disableCompression();
+                cancel(new QueryEvaluationException("Invalid response from endpoint " + endpoint, e));
+                return false;
+            }
+        }
+
+        if (tsvParser == null) {
+            if (format != null || body.size() < MAX_ERROR_LENGTH)
+                body.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            return true;
+        }
+
+        long parseStart = System.nanoTime();
+        try {
+            tsvParser.parse(content, parsed);
+        } catch (OpenRDFException e) {
+            if (selector != null)
+                selector.recordUnsupported(format);
+            cancel(e instanceof QueryEvaluationException ? (QueryEvaluationException) e : new QueryEvaluationException(e));
+            return false;
+        } finally {
+            parseTime += System.nanoTime() - parseStart;
+        }
+        rowCount += parsed.size();
+        return deliver();
+    }
+
+    @Override
+    public void onComplete() {
+        if (status != 200) {
+            String message = new String(body.toByteArray(), UTF8).trim();
+            QueryEvaluationException e = QueryRejectedException.isRejection(status)
+                    ? new QueryRejectedException(endpoint, status, message)
+                    : new QueryEvaluationException(
+                            "Endpoint " + endpoint + " returned status " + status + (message.isEmpty() ? "" : ": " + message));
+            if (status >= 500)
+                recordFailure();
+            fail(e);
+            return;
+        }
+
+        try {
+            if (decoder != null)
+                decoder.finish();
+        } catch (IOException e) {
+            if (selector != null)
+                selector.disableCompression();
+            fail(new QueryEvaluationException("Invalid response from endpoint " + endpoint, e));
+            return;
+        }
+
+        long parseStart = System.nanoTime();
+        try {
+            if (tsvParser != null) {
+                int before = parsed.size();
+                tsvParser.finish(parsed);
+                rowCount += parsed.size() - before;
+            } else if (TupleQueryResultFormat.JSON.equals(format)) {
+                JSONResultParser jsonParser = new JSONResultParser(body.buffer(), 0, body.size(), vf);
+                BindingSet row;
+                while ((row = jsonParser.next()) != null)
+                    parsed.add(row);
+                body = null;
+                rowCount = parsed.size();
+            } else if (format != null) {
+                QueryResultIO.parse(new ByteArrayInputStream(body.buffer(), 0, body.size()), format, new TupleQueryResultHandlerBase() {
+                    @Override
+                    public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+                        parsed.add(bindingSet);
+                    }
+                }, vf);
+                body = null;
+                rowCount = parsed.size();
+            } else {
+                throw new QueryEvaluationException("Unsupported result format from endpoint " + endpoint);
+            }
+        } catch (Exception e) {
+            if (selector != null && format != null)
+                selector.recordUnsupported(format);
+            fail(e instanceof QueryEvaluationException ? (QueryEvaluationException) e : new QueryEvaluationException(e));
+            return;
+        } finally {
+            parseTime += System.nanoTime() - parseStart;
+        }
+
+        if (selector != null)
+            selector.recordResponse(format, received, rowCount, parseTime);
+
+        // the exchange is over, so the buffer may grow past its capacity
+        synchronized (this) {
+            if (!done)
+                rows.addAll(parsed);
+            parsed.clear();
+            done = true;
+            paused = false;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+        releaseSlot();
+        recordFailure();
+        fail(new QueryEvaluationException("Request to " + endpoint + " failed", t));
+    }
+
+    private void recordFailure() {
+        if (health != null)
+            health.recordFailure(endpoint, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Hands the parsed rows to the consumer.
+     * @return false if the buffer is full and the exchange should pause
+     */
+    private synchronized boolean deliver() {
+        if (!parsed.isEmpty()) {
+            if (!done)
+                rows.addAll(parsed);
+            parsed.clear();
+            notifyAll();
+        }
+
+        if (rows.size() >= capacity && !done) {
+            paused = true;
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void fail(QueryEvaluationException e) {
+        if (!done && failure == null)
+            failure = e;
+        notifyAll();
+    }
+
+    private void cancel(QueryEvaluationException e) {
+        fail(e);
+        AsyncHttpClient.Exchange ex;
+        synchronized (this) {
+            ex = exchange;
+        }
+        if (ex != null)
+            ex.cancel();
+    }
+
+    @Override
+    protected BindingSet getNextElement() throws QueryEvaluationException {
+        BindingSet next;
+        AsyncHttpClient.Exchange resume = null;
+
+        synchronized (this) {
+            while (rows.isEmpty() && !done && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new QueryInterruptedException(e);
+                }
+            }
+
+            if (failure != null)
+                throw failure;
+
+            next = rows.poll();
+
+            if (paused && rows.size() <= capacity / 2) {
+                paused = false;
+                resume = exchange;
+            }
+        }
+
+        if (resume != null)
+            resume.resume();
+
+        return next;
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        AsyncHttpClient.Exchange ex;
+
+        synchronized (this) {
+            done = true;
+            rows.clear();
+            ex = exchange;
+            notifyAll();
+        }
+
+        if (ex != null)
+            ex.cancel();
+
+        releaseSlot();
+        super.handleClose();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncTupleResult(" + endpoint + ")";
+    }
+
+    /**
+     * A response body whose bytes can be parsed without copying them.
+     */
+    private static class ResponseBody extends ByteArrayOutputStream {
+
+        public ResponseBody() { super(8192); }
+
+        public byte[] buffer() { return buf; }
+    }
+}
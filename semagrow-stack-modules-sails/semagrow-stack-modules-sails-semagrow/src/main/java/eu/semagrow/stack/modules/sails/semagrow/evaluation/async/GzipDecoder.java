@@ -0,0 +1,158 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip encoded response body as it arrives, a buffer at a time,
+ * without blocking for the rest of the body as a {@link java.util.zip.GZIPInputStream} would.
+ */
+public class GzipDecoder {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int TRAILER_LENGTH = 8;
+
+    private final Inflater inflater = new Inflater(true);
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] header = new byte[64];
+    private int headerLength = 0;
+    private boolean headerDone = false;
+
+    private final byte[] trailer = new byte[TRAILER_LENGTH];
+    private int trailerLength = 0;
+
+    private byte[] output = new byte[16 * 1024];
+
+    /**
+     * Decodes the next part of the body.
+     * @return the decoded bytes; valid until the next call
+     */
+    public ByteBuffer decode(ByteBuffer content) throws IOException {
+        byte[] in = content.array();
+        int offset = content.arrayOffset() + content.position();
+        int length = content.remaining();
+        content.position(content.limit());
+
+        if (!headerDone) {
+            int used = readHeader(in, offset, length);
+            offset += used;
+            length -= used;
+        }
+
+        int produced = 0;
+
+        if (headerDone && length > 0 && !inflater.finished()) {
+            inflater.setInput(in, offset, length);
+            try {
+                while (true) {
+                    if (produced == output.length)
+                        output = Arrays.copyOf(output, output.length * 2);
+                    int n = inflater.inflate(output, produced, output.length - produced);
+                    produced += n;
+                    if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                        break;
+                    if (inflater.needsDictionary())
+                        throw new IOException("Invalid gzip content: preset dictionary");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid gzip content", e);
+            }
+            crc.update(output, 0, produced);
+
+            // the rest of the input, if any, starts the trailer
+            offset += length - inflater.getRemaining();
+            length = inflater.getRemaining();
+        }
+
+        if (inflater.finished() && length > 0)
+            readTrailer(in, offset, length);
+
+        return ByteBuffer.wrap(output, 0, produced);
+    }
+
+    /**
+     * Checks that the body was complete and intact.
+     */
+    public void finish() throws IOException {
+        if (!inflater.finished() || trailerLength < TRAILER_LENGTH)
+            throw new IOException("Truncated gzip content");
+
+        long expected = (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8 | (trailer[2] & 0xffL) << 16 | (trailer[3] & 0xffL) << 24;
+        if (expected != crc.getValue())
+            throw new IOException("Corrupt gzip content: checksum mismatch");
+
+        inflater.end();
+    }
+
+    private int readHeader(byte[] in, int offset, int length) throws IOException {
+        int used = 0;
+
+        while (used < length && !headerDone) {
+            if (headerLength == header.length)
+                header = Arrays.copyOf(header, header.length * 2);
+            header[headerLength++] = in[offset + used++];
+
+            if (headerEnd() >= 0)
+                headerDone = true;
+        }
+        return used;
+    }
+
+    /**
+     * @return the length of the header if all of it has been read, else -1
+     */
+    private int headerEnd() throws IOException {
+        if (headerLength >= 2 && ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b))
+            throw new IOException("Not in gzip format");
+        if (headerLength >= 3 && header[2] != 8)
+            throw new IOException("Unsupported gzip compression method " + header[2]);
+        if (headerLength < 10)
+            return -1;
+
+        int flags = header[3] & 0xff;
+        int pos = 10;
+
+        if ((flags & FEXTRA) != 0) {
+            if (headerLength < pos + 2)
+                return -1;
+            pos += 2 + ((header[pos] & 0xff) | (header[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(pos);
+            if (pos < 0)
+                return -1;
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(pos);
+            if (pos < 0)
+                return -1;
+        }
+        if ((flags & FHCRC) != 0)
+            pos += 2;
+
+        return (headerLength >= pos) ? pos : -1;
+    }
+
+    private int skipZeroTerminated(int pos) {
+        for (int i = pos; i < headerLength; i++)
+            if (header[i] == 0)
+                return i + 1;
+        return -1;
+    }
+
+    private void readTrailer(byte[] in, int offset, int length) {
+        int n = Math.min(length, TRAILER_LENGTH - trailerLength);
+        System.arraycopy(in, offset, trailer, trailerLength, n);
+        trailerLength += n;
+    }
+}
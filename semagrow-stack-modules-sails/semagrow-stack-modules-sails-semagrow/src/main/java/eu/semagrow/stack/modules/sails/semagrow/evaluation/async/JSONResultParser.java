@@ -0,0 +1,286 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSchema;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.CompactBindingSet;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pull parser of SPARQL results in the JSON format, built on the streaming
+ * {@link JsonParser} of Jackson.
+ * <p>
+ * Rows are parsed one at a time on the thread that asks for them, straight from
+ * the bytes of the response, without building a tree and without a parser thread.
+ * All the rows of a result share the schema of its variables. URIs and datatypes
+ * repeat a lot within a result, so they are created once and reused.
+ */
+public class JSONResultParser {
+
+    public static final String MIME_TYPE = "application/sparql-results+json";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private static final int MAX_INTERNED = 16 * 1024;
+
+    private final JsonParser parser;
+
+    private final ValueFactory vf;
+
+    private final Map<String, URI> uris = new HashMap<String, URI>();
+
+    private List<String> bindingNames;
+
+    private BindingSchema schema;
+
+    private boolean started = false;
+
+    private boolean inResults = false;
+
+    private boolean inBindings = false;
+
+    private boolean finished = false;
+
+    public JSONResultParser(InputStream in, ValueFactory vf) throws QueryEvaluationException {
+        this.vf = vf;
+        try {
+            this.parser = FACTORY.createParser(in);
+        } catch (IOException e) {
+            throw new QueryEvaluationException(e);
+        }
+    }
+
+    public JSONResultParser(byte[] data, int offset, int length, ValueFactory vf) throws QueryEvaluationException {
+        this.vf = vf;
+        try {
+            this.parser = FACTORY.createParser(data, offset, length);
+        } catch (IOException e) {
+            throw new QueryEvaluationException(e);
+        }
+    }
+
+    /**
+     * Reads up to the first row, if needed, to find the variables of the result.
+     * @return the variables of the result, or an empty list if they are not known before the rows
+     */
+    public List<String> getBindingNames() throws QueryEvaluationException {
+        if (bindingNames == null && !inBindings && !finished) {
+            if (seekBindings())
+                inBindings = true;
+            else
+                finished = true;
+        }
+        return (bindingNames == null) ? Collections.<String>emptyList() : bindingNames;
+    }
+
+    /**
+     * @return the next row of the result, or null if there are no more rows.
+     */
+    public BindingSet next() throws QueryEvaluationException {
+        if (finished)
+            return null;
+
+        try {
+            if (!inBindings) {
+                if (!seekBindings()) {
+                    finished = true;
+                    return null;
+                }
+                inBindings = true;
+            }
+
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.END_ARRAY) {
+                // the rest of the document has nothing of interest
+                finished = true;
+                return null;
+            }
+
+            if (token != JsonToken.START_OBJECT)
+                throw error("Expected a row but found " + token);
+
+            return parseRow();
+        } catch (IOException e) {
+            throw new QueryEvaluationException("Invalid SPARQL/JSON result", e);
+        }
+    }
+
+    public void close() throws QueryEvaluationException {
+        finished = true;
+        try {
+            parser.close();
+        } catch (IOException e) {
+            throw new QueryEvaluationException(e);
+        }
+    }
+
+    /**
+     * Reads the fields of the document until the array of the rows starts.
+     * @return false if the document has no rows
+     */
+    private boolean seekBindings() throws QueryEvaluationException {
+        try {
+            if (!started) {
+                started = true;
+                if (parser.nextToken() != JsonToken.START_OBJECT)
+                    throw error("Expected a JSON object");
+            }
+
+            while (true) {
+                JsonToken token = parser.nextToken();
+
+                if (token == null)
+                    return false;
+
+                if (token == JsonToken.END_OBJECT) {
+                    if (!inResults)
+                        return false;
+                    inResults = false;
+                    continue;
+                }
+
+                String field = parser.getCurrentName();
+                token = parser.nextToken();
+
+                if (!inResults && field.equals("head")) {
+                    parseHead();
+                } else if (!inResults && field.equals("results") && token == JsonToken.START_OBJECT) {
+                    inResults = true;
+                } else if (inResults && field.equals("bindings") && token == JsonToken.START_ARRAY) {
+                    return true;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new QueryEvaluationException("Invalid SPARQL/JSON result", e);
+        }
+    }
+
+    private void parseHead() throws IOException, QueryEvaluationException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT)
+            throw error("Expected the head object");
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (field.equals("vars") && token == JsonToken.START_ARRAY) {
+                List<String> names = new ArrayList<String>();
+                while (parser.nextToken() == JsonToken.VALUE_STRING)
+                    names.add(parser.getText());
+                setBindingNames(names);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void setBindingNames(List<String> names) {
+        schema = BindingSchema.of(names);
+        bindingNames = schema.getNames();
+    }
+
+    private BindingSet parseRow() throws IOException, QueryEvaluationException {
+        if (bindingNames == null)
+            setBindingNames(new ArrayList<String>());
+
+        Value[] values = new Value[schema.getWidth()];
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw error("Expected the value of " + name);
+
+            Value value = parseValue();
+
+            int i = schema.indexOf(name);
+            if (i < 0) {
+                // a variable that is missing from the head; the rows that follow share the longer list
+                List<String> names = new ArrayList<String>(bindingNames);
+                names.add(name);
+                setBindingNames(names);
+                values = Arrays.copyOf(values, names.size());
+                i = names.size() - 1;
+            }
+            values[i] = value;
+        }
+
+        return new CompactBindingSet(schema, values);
+    }
+
+    private Value parseValue() throws IOException, QueryEvaluationException {
+        String type = null;
+        String value = null;
+        String lang = null;
+        String datatype = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (token != JsonToken.VALUE_STRING) {
+                parser.skipChildren();
+                continue;
+            }
+
+            if (field.equals("type"))
+                type = parser.getText();
+            else if (field.equals("value"))
+                value = parser.getText();
+            else if (field.equals("xml:lang"))
+                lang = parser.getText();
+            else if (field.equals("datatype"))
+                datatype = parser.getText();
+        }
+
+        if (type == null || value == null)
+            throw error("Incomplete value");
+
+        if (type.equals("uri"))
+            return uri(value);
+        if (type.equals("literal") || type.equals("typed-literal")) {
+            if (datatype != null)
+                return vf.createLiteral(value, uri(datatype));
+            if (lang != null)
+                return vf.createLiteral(value, lang);
+            return vf.createLiteral(value);
+        }
+        if (type.equals("bnode"))
+            return vf.createBNode(value);
+
+        throw error("Unknown value type " + type);
+    }
+
+    private URI uri(String s) {
+        URI uri = uris.get(s);
+
+        if (uri == null) {
+            if (uris.size() >= MAX_INTERNED)
+                uris.clear();
+            uri = vf.createURI(s);
+            uris.put(s, uri);
+        }
+        return uri;
+    }
+
+    private QueryEvaluationException error(String message) {
+        return new QueryEvaluationException("Invalid SPARQL/JSON result at " + parser.getCurrentLocation() + ": " + message);
+    }
+}
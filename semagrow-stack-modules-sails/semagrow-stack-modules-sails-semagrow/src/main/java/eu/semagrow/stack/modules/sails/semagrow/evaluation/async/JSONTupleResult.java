@@ -0,0 +1,49 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The rows of a SPARQL/JSON result stream, parsed by a {@link JSONResultParser}
+ * on the thread that consumes them. Closing the result closes the stream.
+ */
+public class JSONTupleResult extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+    private final InputStream in;
+
+    private final JSONResultParser parser;
+
+    public JSONTupleResult(InputStream in, ValueFactory vf) throws QueryEvaluationException {
+        this.in = in;
+        this.parser = new JSONResultParser(in, vf);
+    }
+
+    public List<String> getBindingNames() throws QueryEvaluationException {
+        return parser.getBindingNames();
+    }
+
+    @Override
+    protected BindingSet getNextElement() throws QueryEvaluationException {
+        return parser.next();
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        try {
+            parser.close();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new QueryEvaluationException(e);
+            }
+            super.handleClose();
+        }
+    }
+}
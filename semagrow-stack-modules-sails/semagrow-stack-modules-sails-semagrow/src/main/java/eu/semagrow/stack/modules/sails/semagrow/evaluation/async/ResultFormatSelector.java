@@ -0,0 +1,223 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Negotiates the format of the results of the SELECT queries sent to a single endpoint.
+ * <p>
+ * Every request accepts the candidate formats in the order of preference, cheapest to
+ * parse first. The format that an endpoint answers with tells which of the formats it
+ * supports: the formats that were preferred over it are dropped from the requests that
+ * follow, and so is a format whose responses cannot be parsed. Compressed transfer
+ * is requested until a compressed response fails to decode.
+ * <p>
+ * The selector also keeps, per format, the number of bytes received, the number of rows
+ * and the time spent parsing them, so that the cost of each format can be compared.
+ */
+public class ResultFormatSelector {
+
+    private final Logger logger = LoggerFactory.getLogger(ResultFormatSelector.class);
+
+    public static final List<TupleQueryResultFormat> DEFAULT_PREFERENCE = Collections.unmodifiableList(
+            Arrays.asList(TupleQueryResultFormat.BINARY, TupleQueryResultFormat.JSON,
+                          TupleQueryResultFormat.TSV, TupleQueryResultFormat.SPARQL));
+
+    private final URI endpoint;
+
+    // guarded by this
+    private final List<TupleQueryResultFormat> candidates;
+    private final Map<TupleQueryResultFormat, Statistics> statistics =
+            new LinkedHashMap<TupleQueryResultFormat, Statistics>();
+    private TupleQueryResultFormat format;
+    private boolean compression = true;
+    private String accept;
+
+    public ResultFormatSelector(URI endpoint) {
+        this(endpoint, DEFAULT_PREFERENCE);
+    }
+
+    public ResultFormatSelector(URI endpoint, List<TupleQueryResultFormat> preference) {
+        if (preference.isEmpty())
+            throw new IllegalArgumentException("At least one result format is needed");
+        this.endpoint = endpoint;
+        this.candidates = new ArrayList<TupleQueryResultFormat>(preference);
+    }
+
+    public URI getEndpoint() { return endpoint; }
+
+    /**
+     * @return the format of the latest response of the endpoint, or null if it has not answered yet.
+     */
+    public synchronized TupleQueryResultFormat getFormat() { return format; }
+
+    /**
+     * @return the formats that are still requested, in the order of preference.
+     */
+    public synchronized List<TupleQueryResultFormat> getCandidates() {
+        return new ArrayList<TupleQueryResultFormat>(candidates);
+    }
+
+    public synchronized boolean isCompressionEnabled() { return compression; }
+
+    /**
+     * @return the value of the Accept header of the next request.
+     */
+    public synchronized String getAcceptHeader() {
+        if (accept == null) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < candidates.size(); i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(candidates.get(i).getDefaultMIMEType());
+                if (i > 0)
+                    sb.append(String.format(Locale.ENGLISH, ";q=%.1f", Math.max(1.0 - 0.1 * i, 0.1)));
+            }
+            accept = sb.toString();
+        }
+        return accept;
+    }
+
+    /**
+     * Learns from the format of a response: the endpoint did not pick any of the formats
+     * that were preferred over it, so they are not requested again.
+     */
+    public synchronized void recordFormat(TupleQueryResultFormat served) {
+        int index = candidates.indexOf(served);
+
+        if (index > 0) {
+            logger.info("Endpoint " + endpoint + " answers in " + served.getName() +
+                        ", not requesting " + candidates.subList(0, index) + " any more");
+            candidates.subList(0, index).clear();
+            accept = null;
+        }
+
+        format = served;
+    }
+
+    /**
+     * Stops requesting a format whose response could not be parsed.
+     * The least preferred format is always kept.
+     */
+    public synchronized void recordUnsupported(TupleQueryResultFormat failed) {
+        if (candidates.size() > 1 && candidates.remove(failed)) {
+            logger.info("Result format " + failed.getName() + " of endpoint " + endpoint + " is not usable");
+            accept = null;
+            if (failed.equals(format))
+                format = null;
+        }
+    }
+
+    /**
+     * Stops requesting compressed responses after one could not be decoded.
+     */
+    public synchronized void disableCompression() {
+        if (compression)
+            logger.info("Compressed responses of endpoint " + endpoint + " are not usable");
+        compression = false;
+    }
+
+    /**
+     * Records a response that was parsed successfully.
+     * @param bytes the number of bytes received, as sent by the endpoint
+     * @param rows the number of rows of the response
+     * @param parseTime the time spent parsing the response, in nanoseconds
+     */
+    public synchronized void recordResponse(TupleQueryResultFormat served, long bytes, long rows, long parseTime) {
+        Statistics s = statistics.get(served);
+
+        if (s == null) {
+            s = new Statistics(served);
+            statistics.put(served, s);
+        }
+
+        s.responses++;
+        s.bytes += bytes;
+        s.rows += rows;
+        s.parseTime += parseTime;
+    }
+
+    /**
+     * @return a copy of the statistics of every format the endpoint has answered with.
+     */
+    public synchronized List<Statistics> getStatistics() {
+        List<Statistics> copy = new ArrayList<Statistics>(statistics.size());
+        for (Statistics s : statistics.values())
+            copy.add(new Statistics(s));
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultFormatSelector(" + endpoint + ", format = " + (format == null ? "?" : format.getName()) +
+               ", compression = " + compression + ", " + statistics.values() + ")";
+    }
+
+    /**
+     * The cost of the responses of an endpoint in a single format.
+     */
+    public static class Statistics {
+
+        private final TupleQueryResultFormat format;
+
+        private long responses;
+
+        private long bytes;
+
+        private long rows;
+
+        private long parseTime;
+
+        private Statistics(TupleQueryResultFormat format) {
+            this.format = format;
+        }
+
+        private Statistics(Statistics other) {
+            this.format = other.format;
+            this.responses = other.responses;
+            this.bytes = other.bytes;
+            this.rows = other.rows;
+            this.parseTime = other.parseTime;
+        }
+
+        public TupleQueryResultFormat getFormat() { return format; }
+
+        public long getResponses() { return responses; }
+
+        public long getBytes() { return bytes; }
+
+        public long getRows() { return rows; }
+
+        /**
+         * @return the total time spent parsing, in nanoseconds.
+         */
+        public long getParseTime() { return parseTime; }
+
+        public double getBytesPerRow() {
+            return (rows == 0) ? 0 : (double) bytes / rows;
+        }
+
+        /**
+         * @return the average time spent parsing a row, in nanoseconds.
+         */
+        public double getParseTimePerRow() {
+            return (rows == 0) ? 0 : (double) parseTime / rows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s: %d responses, %d rows, %.1f bytes/row, %.0f ns/row",
+                    format.getName(), responses, rows, getBytesPerRow(), getParseTimePerRow());
+        }
+    }
+}
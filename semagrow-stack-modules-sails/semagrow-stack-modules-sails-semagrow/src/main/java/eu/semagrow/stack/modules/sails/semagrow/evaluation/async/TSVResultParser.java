@@ -0,0 +1,141 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.resultio.QueryResultParseException;
+import org.openrdf.rio.ntriples.NTriplesUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An incremental parser of SPARQL results in the tab separated values format.
+ * <p>
+ * The response body is fed to the parser in arbitrary pieces as it arrives;
+ * every complete line is turned into a row right away, and an incomplete line
+ * is kept until the rest of it arrives.
+ */
+public class TSVResultParser {
+
+    public static final String MIME_TYPE = "text/tab-separated-values";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ValueFactory vf;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    private List<String> bindingNames;
+
+    public TSVResultParser(ValueFactory vf) {
+        this.vf = vf;
+    }
+
+    /**
+     * @return the variables of the result, or null if the header has not been parsed yet.
+     */
+    public List<String> getBindingNames() { return bindingNames; }
+
+    /**
+     * Parses the complete lines in the given content and adds their rows to the collection.
+     */
+    public void parse(ByteBuffer content, Collection<BindingSet> rows) throws QueryResultParseException {
+        while (content.hasRemaining()) {
+            byte b = content.get();
+            if (b == '\n') {
+                parseLine(rows);
+            } else {
+                line.write(b);
+            }
+        }
+    }
+
+    /**
+     * Parses the last line of the result, if it did not end with a newline.
+     */
+    public void finish(Collection<BindingSet> rows) throws QueryResultParseException {
+        if (line.size() > 0)
+            parseLine(rows);
+
+        if (bindingNames == null)
+            throw new QueryResultParseException("Missing header in the result");
+    }
+
+    private void parseLine(Collection<BindingSet> rows) throws QueryResultParseException {
+        // UTF-8 is decoded per line; the newline byte never occurs inside a multi-byte character
+        String l = new String(line.toByteArray(), UTF8);
+        line.reset();
+
+        if (l.endsWith("\r"))
+            l = l.substring(0, l.length() - 1);
+
+        String[] fields = l.split("\t", -1);
+
+        if (bindingNames == null) {
+            List<String> names = new ArrayList<String>(fields.length);
+            if (!l.isEmpty()) {
+                for (String f : fields) {
+                    f = f.trim();
+                    if (f.startsWith("?") || f.startsWith("$"))
+                        f = f.substring(1);
+                    names.add(f);
+                }
+            }
+            bindingNames = Collections.unmodifiableList(names);
+            return;
+        }
+
+        if (l.isEmpty() && bindingNames.size() != 1)
+            return;
+
+        if (fields.length != bindingNames.size())
+            throw new QueryResultParseException("Expected " + bindingNames.size() + " values but found " + fields.length);
+
+        MapBindingSet row = new MapBindingSet(fields.length);
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].isEmpty())
+                row.addBinding(bindingNames.get(i), parseValue(fields[i]));
+        }
+        rows.add(row);
+    }
+
+    private Value parseValue(String field) throws QueryResultParseException {
+        try {
+            char c = field.charAt(0);
+            if (c == '<' || c == '"' || c == '_')
+                return NTriplesUtil.parseValue(field, vf);
+
+            // the abbreviated forms of numbers and booleans
+            if (field.equals("true") || field.equals("false"))
+                return vf.createLiteral(field, XMLSchema.BOOLEAN);
+            if (field.indexOf('e') >= 0 || field.indexOf('E') >= 0)
+                return vf.createLiteral(field, XMLSchema.DOUBLE);
+            if (field.indexOf('.') >= 0)
+                return vf.createLiteral(field, XMLSchema.DECIMAL);
+            if (isInteger(field))
+                return vf.createLiteral(field, XMLSchema.INTEGER);
+        } catch (IllegalArgumentException e) {
+            throw new QueryResultParseException(e);
+        }
+        throw new QueryResultParseException("Unexpected value " + field);
+    }
+
+    private static boolean isInteger(String field) {
+        int i = (field.charAt(0) == '+' || field.charAt(0) == '-') ? 1 : 0;
+        if (i == field.length())
+            return false;
+        for (; i < field.length(); i++) {
+            if (!Character.isDigit(field.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
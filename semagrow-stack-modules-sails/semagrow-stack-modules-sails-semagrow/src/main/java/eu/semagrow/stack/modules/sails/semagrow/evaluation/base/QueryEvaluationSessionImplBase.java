@@ -2,6 +2,7 @@ package eu.semagrow.stack.modules.sails.semagrow.evaluation.base;
 
 import eu.semagrow.stack.modules.api.evaluation.*;
 import eu.semagrow.stack.modules.api.evaluation.EvaluationStrategy;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryContext;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.SessionUUID;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.interceptors.AbstractEvaluationSessionAwareInterceptor;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.interceptors.InterceptingEvaluationStrategy;
@@ -26,12 +27,23 @@ public abstract class QueryEvaluationSessionImplBase
 
     private SessionUUID id;
 
+    private final QueryContext queryContext = new QueryContext();
+
     public QueryEvaluationSessionImplBase() {
         this.id = SessionUUID.createUniqueId();
     }
 
     public SessionId getSessionId() { return id; }
 
+    /**
+     * Gets the cancellation state shared by the evaluation strategy and the query executor of the session.
+     */
+    public QueryContext getQueryContext() { return queryContext; }
+
+    public void setMaxExecutionTime(long maxExecutionTime) { queryContext.setMaxExecutionTime(maxExecutionTime); }
+
+    public void cancel() { queryContext.cancel(); }
+
     public EvaluationStrategy getEvaluationStrategy() {
         EvaluationStrategy actualStrategy = getEvaluationStrategyInternal();
         attachStrategyInterceptors(actualStrategy);
@@ -61,7 +73,7 @@ public abstract class QueryEvaluationSessionImplBase
 
     public void initializeSession() { }
 
-    public void closeSession() { }
+    public void closeSession() { cancel(); }
 
     protected class SessionAwareInterceptor
             extends AbstractEvaluationSessionAwareInterceptor
@@ -97,8 +109,11 @@ public abstract class QueryEvaluationSessionImplBase
 
         @Override
         public void handleClose() throws QueryEvaluationException {
-            super.handleClose();
-            closeSession();
+            try {
+                super.handleClose();
+            } finally {
+                closeSession();
+            }
         }
     }
 }
@@ -0,0 +1,155 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The variables of the rows of an operator and the slot of each variable in the
+ * value arrays of the rows.
+ * <p>
+ * A schema is built once and shared by all the {@link CompactBindingSet}s of an
+ * operator, so a row costs only its array of values. A schema is dense when its i-th
+ * variable is kept in the i-th slot; a view maps its variables on the slots of
+ * another schema, so that the rows of the view share the arrays of the rows it was
+ * made from. Schemas are immutable and are compared by identity.
+ */
+public final class BindingSchema implements Serializable {
+
+    private static final long serialVersionUID = 2594165370187325617L;
+
+    public static final BindingSchema EMPTY = of(Collections.<String>emptyList());
+
+    private final String[] names;
+
+    private final int[] slots;
+
+    private final int width;
+
+    private final Map<String, Integer> positions;
+
+    private BindingSchema(String[] names, int[] slots, int width) {
+        this.names = names;
+        this.slots = slots;
+        this.width = width;
+        this.positions = new HashMap<String, Integer>(names.length * 2);
+        for (int i = 0; i < names.length; i++)
+            positions.put(names[i], i);
+    }
+
+    /**
+     * @return a dense schema of the given variables, in their order and without duplicates
+     */
+    public static BindingSchema of(Collection<String> names) {
+        String[] distinct = new LinkedHashSet<String>(names).toArray(new String[0]);
+        int[] slots = new int[distinct.length];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = i;
+        return new BindingSchema(distinct, slots, distinct.length);
+    }
+
+    public static BindingSchema of(String... names) {
+        return of(Arrays.asList(names));
+    }
+
+    /**
+     * @return the given schema if it has all the variables that are bound in the bindings,
+     * else a dense schema with the variables of both.
+     */
+    public static BindingSchema cover(BindingSchema schema, BindingSet bindings) {
+        if (schema != null && schema.covers(bindings))
+            return schema;
+
+        LinkedHashSet<String> names = new LinkedHashSet<String>();
+        if (schema != null)
+            names.addAll(schema.getNames());
+        for (Binding b : bindings)
+            names.add(b.getName());
+        return of(names);
+    }
+
+    /**
+     * @return the number of variables
+     */
+    public int size() { return names.length; }
+
+    /**
+     * @return the length of the value arrays of the rows
+     */
+    public int getWidth() { return width; }
+
+    public String getName(int index) { return names[index]; }
+
+    /**
+     * @return the slot of the index-th variable, or -1 if the variable is never bound
+     */
+    public int getSlot(int index) { return slots[index]; }
+
+    public List<String> getNames() { return Collections.unmodifiableList(Arrays.asList(names)); }
+
+    /**
+     * @return the position of the variable in this schema, or -1 if it is not part of it
+     */
+    public int indexOf(String name) {
+        Integer index = positions.get(name);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * @return the slot of the variable, or -1 if it is not part of this schema
+     */
+    public int slotOf(String name) {
+        int index = indexOf(name);
+        return (index < 0) ? -1 : slots[index];
+    }
+
+    public boolean covers(BindingSet bindings) {
+        if (bindings instanceof CompactBindingSet && ((CompactBindingSet) bindings).getSchema() == this)
+            return true;
+
+        for (Binding b : bindings)
+            if (!positions.containsKey(b.getName()))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Builds a view of this schema that renames the source variables to the target ones;
+     * a {@link CompactBindingSet} of this schema is seen through the view without a copy.
+     * Target variables whose source is not part of this schema are never bound, and a
+     * target variable that is repeated keeps its first source.
+     */
+    public BindingSchema view(List<String> sourceNames, List<String> targetNames) {
+        if (sourceNames.size() != targetNames.size())
+            throw new IllegalArgumentException("Source and target variables differ in number");
+
+        LinkedHashSet<String> targets = new LinkedHashSet<String>(targetNames);
+        String[] viewNames = new String[targets.size()];
+        int[] viewSlots = new int[targets.size()];
+
+        int j = 0;
+        for (int i = 0; i < targetNames.size(); i++) {
+            if (!targets.remove(targetNames.get(i)))
+                continue;
+            viewNames[j] = targetNames.get(i);
+            viewSlots[j] = slotOf(sourceNames.get(i));
+            j++;
+        }
+
+        return new BindingSchema(viewNames, viewSlots, width);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(names);
+    }
+}
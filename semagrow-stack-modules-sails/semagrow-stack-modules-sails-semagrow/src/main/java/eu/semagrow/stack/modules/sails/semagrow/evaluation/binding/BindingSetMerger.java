@@ -0,0 +1,123 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges pairs of rows, such as the matching rows of a join, into {@link CompactBindingSet}s.
+ * <p>
+ * The schema of the merged rows and the slot that each of their variables is copied from
+ * are worked out once per pair of input schemas; the merge itself is a copy slot by slot.
+ * Rows that are not compact are read by the name of each variable. A merger belongs to a
+ * single operator and is not thread-safe.
+ */
+public class BindingSetMerger {
+
+    private final String excluded;
+
+    private BindingSchema leftSchema;
+
+    private BindingSchema rightSchema;
+
+    private BindingSchema result;
+
+    // the slot of each variable of the result in the left and in the right rows, or -1
+    private int[] fromLeft;
+
+    private int[] fromRight;
+
+    // the schemas that the rows that are not compact are read through
+    private BindingSchema leftCover;
+
+    private BindingSchema rightCover;
+
+    public BindingSetMerger() {
+        this(null);
+    }
+
+    /**
+     * @param excluded a variable that is dropped from the merged rows, or null
+     */
+    public BindingSetMerger(String excluded) {
+        this.excluded = excluded;
+    }
+
+    /**
+     * @return a row with the variables of the left row followed by the variables of the
+     * right row that the left one does not bind
+     */
+    public CompactBindingSet merge(BindingSet left, BindingSet right) {
+        BindingSchema ls, rs;
+
+        if (left instanceof CompactBindingSet)
+            ls = ((CompactBindingSet) left).getSchema();
+        else
+            ls = leftCover = BindingSchema.cover(leftCover, left);
+
+        if (right instanceof CompactBindingSet)
+            rs = ((CompactBindingSet) right).getSchema();
+        else
+            rs = rightCover = BindingSchema.cover(rightCover, right);
+
+        if (ls != leftSchema || rs != rightSchema)
+            prepare(ls, rs);
+
+        Value[] values = new Value[result.getWidth()];
+
+        for (int i = 0; i < values.length; i++) {
+            Value l = valueOf(left, fromLeft[i], i);
+            Value r = valueOf(right, fromRight[i], i);
+
+            if (l == null)
+                values[i] = r;
+            else if (r == null)
+                values[i] = l;
+            else
+                values[i] = merge(result.getName(i), l, r);
+        }
+
+        return new CompactBindingSet(result, values);
+    }
+
+    /**
+     * Picks the value of a variable that is bound in both rows; the left value by default.
+     */
+    protected Value merge(String name, Value left, Value right) {
+        return left;
+    }
+
+    private Value valueOf(BindingSet bindings, int slot, int index) {
+        if (slot < 0)
+            return null;
+        if (bindings instanceof CompactBindingSet)
+            return ((CompactBindingSet) bindings).getSlotValue(slot);
+        return bindings.getValue(result.getName(index));
+    }
+
+    private void prepare(BindingSchema ls, BindingSchema rs) {
+        List<String> names = new ArrayList<String>(ls.size() + rs.size());
+
+        for (int i = 0; i < ls.size(); i++)
+            if (ls.getSlot(i) >= 0 && !ls.getName(i).equals(excluded))
+                names.add(ls.getName(i));
+
+        for (int i = 0; i < rs.size(); i++)
+            if (rs.getSlot(i) >= 0 && !rs.getName(i).equals(excluded))
+                names.add(rs.getName(i));
+
+        result = BindingSchema.of(names);
+        fromLeft = new int[result.size()];
+        fromRight = new int[result.size()];
+
+        for (int i = 0; i < result.size(); i++) {
+            fromLeft[i] = ls.slotOf(result.getName(i));
+            fromRight[i] = rs.slotOf(result.getName(i));
+        }
+
+        leftSchema = ls;
+        rightSchema = rs;
+    }
+}
@@ -0,0 +1,190 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.BindingImpl;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable {@link BindingSet} that keeps its values in an array, indexed through
+ * a {@link BindingSchema} that is shared by all the rows of an operator.
+ * <p>
+ * A row costs one array of values instead of the hash map and the binding objects of a
+ * {@link org.openrdf.query.algebra.evaluation.QueryBindingSet}. Only the bound variables
+ * (the slots that are not null) are part of the binding set.
+ */
+public final class CompactBindingSet implements BindingSet {
+
+    private static final long serialVersionUID = -3867020958131573425L;
+
+    private final BindingSchema schema;
+
+    private final Value[] values;
+
+    /**
+     * @param values the values of the slots of the schema; the array is not copied
+     *               and must not be changed afterwards
+     */
+    public CompactBindingSet(BindingSchema schema, Value[] values) {
+        if (values.length < schema.getWidth())
+            throw new IllegalArgumentException("Expected " + schema.getWidth() + " values but got " + values.length);
+        this.schema = schema;
+        this.values = values;
+    }
+
+    /**
+     * @return the bindings as a row of the given schema; variables that are not part of
+     * the schema are dropped
+     */
+    public static CompactBindingSet copyOf(BindingSchema schema, BindingSet bindings) {
+        if (bindings instanceof CompactBindingSet && ((CompactBindingSet) bindings).schema == schema)
+            return (CompactBindingSet) bindings;
+
+        Value[] values = new Value[schema.getWidth()];
+        for (int i = 0; i < schema.size(); i++) {
+            int slot = schema.getSlot(i);
+            if (slot >= 0 && values[slot] == null)
+                values[slot] = bindings.getValue(schema.getName(i));
+        }
+        return new CompactBindingSet(schema, values);
+    }
+
+    public BindingSchema getSchema() { return schema; }
+
+    /**
+     * @return the value of the index-th variable of the schema, or null if it is unbound
+     */
+    public Value getValue(int index) {
+        int slot = schema.getSlot(index);
+        return (slot < 0) ? null : values[slot];
+    }
+
+    Value getSlotValue(int slot) { return values[slot]; }
+
+    /**
+     * Looks at the values of this row through a view of its schema, without copying them.
+     * @see BindingSchema#view(java.util.List, java.util.List)
+     */
+    public CompactBindingSet view(BindingSchema view) {
+        if (view.getWidth() != values.length)
+            throw new IllegalArgumentException("The view " + view + " does not fit the schema " + schema);
+        return new CompactBindingSet(view, values);
+    }
+
+    @Override
+    public Iterator<Binding> iterator() {
+        return new Iterator<Binding>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < schema.size() && getValue(from) == null)
+                    from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() { return next < schema.size(); }
+
+            @Override
+            public Binding next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Binding b = new BindingImpl(schema.getName(next), getValue(next));
+                next = advance(next + 1);
+                return b;
+            }
+
+            @Override
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    @Override
+    public Set<String> getBindingNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (int i = 0; i < schema.size(); i++)
+            if (getValue(i) != null)
+                names.add(schema.getName(i));
+        return names;
+    }
+
+    @Override
+    public Binding getBinding(String name) {
+        Value value = getValue(name);
+        return (value == null) ? null : new BindingImpl(name, value);
+    }
+
+    @Override
+    public boolean hasBinding(String name) {
+        return getValue(name) != null;
+    }
+
+    @Override
+    public Value getValue(String name) {
+        int slot = schema.slotOf(name);
+        return (slot < 0) ? null : values[slot];
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < schema.size(); i++)
+            if (getValue(i) != null)
+                size++;
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+
+        if (!(other instanceof BindingSet))
+            return false;
+
+        BindingSet bindings = (BindingSet) other;
+        if (bindings.size() != size())
+            return false;
+
+        for (int i = 0; i < schema.size(); i++) {
+            Value value = getValue(i);
+            if (value != null && !value.equals(bindings.getValue(schema.getName(i))))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hashes like the binding sets of Sesame, so that equal binding sets of
+     * different classes fall in the same bucket.
+     */
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+        for (int i = 0; i < schema.size(); i++) {
+            Value value = getValue(i);
+            if (value != null)
+                hashCode ^= schema.getName(i).hashCode() ^ value.hashCode();
+        }
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < schema.size(); i++) {
+            Value value = getValue(i);
+            if (value == null)
+                continue;
+            if (sb.length() > 1)
+                sb.append(';');
+            sb.append(schema.getName(i)).append('=').append(value);
+        }
+        return sb.append(']').toString();
+    }
+}
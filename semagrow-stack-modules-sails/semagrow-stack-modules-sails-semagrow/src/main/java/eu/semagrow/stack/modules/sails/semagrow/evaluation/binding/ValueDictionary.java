@@ -0,0 +1,285 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the values that arrive from the remote endpoints to dense long ids.
+ * <p>
+ * The dictionary keeps one {@link EncodedValue} per distinct value, which is a URI,
+ * a literal or a blank node like the value it stands for and carries its id. Rows
+ * that hold encoded values share them, and two values of the same dictionary are
+ * compared by their ids, so the joins, the duplicate elimination and the grouping of
+ * the rows compare longs instead of strings without changing the values they see.
+ * Values of different dictionaries, or values that are not encoded, are compared as before.
+ * <p>
+ * A dictionary usually lives as long as the evaluation of a query; a dictionary shared
+ * by all the queries must be bounded. Ids are never reused, so once the dictionary
+ * holds {@code maxSize} values, new values are passed through unencoded.
+ */
+public class ValueDictionary {
+
+    public static final long NO_ID = 0;
+
+    public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+    private static final int CHUNK_BITS = 12;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Value, Value> encoded = new ConcurrentHashMap<Value, Value>();
+
+    // the encoded values by id; written while holding this, read without a lock
+    private volatile Value[][] chunks = new Value[16][];
+
+    // guarded by this
+    private int size = 0;
+
+    public ValueDictionary() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public ValueDictionary(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Size of the dictionary must be positive");
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() { return maxSize; }
+
+    /**
+     * @return the number of values in the dictionary
+     */
+    public int size() { return encoded.size(); }
+
+    /**
+     * @return the encoded value that stands for the value, or the value itself if it is not a URI,
+     * a literal or a blank node, or if the dictionary is full
+     */
+    public Value encode(Value value) {
+        if (value == null || isEncoded(value))
+            return value;
+
+        if (!(value instanceof URI || value instanceof Literal || value instanceof BNode))
+            return value;
+
+        Value e = encoded.get(value);
+        if (e != null)
+            return e;
+
+        synchronized (this) {
+            e = encoded.get(value);
+            if (e != null)
+                return e;
+
+            if (size >= maxSize)
+                return value;
+
+            long id = ++size;
+            e = create(value, id);
+            store(id, e);
+            encoded.put(value, e);
+            return e;
+        }
+    }
+
+    /**
+     * Unlike {@link #encode(Value)} this never adds the value to the dictionary.
+     * @return the encoded value that stands for the value, or null if the value is not in the dictionary
+     */
+    public Value lookup(Value value) {
+        if (value == null || isEncoded(value))
+            return value;
+
+        return encoded.get(value);
+    }
+
+    /**
+     * @return the value with the given id, or null if there is none
+     */
+    public Value decode(long id) {
+        if (id <= NO_ID || id > Integer.MAX_VALUE)
+            return null;
+
+        Value[][] c = chunks;
+        int index = (int) id;
+        int chunk = index >>> CHUNK_BITS;
+
+        if (chunk >= c.length || c[chunk] == null)
+            return null;
+
+        return c[chunk][index & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * @return the id of a value of this dictionary, or {@link #NO_ID}
+     */
+    public long getId(Value value) {
+        return isEncoded(value) ? ((EncodedValue) value).getId() : NO_ID;
+    }
+
+    public boolean isEncoded(Value value) {
+        return value instanceof EncodedValue && ((EncodedValue) value).getDictionary() == this;
+    }
+
+    private void store(long id, Value value) {
+        int index = (int) id;
+        int chunk = index >>> CHUNK_BITS;
+
+        Value[][] c = chunks;
+        if (chunk >= c.length) {
+            Value[][] grown = new Value[c.length * 2][];
+            System.arraycopy(c, 0, grown, 0, c.length);
+            c = grown;
+        }
+        if (c[chunk] == null)
+            c[chunk] = new Value[CHUNK_SIZE];
+
+        c[chunk][index & (CHUNK_SIZE - 1)] = value;
+        chunks = c;
+    }
+
+    private Value create(Value value, long id) {
+        if (value instanceof URI)
+            return new EncodedURI(value.stringValue(), id, this);
+
+        if (value instanceof BNode)
+            return new EncodedBNode(((BNode) value).getID(), id, this);
+
+        Literal literal = (Literal) value;
+        if (literal.getLanguage() != null)
+            return new EncodedLiteral(literal.getLabel(), literal.getLanguage(), id, this);
+        if (literal.getDatatype() != null)
+            return new EncodedLiteral(literal.getLabel(), literal.getDatatype(), id, this);
+        return new EncodedLiteral(literal.getLabel(), id, this);
+    }
+
+    @Override
+    public String toString() {
+        return "ValueDictionary(size = " + size() + ", max size = " + maxSize + ")";
+    }
+
+    /**
+     * A value of a dictionary.
+     */
+    public interface EncodedValue extends Value {
+
+        long getId();
+
+        ValueDictionary getDictionary();
+    }
+
+    private static boolean sameDictionary(EncodedValue value, Object other) {
+        return other instanceof EncodedValue
+                && value.getDictionary() != null
+                && ((EncodedValue) other).getDictionary() == value.getDictionary();
+    }
+
+    private static class EncodedURI extends URIImpl implements EncodedValue {
+
+        private static final long serialVersionUID = -2214536316339926231L;
+
+        private final long id;
+
+        private final transient ValueDictionary dictionary;
+
+        EncodedURI(String uri, long id, ValueDictionary dictionary) {
+            super(uri);
+            this.id = id;
+            this.dictionary = dictionary;
+        }
+
+        public long getId() { return id; }
+
+        public ValueDictionary getDictionary() { return dictionary; }
+
+        @Override
+        public boolean equals(Object other) {
+            if (sameDictionary(this, other))
+                return ((EncodedValue) other).getId() == id;
+            return super.equals(other);
+        }
+
+        @Override
+        public int hashCode() { return super.hashCode(); }
+    }
+
+    private static class EncodedLiteral extends LiteralImpl implements EncodedValue {
+
+        private static final long serialVersionUID = 4893606420380371743L;
+
+        private final long id;
+
+        private final transient ValueDictionary dictionary;
+
+        EncodedLiteral(String label, long id, ValueDictionary dictionary) {
+            super(label);
+            this.id = id;
+            this.dictionary = dictionary;
+        }
+
+        EncodedLiteral(String label, String language, long id, ValueDictionary dictionary) {
+            super(label, language);
+            this.id = id;
+            this.dictionary = dictionary;
+        }
+
+        EncodedLiteral(String label, URI datatype, long id, ValueDictionary dictionary) {
+            super(label, datatype);
+            this.id = id;
+            this.dictionary = dictionary;
+        }
+
+        public long getId() { return id; }
+
+        public ValueDictionary getDictionary() { return dictionary; }
+
+        @Override
+        public boolean equals(Object other) {
+            if (sameDictionary(this, other))
+                return ((EncodedValue) other).getId() == id;
+            return super.equals(other);
+        }
+
+        @Override
+        public int hashCode() { return super.hashCode(); }
+    }
+
+    private static class EncodedBNode extends BNodeImpl implements EncodedValue {
+
+        private static final long serialVersionUID = 7707187617930716016L;
+
+        private final long id;
+
+        private final transient ValueDictionary dictionary;
+
+        EncodedBNode(String nodeId, long id, ValueDictionary dictionary) {
+            super(nodeId);
+            this.id = id;
+            this.dictionary = dictionary;
+        }
+
+        public long getId() { return id; }
+
+        public ValueDictionary getDictionary() { return dictionary; }
+
+        @Override
+        public boolean equals(Object other) {
+            if (sameDictionary(this, other))
+                return ((EncodedValue) other).getId() == id;
+            return super.equals(other);
+        }
+
+        @Override
+        public int hashCode() { return super.hashCode(); }
+    }
+}
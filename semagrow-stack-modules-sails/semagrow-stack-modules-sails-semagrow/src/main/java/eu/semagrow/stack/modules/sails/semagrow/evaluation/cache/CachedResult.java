@@ -0,0 +1,214 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.model.*;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a remote query kept in a compact serialized form.
+ * Binding names, datatypes and language tags are stored once in a
+ * table of strings and referenced by index from the encoded rows.
+ */
+public class CachedResult {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte URI_VALUE = 0;
+    private static final byte BNODE_VALUE = 1;
+    private static final byte PLAIN_LITERAL = 2;
+    private static final byte LANG_LITERAL = 3;
+    private static final byte TYPED_LITERAL = 4;
+
+    // estimate of the memory held by an entry apart from its data
+    private static final int OVERHEAD = 64;
+
+    private final byte[] data;
+
+    private final String[] strings;
+
+    private final int rows;
+
+    private final long size;
+
+    private CachedResult(byte[] data, String[] strings, int rows) {
+        this.data = data;
+        this.strings = strings;
+        this.rows = rows;
+
+        long s = OVERHEAD + data.length;
+        for (String str : strings)
+            s += OVERHEAD + 2 * str.length();
+        this.size = s;
+    }
+
+    public static CachedResult ofBoolean(boolean answer) {
+        return new CachedResult(new byte[0], new String[0], answer ? 1 : 0);
+    }
+
+    public boolean getBoolean() { return rows > 0; }
+
+    /**
+     * @return the number of rows of the result.
+     */
+    public int getRows() { return rows; }
+
+    /**
+     * @return an estimate of the memory used by the result in bytes.
+     */
+    public long getSize() { return size; }
+
+    public CloseableIteration<BindingSet, QueryEvaluationException> iterator(ValueFactory vf) {
+        return new DecodingIteration(vf);
+    }
+
+    private class DecodingIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final ValueFactory vf;
+
+        private final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        private int row = 0;
+
+        public DecodingIteration(ValueFactory vf) { this.vf = vf; }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            if (row >= rows)
+                return null;
+
+            row++;
+
+            try {
+                int count = in.readShort();
+                QueryBindingSet bindings = new QueryBindingSet(count);
+
+                for (int i = 0; i < count; i++) {
+                    String name = strings[in.readInt()];
+                    bindings.addBinding(name, readValue());
+                }
+                return bindings;
+
+            } catch (IOException e) {
+                throw new QueryEvaluationException(e);
+            }
+        }
+
+        private Value readValue() throws IOException {
+            byte type = in.readByte();
+            switch (type) {
+                case URI_VALUE:
+                    return vf.createURI(readString());
+                case BNODE_VALUE:
+                    return vf.createBNode(readString());
+                case PLAIN_LITERAL:
+                    return vf.createLiteral(readString());
+                case LANG_LITERAL: {
+                    String lang = strings[in.readInt()];
+                    return vf.createLiteral(readString(), lang);
+                }
+                case TYPED_LITERAL: {
+                    URI datatype = vf.createURI(strings[in.readInt()]);
+                    return vf.createLiteral(readString(), datatype);
+                }
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+
+        private String readString() throws IOException {
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            return new String(b, UTF8);
+        }
+    }
+
+    /**
+     * Encodes the rows of a result incrementally.
+     */
+    public static class Builder {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+        private final DataOutputStream out = new DataOutputStream(buffer);
+
+        private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private int rows = 0;
+
+        public void add(BindingSet bindings) {
+            try {
+                out.writeShort(bindings.size());
+                for (Binding b : bindings) {
+                    out.writeInt(indexOf(b.getName()));
+                    writeValue(b.getValue());
+                }
+                rows++;
+            } catch (IOException e) {
+                // cannot happen when writing to a byte array
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the number of bytes that are encoded so far.
+         */
+        public int size() { return buffer.size(); }
+
+        public CachedResult build() {
+            return new CachedResult(buffer.toByteArray(), strings.toArray(new String[strings.size()]), rows);
+        }
+
+        private void writeValue(Value value) throws IOException {
+            if (value instanceof URI) {
+                out.writeByte(URI_VALUE);
+                writeString(value.stringValue());
+            }
+            else if (value instanceof BNode) {
+                out.writeByte(BNODE_VALUE);
+                writeString(((BNode) value).getID());
+            }
+            else {
+                Literal lit = (Literal) value;
+                if (lit.getLanguage() != null) {
+                    out.writeByte(LANG_LITERAL);
+                    out.writeInt(indexOf(lit.getLanguage()));
+                } else if (lit.getDatatype() != null) {
+                    out.writeByte(TYPED_LITERAL);
+                    out.writeInt(indexOf(lit.getDatatype().stringValue()));
+                } else {
+                    out.writeByte(PLAIN_LITERAL);
+                }
+                writeString(lit.getLabel());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] b = s.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private int indexOf(String s) {
+            Integer i = index.get(s);
+            if (i == null) {
+                i = strings.size();
+                strings.add(s);
+                index.put(s, i);
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryContext;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical remote requests that are in flight at the same time.
+ * The first request for a key is sent to the endpoint; requests for the same
+ * key that arrive before its response is fully read attach to the same
+ * response and get their own cursor that replays it from the beginning.
+ */
+public class RequestCoalescer {
+
+    private final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    public static final int DEFAULT_MAX_BUFFERED = 10000;
+
+    private final int maxBuffered;
+
+    private final ConcurrentMap<RequestKey, SharedResult> tuples =
+            new ConcurrentHashMap<RequestKey, SharedResult>();
+
+    private final ConcurrentMap<RequestKey, PendingAnswer> answers =
+            new ConcurrentHashMap<RequestKey, PendingAnswer>();
+
+    private final AtomicLong sent = new AtomicLong(0);
+
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    /**
+     * Sends a tuple query to an endpoint.
+     */
+    public interface TupleRequest {
+        CloseableIteration<BindingSet, QueryEvaluationException> send() throws Exception;
+    }
+
+    /**
+     * Sends a boolean query to an endpoint.
+     */
+    public interface BooleanRequest {
+        boolean send() throws Exception;
+    }
+
+    public RequestCoalescer() { this(DEFAULT_MAX_BUFFERED); }
+
+    /**
+     * @param maxBuffered the number of rows of a response after which
+     *                    new requests are no longer attached to it
+     */
+    public RequestCoalescer(int maxBuffered) {
+        this.maxBuffered = maxBuffered;
+    }
+
+    /**
+     * Gets the result of a tuple query, sending the request only if an identical one is not in flight.
+     * @throws Exception the exception thrown by the request, if this call sent it
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException>
+        getTuples(RequestKey key, TupleRequest request) throws Exception
+    {
+        return getTuples(key, request, null);
+    }
+
+    /**
+     * Gets the result of a tuple query, sending the request only if an identical one is not in flight.
+     * Waiting for the rows of an identical request stops when the query is cancelled or its deadline passes.
+     * @param context the context of the query that reads the result, or null
+     * @throws Exception the exception thrown by the request, if this call sent it
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException>
+        getTuples(final RequestKey key, TupleRequest request, QueryContext context) throws Exception
+    {
+        SharedResult existing = tuples.get(key);
+        if (existing != null) {
+            CloseableIteration<BindingSet, QueryEvaluationException> cursor = existing.attach(context);
+            if (cursor != null) {
+                coalesced.incrementAndGet();
+                logger.debug("Attached to in-flight request to " + key.getEndpoint());
+                return cursor;
+            }
+        }
+
+        final SharedResult[] holder = new SharedResult[1];
+        SharedResult shared = new SharedResult(maxBuffered, new Runnable() {
+            @Override
+            public void run() { tuples.remove(key, holder[0]); }
+        });
+        holder[0] = shared;
+
+        CloseableIteration<BindingSet, QueryEvaluationException> cursor = shared.attach(context);
+
+        existing = tuples.putIfAbsent(key, shared);
+        if (existing != null) {
+            CloseableIteration<BindingSet, QueryEvaluationException> other = existing.attach(context);
+            if (other != null) {
+                coalesced.incrementAndGet();
+                cursor.close();
+                return other;
+            }
+            // the other response stopped being shared in the meantime; send our own
+            tuples.remove(key, existing);
+            tuples.putIfAbsent(key, shared);
+        }
+
+        sent.incrementAndGet();
+
+        try {
+            shared.setSource(request.send());
+            return cursor;
+        } catch (Exception e) {
+            shared.fail(e);
+            cursor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the answer of a boolean query, sending the request only if an identical one is not in flight.
+     * @throws Exception the exception thrown by the request, if this call sent it
+     */
+    public boolean getBoolean(RequestKey key, BooleanRequest request) throws Exception {
+        return getBoolean(key, request, null);
+    }
+
+    /**
+     * Gets the answer of a boolean query, sending the request only if an identical one is not in flight.
+     * Waiting for the answer of an identical request stops when the query is cancelled or its deadline passes.
+     * @param context the context of the query that needs the answer, or null
+     * @throws Exception the exception thrown by the request, if this call sent it
+     */
+    public boolean getBoolean(RequestKey key, BooleanRequest request, QueryContext context) throws Exception {
+        PendingAnswer pending = new PendingAnswer();
+        PendingAnswer existing = answers.putIfAbsent(key, pending);
+
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            logger.debug("Waiting for in-flight request to " + key.getEndpoint());
+            return existing.get(context);
+        }
+
+        sent.incrementAndGet();
+
+        try {
+            boolean answer = request.send();
+            pending.complete(answer, null);
+            return answer;
+        } catch (Exception e) {
+            pending.complete(false, e);
+            throw e;
+        } finally {
+            answers.remove(key, pending);
+        }
+    }
+
+    /**
+     * @return the number of requests that were sent to the endpoints.
+     */
+    public long getSentRequests() { return sent.get(); }
+
+    /**
+     * @return the number of requests that were served by a request already in flight.
+     */
+    public long getCoalescedRequests() { return coalesced.get(); }
+
+    /**
+     * @return the number of requests that are currently shared.
+     */
+    public int getInFlightRequests() { return tuples.size() + answers.size(); }
+
+    @Override
+    public String toString() {
+        return "RequestCoalescer{sent=" + getSentRequests() + ", coalesced=" + getCoalescedRequests() + "}";
+    }
+
+    private static class PendingAnswer {
+
+        // the interval in milliseconds at which a waiting request checks whether its query was cancelled
+        private static final long CHECK_INTERVAL = 100;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile boolean answer;
+
+        private volatile Exception failure;
+
+        public void complete(boolean answer, Exception failure) {
+            this.answer = answer;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        public boolean get(QueryContext context) throws QueryEvaluationException {
+            try {
+                if (context == null) {
+                    done.await();
+                } else {
+                    // the context does not signal its cancellation, so check it periodically
+                    context.check();
+                    while (!done.await(Math.min(CHECK_INTERVAL, Math.max(1, context.getRemainingTime())),
+                                       TimeUnit.MILLISECONDS))
+                        context.check();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueryInterruptedException(e);
+            }
+
+            if (failure != null)
+                throw new QueryEvaluationException(failure);
+
+            return answer;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identifies a query sent to an endpoint. Two keys are equal if the queries
+ * are sent to the same endpoint, their text is equal up to whitespace
+ * and they are sent along with the same bindings.
+ */
+public class RequestKey {
+
+    private final URI endpoint;
+
+    private final String query;
+
+    private final String bindings;
+
+    private final boolean ask;
+
+    private final int hash;
+
+    private RequestKey(URI endpoint, String query, String bindings, boolean ask) {
+        this.endpoint = endpoint;
+        this.query = query;
+        this.bindings = bindings;
+        this.ask = ask;
+        this.hash = 31 * (31 * (31 * endpoint.hashCode() + query.hashCode()) + bindings.hashCode()) + (ask ? 1 : 0);
+    }
+
+    public URI getEndpoint() { return endpoint; }
+
+    long getSize() {
+        return 2 * (query.length() + bindings.length());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof RequestKey))
+            return false;
+
+        RequestKey k = (RequestKey) o;
+        return hash == k.hash && ask == k.ask &&
+               endpoint.equals(k.endpoint) && query.equals(k.query) && bindings.equals(k.bindings);
+    }
+
+    @Override
+    public int hashCode() { return hash; }
+
+    /**
+     * Creates the key of a query sent to an endpoint along with the given bindings.
+     */
+    public static RequestKey create(URI endpoint, String query, BindingSet bindings, boolean ask) {
+        return new RequestKey(endpoint, normalize(query), bindingsToString(bindings), ask);
+    }
+
+    /**
+     * Collapses the whitespace of a query that is outside string literals.
+     * IRIs are copied as they are, so a quote inside an IRI does not start a literal.
+     */
+    static String normalize(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        char quote = 0;
+        boolean space = false;
+
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+
+            if (quote != 0) {
+                sb.append(c);
+                if (c == '\\' && i + 1 < query.length())
+                    sb.append(query.charAt(++i));
+                else if (c == quote)
+                    quote = 0;
+            }
+            else if (Character.isWhitespace(c)) {
+                space = true;
+            }
+            else {
+                if (space && sb.length() > 0)
+                    sb.append(' ');
+                space = false;
+                if (c == '"' || c == '\'')
+                    quote = c;
+                else if (c == '<') {
+                    int end = iriEnd(query, i);
+                    if (end > 0) {
+                        sb.append(query, i, end);
+                        i = end - 1;
+                        continue;
+                    }
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the end of the IRI that starts at the given '<', or returns -1
+     * if the '<' is a less-than operator.
+     */
+    private static int iriEnd(String query, int start) {
+        for (int i = start + 1; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '>')
+                return i + 1;
+            if (c <= ' ' || c == '<' || c == '"' || c == '{' || c == '}' ||
+                c == '|' || c == '^' || c == '`' || c == '\\')
+                return -1;
+        }
+        return -1;
+    }
+
+    private static String bindingsToString(BindingSet bindings) {
+        if (bindings.size() == 0)
+            return "";
+
+        List<String> names = new ArrayList<String>(bindings.getBindingNames());
+        Collections.sort(names);
+
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            Binding b = bindings.getBinding(name);
+            if (b != null)
+                sb.append(name).append('=').append(b.getValue().toString()).append(';');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,279 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the results of remote queries that is shared by all the
+ * evaluation sessions. Entries are keyed by the endpoint, the normalized
+ * query text and the bindings sent along with the query. The cache is
+ * bounded by the estimated memory of its entries; the least recently
+ * used entries are evicted first and every entry expires after the
+ * time-to-live of its endpoint.
+ */
+public class ResultCache {
+
+    private final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    private final long maxSize;
+
+    private final long maxEntrySize;
+
+    private volatile long defaultTTL;
+
+    private final ConcurrentMap<URI, Long> ttls = new ConcurrentHashMap<URI, Long>();
+
+    // guarded by this
+    private final LinkedHashMap<RequestKey, Entry> entries = new LinkedHashMap<RequestKey, Entry>(64, 0.75f, true);
+
+    // guarded by this
+    private long size = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+
+    private final AtomicLong misses = new AtomicLong(0);
+
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    public ResultCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxSize the maximum estimated memory of the cached results in bytes
+     * @param defaultTTL the time-to-live of the entries in milliseconds
+     */
+    public ResultCache(long maxSize, long defaultTTL) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxSize / 8;
+        this.defaultTTL = defaultTTL;
+    }
+
+    public long getMaxSize() { return maxSize; }
+
+    public long getDefaultTTL() { return defaultTTL; }
+
+    public void setDefaultTTL(long ttl) { this.defaultTTL = ttl; }
+
+    /**
+     * Sets the time-to-live of the results of an endpoint.
+     * A non-positive value disables caching for the endpoint.
+     */
+    public void setTTL(URI endpoint, long ttl) { ttls.put(endpoint, ttl); }
+
+    public long getTTL(URI endpoint) {
+        Long ttl = ttls.get(endpoint);
+        return (ttl != null) ? ttl : defaultTTL;
+    }
+
+    public RequestKey createKey(URI endpoint, String query, BindingSet bindings, boolean ask) {
+        return RequestKey.create(endpoint, query, bindings, ask);
+    }
+
+    /**
+     * Gets an iteration over the cached result of a tuple query.
+     * @return the cached result or null if there is no valid entry for the key
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException> getTuples(RequestKey key) {
+        CachedResult result = get(key);
+        return (result != null) ? result.iterator(vf) : null;
+    }
+
+    /**
+     * Gets the cached answer of an ASK query.
+     * @return the cached answer or null if there is no valid entry for the key
+     */
+    public Boolean getBoolean(RequestKey key) {
+        CachedResult result = get(key);
+        return (result != null) ? result.getBoolean() : null;
+    }
+
+    public void putBoolean(RequestKey key, boolean answer) {
+        put(key, CachedResult.ofBoolean(answer));
+    }
+
+    /**
+     * Wraps the result of a tuple query so that it is cached once it is fully consumed.
+     * Results that are closed early or that grow larger than the maximum entry size are not cached.
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException>
+        cache(RequestKey key, CloseableIteration<BindingSet, QueryEvaluationException> iter)
+    {
+        if (getTTL(key.getEndpoint()) <= 0)
+            return iter;
+
+        return new CachingIteration(key, iter);
+    }
+
+    protected CachedResult get(RequestKey key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return entry.result;
+        }
+    }
+
+    protected void put(RequestKey key, CachedResult result) {
+        long ttl = getTTL(key.getEndpoint());
+        long entrySize = result.getSize() + key.getSize();
+
+        if (ttl <= 0 || entrySize > maxEntrySize)
+            return;
+
+        synchronized (this) {
+            remove(key);
+
+            entries.put(key, new Entry(result, entrySize, System.currentTimeMillis() + ttl));
+            size += entrySize;
+
+            Iterator<Map.Entry<RequestKey, Entry>> it = entries.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Entry e = it.next().getValue();
+                it.remove();
+                size -= e.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // must be called while holding the lock
+    private void remove(RequestKey key) {
+        Entry old = entries.remove(key);
+        if (old != null)
+            size -= old.size;
+    }
+
+    /**
+     * Removes all the cached results of an endpoint.
+     */
+    public synchronized void invalidate(URI endpoint) {
+        Iterator<Map.Entry<RequestKey, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<RequestKey, Entry> e = it.next();
+            if (e.getKey().getEndpoint().equals(endpoint)) {
+                it.remove();
+                size -= e.getValue().size;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEvictions() { return evictions.get(); }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the estimated memory of the cached results in bytes.
+     */
+    public synchronized long getSize() { return size; }
+
+    public synchronized int getEntryCount() { return entries.size(); }
+
+    @Override
+    public String toString() {
+        return "ResultCache{entries=" + getEntryCount() + ", size=" + getSize() +
+                ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "}";
+    }
+
+    private static class Entry {
+
+        private final CachedResult result;
+
+        private final long size;
+
+        private final long expires;
+
+        public Entry(CachedResult result, long size, long expires) {
+            this.result = result;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+
+    private class CachingIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final RequestKey key;
+
+        private final CloseableIteration<BindingSet, QueryEvaluationException> iter;
+
+        private CachedResult.Builder builder = new CachedResult.Builder();
+
+        public CachingIteration(RequestKey key, CloseableIteration<BindingSet, QueryEvaluationException> iter) {
+            this.key = key;
+            this.iter = iter;
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            if (!iter.hasNext()) {
+                if (builder != null) {
+                    put(key, builder.build());
+                    builder = null;
+                }
+                return null;
+            }
+
+            BindingSet next = iter.next();
+
+            if (builder != null) {
+                builder.add(next);
+                if (builder.size() > maxEntrySize) {
+                    logger.debug("Result of query to " + key.getEndpoint() + " is too large to be cached");
+                    builder = null;
+                }
+            }
+            return next;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            builder = null;
+            try {
+                super.handleClose();
+            } finally {
+                iter.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryContext;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The result of a remote query that is read by several consumers.
+ * Rows are pulled from the source on demand by whichever cursor is
+ * ahead and are buffered so that every cursor replays the result from
+ * the beginning. The source is closed when it is exhausted or when
+ * all the cursors are closed.
+ * <p>
+ * New cursors can be attached only while the result is shared; once
+ * the buffer reaches its limit the result stops being shared and the
+ * rows that have been read by all the cursors are released as the cursors
+ * advance. When a single cursor is left and it has read all the buffered
+ * rows, it is handed the source and reads it directly.
+ * <p>
+ * A cursor that waits for the response or for another cursor to read from the
+ * source gives up when the query it was attached for is cancelled or its deadline passes.
+ */
+public class SharedResult {
+
+    // the interval in milliseconds at which a waiting cursor checks whether its query was cancelled
+    private static final long CHECK_INTERVAL = 100;
+
+    private final int maxBuffered;
+
+    private final Runnable onUnshare;
+
+    // guarded by this
+    private CloseableIteration<BindingSet, QueryEvaluationException> source;
+    private final List<BindingSet> buffer = new ArrayList<BindingSet>();
+    private final List<Cursor> cursors = new ArrayList<Cursor>();
+    private int base = 0;
+    private boolean sourceSet = false;
+    private boolean exhausted = false;
+    private volatile boolean shared = true;
+    private Exception failure;
+
+    // held while reading from the source, never taken while holding the monitor of this
+    private final ReentrantLock pullLock = new ReentrantLock();
+
+    /**
+     * @param maxBuffered the number of rows after which no more cursors can be attached
+     * @param onUnshare called once when no more cursors can be attached
+     */
+    public SharedResult(int maxBuffered, Runnable onUnshare) {
+        this.maxBuffered = maxBuffered;
+        this.onUnshare = onUnshare;
+    }
+
+    /**
+     * Sets the iteration that produces the rows and wakes up the cursors waiting for it.
+     */
+    public synchronized void setSource(CloseableIteration<BindingSet, QueryEvaluationException> source) {
+        this.source = source;
+        this.sourceSet = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks the request as failed; every cursor will throw the given exception.
+     */
+    public void fail(Exception e) {
+        synchronized (this) {
+            failure = e;
+            sourceSet = true;
+            notifyAll();
+        }
+        unshare();
+    }
+
+    /**
+     * Attaches a new cursor that replays the result from the beginning.
+     * @return the new cursor or null if the result is no longer shared
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException> attach() {
+        return attach(null);
+    }
+
+    /**
+     * Attaches a new cursor that replays the result from the beginning.
+     * @param context the context of the query that reads the cursor, or null
+     * @return the new cursor or null if the result is no longer shared
+     */
+    public synchronized CloseableIteration<BindingSet, QueryEvaluationException> attach(QueryContext context) {
+        if (!shared)
+            return null;
+
+        Cursor c = new Cursor(context);
+        cursors.add(c);
+        return c;
+    }
+
+    /**
+     * @return the number of rows that are buffered.
+     */
+    synchronized int getBuffered() { return buffer.size(); }
+
+    private void unshare() {
+        boolean notify;
+        synchronized (this) {
+            notify = shared;
+            shared = false;
+            trim();
+        }
+        if (notify && onUnshare != null)
+            onUnshare.run();
+    }
+
+    // releases the rows that no cursor can read again
+    private synchronized void trim() {
+        if (shared || cursors.isEmpty())
+            return;
+
+        int min = Integer.MAX_VALUE;
+        for (Cursor c : cursors)
+            min = Math.min(min, c.position);
+
+        if (min - base > 1024 || min - base == buffer.size()) {
+            buffer.subList(0, min - base).clear();
+            base = min;
+        }
+    }
+
+    private void detach(Cursor cursor) throws QueryEvaluationException {
+        CloseableIteration<BindingSet, QueryEvaluationException> toClose = null;
+        boolean last;
+
+        synchronized (this) {
+            cursors.remove(cursor);
+            last = cursors.isEmpty();
+            if (last && !exhausted) {
+                toClose = source;
+                source = null;
+                exhausted = true;
+            }
+            trim();
+            // wake up the cursor if it is waiting for the source
+            notifyAll();
+        }
+
+        if (last)
+            unshare();
+
+        if (toClose != null)
+            toClose.close();
+    }
+
+    /**
+     * Hands the source to the cursor if it is the only one left and has read all the buffered rows.
+     * @return the source, which the cursor must close, or null if the cursor must read the buffer
+     */
+    private CloseableIteration<BindingSet, QueryEvaluationException> handOver(Cursor cursor) {
+        pullLock.lock();
+        try {
+            synchronized (this) {
+                if (shared || cursors.size() != 1 || cursors.get(0) != cursor || source == null ||
+                    exhausted || failure != null || cursor.position != base + buffer.size())
+                    return null;
+
+                CloseableIteration<BindingSet, QueryEvaluationException> src = source;
+                source = null;
+                exhausted = true;
+                buffer.clear();
+                base = cursor.position;
+                return src;
+            }
+        } finally {
+            pullLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the row at the given position, pulling it from the source if needed.
+     * @return the row or null if the result has fewer rows or the cursor is closed
+     */
+    private BindingSet get(Cursor cursor, int position) throws QueryEvaluationException {
+        QueryContext context = cursor.context;
+
+        while (true) {
+            boolean waiting;
+
+            synchronized (this) {
+                waiting = !sourceSet;
+
+                if (waiting) {
+                    if (cursor.isClosed())
+                        return null;
+                    pause(context);
+                } else {
+                    if (position < base + buffer.size())
+                        return buffer.get(position - base);
+
+                    if (failure != null)
+                        throw toQueryEvaluationException(failure);
+
+                    if (exhausted)
+                        return null;
+                }
+            }
+
+            // the context is checked outside the monitor, since cancelling the query closes results
+            if (waiting) {
+                if (context != null)
+                    context.check();
+                continue;
+            }
+
+            if (!lockPull(context))
+                continue;
+
+            try {
+                CloseableIteration<BindingSet, QueryEvaluationException> src;
+                synchronized (this) {
+                    // another cursor may have read the row while waiting for the lock
+                    if (position < base + buffer.size() || exhausted || failure != null || cursor.isClosed())
+                        continue;
+                    src = source;
+                }
+                pull(src);
+            } finally {
+                pullLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits until the monitor of this is notified, or for a while only if there is a
+     * context to check; must be called while holding the monitor.
+     */
+    private void pause(QueryContext context) throws QueryInterruptedException {
+        try {
+            if (context == null)
+                wait();
+            else
+                wait(Math.min(CHECK_INTERVAL, Math.max(1, context.getRemainingTime())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryInterruptedException(e);
+        }
+    }
+
+    /**
+     * Waits for the pull lock, for a while only if there is a context to check.
+     * @return true if the lock was taken
+     */
+    private boolean lockPull(QueryContext context) throws QueryInterruptedException {
+        try {
+            if (context == null) {
+                pullLock.lockInterruptibly();
+                return true;
+            }
+            context.check();
+            if (pullLock.tryLock(Math.min(CHECK_INTERVAL, Math.max(1, context.getRemainingTime())), TimeUnit.MILLISECONDS))
+                return true;
+            context.check();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryInterruptedException(e);
+        }
+    }
+
+    // must be called while holding the pull lock
+    private void pull(CloseableIteration<BindingSet, QueryEvaluationException> src)
+            throws QueryEvaluationException
+    {
+        BindingSet next = null;
+        Exception error = null;
+
+        try {
+            if (src.hasNext())
+                next = src.next();
+        } catch (Exception e) {
+            error = e;
+        }
+
+        boolean unshare = false;
+
+        synchronized (this) {
+            if (error != null)
+                failure = error;
+            else if (next != null)
+                buffer.add(next);
+            else
+                exhausted = true;
+
+            if (next == null || base + buffer.size() >= maxBuffered)
+                unshare = shared;
+        }
+
+        if (unshare)
+            unshare();
+
+        if (next == null)
+            src.close();
+    }
+
+    private static QueryEvaluationException toQueryEvaluationException(Exception e) {
+        if (e instanceof QueryEvaluationException)
+            return new QueryEvaluationException(e.getMessage(), e);
+        else
+            return new QueryEvaluationException(e);
+    }
+
+    private class Cursor extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final QueryContext context;
+
+        private volatile int position = 0;
+
+        // the source, once this cursor is the only one left
+        private volatile CloseableIteration<BindingSet, QueryEvaluationException> direct;
+
+        Cursor(QueryContext context) { this.context = context; }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            if (direct == null && !shared)
+                direct = handOver(this);
+
+            if (direct != null)
+                return direct.hasNext() ? direct.next() : null;
+
+            BindingSet next = get(this, position);
+            if (next != null) {
+                position++;
+                if (!shared)
+                    trim();
+            }
+            return next;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            try {
+                detach(this);
+            } finally {
+                if (direct != null)
+                    direct.close();
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.file;
 
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.ResultParserPool;
 import info.aduna.iteration.CloseableIteration;
 import org.openrdf.http.client.BackgroundTupleResult;
 import org.openrdf.model.URI;
@@ -7,6 +8,8 @@ import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryResultHandler;
+import org.openrdf.query.TupleQueryResultHandler;
+import org.openrdf.query.TupleQueryResultHandlerException;
 import org.openrdf.query.resultio.*;
 
 import java.io.*;
@@ -23,11 +26,20 @@ public class FileManager implements MaterializationManager {
 
     private File baseDir;
 
+    private ResultParserPool parserPool;
+
     public FileManager(File baseDir, TupleQueryResultWriterFactory writerFactory) {
         this.writerFactory = writerFactory;
         this.baseDir = baseDir;
     }
 
+    public ResultParserPool getParserPool() { return parserPool; }
+
+    /**
+     * Sets the pool that parses the stored results, or null to parse each of them on a thread of its own.
+     */
+    public void setParserPool(ResultParserPool parserPool) { this.parserPool = parserPool; }
+
     @Override
     public CloseableIteration<BindingSet,QueryEvaluationException>
         getResult(URI q) throws QueryEvaluationException
@@ -35,11 +47,35 @@ public class FileManager implements MaterializationManager {
         try {
             File f = new File(convertbackURI(q));
             TupleQueryResultParserRegistry registry = TupleQueryResultParserRegistry.getInstance();
-            TupleQueryResultFormat ff = registry.getFileFormatForFileName(f.getAbsolutePath());
+            final TupleQueryResultFormat ff = registry.getFileFormatForFileName(f.getAbsolutePath());
+            final InputStream in = new BufferedInputStream(new FileInputStream(f));
+
+            if (parserPool != null)
+                return parserPool.parse(new ResultParserPool.ParseTask() {
+                    @Override
+                    public void parse(TupleQueryResultHandler handler) throws Exception {
+                        try {
+                            QueryResultIO.parse(in, ff, handler, ValueFactoryImpl.getInstance());
+                        } finally {
+                            in.close();
+                        }
+                    }
+
+                    @Override
+                    public void cancel() {
+                        closeQuietly(in);
+                    }
+                });
+
             TupleQueryResultParserFactory factory = registry.get(ff);
             TupleQueryResultParser parser = factory.getParser();
-            InputStream in = new FileInputStream(f);
-            return new BackgroundTupleResult(parser, in, null);
+            BackgroundTupleResult result = new BackgroundTupleResult(parser, in, null);
+
+            // the result is filled by a parser that runs on a thread of its own
+            Thread thread = new Thread(result, "semagrow-file-parser");
+            thread.setDaemon(true);
+            thread.start();
+            return result;
             //return new BackgroundTupleResult(parser, in);
         } catch (URISyntaxException | FileNotFoundException e) {
             throw new QueryEvaluationException(e);
@@ -52,9 +88,9 @@ public class FileManager implements MaterializationManager {
         try {
             File file = getNewFile();
             URI storeId = convertURI(file.toURI());
-            OutputStream out = new FileOutputStream(file);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
             TupleQueryResultWriter writer = writerFactory.getWriter(out);
-            return new StoreHandler(storeId, writer);
+            return new StoreHandler(storeId, writer, out);
         } catch (IOException e) {
             throw new QueryEvaluationException(e);
         }
@@ -66,6 +102,12 @@ public class FileManager implements MaterializationManager {
         return File.createTempFile(filePrefix, "." + ext, baseDir);
     }
 
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) { }
+    }
+
     public static URI convertURI(java.net.URI uri) {
         return ValueFactoryImpl.getInstance().createURI(uri.toString());
     }
@@ -80,16 +122,49 @@ public class FileManager implements MaterializationManager {
     {
         private URI id;
 
+        private OutputStream out;
+
         public StoreHandler(URI id, QueryResultHandler handler) {
+            this(id, handler, null);
+        }
+
+        /**
+         * @param out the stream of the stored result, which is closed when the result ends
+         */
+        public StoreHandler(URI id, QueryResultHandler handler, OutputStream out) {
             super(handler);
             this.id = id;
+            this.out = out;
         }
 
         public URI getId() { return id; }
 
+        @Override
+        public void endQueryResult() throws TupleQueryResultHandlerException {
+            super.endQueryResult();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    throw new TupleQueryResultHandlerException(e);
+                }
+            }
+        }
+
         public void handleException(Exception e) { }
 
-        public void destroy() { }
+        /**
+         * Deletes the file of the stored result.
+         */
+        public void destroy() {
+            if (out != null)
+                closeQuietly(out);
+            try {
+                File file = new File(convertbackURI(id));
+                if (file.exists() && !file.delete())
+                    file.deleteOnExit();
+            } catch (URISyntaxException e) { }
+        }
     }
 
 
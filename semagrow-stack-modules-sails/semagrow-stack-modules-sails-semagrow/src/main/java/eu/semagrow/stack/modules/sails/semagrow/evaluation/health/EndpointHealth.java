@@ -0,0 +1,168 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.health;
+
+import eu.semagrow.stack.modules.api.source.SourceStatusEvent;
+import org.openrdf.model.URI;
+
+import java.util.Arrays;
+
+/**
+ * The recent history of the requests to an endpoint and the state of its circuit breaker.
+ * <p>
+ * The outcomes and latencies of the last requests are kept in a fixed-size window.
+ * The breaker opens when the error rate of the window reaches the failure threshold;
+ * while open, requests are refused. After the open timeout the breaker becomes half-open
+ * and lets a single probe request through: the breaker closes if the probe succeeds
+ * and opens again if it fails.
+ */
+public class EndpointHealth {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final URI endpoint;
+
+    private final EndpointHealthRegistry registry;
+
+    // guarded by this
+    private final long[] latencies;
+    private final boolean[] failed;
+    private int next = 0;
+    private int count = 0;
+    private int failures = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private long probeStartedAt = -1;
+
+    EndpointHealth(URI endpoint, EndpointHealthRegistry registry) {
+        this.endpoint = endpoint;
+        this.registry = registry;
+        this.latencies = new long[registry.getWindowSize()];
+        this.failed = new boolean[registry.getWindowSize()];
+    }
+
+    public URI getEndpoint() { return endpoint; }
+
+    public synchronized State getState() { return state; }
+
+    /**
+     * Decides whether a request can be sent to the endpoint.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+
+        switch (state) {
+            case OPEN:
+                if (now - openedAt < registry.getOpenTimeout())
+                    return false;
+                state = State.HALF_OPEN;
+                probeStartedAt = now;
+                return true;
+            case HALF_OPEN:
+                // a probe that never reported back does not keep the endpoint closed forever
+                if (probeStartedAt >= 0 && now - probeStartedAt < registry.getOpenTimeout())
+                    return false;
+                probeStartedAt = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess(long latency) {
+        add(latency, false);
+
+        if (state == State.HALF_OPEN) {
+            reset();
+            state = State.CLOSED;
+        }
+    }
+
+    public synchronized void recordFailure(long latency) {
+        add(latency, true);
+
+        if (state == State.HALF_OPEN ||
+                (state == State.CLOSED && count >= registry.getMinRequests() &&
+                 getErrorRate() >= registry.getFailureThreshold()))
+        {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            probeStartedAt = -1;
+        }
+    }
+
+    // must be called while holding the monitor
+    private void add(long latency, boolean failure) {
+        if (count == latencies.length) {
+            if (failed[next])
+                failures--;
+        } else {
+            count++;
+        }
+
+        latencies[next] = latency;
+        failed[next] = failure;
+        if (failure)
+            failures++;
+
+        next = (next + 1) % latencies.length;
+    }
+
+    // must be called while holding the monitor
+    private void reset() {
+        next = 0;
+        count = 0;
+        failures = 0;
+    }
+
+    /**
+     * @return the number of requests in the window.
+     */
+    public synchronized int getRequests() { return count; }
+
+    /**
+     * @return the fraction of the requests in the window that failed.
+     */
+    public synchronized double getErrorRate() {
+        return (count == 0) ? 0 : (double) failures / count;
+    }
+
+    /**
+     * @param p the percentile between 0 and 1
+     * @return the given percentile of the latencies in the window in milliseconds.
+     */
+    public synchronized long getLatencyPercentile(double p) {
+        if (count == 0)
+            return 0;
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(p * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, idx))];
+    }
+
+    public synchronized SourceStatusEvent.Status getStatus() {
+        switch (state) {
+            case OPEN:
+                return SourceStatusEvent.Status.UNAVAILABLE;
+            case HALF_OPEN:
+                return SourceStatusEvent.Status.DEGRADED;
+            default:
+                if (count >= registry.getMinRequests() &&
+                        (getErrorRate() >= registry.getFailureThreshold() / 2 ||
+                         getLatencyPercentile(0.95) >= registry.getSlowThreshold()))
+                    return SourceStatusEvent.Status.DEGRADED;
+                return SourceStatusEvent.Status.AVAILABLE;
+        }
+    }
+
+    public synchronized SourceStatusEvent toEvent() {
+        return new SourceStatusEvent(endpoint, getStatus(), getErrorRate(),
+                getLatencyPercentile(0.5), getLatencyPercentile(0.95));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return endpoint + "{state=" + state + ", errorRate=" + getErrorRate() +
+                ", p50=" + getLatencyPercentile(0.5) + "ms, p95=" + getLatencyPercentile(0.95) + "ms}";
+    }
+}
@@ -0,0 +1,167 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.health;
+
+import eu.semagrow.stack.modules.api.source.SourceStatusEvent;
+import eu.semagrow.stack.modules.api.source.SourceStatusListener;
+import org.openrdf.model.URI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the health of the remote endpoints from the outcomes of the requests sent to them.
+ * A single registry is shared by all the evaluation sessions of a SemagrowSail.
+ * Listeners are notified with a {@link SourceStatusEvent} whenever the status of an endpoint changes.
+ */
+public class EndpointHealthRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(EndpointHealthRegistry.class);
+
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    public static final int DEFAULT_MIN_REQUESTS = 10;
+
+    public static final double DEFAULT_FAILURE_THRESHOLD = 0.5;
+
+    public static final long DEFAULT_OPEN_TIMEOUT = 30000;
+
+    public static final long DEFAULT_SLOW_THRESHOLD = 10000;
+
+    private final ConcurrentMap<URI, EndpointHealth> endpoints =
+            new ConcurrentHashMap<URI, EndpointHealth>();
+
+    private final ConcurrentMap<URI, SourceStatusEvent.Status> statuses =
+            new ConcurrentHashMap<URI, SourceStatusEvent.Status>();
+
+    private final List<SourceStatusListener> listeners = new CopyOnWriteArrayList<SourceStatusListener>();
+
+    private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+
+    private volatile int minRequests = DEFAULT_MIN_REQUESTS;
+
+    private volatile double failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    private volatile long openTimeout = DEFAULT_OPEN_TIMEOUT;
+
+    private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+
+    public int getWindowSize() { return windowSize; }
+
+    /**
+     * Sets the number of recent requests that are considered for each endpoint.
+     * Applies to the endpoints that are seen after the call.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("Window size must be positive");
+        this.windowSize = windowSize;
+    }
+
+    public int getMinRequests() { return minRequests; }
+
+    /**
+     * Sets the number of requests in the window before the error rate can open the breaker.
+     */
+    public void setMinRequests(int minRequests) { this.minRequests = minRequests; }
+
+    public double getFailureThreshold() { return failureThreshold; }
+
+    /**
+     * Sets the error rate at which the breaker of an endpoint opens.
+     */
+    public void setFailureThreshold(double failureThreshold) { this.failureThreshold = failureThreshold; }
+
+    public long getOpenTimeout() { return openTimeout; }
+
+    /**
+     * Sets the time in milliseconds an open breaker waits before letting a probe request through.
+     */
+    public void setOpenTimeout(long openTimeout) { this.openTimeout = openTimeout; }
+
+    public long getSlowThreshold() { return slowThreshold; }
+
+    /**
+     * Sets the 95th percentile latency in milliseconds above which an endpoint is considered degraded.
+     */
+    public void setSlowThreshold(long slowThreshold) { this.slowThreshold = slowThreshold; }
+
+    public void addListener(SourceStatusListener listener) {
+        if (!listeners.contains(listener))
+            listeners.add(listener);
+    }
+
+    public void removeListener(SourceStatusListener listener) { listeners.remove(listener); }
+
+    public EndpointHealth getHealth(URI endpoint) {
+        EndpointHealth health = endpoints.get(endpoint);
+
+        if (health == null) {
+            EndpointHealth newHealth = new EndpointHealth(endpoint, this);
+            health = endpoints.putIfAbsent(endpoint, newHealth);
+            if (health == null)
+                health = newHealth;
+        }
+
+        return health;
+    }
+
+    public Collection<EndpointHealth> getEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    public SourceStatusEvent.Status getStatus(URI endpoint) {
+        EndpointHealth health = endpoints.get(endpoint);
+        return (health != null) ? health.getStatus() : SourceStatusEvent.Status.AVAILABLE;
+    }
+
+    /**
+     * Decides whether a request can be sent to the endpoint, according to the state of its breaker.
+     */
+    public boolean allowRequest(URI endpoint) {
+        EndpointHealth health = getHealth(endpoint);
+        boolean allowed = health.allowRequest();
+        publish(health);
+        return allowed;
+    }
+
+    public void recordSuccess(URI endpoint, long latency) {
+        EndpointHealth health = getHealth(endpoint);
+        health.recordSuccess(latency);
+        publish(health);
+    }
+
+    public void recordFailure(URI endpoint, long latency) {
+        EndpointHealth health = getHealth(endpoint);
+        health.recordFailure(latency);
+        publish(health);
+    }
+
+    private void publish(EndpointHealth health) {
+        SourceStatusEvent.Status status = health.getStatus();
+        SourceStatusEvent.Status old = statuses.put(health.getEndpoint(), status);
+
+        if (old == status || (old == null && status == SourceStatusEvent.Status.AVAILABLE))
+            return;
+
+        SourceStatusEvent event = health.toEvent();
+        logger.info("Status of " + health.getEndpoint() + " changed to " + status + ": " + event);
+
+        for (SourceStatusListener listener : listeners) {
+            try {
+                listener.sourceStatusChanged(event);
+            } catch (RuntimeException e) {
+                logger.warn("Source status listener failed", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EndpointHealthRegistry" + endpoints.values();
+    }
+}
@@ -0,0 +1,19 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.health;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.QueryEvaluationException;
+
+/**
+ * Thrown when a request is refused because the circuit breaker of its endpoint is open.
+ */
+public class EndpointUnavailableException extends QueryEvaluationException {
+
+    private final URI endpoint;
+
+    public EndpointUnavailableException(URI endpoint) {
+        super("Endpoint " + endpoint + " is unavailable");
+        this.endpoint = endpoint;
+    }
+
+    public URI getEndpoint() { return endpoint; }
+}
@@ -1,85 +1,210 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
 
 import info.aduna.iteration.*;
-import org.openrdf.query.QueryEvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
- * Created by angel on 6/5/14.
+ * An iteration that is created and consumed by a task on an executor.
+ * The task prefetches the elements of the iteration into a bounded ring
+ * buffer, so that the production of the elements (usually network I/O)
+ * overlaps with their consumption.
+ * <p>
+ * The producer stops prefetching when the buffer holds as many elements
+ * as the high-water mark and resumes when the consumer has drained it to
+ * half of that. Elements are handed over in batches: the producer publishes
+ * a batch when it is full or when the consumer has run out of elements, and
+ * the consumer takes a whole batch at a time. A failure of the producer is
+ * thrown to the consumer after the elements produced before it; closing
+ * the cursor cancels the producer and closes the underlying iteration.
  */
-public abstract class AsyncCursor<E,X extends Exception> extends CloseableIterationBase<E,X> {
+public abstract class AsyncCursor<E,X extends Exception> extends LookAheadIteration<E,X> {
 
-    protected Future<Iteration<E, X>> future;
+    private static final Logger logger = LoggerFactory.getLogger(AsyncCursor.class);
 
-    private Iteration<? extends E, ? extends X> iter;
+    public static final int DEFAULT_CAPACITY = 1024;
 
-    //public AsyncCursor(Future<CloseableIteration<E, QueryEvaluationException>> future) {
-    //    this.future = future;
-    //}
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final int highWaterMark;
+
+    private final int lowWaterMark;
+
+    private final int batchSize;
+
+    // guarded by this
+    private final Object[] ring;
+    private int head = 0;
+    private volatile int count = 0;
+    private boolean paused = false;
+    private boolean done = false;
+    private Throwable failure;
+
+    // accessed only by the consumer
+    private final ArrayDeque<E> batch;
+
+    private volatile boolean closed = false;
+
+    protected Future<?> future;
 
     public AsyncCursor(ExecutorService executorService) {
+        this(executorService, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
 
-        future = executorService.submit(new Callable<Iteration<E, X>>() {
+    /**
+     * @param highWaterMark the maximum number of elements that are prefetched
+     * @param batchSize the number of elements that are handed over at once
+     */
+    public AsyncCursor(ExecutorService executorService, int highWaterMark, int batchSize) {
+        this.highWaterMark = Math.max(highWaterMark, 1);
+        this.lowWaterMark = this.highWaterMark / 2;
+        this.batchSize = Math.max(Math.min(batchSize, this.highWaterMark), 1);
+        this.ring = new Object[this.highWaterMark + this.batchSize];
+        this.batch = new ArrayDeque<E>(this.batchSize);
+
+        future = executorService.submit(new Runnable() {
             @Override
-            public Iteration<E,X> call() throws Exception {
-                return createIteration();
-            }
+            public void run() { produce(); }
         });
-
     }
 
     protected abstract Iteration<E, X>
         createIteration() throws X;
 
+    /**
+     * @return the number of elements that are prefetched but not yet consumed.
+     */
+    public int getBuffered() { return count + batch.size(); }
+
+    @Override
+    protected E getNextElement() throws X {
+        if (batch.isEmpty())
+            take();
+
+        return batch.poll();
+    }
+
     @Override
     protected void handleClose() throws X {
-        if (iter != null)
-            Iterations.closeCloseable(iter);
-        else
-            future.cancel(true);
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        future.cancel(true);
+        batch.clear();
+        super.handleClose();
     }
 
-    public boolean hasNext() throws X {
-        try {
-            if (iter == null)
-                iter = future.get();
+    @SuppressWarnings("unchecked")
+    private void take() throws X {
+        Throwable error;
+
+        synchronized (this) {
+            while (count == 0 && !done && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while waiting for results");
+                }
+            }
 
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
+            int n = Math.min(count, batchSize);
+            for (int i = 0; i < n; i++) {
+                batch.add((E) ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+            }
+            count -= n;
 
-        if (iter != null)
-            return iter.hasNext();
+            if (paused && count <= lowWaterMark) {
+                paused = false;
+                notifyAll();
+            }
 
-        return false;
+            error = (count == 0 && done) ? failure : null;
+        }
+
+        if (batch.isEmpty() && error != null) {
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+            // createIteration and the iteration itself can only throw X
+            throw (X) error;
+        }
     }
 
-    public E next() throws X {
-        try {
-            if (iter == null)
-                iter = future.get();
+    private synchronized boolean publish(List<E> elements) {
+        while (!closed && (paused || count + elements.size() > ring.length)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
 
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+        if (closed)
+            return false;
+
+        for (E e : elements) {
+            ring[(head + count) % ring.length] = e;
+            count++;
         }
+        elements.clear();
+
+        if (count >= highWaterMark)
+            paused = true;
 
-        if (iter != null && iter.hasNext())
-            return iter.next();
-        else
-            return null;
+        notifyAll();
+        return true;
     }
 
-    public void remove() throws X {
+    private synchronized void finish(Throwable error) {
+        failure = error;
+        done = true;
+        notifyAll();
+    }
+
+    private void produce() {
+        Iteration<E, X> iter = null;
+        List<E> elements = new ArrayList<E>(batchSize);
+        Throwable error = null;
+
+        try {
+            if (closed)
+                return;
+
+            iter = createIteration();
 
-        if (iter == null || isClosed()) {
-            throw new IllegalStateException();
+            while (!closed && iter.hasNext()) {
+                elements.add(iter.next());
+
+                // hand over eagerly while the consumer keeps up, in batches when it lags behind
+                if ((elements.size() >= batchSize || count == 0) && !publish(elements))
+                    return;
+            }
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            if (iter != null) {
+                try {
+                    Iterations.closeCloseable(iter);
+                } catch (Exception e) {
+                    logger.warn("Failed to close iteration", e);
+                }
+            }
         }
 
-        iter.remove();
+        if (!elements.isEmpty())
+            publish(elements);
+
+        finish(error);
     }
 }
@@ -0,0 +1,168 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import info.aduna.iteration.Iteration;
+import info.aduna.iteration.Iterations;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.query.QueryEvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An n-ary union that drains all of its arguments concurrently.
+ * Every argument is consumed by its own task on the given executor and its
+ * elements are put in a bounded queue that is shared by all the arguments,
+ * so the elements are returned in the order they become available.
+ * <p>
+ * Producers block when the queue is full and are resumed in the order they
+ * blocked, so a fast argument cannot starve the others. Closing the union
+ * stops all the producers and closes their arguments. If an argument fails
+ * the union is closed and the failure is thrown to the consumer.
+ */
+public class ConcurrentUnionIteration<E> extends LookAheadIteration<E, QueryEvaluationException> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrentUnionIteration.class);
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Object DONE = new Object();
+
+    private final BlockingQueue<Object> queue;
+
+    private final List<Producer> producers;
+
+    private int running;
+
+    private volatile boolean closed = false;
+
+    public ConcurrentUnionIteration(ExecutorService executor,
+                                    List<? extends Iteration<? extends E, ? extends QueryEvaluationException>> args)
+    {
+        this(executor, args, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of elements that can be produced ahead of the consumer
+     */
+    public ConcurrentUnionIteration(ExecutorService executor,
+                                    List<? extends Iteration<? extends E, ? extends QueryEvaluationException>> args,
+                                    int capacity)
+    {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(capacity, 1), true);
+        this.producers = new ArrayList<Producer>(args.size());
+        this.running = args.size();
+
+        for (Iteration<? extends E, ? extends QueryEvaluationException> arg : args) {
+            Producer producer = new Producer(arg);
+            producers.add(producer);
+            producer.future = executor.submit(producer);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected E getNextElement() throws QueryEvaluationException {
+        while (running > 0 && !closed) {
+            Object next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueryEvaluationException(e);
+            }
+
+            if (next == DONE) {
+                running--;
+            } else if (next instanceof Failure) {
+                close();
+                Exception cause = ((Failure) next).cause;
+                if (cause instanceof QueryEvaluationException)
+                    throw (QueryEvaluationException) cause;
+                throw new QueryEvaluationException(cause);
+            } else {
+                return (E) next;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        closed = true;
+
+        for (Producer producer : producers)
+            producer.cancel();
+
+        // release the producers that are blocked on a full queue
+        queue.clear();
+
+        super.handleClose();
+    }
+
+    private static class Failure {
+
+        private final Exception cause;
+
+        public Failure(Exception cause) { this.cause = cause; }
+    }
+
+    private class Producer implements Runnable {
+
+        private final Iteration<? extends E, ? extends QueryEvaluationException> arg;
+
+        private final AtomicBoolean started = new AtomicBoolean(false);
+
+        private Future<?> future;
+
+        public Producer(Iteration<? extends E, ? extends QueryEvaluationException> arg) {
+            this.arg = arg;
+        }
+
+        public void cancel() throws QueryEvaluationException {
+            if (started.compareAndSet(false, true))
+                Iterations.closeCloseable(arg);
+            else if (future != null)
+                future.cancel(true);
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true))
+                return;
+
+            Object last = DONE;
+            try {
+                while (!closed && arg.hasNext()) {
+                    if (!offer(arg.next()))
+                        return;
+                }
+            } catch (Exception e) {
+                if (!closed)
+                    last = new Failure(e);
+            } finally {
+                try {
+                    Iterations.closeCloseable(arg);
+                } catch (Exception e) {
+                    logger.warn("Failed to close union argument", e);
+                }
+            }
+            offer(last);
+        }
+
+        private boolean offer(Object o) {
+            try {
+                while (!closed) {
+                    if (queue.offer(o, 100, TimeUnit.MILLISECONDS))
+                        return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+}
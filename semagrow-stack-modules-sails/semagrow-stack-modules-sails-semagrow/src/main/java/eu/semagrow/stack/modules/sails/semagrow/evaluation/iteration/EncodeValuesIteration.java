@@ -0,0 +1,50 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSchema;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.CompactBindingSet;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.ConvertingIteration;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+
+/**
+ * Replaces the values of the rows of a remote result with the values of a {@link ValueDictionary}.
+ */
+public class EncodeValuesIteration extends ConvertingIteration<BindingSet, BindingSet, QueryEvaluationException> {
+
+    private final ValueDictionary dictionary;
+
+    private BindingSchema cover;
+
+    public EncodeValuesIteration(CloseableIteration<BindingSet, QueryEvaluationException> iter,
+                                 ValueDictionary dictionary) {
+        super(iter);
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    protected BindingSet convert(BindingSet bindings) throws QueryEvaluationException {
+        if (bindings instanceof CompactBindingSet) {
+            CompactBindingSet compact = (CompactBindingSet) bindings;
+            BindingSchema schema = compact.getSchema();
+            Value[] values = new Value[schema.getWidth()];
+
+            for (int i = 0; i < schema.size(); i++) {
+                int slot = schema.getSlot(i);
+                if (slot >= 0 && values[slot] == null)
+                    values[slot] = dictionary.encode(compact.getValue(i));
+            }
+            return new CompactBindingSet(schema, values);
+        }
+
+        cover = BindingSchema.cover(cover, bindings);
+        Value[] values = new Value[cover.getWidth()];
+
+        for (int i = 0; i < cover.size(); i++)
+            values[i] = dictionary.encode(bindings.getValue(cover.getName(i)));
+
+        return new CompactBindingSet(cover, values);
+    }
+}
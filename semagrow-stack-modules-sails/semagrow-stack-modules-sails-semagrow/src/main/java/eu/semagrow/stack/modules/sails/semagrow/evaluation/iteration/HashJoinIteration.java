@@ -1,56 +1,106 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
 
-import eu.semagrow.stack.modules.sails.semagrow.algebra.HashJoin;
-import eu.semagrow.stack.modules.sails.semagrow.algebra.ProvenanceValue;
-import eu.semagrow.stack.modules.sails.semagrow.evaluation.EvaluationStrategyImpl;
-//import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.parallel.ParallelEvaluator;
-//import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.parallel.base.ParallelEvaluatorBase;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSetMerger;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
+import eu.semagrow.stack.modules.sails.semagrow.optimizer.Plan;
 import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+import info.aduna.iteration.Iteration;
 import info.aduna.iteration.LookAheadIteration;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
-import org.openrdf.query.algebra.evaluation.QueryBindingSet;
-import org.openrdf.query.impl.EmptyBindingSet;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-//import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 /**
- * Reimplementation of the BottomUpIterator that is provenance-aware
- *
+ * A provenance-aware hash join with a build and a probe phase.
+ * <p>
+ * The rows of the build side are put in a {@link JoinHashTable} and the rows of the probe side
+ * are joined with the rows of the table that have their key. The build side is the argument
+ * with the smaller estimated cardinality, and the probe side is prefetched on the executor
+ * while the table is built. Without estimates both arguments are read in turn and the one
+ * that runs out of rows first is the build side.
+ * <p>
+ * Once more rows than the parallel threshold have been probed, the rest of the probe side
+ * is probed by as many tasks as the parallelism, which take the probing rows in batches;
+ * the joined rows are then returned in the order they are produced.
+ * A probing row without bindings joins with every row of the table.
+ * <p>
+ * With a {@link MaterializationManager} the rows that the join holds in memory are bounded by
+ * a memory budget. Once the estimated memory of the rows read exceeds it, both inputs are
+ * partitioned on their join keys into stored results, and each pair of partitions is joined
+ * by a hash join of its own, which partitions its inputs again if they still do not fit.
  */
 public class HashJoinIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
 
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private static final int BATCH_SIZE = 64;
+
+    private static final int SPILL_PARTITIONS = 16;
+
+    // partitions of rows with the same key cannot be split, so they are eventually joined in memory
+    private static final int MAX_SPILL_DEPTH = 3;
+
+    // estimates of the memory held by a row of the table apart from its values, and by a value apart from its characters
+    private static final int ROW_OVERHEAD = 64;
+
+    private static final int VALUE_OVERHEAD = 48;
+
 	/*-----------*
 	 * Variables *
 	 *-----------*/
 
     private CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
 
-    private volatile CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
+    private CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
 
-    private List<BindingSet> scanList;
+    private CloseableIteration<BindingSet, QueryEvaluationException> prefetched;
 
-    private CloseableIteration<BindingSet, QueryEvaluationException> restIter;
+    private Set<String> joinAttributes;
 
-    private Map<BindingSet, List<BindingSet>> hashTable;
+    private final ExecutorService executor;
 
-    private Set<String> joinAttributes;
+    // the estimated cardinalities of the arguments, or 0 if unknown
+    private long leftCardinality;
+
+    private long rightCardinality;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
 
-    private BindingSet currentScanElem;
+    private MaterializationManager materializationManager;
 
-    private List<BindingSet> hashTableValues;
+    private long memoryBudget = 0;
+
+    private int depth = 0;
+
+    private JoinPartitions buildPartitions;
+
+    private JoinPartitions probePartitions;
+
+    // whether the probe side has rows without bindings, which join with every row of the build side
+    private boolean probeHasEmptyRows = false;
+
+    private JoinHashTable hashTable;
+
+    private ProbeSource probeSource;
+
+    // the probe that runs on the consumer thread, until the probe side is probed in parallel
+    private Probe probe;
+
+    private CloseableIteration<BindingSet, QueryEvaluationException> results;
 
-    //private ParallelEvaluator evaluator = null;
-    
 	/*--------------*
 	 * Constructors *
 	 *--------------*/
@@ -58,265 +108,446 @@ public class HashJoinIteration extends LookAheadIteration<BindingSet, QueryEvalu
     public HashJoinIteration(EvaluationStrategy strategy, Join join, BindingSet bindings)
             throws QueryEvaluationException
     {
-        //evaluator = new ParallelEvaluatorBase(strategy, bindings, join);
+        this(strategy, join, bindings, null);
+    }
+
+    /**
+     * @param executor the executor that prefetches the probe side and probes it in parallel, or null
+     */
+    public HashJoinIteration(EvaluationStrategy strategy, Join join, BindingSet bindings, ExecutorService executor)
+            throws QueryEvaluationException
+    {
         leftIter = strategy.evaluate(join.getLeftArg(), bindings);
         rightIter = strategy.evaluate(join.getRightArg(), bindings);
         joinAttributes = join.getLeftArg().getBindingNames();
-        joinAttributes.retainAll(join.getRightArg().getBindingNames());        
-        hashTable = null;
+        joinAttributes.retainAll(join.getRightArg().getBindingNames());
+        leftCardinality = cardinalityOf(join.getLeftArg());
+        rightCardinality = cardinalityOf(join.getRightArg());
+        this.executor = executor;
     }
 
     public HashJoinIteration(CloseableIteration<BindingSet, QueryEvaluationException> leftIter,
                              CloseableIteration<BindingSet, QueryEvaluationException> rightIter,
                              Set<String> attributes) {
+        this(leftIter, rightIter, attributes, null);
+    }
+
+    public HashJoinIteration(CloseableIteration<BindingSet, QueryEvaluationException> leftIter,
+                             CloseableIteration<BindingSet, QueryEvaluationException> rightIter,
+                             Set<String> attributes,
+                             ExecutorService executor) {
 
         this.leftIter = leftIter;
         this.rightIter = rightIter;
         this.joinAttributes = attributes;
-
-        hashTable = null;
+        this.executor = executor;
     }
 
 	/*---------*
 	 * Methods *
 	 *---------*/
 
+    /**
+     * Sets the estimated cardinalities of the arguments; the argument with the smaller one is the build side.
+     */
+    public void setCardinalities(long leftCardinality, long rightCardinality) {
+        this.leftCardinality = leftCardinality;
+        this.rightCardinality = rightCardinality;
+    }
+
+    /**
+     * Sets the number of tasks that probe the table in parallel.
+     */
+    public void setParallelism(int parallelism) { this.parallelism = parallelism; }
+
+    public int getParallelism() { return parallelism; }
+
+    /**
+     * Sets the number of rows that are probed on the consumer thread before the rest of the
+     * probe side is probed in parallel.
+     */
+    public void setParallelThreshold(int parallelThreshold) { this.parallelThreshold = parallelThreshold; }
+
+    public int getParallelThreshold() { return parallelThreshold; }
+
+    /**
+     * Bounds the memory of the rows that are held by the join; once the estimated memory of the rows
+     * exceeds the budget the inputs are spilled to stored results of the manager.
+     * @param memoryBudget the budget in bytes, or 0 to keep the rows in memory whatever their size
+     */
+    public void setMaterializationManager(MaterializationManager materializationManager, long memoryBudget) {
+        this.materializationManager = materializationManager;
+        this.memoryBudget = memoryBudget;
+    }
+
     @Override
     protected BindingSet getNextElement()
             throws QueryEvaluationException
     {
-        if (hashTable == null) {
-            /*
-            if (leftIter == null || rightIter == null) {
-                try {
-                    leftIter = (CloseableIteration<BindingSet, QueryEvaluationException>) evaluator.getLeftArg();
-                    rightIter = (CloseableIteration<BindingSet, QueryEvaluationException>) evaluator.getRightArg();
-                } catch (InterruptedException | ExecutionException ex) {
-                }
-            }
-            */
+        if (results == null)
             setupHashTable();
-        }
-
-        while (currentScanElem == null) {
-            if (scanList.size() > 0) {
-                currentScanElem = removeFirstElement(scanList);
-            }
-            else {
-                if (restIter.hasNext()) {
-                    currentScanElem = restIter.next();
-                }
-                else {
-                    // no more elements available
-                    return null;
-                }
-            }
 
-            if (currentScanElem instanceof EmptyBindingSet) {
-                // the empty bindingset should be merged with all bindingset in the
-                // hash table
-                hashTableValues = makeList();
-                for (Map.Entry<BindingSet, List<BindingSet>> key : hashTable.entrySet()) {
-                    addAll(hashTableValues, key.getValue());
-                }
-            }
-            else {
-                BindingSet key = calcKey(currentScanElem, joinAttributes);
+        if (probe != null && executor != null && parallelism > 1 && probeSource.getTaken() >= parallelThreshold)
+            probeInParallel();
 
-                if (hashTable.containsKey(key)) {
-                    hashTableValues = makeList(hashTable.get(key));
-                }
-                else {
-                    currentScanElem = null;
-                    hashTableValues = null;
-                }
-            }
-        }
+        if (results.hasNext())
+            return results.next();
+        else
+            return null;
+    }
 
-        BindingSet nextHashTableValue = removeFirstElement(hashTableValues);
+    /**
+     * Creates the merger of the matching rows; every task that probes the table has its own.
+     */
+    protected BindingSetMerger createMerger() {
+        return new ProvenanceMerger();
+    }
 
-        /*
-        QueryBindingSet result = new QueryBindingSet(currentScanElem);
+    @Override
+    protected void handleClose()
+            throws QueryEvaluationException
+    {
+        super.handleClose();
 
-        for (String name : nextHashTableValue.getBindingNames()) {
-            Binding b = nextHashTableValue.getBinding(name);
-            if (!result.hasBinding(name)) {
-                result.addBinding(b);
+        try {
+            if (results != null)
+                results.close();
+            if (prefetched != null)
+                prefetched.close();
+        } finally {
+            try {
+                leftIter.close();
+                rightIter.close();
+            } finally {
+                if (buildPartitions != null)
+                    buildPartitions.destroy();
+                if (probePartitions != null)
+                    probePartitions.destroy();
             }
-        }*/
-        BindingSet result = combineBindings(currentScanElem, nextHashTableValue);
-
-        if (hashTableValues.size() == 0) {
-            // we've exhausted the current scanlist entry
-            currentScanElem = null;
-            hashTableValues = null;
         }
 
-        return result;
+        hashTable = null;
+        probeSource = null;
+        probe = null;
     }
 
-    protected BindingSet combineBindings(BindingSet b1, BindingSet b2) {
-        QueryBindingSet result = new QueryBindingSet();
-
-        if (b1.hasBinding(EvaluationStrategyImpl.provenanceField) &&
-            b2.hasBinding(EvaluationStrategyImpl.provenanceField)) {
-            ProvenanceValue p1 = (ProvenanceValue)b1.getBinding(EvaluationStrategyImpl.provenanceField).getValue();
-            ProvenanceValue p2 = (ProvenanceValue)b2.getBinding(EvaluationStrategyImpl.provenanceField).getValue();
-            ProvenanceValue p = new ProvenanceValue(p1);
-            p.merge(p2);
-            result.addBinding(EvaluationStrategyImpl.provenanceField, p);
+    private void setupHashTable()
+            throws QueryEvaluationException
+    {
+        List<BindingSet> buildRows;
+        List<BindingSet> scanned;
+        CloseableIteration<BindingSet, QueryEvaluationException> probeIter;
+        boolean spill = canSpill();
+        long size = 0;
+
+        if (leftCardinality > 0 && rightCardinality > 0) {
+            boolean buildLeft = leftCardinality <= rightCardinality;
+            CloseableIteration<BindingSet, QueryEvaluationException> buildIter = buildLeft ? leftIter : rightIter;
+
+            probeIter = prefetched = prefetch(buildLeft ? rightIter : leftIter);
+            scanned = new ArrayList<BindingSet>(0);
+
+            buildRows = new ArrayList<BindingSet>();
+            while (buildIter.hasNext()) {
+                BindingSet b = buildIter.next();
+                buildRows.add(b);
+
+                if (spill && (size += estimateSize(b)) > memoryBudget) {
+                    spill(buildRows, buildIter, scanned, probeIter);
+                    return;
+                }
+            }
         }
+        else {
+            List<BindingSet> leftArgResults = new ArrayList<BindingSet>();
+            List<BindingSet> rightArgResults = new ArrayList<BindingSet>();
+
+            while (leftIter.hasNext() && rightIter.hasNext()) {
+                BindingSet l = leftIter.next();
+                BindingSet r = rightIter.next();
+                leftArgResults.add(l);
+                rightArgResults.add(r);
+
+                if (spill && (size += estimateSize(l) + estimateSize(r)) > memoryBudget) {
+                    spill(leftArgResults, leftIter, rightArgResults, rightIter);
+                    return;
+                }
+            }
 
-        for (Binding b : b1) {
-            if (!result.hasBinding(b.getName()))
-                result.addBinding(b);
+            if (leftIter.hasNext()) { // leftArg is the greater relation
+                buildRows = rightArgResults;
+                scanned = leftArgResults;
+                probeIter = leftIter;
+            }
+            else { // rightArg is the greater relation (or they are equal)
+                buildRows = leftArgResults;
+                scanned = rightArgResults;
+                probeIter = rightIter;
+            }
         }
 
-        for (String name : b2.getBindingNames()) {
-            Binding b = b2.getBinding(name);
-            if (!result.hasBinding(name)) {
-                result.addBinding(b);
-            }
+        if (buildRows.isEmpty()) {
+            // nothing can match, so the probe side is not read at all
+            results = new EmptyIteration<BindingSet, QueryEvaluationException>();
+            return;
         }
 
-        return result;
+        hashTable = new JoinHashTable(joinAttributes, buildRows);
+        probeSource = new ProbeSource(scanned, probeIter);
+        probe = new Probe(1);
+        results = probe;
     }
 
-    @Override
-    protected void handleClose()
-            throws QueryEvaluationException
-    {
-        super.handleClose();
-
-        leftIter.close();
-        rightIter.close();
-
-        hashTable = null;
-        hashTableValues = null;
-        scanList = null;
+    private boolean canSpill() {
+        return materializationManager != null && memoryBudget > 0 && depth < MAX_SPILL_DEPTH;
     }
 
-    /**
-     * @return the size that the hashtable had before clearing it.
-     */
-    protected long clearHashTable() {
-        int size = hashTable.size();
-        hashTable.clear();
+    static long estimateSize(BindingSet bindings) {
+        long size = ROW_OVERHEAD;
+        for (Binding b : bindings)
+            size += VALUE_OVERHEAD + 2L * b.getValue().stringValue().length();
         return size;
     }
 
-    private BindingSet calcKey(BindingSet bindings, Set<String> commonVars) {
-        QueryBindingSet q = new QueryBindingSet();
-        for (String varName : commonVars) {
-            Binding b = bindings.getBinding(varName);
-            if (b != null) {
-                q.addBinding(b);
-            }
-        }
-        return q;
-    }
-
-    private void setupHashTable()
+    /**
+     * Partitions the rows read so far and the rest of both inputs into stored results,
+     * which are then joined partition by partition.
+     */
+    private void spill(List<BindingSet> buildRows, Iteration<BindingSet, QueryEvaluationException> buildRest,
+                       List<BindingSet> probeRows, Iteration<BindingSet, QueryEvaluationException> probeRest)
             throws QueryEvaluationException
     {
+        buildPartitions = new JoinPartitions(materializationManager, joinAttributes, SPILL_PARTITIONS, depth);
+        probePartitions = new JoinPartitions(materializationManager, joinAttributes, SPILL_PARTITIONS, depth);
 
-        hashTable = makeMap();
-
-        List<BindingSet> leftArgResults = makeList();
-        List<BindingSet> rightArgResults = makeList();
+        for (BindingSet b : buildRows)
+            buildPartitions.add(b);
+        buildRows.clear();
 
-        while (leftIter.hasNext() && rightIter.hasNext()) {
-            add(leftArgResults, leftIter.next());
-            add(rightArgResults, rightIter.next());
-        }
+        while (buildRest.hasNext())
+            buildPartitions.add(buildRest.next());
+        buildPartitions.finish();
 
-        List<BindingSet> smallestResult = null;
+        for (BindingSet b : probeRows)
+            addToProbePartitions(b);
+        probeRows.clear();
 
-        if (leftIter.hasNext()) { // leftArg is the greater relation
-            smallestResult = rightArgResults;
-            scanList = leftArgResults;
-            restIter = leftIter;
-        }
-        else { // rightArg is the greater relation (or they are equal)
-            smallestResult = leftArgResults;
-            scanList = rightArgResults;
-            restIter = rightIter;
-        }
+        while (probeRest.hasNext())
+            addToProbePartitions(probeRest.next());
+        probePartitions.finish();
 
-        // create the hash table for our join
-        for (BindingSet b : smallestResult) {
-            BindingSet hashKey = calcKey(b, joinAttributes);
+        results = new SpilledJoin();
+    }
 
-            List<BindingSet> hashValue = null;
-            if (hashTable.containsKey(hashKey)) {
-                hashValue = hashTable.get(hashKey);
-            }
-            else {
-                hashValue = makeList();
-            }
-            add(hashValue, b);
-            put(hashTable, hashKey, hashValue);
+    private void addToProbePartitions(BindingSet bindings) throws QueryEvaluationException {
+        // rows of partitions without build rows cannot match, so they are not stored
+        if (bindings.size() == 0) {
+            probeHasEmptyRows = true;
+            for (int p = 0; p < buildPartitions.size(); p++)
+                if (buildPartitions.getRows(p) > 0)
+                    probePartitions.add(p, bindings);
+        } else {
+            int p = probePartitions.partitionOf(bindings);
+            if (buildPartitions.getRows(p) > 0)
+                probePartitions.add(p, bindings);
         }
-
     }
 
-    protected void put(Map<BindingSet, List<BindingSet>> hashTable, BindingSet hashKey,
-                       List<BindingSet> hashValue)
-            throws QueryEvaluationException
+    private CloseableIteration<BindingSet, QueryEvaluationException>
+        prefetch(final CloseableIteration<BindingSet, QueryEvaluationException> iter)
     {
-        hashTable.put(hashKey, hashValue);
-    }
+        if (executor == null || iter instanceof AsyncCursor)
+            return iter;
 
-    protected void addAll(List<BindingSet> hashTableValues, List<BindingSet> values)
-            throws QueryEvaluationException
-    {
-        hashTableValues.addAll(values);
+        return new AsyncCursor<BindingSet, QueryEvaluationException>(executor) {
+            @Override
+            protected Iteration<BindingSet, QueryEvaluationException> createIteration() {
+                return iter;
+            }
+        };
     }
 
-    protected void add(List<BindingSet> leftArgResults, BindingSet b)
-            throws QueryEvaluationException
-    {
-        leftArgResults.add(b);
+    private void probeInParallel() {
+        List<Probe> probes = new ArrayList<Probe>(parallelism);
+
+        // the current probe goes on where it stopped
+        probe.setBatchSize(BATCH_SIZE);
+        probes.add(probe);
+
+        for (int i = 1; i < parallelism; i++)
+            probes.add(new Probe(BATCH_SIZE));
+
+        probe = null;
+        results = new ConcurrentUnionIteration<BindingSet>(executor, probes);
     }
 
-    /**
-     * Utility methods to make it easier to inserted custom store dependent maps
-     *
-     * @return map
-     */
-    protected Map<BindingSet, List<BindingSet>> makeMap() {
-        return new HashMap<BindingSet, List<BindingSet>>();
+    private static long cardinalityOf(TupleExpr expr) {
+        if (expr instanceof Plan)
+            return ((Plan) expr).getCardinality();
+        else
+            return 0;
     }
 
     /**
-     * Utility methods to make it easier to inserted custom store dependent list
-     *
-     * @return list
+     * The rows of the probe side, which are handed out in batches to the probes.
      */
-    protected List<BindingSet> makeList() {
-        return new ArrayList<BindingSet>();
+    private static final class ProbeSource {
+
+        // the rows that were read while looking for the build side
+        private final List<BindingSet> scanned;
+
+        private final Iteration<BindingSet, QueryEvaluationException> iter;
+
+        // guarded by this
+        private int position = 0;
+
+        private volatile int taken = 0;
+
+        ProbeSource(List<BindingSet> scanned, Iteration<BindingSet, QueryEvaluationException> iter) {
+            this.scanned = scanned;
+            this.iter = iter;
+        }
+
+        int getTaken() { return taken; }
+
+        /**
+         * @return the number of rows put in the batch, or 0 if there are no more rows
+         */
+        synchronized int fill(BindingSet[] batch) throws QueryEvaluationException {
+            int n = 0;
+
+            while (n < batch.length && position < scanned.size()) {
+                batch[n++] = scanned.get(position);
+                scanned.set(position++, null);
+            }
+
+            while (n < batch.length && iter.hasNext())
+                batch[n++] = iter.next();
+
+            taken += n;
+            return n;
+        }
     }
 
     /**
-     * Utility methods to make it easier to inserted custom store dependent list
-     *
-     * @return list
+     * Joins the rows that it takes from the probe source with the rows of the table.
      */
-    protected List<BindingSet> makeList(List<BindingSet> key) {
-        return new ArrayList<BindingSet>(key);
+    private final class Probe extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final BindingSetMerger merger = createMerger();
+
+        private final JoinHashTable table = hashTable;
+
+        private final ProbeSource source = probeSource;
+
+        private BindingSet[] batch;
+
+        private int batchSize;
+
+        private int count = 0;
+
+        private int position = 0;
+
+        private BindingSet current;
+
+        // whether the current row joins with every row of the table
+        private boolean all;
+
+        // the next row of the table to join the current row with, or -1
+        private int row = -1;
+
+        Probe(int batchSize) {
+            this.batchSize = batchSize;
+            this.batch = new BindingSet[batchSize];
+        }
+
+        void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (row < 0) {
+                if (position == count) {
+                    if (batch.length != batchSize)
+                        batch = new BindingSet[batchSize];
+
+                    count = source.fill(batch);
+                    position = 0;
+                    if (count == 0)
+                        return null;
+                }
+
+                current = batch[position];
+                batch[position++] = null;
+
+                // the empty bindingset should be merged with all bindingsets in the hash table
+                all = current.size() == 0;
+                row = all ? 0 : table.find(current);
+            }
+
+            BindingSet result = merger.merge(current, table.get(row));
+
+            if (all)
+                row = row + 1 < table.size() ? row + 1 : -1;
+            else
+                row = table.next(row);
+
+            return result;
+        }
     }
 
     /**
-     * Remove the first (0 index) element from a BindingSet list.
-     *
-     * @param list
-     *        which is worked on.
-     * @return the removed BindingSet
+     * Joins the stored partitions of the inputs one pair after the other.
      */
-    protected BindingSet removeFirstElement(List<BindingSet> list)
-            throws QueryEvaluationException
-    {
-        return list.remove(0);
+    private final class SpilledJoin extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private int partition = -1;
+
+        private HashJoinIteration current;
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (current == null || !current.hasNext()) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                    buildPartitions.destroy(partition);
+                    probePartitions.destroy(partition);
+                }
+
+                if (++partition >= buildPartitions.size())
+                    return null;
+
+                long buildRows = buildPartitions.getRows(partition);
+                long probeRows = probePartitions.getRows(partition);
+
+                if (buildRows == 0 || probeRows == 0) {
+                    buildPartitions.destroy(partition);
+                    probePartitions.destroy(partition);
+                    continue;
+                }
+
+                current = new HashJoinIteration(buildPartitions.read(partition), probePartitions.read(partition),
+                                                joinAttributes, executor);
+
+                // rows without bindings must stay on the probe side
+                if (probeHasEmptyRows)
+                    current.setCardinalities(buildRows, Math.max(buildRows, probeRows));
+                else
+                    current.setCardinalities(buildRows, probeRows);
+
+                current.setParallelism(parallelism);
+                current.setParallelThreshold(parallelThreshold);
+                current.setMaterializationManager(materializationManager, memoryBudget);
+                current.depth = depth + 1;
+            }
+            return current.next();
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            if (current != null)
+                current.close();
+        }
     }
 }
-
@@ -0,0 +1,200 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.query.QueryEvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates the same request against alternative endpoints (mirrors) and
+ * returns the result of the one that responds first.
+ * <p>
+ * The first attempt is started right away. If it has not responded within the
+ * hedge delay, the next attempt is started as well, and so on. An attempt responds
+ * when its first row (or the end of its result) is available; from then on its
+ * result is returned and all the other attempts are cancelled and closed.
+ * A failed attempt is replaced by the next one immediately; the request fails
+ * only if all the attempts fail.
+ */
+public class HedgedIteration<E> extends LookAheadIteration<E, QueryEvaluationException> {
+
+    private static final Logger logger = LoggerFactory.getLogger(HedgedIteration.class);
+
+    private final ExecutorService executor;
+
+    private final List<? extends Callable<CloseableIteration<E, QueryEvaluationException>>> attempts;
+
+    private final long hedgeDelay;
+
+    // guarded by this
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private CloseableIteration<E, QueryEvaluationException> winner;
+    private int winnerIndex = -1;
+    private int failed = 0;
+    private Exception failure;
+
+    private volatile boolean closed = false;
+
+    // accessed only by the consumer
+    private CloseableIteration<E, QueryEvaluationException> result;
+
+    /**
+     * @param attempts the alternative ways to evaluate the request, in order of preference
+     * @param hedgeDelay the time in milliseconds to wait for an attempt before starting the next one
+     */
+    public HedgedIteration(ExecutorService executor,
+                           List<? extends Callable<CloseableIteration<E, QueryEvaluationException>>> attempts,
+                           long hedgeDelay)
+    {
+        if (attempts.isEmpty())
+            throw new IllegalArgumentException("At least one attempt is required");
+
+        this.executor = executor;
+        this.attempts = attempts;
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    /**
+     * @return the index of the attempt whose result is returned or -1 if no attempt has responded yet.
+     */
+    public synchronized int getWinner() { return winnerIndex; }
+
+    /**
+     * @return the number of attempts that have been started.
+     */
+    public synchronized int getStarted() { return futures.size(); }
+
+    @Override
+    protected E getNextElement() throws QueryEvaluationException {
+        if (result == null) {
+            result = select();
+            if (result == null)
+                return null;
+        }
+
+        return result.hasNext() ? result.next() : null;
+    }
+
+    private synchronized CloseableIteration<E, QueryEvaluationException> select()
+            throws QueryEvaluationException
+    {
+        start(0);
+        long deadline = System.currentTimeMillis() + hedgeDelay;
+
+        while (winner == null) {
+            if (closed)
+                return null;
+
+            int started = futures.size();
+            long now = System.currentTimeMillis();
+
+            if (failed == started || (started < attempts.size() && now >= deadline)) {
+                if (started == attempts.size())
+                    throw toQueryEvaluationException(failure);
+
+                if (failed < started)
+                    logger.debug("No response within " + hedgeDelay + "ms; hedging request to attempt " + started);
+
+                start(started);
+                deadline = now + hedgeDelay;
+                continue;
+            }
+
+            try {
+                wait(started < attempts.size() ? deadline - now : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueryEvaluationException(e);
+            }
+        }
+
+        for (int i = 0; i < futures.size(); i++)
+            if (i != winnerIndex)
+                futures.get(i).cancel(true);
+
+        return winner;
+    }
+
+    // must be called while holding the monitor
+    private void start(final int index) {
+        futures.add(executor.submit(new Runnable() {
+            @Override
+            public void run() { attempt(index); }
+        }));
+    }
+
+    private void attempt(int index) {
+        CloseableIteration<E, QueryEvaluationException> iter = null;
+        try {
+            iter = attempts.get(index).call();
+            // wait for the response to start
+            iter.hasNext();
+        } catch (Exception e) {
+            close(iter);
+            synchronized (this) {
+                failed++;
+                if (failure == null)
+                    failure = e;
+                notifyAll();
+            }
+            return;
+        }
+
+        boolean won;
+        synchronized (this) {
+            won = (winner == null && !closed);
+            if (won) {
+                winner = iter;
+                winnerIndex = index;
+            }
+            notifyAll();
+        }
+
+        if (!won)
+            close(iter);
+    }
+
+    private static void close(CloseableIteration<?, QueryEvaluationException> iter) {
+        if (iter == null)
+            return;
+        try {
+            iter.close();
+        } catch (QueryEvaluationException | RuntimeException e) {
+            logger.debug("Failed to close cancelled attempt", e);
+        }
+    }
+
+    private static QueryEvaluationException toQueryEvaluationException(Exception e) {
+        if (e instanceof QueryEvaluationException)
+            return (QueryEvaluationException) e;
+        else
+            return new QueryEvaluationException(e);
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        CloseableIteration<E, QueryEvaluationException> toClose;
+
+        synchronized (this) {
+            closed = true;
+            for (Future<?> f : futures)
+                f.cancel(true);
+            toClose = winner;
+            notifyAll();
+        }
+
+        try {
+            super.handleClose();
+        } finally {
+            if (toClose != null)
+                toClose.close();
+        }
+    }
+}
@@ -2,13 +2,14 @@ package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
 
 import eu.semagrow.stack.modules.sails.semagrow.algebra.ProvenanceValue;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.EvaluationStrategyImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSchema;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSetMerger;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.CompactBindingSet;
 import info.aduna.iteration.CloseableIteration;
 import info.aduna.iteration.ConvertingIteration;
 import org.openrdf.model.Value;
-import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 
 /**
  * Created by angel on 6/11/14.
@@ -17,32 +18,30 @@ public class InsertProvenanceIteration extends ConvertingIteration<BindingSet,Bi
 
     private ProvenanceValue provenance;
 
+    private final BindingSet provenanceBindings;
+
+    private final BindingSetMerger merger = new BindingSetMerger() {
+        @Override
+        protected Value merge(String name, Value oldProvenance, Value newProvenance) {
+            if (oldProvenance instanceof ProvenanceValue)
+                return mergeProvenance((ProvenanceValue) oldProvenance, (ProvenanceValue) newProvenance);
+            return newProvenance;
+        }
+    };
+
     public InsertProvenanceIteration(CloseableIteration<BindingSet,QueryEvaluationException> iter,
             ProvenanceValue provenance) {
             super(iter);
             this.provenance = provenance;
+            this.provenanceBindings = new CompactBindingSet(
+                    BindingSchema.of(EvaluationStrategyImpl.provenanceField), new Value[] { provenance });
     }
 
     @Override
     protected BindingSet convert(BindingSet bindings)
         throws QueryEvaluationException
     {
-        QueryBindingSet newBindings = new QueryBindingSet();
-        ProvenanceValue newProvenance = provenance;
-
-        for (Binding b : bindings) {
-            if (b.getName().equals(EvaluationStrategyImpl.provenanceField)) {
-                Value oldProvenance = b.getValue();
-                if (oldProvenance instanceof ProvenanceValue) {
-                    newProvenance = mergeProvenance((ProvenanceValue)oldProvenance, newProvenance);
-                }
-            } else {
-                newBindings.addBinding(b);
-            }
-        }
-        newBindings.setBinding(EvaluationStrategyImpl.provenanceField, newProvenance);
-
-        return newBindings;
+        return merger.merge(bindings, provenanceBindings);
     }
 
     protected ProvenanceValue mergeProvenance(ProvenanceValue oldP, ProvenanceValue P) {
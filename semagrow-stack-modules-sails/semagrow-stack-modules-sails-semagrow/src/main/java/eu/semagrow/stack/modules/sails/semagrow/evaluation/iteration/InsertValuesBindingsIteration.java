@@ -1,13 +1,12 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
 
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSetMerger;
 import info.aduna.iteration.CloseableIteration;
 import info.aduna.iteration.ConvertingIteration;
-import org.openrdf.query.Binding;
+import org.openrdf.model.Value;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -19,6 +18,14 @@ public class InsertValuesBindingsIteration extends
     public static final String INDEX_BINDING_NAME = "__rowIdx";
     protected final List<BindingSet> bindings;
 
+    // the values of the bindings take the place of the values that the endpoint returned
+    private final BindingSetMerger merger = new BindingSetMerger(INDEX_BINDING_NAME) {
+        @Override
+        protected Value merge(String name, Value left, Value right) {
+            return right;
+        }
+    };
+
     public InsertValuesBindingsIteration(
             CloseableIteration<BindingSet, QueryEvaluationException> iter,
             List<BindingSet> bindings) {
@@ -29,28 +36,14 @@ public class InsertValuesBindingsIteration extends
     @Override
     protected BindingSet convert(BindingSet bIn) throws QueryEvaluationException {
 
-        // overestimate the capacity
-        QueryBindingSet res = new QueryBindingSet(bIn.size() + bindings.size());
-
-        int bIndex = -1;
-        Iterator<Binding> bIter = bIn.iterator();
-        while (bIter.hasNext()) {
-            Binding b = bIter.next();
-            String name = b.getName();
-            if (name.equals(INDEX_BINDING_NAME)) {
-                bIndex = Integer.parseInt(b.getValue().stringValue());
-                continue;
-            }
-            res.addBinding(b.getName(), b.getValue());
-        }
+        Value index = bIn.getValue(INDEX_BINDING_NAME);
 
         // should never occur: in such case we would have to create the cross product (which
         // is dealt with in another place)
-        if (bIndex == -1)
+        if (index == null)
             throw new QueryEvaluationException("Invalid join. Probably this is due to non-standard behavior of the SPARQL endpoint. " +
                     "Please report to the developers.");
 
-        res.addAll(bindings.get(bIndex));
-        return res;
+        return merger.merge(bIn, bindings.get(Integer.parseInt(index.stringValue())));
     }
 }
@@ -0,0 +1,184 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An open-addressing hash table over the join keys of the rows of the build side of a hash join.
+ * <p>
+ * The rows are kept in an array and the rows with the same key are chained through an array
+ * of row indexes, so the table allocates no entries and is probed without building a key
+ * for the probing row. When the key values of all the rows are values of the same
+ * {@link ValueDictionary} the table is keyed on their ids, and a key of a single variable
+ * is matched by comparing longs alone; otherwise the key values are hashed and compared.
+ * The table is built at once and then only read, so several threads can probe it.
+ */
+final class JoinHashTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final String[] keyNames;
+
+    private final BindingSet[] rows;
+
+    // the next row with the same key, or -1
+    private final int[] next;
+
+    private final ValueDictionary dictionary;
+
+    // whether equal codes mean equal keys
+    private final boolean exact;
+
+    private final int shift;
+
+    private final int mask;
+
+    private final long[] codes;
+
+    // the first row of the key of each slot plus one, or 0 for an empty slot
+    private final int[] heads;
+
+    JoinHashTable(Collection<String> keyNames, List<BindingSet> rows) {
+        this.keyNames = keyNames.toArray(new String[keyNames.size()]);
+        this.rows = rows.toArray(new BindingSet[rows.size()]);
+        this.next = new int[this.rows.length];
+        this.dictionary = commonDictionary(this.keyNames, this.rows);
+        this.exact = this.keyNames.length == 0 || (dictionary != null && this.keyNames.length == 1);
+
+        int capacity = MIN_CAPACITY;
+        while (capacity < this.rows.length * 2)
+            capacity <<= 1;
+
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        this.mask = capacity - 1;
+        this.codes = new long[capacity];
+        this.heads = new int[capacity];
+
+        // rows are prepended to their chain, so adding them backwards keeps their order
+        for (int i = this.rows.length - 1; i >= 0; i--)
+            insert(i);
+    }
+
+    /**
+     * @return the number of rows in the table
+     */
+    int size() { return rows.length; }
+
+    BindingSet get(int row) { return rows[row]; }
+
+    /**
+     * @return the next row with the same key as the given row, or -1
+     */
+    int next(int row) { return next[row]; }
+
+    /**
+     * @return the first row whose key is the key of the given row, or -1 if there is none
+     */
+    int find(BindingSet bindings) {
+        long code = 0;
+
+        for (String name : keyNames) {
+            Value value = bindings.getValue(name);
+            long c;
+
+            if (dictionary == null) {
+                c = value == null ? 0 : value.hashCode();
+            } else if (value == null) {
+                c = ValueDictionary.NO_ID;
+            } else {
+                c = dictionary.getId(value);
+                if (c == ValueDictionary.NO_ID) {
+                    // every key of the table is in the dictionary, so a value that is not cannot match
+                    Value encoded = dictionary.lookup(value);
+                    if (encoded == null)
+                        return -1;
+                    c = dictionary.getId(encoded);
+                }
+            }
+            code = code * 31 + c;
+        }
+
+        for (int slot = slotOf(code); heads[slot] != 0; slot = (slot + 1) & mask) {
+            int head = heads[slot] - 1;
+            if (codes[slot] == code && (exact || sameKey(bindings, rows[head])))
+                return head;
+        }
+        return -1;
+    }
+
+    private void insert(int row) {
+        BindingSet bindings = rows[row];
+        long code = codeOf(bindings);
+        int slot = slotOf(code);
+
+        while (heads[slot] != 0) {
+            int head = heads[slot] - 1;
+            if (codes[slot] == code && (exact || sameKey(bindings, rows[head]))) {
+                next[row] = head;
+                heads[slot] = row + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        next[row] = -1;
+        codes[slot] = code;
+        heads[slot] = row + 1;
+    }
+
+    private long codeOf(BindingSet bindings) {
+        long code = 0;
+        for (String name : keyNames) {
+            Value value = bindings.getValue(name);
+            long c;
+            if (value == null)
+                c = dictionary == null ? 0 : ValueDictionary.NO_ID;
+            else
+                c = dictionary == null ? value.hashCode() : dictionary.getId(value);
+            code = code * 31 + c;
+        }
+        return code;
+    }
+
+    private int slotOf(long code) {
+        return (int) ((code * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+    }
+
+    private boolean sameKey(BindingSet probe, BindingSet build) {
+        for (String name : keyNames) {
+            Value b = build.getValue(name);
+            Value p = probe.getValue(name);
+            if (b == null ? p != null : !b.equals(p))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the dictionary of all the key values of the rows, or null if there is no such dictionary
+     */
+    private static ValueDictionary commonDictionary(String[] keyNames, BindingSet[] rows) {
+        ValueDictionary dictionary = null;
+
+        for (BindingSet bindings : rows) {
+            for (String name : keyNames) {
+                Value value = bindings.getValue(name);
+                if (value == null)
+                    continue;
+
+                if (!(value instanceof ValueDictionary.EncodedValue))
+                    return null;
+
+                ValueDictionary d = ((ValueDictionary.EncodedValue) value).getDictionary();
+                if (d == null || (dictionary != null && d != dictionary))
+                    return null;
+                dictionary = d;
+            }
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,272 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.algebra.ProvenanceValue;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationHandle;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.*;
+
+/**
+ * The rows of an input of a hash join, partitioned on their join keys into results
+ * that are stored by a {@link MaterializationManager}.
+ * <p>
+ * A stored result declares its variables before its rows, so a partition is a sequence of
+ * stored results: a new one is started whenever a row binds a variable that the current one
+ * does not declare. Provenance values are stored as literals of the {@link #PROVENANCE} datatype,
+ * whose label lists the endpoints separated by spaces, and are restored when the partition is
+ * read; other values that the stored results cannot hold are stored as plain literals.
+ * The rows of a partition can be read once all the rows are added.
+ */
+final class JoinPartitions {
+
+    static final URI PROVENANCE = ValueFactoryImpl.getInstance().createURI("http://www.semagrow.eu/provenance");
+
+    private final MaterializationManager manager;
+
+    private final String[] keyNames;
+
+    private final int seed;
+
+    private final Partition[] partitions;
+
+    /**
+     * @param depth the depth of the partitioning; the partitions of each depth use a different hash function
+     */
+    JoinPartitions(MaterializationManager manager, Collection<String> keyNames, int count, int depth) {
+        this.manager = manager;
+        this.keyNames = keyNames.toArray(new String[keyNames.size()]);
+        this.seed = 0x9E3779B9 * (depth + 1);
+        this.partitions = new Partition[count];
+
+        for (int i = 0; i < count; i++)
+            partitions[i] = new Partition();
+    }
+
+    int size() { return partitions.length; }
+
+    /**
+     * @return the number of rows in the partition
+     */
+    long getRows(int partition) { return partitions[partition].rows; }
+
+    int partitionOf(BindingSet bindings) {
+        int h = seed;
+        for (String name : keyNames) {
+            Value value = bindings.getValue(name);
+            h = 31 * h + (value == null ? 0 : value.hashCode());
+        }
+
+        // rows that share a partition at one depth are spread by the hash function of the next
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return (h & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    void add(BindingSet bindings) throws QueryEvaluationException {
+        add(partitionOf(bindings), bindings);
+    }
+
+    void add(int partition, BindingSet bindings) throws QueryEvaluationException {
+        partitions[partition].add(bindings);
+    }
+
+    /**
+     * Ends the stored results, after the last row is added.
+     */
+    void finish() throws QueryEvaluationException {
+        for (Partition p : partitions)
+            p.finish();
+    }
+
+    CloseableIteration<BindingSet, QueryEvaluationException> read(int partition) {
+        Partition p = partitions[partition];
+        return new PartitionIteration(p.results, p.provenance);
+    }
+
+    /**
+     * Discards the stored results of a partition.
+     */
+    void destroy(int partition) {
+        partitions[partition].destroy();
+    }
+
+    void destroy() {
+        for (Partition p : partitions)
+            p.destroy();
+    }
+
+    private static boolean isStorable(Value value) {
+        return value instanceof URI || value instanceof Literal || value instanceof BNode;
+    }
+
+    /**
+     * Encodes a value that the stored results cannot hold as a literal.
+     */
+    private static Value encode(Value value) {
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+
+        if (value instanceof ProvenanceValue) {
+            StringBuilder sb = new StringBuilder();
+            for (URI endpoint : ((ProvenanceValue) value).getProvenances()) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(endpoint.stringValue());
+            }
+            return vf.createLiteral(sb.toString(), PROVENANCE);
+        }
+        return vf.createLiteral(value.stringValue());
+    }
+
+    private static boolean isProvenance(Value value) {
+        return value instanceof Literal && PROVENANCE.equals(((Literal) value).getDatatype());
+    }
+
+    private static Value decode(Value value) {
+        if (!isProvenance(value))
+            return value;
+
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+        List<URI> endpoints = new ArrayList<URI>();
+        for (String endpoint : value.stringValue().split(" ")) {
+            if (!endpoint.isEmpty())
+                endpoints.add(vf.createURI(endpoint));
+        }
+        return new ProvenanceValue(endpoints);
+    }
+
+    private static BindingSet restore(BindingSet bindings) {
+        for (Binding b : bindings) {
+            if (isProvenance(b.getValue())) {
+                MapBindingSet copy = new MapBindingSet(bindings.size());
+                for (Binding c : bindings)
+                    copy.addBinding(c.getName(), decode(c.getValue()));
+                return copy;
+            }
+        }
+        return bindings;
+    }
+
+    private final class Partition {
+
+        private final List<MaterializationHandle> results = new ArrayList<MaterializationHandle>();
+
+        private final Set<String> names = new LinkedHashSet<String>();
+
+        private MaterializationHandle handle;
+
+        private long rows = 0;
+
+        // whether a row of the partition has a provenance value
+        private boolean provenance = false;
+
+        void add(BindingSet bindings) throws QueryEvaluationException {
+            try {
+                if (handle == null || !names.containsAll(bindings.getBindingNames())) {
+                    finish();
+                    names.addAll(bindings.getBindingNames());
+                    handle = manager.saveResult();
+                    results.add(handle);
+                    handle.startQueryResult(new ArrayList<String>(names));
+                }
+
+                handle.handleSolution(storable(bindings));
+                rows++;
+            } catch (TupleQueryResultHandlerException e) {
+                throw new QueryEvaluationException(e);
+            }
+        }
+
+        private BindingSet storable(BindingSet bindings) {
+            for (Binding b : bindings) {
+                if (!isStorable(b.getValue())) {
+                    MapBindingSet copy = new MapBindingSet(bindings.size());
+                    for (Binding c : bindings) {
+                        Value value = c.getValue();
+                        if (!isStorable(value)) {
+                            provenance |= value instanceof ProvenanceValue;
+                            value = encode(value);
+                        }
+                        copy.addBinding(c.getName(), value);
+                    }
+                    return copy;
+                }
+            }
+            return bindings;
+        }
+
+        void finish() throws QueryEvaluationException {
+            if (handle != null) {
+                try {
+                    handle.endQueryResult();
+                } catch (TupleQueryResultHandlerException e) {
+                    throw new QueryEvaluationException(e);
+                } finally {
+                    handle = null;
+                }
+            }
+        }
+
+        void destroy() {
+            for (MaterializationHandle h : results)
+                h.destroy();
+            results.clear();
+            handle = null;
+        }
+    }
+
+    /**
+     * Reads the stored results of a partition one after the other.
+     */
+    private final class PartitionIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final Iterator<MaterializationHandle> results;
+
+        private final boolean provenance;
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> current;
+
+        PartitionIteration(List<MaterializationHandle> results, boolean provenance) {
+            this.results = new ArrayList<MaterializationHandle>(results).iterator();
+            this.provenance = provenance;
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (current == null || !current.hasNext()) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                if (!results.hasNext())
+                    return null;
+                current = manager.getResult(results.next().getId());
+            }
+            return provenance ? restore(current.next()) : current.next();
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            if (current != null)
+                Iterations.closeCloseable(current);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
 
-import eu.semagrow.stack.modules.sails.semagrow.algebra.ProvenanceValue;
-import eu.semagrow.stack.modules.sails.semagrow.evaluation.EvaluationStrategyImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSetMerger;
 //import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.parallel.ParallelEvaluator;
 //import eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration.parallel.base.ParallelEvaluatorBase;
 import info.aduna.iteration.CloseableIteration;
@@ -39,6 +38,8 @@ public class MergeJoinIteration extends LookAheadIteration<BindingSet, QueryEval
 
     private CloseableIteration<BindingSet,QueryEvaluationException> bufIter;
 
+    private final BindingSetMerger merger = new ProvenanceMerger();
+
     //private ParallelEvaluator evaluator = null;
     
     public MergeJoinIteration(Comparator<BindingSet> comparator,
@@ -106,7 +107,7 @@ public class MergeJoinIteration extends LookAheadIteration<BindingSet, QueryEval
         leftBuf = new LinkedList<BindingSet>();
         while (leftIter.hasNext()) {
             leftBindings = leftIter.next();
-            if (comparator.compare(leftKey, calcKey(leftBindings, joinAttributes)) == 0)
+            if (sameKey(leftKey, calcKey(leftBindings, joinAttributes)))
                 leftBuf.add(leftBindings);
             else
                 break;
@@ -116,7 +117,7 @@ public class MergeJoinIteration extends LookAheadIteration<BindingSet, QueryEval
         rightBuf = new LinkedList<BindingSet>();
         while (rightIter.hasNext()) {
             rightBindings = rightIter.next();
-            if (comparator.compare(leftKey, calcKey(rightBindings, joinAttributes)) == 0)
+            if (sameKey(leftKey, calcKey(rightBindings, joinAttributes)))
                 rightBuf.add(rightBindings);
             else
                 break;
@@ -153,31 +154,17 @@ public class MergeJoinIteration extends LookAheadIteration<BindingSet, QueryEval
         return q;
     }
 
-    protected BindingSet combineBindings(BindingSet b1, BindingSet b2) {
-        QueryBindingSet result = new QueryBindingSet();
-
-        if (b1.hasBinding(EvaluationStrategyImpl.provenanceField) &&
-                b2.hasBinding(EvaluationStrategyImpl.provenanceField)) {
-            ProvenanceValue p1 = (ProvenanceValue)b1.getBinding(EvaluationStrategyImpl.provenanceField).getValue();
-            ProvenanceValue p2 = (ProvenanceValue)b2.getBinding(EvaluationStrategyImpl.provenanceField).getValue();
-            ProvenanceValue p = new ProvenanceValue(p1);
-            p.merge(p2);
-            result.addBinding(EvaluationStrategyImpl.provenanceField, p);
-        }
-
-        for (Binding b : b1) {
-            if (!result.hasBinding(b.getName()))
-                result.addBinding(b);
-        }
-
-        for (String name : b2.getBindingNames()) {
-            Binding b = b2.getBinding(name);
-            if (!result.hasBinding(name)) {
-                result.addBinding(b);
-            }
-        }
+    /**
+     * Equal keys are found without the comparator; the values of a
+     * {@link eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary}
+     * are equal when their ids are.
+     */
+    private boolean sameKey(BindingSet key1, BindingSet key2) {
+        return key1.equals(key2) || comparator.compare(key1, key2) == 0;
+    }
 
-        return result;
+    protected BindingSet combineBindings(BindingSet b1, BindingSet b2) {
+        return merger.merge(b1, b2);
     }
 
     protected class CrossProductIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
@@ -1,28 +1,86 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
 
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.EvaluationStrategyImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSchema;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.CompactBindingSet;
 import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.Value;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
 import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 import org.openrdf.query.algebra.evaluation.iterator.ProjectionIterator;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Projection iteration that is provenance aware
+ * Projection iteration that is provenance aware.
+ * Compact rows are projected through a view of their schema, without copying their values.
  */
 public class ProjectionIteration  extends ProjectionIterator {
 
+    private final BindingSet parentBindings;
+
+    private final List<String> sourceNames = new ArrayList<String>();
+
+    private final List<String> targetNames = new ArrayList<String>();
+
+    private final BindingSchema schema;
+
+    // the source of each variable of the schema, for rows that are not compact
+    private final String[] schemaSources;
+
+    private BindingSchema lastSource;
+
+    private BindingSchema lastView;
+
     public ProjectionIteration(Projection projection,
                                CloseableIteration<BindingSet, QueryEvaluationException> iter, BindingSet parentBindings)
             throws QueryEvaluationException {
 
         super(projection,iter,parentBindings);
+        this.parentBindings = parentBindings;
+
+        for (ProjectionElem elem : projection.getProjectionElemList().getElements()) {
+            sourceNames.add(elem.getSourceName());
+            targetNames.add(elem.getTargetName());
+        }
+
+        if (!targetNames.contains(EvaluationStrategyImpl.provenanceField)) {
+            sourceNames.add(EvaluationStrategyImpl.provenanceField);
+            targetNames.add(EvaluationStrategyImpl.provenanceField);
+        }
+
+        schema = BindingSchema.of(targetNames);
+        schemaSources = new String[schema.size()];
+        for (int i = 0; i < schema.size(); i++)
+            schemaSources[i] = sourceNames.get(targetNames.indexOf(schema.getName(i)));
     }
 
     @Override
     protected BindingSet convert(BindingSet bindings) throws QueryEvaluationException {
+        if (parentBindings != null && parentBindings.size() > 0)
+            return convertWithParent(bindings);
+
+        if (bindings instanceof CompactBindingSet) {
+            CompactBindingSet compact = (CompactBindingSet) bindings;
+            if (compact.getSchema() != lastSource) {
+                lastSource = compact.getSchema();
+                lastView = lastSource.view(sourceNames, targetNames);
+            }
+            return compact.view(lastView);
+        }
+
+        Value[] values = new Value[schema.getWidth()];
+        for (int i = 0; i < schema.size(); i++)
+            values[i] = bindings.getValue(schemaSources[i]);
+        return new CompactBindingSet(schema, values);
+    }
+
+    private BindingSet convertWithParent(BindingSet bindings) throws QueryEvaluationException {
         if (bindings.hasBinding(EvaluationStrategyImpl.provenanceField)) {
             Binding b = bindings.getBinding(EvaluationStrategyImpl.provenanceField);
             BindingSet converted = super.convert(bindings);
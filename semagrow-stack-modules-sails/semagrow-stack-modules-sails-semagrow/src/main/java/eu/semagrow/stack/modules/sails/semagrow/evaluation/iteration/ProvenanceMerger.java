@@ -0,0 +1,24 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.algebra.ProvenanceValue;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.EvaluationStrategyImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSetMerger;
+import org.openrdf.model.Value;
+
+/**
+ * Merges the rows of a join; the provenance of the merged row is the
+ * provenance of both rows.
+ */
+class ProvenanceMerger extends BindingSetMerger {
+
+    @Override
+    protected Value merge(String name, Value left, Value right) {
+        if (name.equals(EvaluationStrategyImpl.provenanceField)
+                && left instanceof ProvenanceValue && right instanceof ProvenanceValue) {
+            ProvenanceValue p = new ProvenanceValue((ProvenanceValue) left);
+            p.merge((ProvenanceValue) right);
+            return p;
+        }
+        return left;
+    }
+}
@@ -0,0 +1,567 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.BindingSetMerger;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.EmptyIteration;
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A provenance-aware symmetric hash join, which returns a joined row as soon as both of its rows are read.
+ * <p>
+ * Both arguments are read concurrently on the executor and their rows are consumed in the order
+ * they arrive. Each argument has a hash table on the join keys: a row that arrives is put in the
+ * table of its argument and joined with the rows in the table of the other argument, so a pair of
+ * matching rows is joined once, when the later of the two arrives. Once an argument is exhausted
+ * the rows of the other argument are only probed and its table is dropped; if the exhausted
+ * argument had no rows the join ends without reading the other argument any further.
+ * Without an executor the arguments are read in turn.
+ * <p>
+ * A row without bindings joins with every row of the other argument.
+ * <p>
+ * With a {@link MaterializationManager} the rows that the tables hold are bounded by a memory budget.
+ * Once the estimated memory of the rows in the tables exceeds it, the tables stop growing: the rows that
+ * arrive later are still joined with the rows in the table of the other argument, and are stored so that
+ * the later rows of both arguments are joined by a {@link HashJoinIteration} once both are exhausted.
+ */
+public class SymmetricHashJoinIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+	/*-----------*
+	 * Variables *
+	 *-----------*/
+
+    private final CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
+
+    private final CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
+
+    private final String[] joinAttributes;
+
+    private final ExecutorService executor;
+
+    private final Side left = new Side();
+
+    private final Side right = new Side();
+
+    private MaterializationManager materializationManager;
+
+    private long memoryBudget = 0;
+
+    // whether the memory budget has been exceeded, so the later rows are stored
+    private boolean overflowed = false;
+
+    private BindingSetMerger merger;
+
+    private CloseableIteration<Arrival, QueryEvaluationException> arrivals;
+
+    // the row that arrived last, which is joined with the matching rows of the other argument
+    private BindingSet current;
+
+    private boolean currentIsLeft;
+
+    private Iterator<List<BindingSet>> matchingLists;
+
+    private Iterator<BindingSet> matches;
+
+    // the estimated memory of the rows in the tables
+    private long held = 0;
+
+    // the join of the rows of both arguments that arrived after the memory budget was exceeded
+    private CloseableIteration<BindingSet, QueryEvaluationException> stored;
+
+	/*--------------*
+	 * Constructors *
+	 *--------------*/
+
+    /**
+     * @param executor the executor that reads the arguments, or null to read them in turn
+     */
+    public SymmetricHashJoinIteration(EvaluationStrategy strategy, Join join, BindingSet bindings,
+                                      ExecutorService executor)
+            throws QueryEvaluationException
+    {
+        this(strategy.evaluate(join.getLeftArg(), bindings),
+             strategy.evaluate(join.getRightArg(), bindings),
+             joinAttributesOf(join),
+             executor);
+    }
+
+    public SymmetricHashJoinIteration(CloseableIteration<BindingSet, QueryEvaluationException> leftIter,
+                                      CloseableIteration<BindingSet, QueryEvaluationException> rightIter,
+                                      Set<String> attributes) {
+        this(leftIter, rightIter, attributes, null);
+    }
+
+    public SymmetricHashJoinIteration(CloseableIteration<BindingSet, QueryEvaluationException> leftIter,
+                                      CloseableIteration<BindingSet, QueryEvaluationException> rightIter,
+                                      Set<String> attributes,
+                                      ExecutorService executor) {
+        this.leftIter = leftIter;
+        this.rightIter = rightIter;
+        this.joinAttributes = attributes.toArray(new String[attributes.size()]);
+        this.executor = executor;
+    }
+
+	/*---------*
+	 * Methods *
+	 *---------*/
+
+    /**
+     * Bounds the memory of the rows that are held by the tables; once the estimated memory of the rows
+     * exceeds the budget the later rows are stored by the manager.
+     * @param memoryBudget the budget in bytes, or 0 to keep the rows in memory whatever their size
+     */
+    public void setMaterializationManager(MaterializationManager materializationManager, long memoryBudget) {
+        this.materializationManager = materializationManager;
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    protected BindingSet getNextElement()
+            throws QueryEvaluationException
+    {
+        if (arrivals == null) {
+            merger = createMerger();
+            Arrivals l = new Arrivals(leftIter, true);
+            Arrivals r = new Arrivals(rightIter, false);
+
+            if (executor != null)
+                arrivals = new ConcurrentUnionIteration<Arrival>(executor, Arrays.asList(l, r));
+            else
+                arrivals = new InTurnIteration(l, r);
+        }
+
+        if (stored != null)
+            return stored.hasNext() ? stored.next() : null;
+
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                BindingSet match = matches.next();
+                return currentIsLeft ? merger.merge(current, match) : merger.merge(match, current);
+            }
+
+            if (matchingLists != null && matchingLists.hasNext()) {
+                matches = matchingLists.next().iterator();
+                continue;
+            }
+
+            // an exhausted argument without rows cannot match anything
+            if ((left.exhausted && left.rows == 0) || (right.exhausted && right.rows == 0))
+                return null;
+
+            if (!arrivals.hasNext()) {
+                if (!overflowed)
+                    return null;
+
+                stored = joinStored();
+                return stored.hasNext() ? stored.next() : null;
+            }
+
+            accept(arrivals.next());
+        }
+    }
+
+    /**
+     * Creates the merger of the matching rows.
+     */
+    protected BindingSetMerger createMerger() {
+        return new ProvenanceMerger();
+    }
+
+    @Override
+    protected void handleClose()
+            throws QueryEvaluationException
+    {
+        super.handleClose();
+
+        try {
+            if (stored != null)
+                stored.close();
+            if (arrivals != null)
+                arrivals.close();
+        } finally {
+            try {
+                leftIter.close();
+            } finally {
+                try {
+                    rightIter.close();
+                } finally {
+                    left.destroy();
+                    right.destroy();
+                }
+            }
+        }
+
+        left.drop();
+        right.drop();
+        current = null;
+        matchingLists = null;
+        matches = null;
+    }
+
+    private void accept(Arrival arrival) throws QueryEvaluationException {
+        Side side = arrival.left ? left : right;
+        Side other = arrival.left ? right : left;
+        BindingSet bindings = arrival.bindings;
+
+        matches = null;
+
+        if (bindings == null) {
+            // no more rows of this argument will probe the table of the other
+            side.exhausted = true;
+            other.drop();
+            matchingLists = null;
+            return;
+        }
+
+        side.rows++;
+        current = bindings;
+        currentIsLeft = arrival.left;
+
+        // the empty bindingset should be merged with all the bindingsets of the other argument
+        if (bindings.size() == 0) {
+            if (overflowed)
+                store(side, other, bindings);
+            else if (!other.exhausted)
+                hold(side.emptyRows, bindings);
+
+            List<List<BindingSet>> lists = new ArrayList<List<BindingSet>>(other.table.values());
+            lists.add(other.emptyRows);
+            matchingLists = lists.iterator();
+        } else {
+            Object key = keyOf(bindings);
+            if (overflowed)
+                store(side, other, bindings);
+            else if (!other.exhausted)
+                hold(side.put(key), bindings);
+
+            List<BindingSet> rows = other.table.get(key);
+            if (other.emptyRows.isEmpty())
+                matchingLists = rows == null ? null : Collections.singletonList(rows).iterator();
+            else if (rows == null)
+                matchingLists = Collections.singletonList(other.emptyRows).iterator();
+            else
+                matchingLists = Arrays.asList(rows, other.emptyRows).iterator();
+        }
+    }
+
+    private void hold(List<BindingSet> rows, BindingSet bindings) {
+        rows.add(bindings);
+
+        if (!overflowed && canSpill()) {
+            held += HashJoinIteration.estimateSize(bindings);
+            overflowed = held > memoryBudget;
+        }
+    }
+
+    /**
+     * Keeps a row that arrived after the memory budget was exceeded, to be joined with the rows
+     * of the other argument that arrived after it too. The row has been joined with the rows in
+     * the table of the other argument, which no longer grows.
+     */
+    private void store(Side side, Side other, BindingSet bindings) throws QueryEvaluationException {
+        // no row of the other argument arrived after the budget was exceeded, and no more will
+        if (other.exhausted && other.getLaterRows() == 0)
+            return;
+
+        if (bindings.size() == 0) {
+            // rows without bindings are all the same, so they are only counted
+            side.laterEmpty = bindings;
+            side.laterEmptyRows++;
+        } else {
+            if (side.stored == null)
+                side.stored = new JoinPartitions(materializationManager, Arrays.asList(joinAttributes), 1, 0);
+            side.stored.add(0, bindings);
+        }
+    }
+
+    /**
+     * Joins the rows of both arguments that arrived after the memory budget was exceeded;
+     * the rows with bindings are joined by a hash join, which spills them if they still do not fit,
+     * and each row without bindings is joined with every row of the other argument.
+     */
+    private CloseableIteration<BindingSet, QueryEvaluationException> joinStored()
+            throws QueryEvaluationException
+    {
+        List<CloseableIteration<BindingSet, QueryEvaluationException>> joins =
+                new ArrayList<CloseableIteration<BindingSet, QueryEvaluationException>>();
+
+        if (left.stored != null)
+            left.stored.finish();
+        if (right.stored != null)
+            right.stored.finish();
+
+        if (left.getStoredRows() > 0 && right.getStoredRows() > 0) {
+            HashJoinIteration join =
+                    new HashJoinIteration(left.stored.read(0), right.stored.read(0),
+                                          new HashSet<String>(Arrays.asList(joinAttributes)), executor) {
+                        @Override
+                        protected BindingSetMerger createMerger() {
+                            return SymmetricHashJoinIteration.this.createMerger();
+                        }
+                    };
+            join.setCardinalities(left.getStoredRows(), right.getStoredRows());
+            join.setMaterializationManager(materializationManager, memoryBudget);
+            joins.add(join);
+        }
+
+        for (long i = 0; i < left.laterEmptyRows; i++)
+            joins.add(new EmptyRowJoin(left.laterEmpty, true, right));
+
+        for (long i = 0; i < right.laterEmptyRows; i++)
+            joins.add(new EmptyRowJoin(right.laterEmpty, false, left));
+
+        return new SequenceIteration(joins);
+    }
+
+    private boolean canSpill() {
+        return materializationManager != null && memoryBudget > 0;
+    }
+
+    private Object keyOf(BindingSet bindings) {
+        if (joinAttributes.length == 1)
+            return bindings.getValue(joinAttributes[0]);
+
+        List<Value> key = new ArrayList<Value>(joinAttributes.length);
+        for (String name : joinAttributes)
+            key.add(bindings.getValue(name));
+        return key;
+    }
+
+    private static Set<String> joinAttributesOf(Join join) {
+        Set<String> attributes = new HashSet<String>(join.getLeftArg().getBindingNames());
+        attributes.retainAll(join.getRightArg().getBindingNames());
+        return attributes;
+    }
+
+    /**
+     * The rows of an argument that can still be matched by rows of the other argument.
+     */
+    private static final class Side {
+
+        private Map<Object, List<BindingSet>> table = new HashMap<Object, List<BindingSet>>();
+
+        private List<BindingSet> emptyRows = new ArrayList<BindingSet>();
+
+        private long rows = 0;
+
+        private boolean exhausted = false;
+
+        // the rows with bindings that arrived after the memory budget was exceeded, or null
+        private JoinPartitions stored;
+
+        // a row without bindings that arrived after the memory budget was exceeded, and their number
+        private BindingSet laterEmpty;
+
+        private long laterEmptyRows = 0;
+
+        /**
+         * @return the list of the rows of the table with the key
+         */
+        List<BindingSet> put(Object key) {
+            List<BindingSet> l = table.get(key);
+            if (l == null) {
+                l = new ArrayList<BindingSet>(1);
+                table.put(key, l);
+            }
+            return l;
+        }
+
+        long getStoredRows() { return stored == null ? 0 : stored.getRows(0); }
+
+        long getLaterRows() { return getStoredRows() + laterEmptyRows; }
+
+        void drop() {
+            table = Collections.emptyMap();
+            emptyRows = Collections.emptyList();
+        }
+
+        void destroy() {
+            if (stored != null)
+                stored.destroy();
+        }
+    }
+
+    /**
+     * Joins a row without bindings with the rows of the other argument that arrived after
+     * the memory budget was exceeded, including the rows without bindings.
+     */
+    private final class EmptyRowJoin extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final BindingSet empty;
+
+        private final boolean isLeft;
+
+        private final Side other;
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> rows;
+
+        private long emptyRows;
+
+        EmptyRowJoin(BindingSet empty, boolean isLeft, Side other) {
+            this.empty = empty;
+            this.isLeft = isLeft;
+            this.other = other;
+            // a pair of rows without bindings is joined once, by the row of the left argument
+            this.emptyRows = isLeft ? other.laterEmptyRows : 0;
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            if (rows == null)
+                rows = other.stored == null
+                        ? new EmptyIteration<BindingSet, QueryEvaluationException>()
+                        : other.stored.read(0);
+
+            BindingSet row;
+            if (rows.hasNext())
+                row = rows.next();
+            else if (emptyRows > 0) {
+                emptyRows--;
+                row = other.laterEmpty;
+            } else
+                return null;
+
+            return isLeft ? merger.merge(empty, row) : merger.merge(row, empty);
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            if (rows != null)
+                rows.close();
+        }
+    }
+
+    /**
+     * Returns the rows of the iterations one after the other, closing each once it is exhausted.
+     */
+    private static final class SequenceIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final Iterator<CloseableIteration<BindingSet, QueryEvaluationException>> iters;
+
+        private CloseableIteration<BindingSet, QueryEvaluationException> current;
+
+        SequenceIteration(List<CloseableIteration<BindingSet, QueryEvaluationException>> iters) {
+            this.iters = iters.iterator();
+        }
+
+        @Override
+        protected BindingSet getNextElement() throws QueryEvaluationException {
+            while (current == null || !current.hasNext()) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                if (!iters.hasNext())
+                    return null;
+                current = iters.next();
+            }
+            return current.next();
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            try {
+                if (current != null)
+                    current.close();
+            } finally {
+                while (iters.hasNext())
+                    iters.next().close();
+            }
+        }
+    }
+
+    /**
+     * A row of an argument, or the end of the argument if there is no row.
+     */
+    private static final class Arrival {
+
+        private final boolean left;
+
+        private final BindingSet bindings;
+
+        Arrival(boolean left, BindingSet bindings) {
+            this.left = left;
+            this.bindings = bindings;
+        }
+    }
+
+    /**
+     * The rows of an argument followed by its end.
+     */
+    private static final class Arrivals extends LookAheadIteration<Arrival, QueryEvaluationException> {
+
+        private final CloseableIteration<BindingSet, QueryEvaluationException> iter;
+
+        private final boolean left;
+
+        private boolean ended = false;
+
+        Arrivals(CloseableIteration<BindingSet, QueryEvaluationException> iter, boolean left) {
+            this.iter = iter;
+            this.left = left;
+        }
+
+        @Override
+        protected Arrival getNextElement() throws QueryEvaluationException {
+            if (iter.hasNext())
+                return new Arrival(left, iter.next());
+
+            if (ended)
+                return null;
+
+            ended = true;
+            return new Arrival(left, null);
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            iter.close();
+        }
+    }
+
+    /**
+     * Reads a row of each argument in turn.
+     */
+    private static final class InTurnIteration extends LookAheadIteration<Arrival, QueryEvaluationException> {
+
+        private final Arrivals[] args;
+
+        private int next = 0;
+
+        InTurnIteration(Arrivals left, Arrivals right) {
+            this.args = new Arrivals[] { left, right };
+        }
+
+        @Override
+        protected Arrival getNextElement() throws QueryEvaluationException {
+            for (int i = 0; i < args.length; i++) {
+                Arrivals arg = args[next];
+                next = (next + 1) % args.length;
+                if (arg.hasNext())
+                    return arg.next();
+            }
+            return null;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            try {
+                args[0].close();
+            } finally {
+                args[1].close();
+            }
+        }
+    }
+}
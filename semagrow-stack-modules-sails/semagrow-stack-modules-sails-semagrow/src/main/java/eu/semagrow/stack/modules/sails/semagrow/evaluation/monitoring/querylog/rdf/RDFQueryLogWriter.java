@@ -1,5 +1,6 @@
 package eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.rdf;
 
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.SPARQLSerializer;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.QueryLogException;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.QueryLogRecord;
 import eu.semagrow.stack.modules.sails.semagrow.evaluation.monitoring.querylog.QueryLogWriter;
@@ -86,8 +87,12 @@ public class RDFQueryLogWriter implements QueryLogWriter {
     {
         try {
             String queryString = null;
-            ParsedTupleQuery query = new ParsedTupleQuery(expr);
-            queryString = new SPARQLQueryRenderer().render(query);
+            if (SPARQLSerializer.isSupported(expr)) {
+                queryString = SPARQLSerializer.serializeSelect(expr, null);
+            } else {
+                ParsedTupleQuery query = new ParsedTupleQuery(expr);
+                queryString = new SPARQLQueryRenderer().render(query);
+            }
             return vf.createLiteral(queryString);
         } catch (Exception e) {
             throw new QueryLogException(e);
@@ -0,0 +1,245 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import org.openrdf.model.URI;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sparql.SPARQLRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of connections to a single SPARQL endpoint.
+ * Connections are kept open after use so that the underlying
+ * HTTP client (and its keep-alive connections) is reused by
+ * subsequent queries. At most {@code maxConnections} connections
+ * can be leased at the same time; connections that stay idle for
+ * longer than {@code idleTimeout} milliseconds are evicted.
+ */
+public class EndpointConnectionPool {
+
+    private final Logger logger = LoggerFactory.getLogger(EndpointConnectionPool.class);
+
+    private final URI endpoint;
+
+    private final Repository repository;
+
+    private final int maxConnections;
+
+    private final long idleTimeout;
+
+    private final long acquireTimeout;
+
+    private final Semaphore permits;
+
+    // most recently released connections are kept at the head
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<IdleConnection>();
+
+    private final AtomicInteger open = new AtomicInteger(0);
+
+    private final AtomicInteger leased = new AtomicInteger(0);
+
+    private volatile boolean closed = false;
+
+    public EndpointConnectionPool(URI endpoint, int maxConnections, long idleTimeout, long acquireTimeout) {
+        this(endpoint, new SPARQLRepository(endpoint.stringValue()), maxConnections, idleTimeout, acquireTimeout);
+    }
+
+    public EndpointConnectionPool(URI endpoint, Repository repository,
+                                  int maxConnections, long idleTimeout, long acquireTimeout) {
+        assert maxConnections > 0;
+        this.endpoint = endpoint;
+        this.repository = repository;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.acquireTimeout = acquireTimeout;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    public URI getEndpoint() { return endpoint; }
+
+    public Repository getRepository() { return repository; }
+
+    public int getMaxConnections() { return maxConnections; }
+
+    /**
+     * @return the number of connections that are currently open (leased or idle).
+     */
+    public int getOpenConnections() { return open.get(); }
+
+    /**
+     * @return the number of connections that are currently in use.
+     */
+    public int getLeasedConnections() { return leased.get(); }
+
+    /**
+     * @return the number of open connections that are waiting to be reused.
+     */
+    public int getIdleConnections() { return idle.size(); }
+
+    /**
+     * Leases a connection to the endpoint. Blocks if {@code maxConnections}
+     * are already leased until one is released or the acquire timeout elapses.
+     * @return an open connection to the endpoint
+     * @throws RepositoryException if no connection could be acquired
+     */
+    public RepositoryConnection acquire() throws RepositoryException {
+
+        if (closed)
+            throw new RepositoryException("Connection pool of " + endpoint + " is closed");
+
+        try {
+            if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS))
+                throw new RepositoryException("Timed out waiting for a connection to " + endpoint +
+                        " (" + maxConnections + " connections in use)");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(e);
+        }
+
+        try {
+            RepositoryConnection conn = pollIdle();
+
+            if (conn == null)
+                conn = createConnection();
+
+            leased.incrementAndGet();
+            logger.debug("Connection " + conn + " to " + endpoint + " leased, currently open " + open.get());
+            return conn;
+        } catch (RepositoryException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a leased connection to the pool so that it can be reused.
+     * @param conn a connection previously returned by {@link #acquire()}
+     */
+    public void release(RepositoryConnection conn) {
+        leased.decrementAndGet();
+        try {
+            if (closed || !isOpen(conn))
+                discard(conn);
+            else
+                idle.offerFirst(new IdleConnection(conn, System.currentTimeMillis()));
+        } finally {
+            permits.release();
+        }
+        logger.debug("Connection " + conn + " to " + endpoint + " released, currently open " + open.get());
+    }
+
+    /**
+     * Closes a leased connection instead of returning it to the pool.
+     * Should be used when the state of the connection is unknown (e.g. after a failure).
+     * @param conn a connection previously returned by {@link #acquire()}
+     */
+    public void invalidate(RepositoryConnection conn) {
+        leased.decrementAndGet();
+        try {
+            discard(conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than the idle timeout.
+     * @return the number of evicted connections
+     */
+    public int evictIdle() {
+        long threshold = System.currentTimeMillis() - idleTimeout;
+        int evicted = 0;
+
+        Iterator<IdleConnection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            IdleConnection c = it.next();
+            if (c.since > threshold)
+                break;
+
+            if (idle.removeLastOccurrence(c)) {
+                discard(c.connection);
+                evicted++;
+            }
+        }
+
+        if (evicted > 0)
+            logger.debug("Evicted " + evicted + " idle connections to " + endpoint);
+
+        return evicted;
+    }
+
+    public void shutDown() {
+        closed = true;
+
+        IdleConnection c;
+        while ((c = idle.pollFirst()) != null)
+            discard(c.connection);
+
+        try {
+            repository.shutDown();
+        } catch (RepositoryException e) {
+            logger.warn("Failed to shut down repository of " + endpoint, e);
+        }
+    }
+
+    private RepositoryConnection pollIdle() {
+        IdleConnection c;
+        while ((c = idle.pollFirst()) != null) {
+            if (isOpen(c.connection))
+                return c.connection;
+            discard(c.connection);
+        }
+        return null;
+    }
+
+    private RepositoryConnection createConnection() throws RepositoryException {
+        synchronized (repository) {
+            if (!repository.isInitialized())
+                repository.initialize();
+        }
+
+        RepositoryConnection conn = repository.getConnection();
+        open.incrementAndGet();
+        return conn;
+    }
+
+    private void discard(RepositoryConnection conn) {
+        open.decrementAndGet();
+        try {
+            if (conn.isOpen())
+                conn.close();
+        } catch (RepositoryException e) {
+            logger.debug("Failed to close connection to " + endpoint, e);
+        }
+    }
+
+    private boolean isOpen(RepositoryConnection conn) {
+        try {
+            return conn.isOpen();
+        } catch (RepositoryException e) {
+            return false;
+        }
+    }
+
+    private static class IdleConnection {
+
+        private final RepositoryConnection connection;
+
+        private final long since;
+
+        public IdleConnection(RepositoryConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.BatchSizeController;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.BindJoinMode;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.async.ResultFormatSelector;
+import org.openrdf.model.URI;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one connection pool per remote endpoint. A single registry is
+ * shared by all the evaluation sessions of a SemagrowSail, so that
+ * repositories and HTTP connections survive across queries.
+ * Once the registry is shut down no more connections can be acquired.
+ */
+public class EndpointRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(EndpointRegistry.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+
+    private final ConcurrentMap<URI, EndpointConnectionPool> pools =
+            new ConcurrentHashMap<URI, EndpointConnectionPool>();
+
+    private final ConcurrentMap<URI, BindJoinMode> bindJoinModes =
+            new ConcurrentHashMap<URI, BindJoinMode>();
+
+    private final ConcurrentMap<URI, BatchSizeController> batchSizeControllers =
+            new ConcurrentHashMap<URI, BatchSizeController>();
+
+    private final ConcurrentMap<URI, ResultFormatSelector> resultFormatSelectors =
+            new ConcurrentHashMap<URI, ResultFormatSelector>();
+
+    private volatile BindJoinMode defaultBindJoinMode = BindJoinMode.VALUES;
+
+    private volatile int maxConnectionsPerEndpoint = DEFAULT_MAX_CONNECTIONS;
+
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private volatile long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+
+    private ScheduledExecutorService evictor;
+
+    private volatile boolean closed = false;
+
+    public int getMaxConnectionsPerEndpoint() { return maxConnectionsPerEndpoint; }
+
+    /**
+     * Sets the maximum number of concurrently leased connections for each endpoint.
+     * Applies to the pools created after the call.
+     */
+    public void setMaxConnectionsPerEndpoint(int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Maximum connections per endpoint must be positive");
+        this.maxConnectionsPerEndpoint = max;
+    }
+
+    public long getIdleTimeout() { return idleTimeout; }
+
+    /**
+     * Sets the time in milliseconds after which an unused connection is closed.
+     */
+    public void setIdleTimeout(long idleTimeout) { this.idleTimeout = idleTimeout; }
+
+    public long getAcquireTimeout() { return acquireTimeout; }
+
+    public void setAcquireTimeout(long acquireTimeout) { this.acquireTimeout = acquireTimeout; }
+
+    public BindJoinMode getDefaultBindJoinMode() { return defaultBindJoinMode; }
+
+    public void setDefaultBindJoinMode(BindJoinMode mode) {
+        assert mode != null;
+        this.defaultBindJoinMode = mode;
+    }
+
+    /**
+     * Gets the way bind joins are shipped to the given endpoint.
+     */
+    public BindJoinMode getBindJoinMode(URI endpoint) {
+        BindJoinMode mode = bindJoinModes.get(endpoint);
+        return (mode != null) ? mode : defaultBindJoinMode;
+    }
+
+    public void setBindJoinMode(URI endpoint, BindJoinMode mode) {
+        assert mode != null;
+        BindJoinMode old = bindJoinModes.put(endpoint, mode);
+        if (old != mode)
+            logger.info("Bind join mode of " + endpoint + " set to " + mode);
+    }
+
+    /**
+     * Gets the controller that keeps the batch size learned for the bind joins to the given endpoint.
+     */
+    public BatchSizeController getBatchSizeController(URI endpoint) {
+        BatchSizeController controller = batchSizeControllers.get(endpoint);
+
+        if (controller == null) {
+            BatchSizeController newController = new BatchSizeController();
+            controller = batchSizeControllers.putIfAbsent(endpoint, newController);
+            if (controller == null)
+                controller = newController;
+        }
+
+        return controller;
+    }
+
+    /**
+     * @return the current bind join batch size of every endpoint that has been probed.
+     */
+    public Map<URI, Integer> getBatchSizes() {
+        Map<URI, Integer> sizes = new HashMap<URI, Integer>();
+        for (Map.Entry<URI, BatchSizeController> e : batchSizeControllers.entrySet())
+            sizes.put(e.getKey(), e.getValue().getBatchSize());
+        return sizes;
+    }
+
+    /**
+     * Gets the selector that negotiates the format of the results of the given endpoint.
+     */
+    public ResultFormatSelector getResultFormatSelector(URI endpoint) {
+        ResultFormatSelector selector = resultFormatSelectors.get(endpoint);
+
+        if (selector == null) {
+            ResultFormatSelector newSelector = new ResultFormatSelector(endpoint);
+            selector = resultFormatSelectors.putIfAbsent(endpoint, newSelector);
+            if (selector == null)
+                selector = newSelector;
+        }
+
+        return selector;
+    }
+
+    public Collection<ResultFormatSelector> getResultFormatSelectors() {
+        return Collections.unmodifiableCollection(resultFormatSelectors.values());
+    }
+
+    public synchronized void initialize() {
+        if (evictor != null)
+            return;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "semagrow-connection-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        long period = Math.max(idleTimeout / 2, 1000);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutDown() {
+        closed = true;
+
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+
+        for (EndpointConnectionPool pool : pools.values())
+            pool.shutDown();
+
+        for (ResultFormatSelector selector : resultFormatSelectors.values())
+            logger.info("Results of " + selector.getEndpoint() + ": " + selector.getStatistics());
+
+        pools.clear();
+    }
+
+    public boolean isShutDown() { return closed; }
+
+    /**
+     * Gets the connection pool of the given endpoint, creating it on first use.
+     * @throws RepositoryException if the registry has been shut down
+     */
+    public EndpointConnectionPool getPool(URI endpoint) throws RepositoryException {
+        checkOpen();
+
+        EndpointConnectionPool pool = pools.get(endpoint);
+
+        if (pool == null) {
+            EndpointConnectionPool newPool = createPool(endpoint);
+            pool = pools.putIfAbsent(endpoint, newPool);
+            if (pool == null) {
+                pool = newPool;
+                // the registry may have been shut down before the pool was added
+                if (closed) {
+                    pools.remove(endpoint, newPool);
+                    newPool.shutDown();
+                    checkOpen();
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    private void checkOpen() throws RepositoryException {
+        if (closed)
+            throw new RepositoryException("The endpoint registry has been shut down");
+    }
+
+    public Collection<EndpointConnectionPool> getPools() {
+        return Collections.unmodifiableCollection(pools.values());
+    }
+
+    public RepositoryConnection getConnection(URI endpoint) throws RepositoryException {
+        return getPool(endpoint).acquire();
+    }
+
+    public void releaseConnection(URI endpoint, RepositoryConnection conn) {
+        EndpointConnectionPool pool = pools.get(endpoint);
+        if (pool != null)
+            pool.release(conn);
+        else
+            close(endpoint, conn);
+    }
+
+    public void invalidateConnection(URI endpoint, RepositoryConnection conn) {
+        EndpointConnectionPool pool = pools.get(endpoint);
+        if (pool != null)
+            pool.invalidate(conn);
+        else
+            close(endpoint, conn);
+    }
+
+    // closes a connection whose pool was shut down with the registry
+    private void close(URI endpoint, RepositoryConnection conn) {
+        try {
+            conn.close();
+        } catch (RepositoryException e) {
+            logger.debug("Failed to close connection to " + endpoint, e);
+        }
+    }
+
+    /**
+     * @return the number of open connections to all the endpoints.
+     */
+    public int getOpenConnections() {
+        int count = 0;
+        for (EndpointConnectionPool pool : pools.values())
+            count += pool.getOpenConnections();
+        return count;
+    }
+
+    /**
+     * @return the number of connections to all the endpoints that are currently in use.
+     */
+    public int getLeasedConnections() {
+        int count = 0;
+        for (EndpointConnectionPool pool : pools.values())
+            count += pool.getLeasedConnections();
+        return count;
+    }
+
+    public void evictIdle() {
+        try {
+            for (EndpointConnectionPool pool : pools.values())
+                pool.evictIdle();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to evict idle connections", e);
+        }
+    }
+
+    protected EndpointConnectionPool createPool(URI endpoint) {
+        return new EndpointConnectionPool(endpoint, maxConnectionsPerEndpoint, idleTimeout, acquireTimeout);
+    }
+}
@@ -0,0 +1,162 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import info.aduna.iteration.LookAheadIteration;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.TupleQueryResultHandlerBase;
+import org.openrdf.query.TupleQueryResultHandlerException;
+
+import java.util.ArrayDeque;
+
+/**
+ * A result whose stream is parsed by a {@link ResultParserPool}.
+ * <p>
+ * The thread that parses the stream stops while {@code capacity} rows wait in the buffer.
+ * If the consumer asks for a row before the pool has started on the stream, the stream
+ * is handed to an overflow thread of the pool, which keeps to the same capacity.
+ */
+public class PooledTupleResult extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+    private enum State { PENDING, RUNNING, DONE }
+
+    private final ResultParserPool.ParseTask task;
+
+    private final int capacity;
+
+    private final ResultParserPool pool;
+
+    // guarded by this
+    private final ArrayDeque<BindingSet> rows = new ArrayDeque<BindingSet>();
+    private State state = State.PENDING;
+    private boolean overflow = false;
+    private boolean closed = false;
+    private QueryEvaluationException failure;
+
+    PooledTupleResult(ResultParserPool.ParseTask task, int capacity, ResultParserPool pool) {
+        this.task = task;
+        this.capacity = capacity;
+        this.pool = pool;
+    }
+
+    void runOnPool() {
+        synchronized (this) {
+            if (state != State.PENDING)
+                return;
+            state = State.RUNNING;
+        }
+        run();
+    }
+
+    void runOnOverflow() {
+        run();
+    }
+
+    private void run() {
+        Exception error = null;
+
+        try {
+            task.parse(new Handler());
+        } catch (Exception e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            state = State.DONE;
+            if (error != null && !closed && failure == null)
+                failure = (error instanceof QueryEvaluationException)
+                        ? (QueryEvaluationException) error : new QueryEvaluationException(error);
+            notifyAll();
+        }
+
+        pool.parsed(!overflow);
+    }
+
+    @Override
+    protected BindingSet getNextElement() throws QueryEvaluationException {
+        while (true) {
+            synchronized (this) {
+                while (true) {
+                    if (!rows.isEmpty()) {
+                        BindingSet next = rows.poll();
+                        notifyAll();
+                        return next;
+                    }
+
+                    if (failure != null)
+                        throw failure;
+
+                    if (state == State.DONE)
+                        return null;
+
+                    if (state == State.PENDING) {
+                        state = State.RUNNING;
+                        overflow = true;
+                        break;
+                    }
+
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new QueryInterruptedException(e);
+                    }
+                }
+            }
+
+            // no thread of the pool has started on the stream; hand it to an overflow thread
+            if (!pool.takeOver(this)) {
+                synchronized (this) {
+                    state = State.DONE;
+                    if (failure == null)
+                        failure = new QueryEvaluationException("Result parser pool is shut down");
+                }
+                task.cancel();
+            }
+        }
+    }
+
+    @Override
+    protected void handleClose() throws QueryEvaluationException {
+        boolean cancel;
+
+        synchronized (this) {
+            closed = true;
+            rows.clear();
+            cancel = (state == State.PENDING);
+            if (cancel)
+                state = State.DONE;
+            notifyAll();
+        }
+
+        try {
+            if (cancel)
+                task.cancel();
+        } finally {
+            super.handleClose();
+        }
+    }
+
+    private class Handler extends TupleQueryResultHandlerBase {
+
+        @Override
+        public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+            synchronized (PooledTupleResult.this) {
+                while (!closed && rows.size() >= capacity) {
+                    try {
+                        PooledTupleResult.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new TupleQueryResultHandlerException(e);
+                    }
+                }
+
+                if (closed)
+                    throw new TupleQueryResultHandlerException("Result closed");
+
+                rows.add(bindingSet);
+                PooledTupleResult.this.notifyAll();
+            }
+        }
+    }
+}
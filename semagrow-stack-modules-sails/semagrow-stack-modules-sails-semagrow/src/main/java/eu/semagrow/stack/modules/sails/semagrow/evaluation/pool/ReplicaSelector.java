@@ -0,0 +1,161 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import org.openrdf.model.URI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Spreads the requests to a source over its mirrors.
+ * <p>
+ * For every endpoint the selector keeps the number of outstanding requests
+ * and an exponentially weighted moving average of its response latency.
+ * Each request goes to the mirror with the lowest expected cost, that is its
+ * latency multiplied by the number of requests it would be serving, so that a
+ * busy or slow mirror is passed over while its siblings sit idle.
+ * Mirrors with equal cost are picked at random.
+ * A single selector is shared by all the evaluation sessions of a SemagrowSail.
+ */
+public class ReplicaSelector {
+
+    public static final double DEFAULT_ALPHA = 0.2;
+
+    private final ConcurrentMap<URI, Load> loads = new ConcurrentHashMap<URI, Load>();
+
+    private final Random random = new Random();
+
+    private volatile double alpha = DEFAULT_ALPHA;
+
+    public double getAlpha() { return alpha; }
+
+    /**
+     * Sets the weight of the latest sample in the moving average of the latency.
+     */
+    public void setAlpha(double alpha) {
+        if (alpha <= 0 || alpha > 1)
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        this.alpha = alpha;
+    }
+
+    public Load getLoad(URI endpoint) {
+        Load load = loads.get(endpoint);
+        if (load == null) {
+            Load newLoad = new Load(endpoint);
+            load = loads.putIfAbsent(endpoint, newLoad);
+            if (load == null)
+                load = newLoad;
+        }
+        return load;
+    }
+
+    /**
+     * Orders the mirrors of a source by their expected cost.
+     * The first mirror is the one the request should be sent to,
+     * the rest are the alternatives in order of preference.
+     */
+    public List<URI> select(List<URI> mirrors) {
+        if (mirrors.size() <= 1)
+            return mirrors;
+
+        List<URI> shuffled = new ArrayList<URI>(mirrors);
+        synchronized (random) {
+            Collections.shuffle(shuffled, random);
+        }
+
+        // endpoints never heard of are assumed to be as fast as the average known mirror
+        double sum = 0;
+        int known = 0;
+        for (URI endpoint : shuffled) {
+            double latency = getLoad(endpoint).getLatency();
+            if (latency > 0) {
+                sum += latency;
+                known++;
+            }
+        }
+        double unknownLatency = (known == 0) ? 1 : sum / known;
+
+        final Map<URI, Double> costs = new HashMap<URI, Double>();
+        for (URI endpoint : shuffled)
+            costs.put(endpoint, getLoad(endpoint).getCost(unknownLatency));
+
+        // the sort is stable, so ties keep the random order
+        Collections.sort(shuffled, new Comparator<URI>() {
+            @Override
+            public int compare(URI u1, URI u2) {
+                return Double.compare(costs.get(u1), costs.get(u2));
+            }
+        });
+
+        return shuffled;
+    }
+
+    /**
+     * Marks the start of a request to the endpoint.
+     * Every call must be followed by a call to {@link #finished(URI)}.
+     */
+    public void started(URI endpoint) {
+        getLoad(endpoint).started();
+    }
+
+    /**
+     * Records the time it took the endpoint to start responding.
+     */
+    public void responded(URI endpoint, long latency) {
+        getLoad(endpoint).responded(latency, alpha);
+    }
+
+    /**
+     * Marks the end of a request to the endpoint, whether it completed, failed or was cancelled.
+     */
+    public void finished(URI endpoint) {
+        getLoad(endpoint).finished();
+    }
+
+    @Override
+    public String toString() {
+        return loads.values().toString();
+    }
+
+    public static class Load {
+
+        private final URI endpoint;
+
+        // guarded by this
+        private int outstanding = 0;
+        private double latency = 0;
+
+        Load(URI endpoint) { this.endpoint = endpoint; }
+
+        public URI getEndpoint() { return endpoint; }
+
+        public synchronized int getOutstanding() { return outstanding; }
+
+        /**
+         * @return the moving average of the latency in milliseconds or 0 if nothing is known yet.
+         */
+        public synchronized double getLatency() { return latency; }
+
+        synchronized double getCost(double unknownLatency) {
+            return (outstanding + 1) * (latency > 0 ? latency : unknownLatency);
+        }
+
+        synchronized void started() { outstanding++; }
+
+        synchronized void finished() {
+            if (outstanding > 0)
+                outstanding--;
+        }
+
+        synchronized void responded(long sample, double alpha) {
+            // a zero latency would make the endpoint look unknown
+            double value = Math.max(sample, 1);
+            latency = (latency > 0) ? alpha * value + (1 - alpha) * latency : value;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return endpoint + "{outstanding=" + outstanding + ", latency=" + Math.round(latency) + "ms}";
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import org.openrdf.model.URI;
+import org.openrdf.query.QueryEvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits the requests to the remote endpoints.
+ * <p>
+ * At most {@code maxRequestsPerEndpoint} requests run against an endpoint at the
+ * same time; the others wait in a queue of the endpoint. The waiting requests
+ * are grouped by the session that issued them and a freed slot goes to the
+ * sessions in turn, so a query with a wide bind join cannot starve the queries
+ * that arrived after it. A request holds its slot only while it waits for the
+ * response of the endpoint, never while its result is read.
+ * <p>
+ * The scheduler also owns the thread pool that evaluates the asynchronous parts of
+ * the queries. These tasks produce the rows of operators and block until their
+ * consumers catch up, so a task is never queued behind them: the pool keeps up to
+ * {@code maxThreads} threads and a task submitted while all of them are busy runs
+ * on one of at most {@code maxOverflowThreads} threads of its own, which ends with
+ * the task. Once those are busy as well, the submitter waits for a thread to become
+ * free for as long as a request waits for a slot, and the task is rejected after that.
+ * A single scheduler is shared by all the evaluation sessions of a SemagrowSail.
+ */
+public class RequestScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestScheduler.class);
+
+    public static final int DEFAULT_MAX_REQUESTS_PER_ENDPOINT = 16;
+
+    public static final int DEFAULT_MAX_THREADS = 256;
+
+    public static final long DEFAULT_QUEUE_TIMEOUT = 60000;
+
+    private static final long CHECK_INTERVAL = 100;
+
+    private final ConcurrentMap<URI, EndpointQueue> queues = new ConcurrentHashMap<URI, EndpointQueue>();
+
+    private final ConcurrentMap<URI, Integer> maxRequests = new ConcurrentHashMap<URI, Integer>();
+
+    private final ThreadPoolExecutor executor;
+
+    private final Semaphore overflowThreads;
+
+    private final int maxOverflowThreads;
+
+    private final AtomicLong overflowTasks = new AtomicLong(0);
+
+    private volatile int maxRequestsPerEndpoint = DEFAULT_MAX_REQUESTS_PER_ENDPOINT;
+
+    private volatile long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+
+    public RequestScheduler() {
+        this(DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * @param maxThreads the number of threads the pool keeps to evaluate queries concurrently.
+     *                   A quarter as many threads may be started on top of them when they are all busy.
+     */
+    public RequestScheduler(int maxThreads) {
+        this(maxThreads, Math.max(1, maxThreads / 4));
+    }
+
+    /**
+     * @param maxThreads the number of threads the pool keeps to evaluate queries concurrently.
+     * @param maxOverflowThreads the number of threads that run the tasks submitted while all the threads
+     *                           of the pool are busy, since a queued producer could wait for ever on
+     *                           producers that wait for it.
+     */
+    public RequestScheduler(int maxThreads, int maxOverflowThreads) {
+        if (maxThreads <= 0)
+            throw new IllegalArgumentException("Maximum threads must be positive");
+        if (maxOverflowThreads < 0)
+            throw new IllegalArgumentException("Maximum overflow threads must not be negative");
+
+        final AtomicInteger count = new AtomicInteger(0);
+
+        this.maxOverflowThreads = maxOverflowThreads;
+        this.overflowThreads = new Semaphore(maxOverflowThreads);
+
+        executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "semagrow-worker-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new OverflowHandler());
+    }
+
+    /**
+     * Gets the thread pool that evaluates the asynchronous parts of the queries.
+     */
+    public ExecutorService getExecutor() { return executor; }
+
+    public int getMaxThreads() { return executor.getMaximumPoolSize(); }
+
+    public int getMaxOverflowThreads() { return maxOverflowThreads; }
+
+    /**
+     * @return the number of threads that are currently running tasks.
+     */
+    public int getActiveThreads() { return executor.getActiveCount(); }
+
+    /**
+     * @return the number of overflow threads that are currently running tasks.
+     */
+    public int getActiveOverflowThreads() { return maxOverflowThreads - overflowThreads.availablePermits(); }
+
+    /**
+     * @return the number of tasks that ran on overflow threads because all the threads of the pool were busy.
+     */
+    public long getOverflowTasks() { return overflowTasks.get(); }
+
+    public int getMaxRequestsPerEndpoint() { return maxRequestsPerEndpoint; }
+
+    /**
+     * Sets the maximum number of concurrent requests to each endpoint.
+     * Applies to the endpoints that have not been contacted yet.
+     */
+    public void setMaxRequestsPerEndpoint(int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Maximum requests per endpoint must be positive");
+        this.maxRequestsPerEndpoint = max;
+    }
+
+    /**
+     * Gets the maximum number of concurrent requests to the given endpoint.
+     */
+    public int getMaxRequests(URI endpoint) {
+        Integer max = maxRequests.get(endpoint);
+        return (max != null) ? max : maxRequestsPerEndpoint;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests to the given endpoint,
+     * overriding the default of {@link #setMaxRequestsPerEndpoint(int)}.
+     */
+    public void setMaxRequests(URI endpoint, int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Maximum requests per endpoint must be positive");
+        maxRequests.put(endpoint, max);
+        getQueue(endpoint).setMaxRequests(max);
+    }
+
+    public long getQueueTimeout() { return queueTimeout; }
+
+    /**
+     * Sets the time in milliseconds a request may wait for a slot before it fails.
+     */
+    public void setQueueTimeout(long queueTimeout) { this.queueTimeout = queueTimeout; }
+
+    public EndpointQueue getQueue(URI endpoint) {
+        EndpointQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            EndpointQueue newQueue = new EndpointQueue(endpoint, getMaxRequests(endpoint));
+            queue = queues.putIfAbsent(endpoint, newQueue);
+            if (queue == null)
+                queue = newQueue;
+        }
+        return queue;
+    }
+
+    /**
+     * Waits for a slot to send a request to the endpoint.
+     * @param session the session that issues the request
+     * @return the slot, which must be released when the request is over
+     * @throws QueryEvaluationException if no slot was granted within the queue timeout or the thread was interrupted
+     */
+    public Slot acquire(URI endpoint, Object session) throws QueryEvaluationException {
+        return getQueue(endpoint).acquire(session, queueTimeout);
+    }
+
+    /**
+     * @return the number of requests that currently wait for a slot of every endpoint.
+     */
+    public Map<URI, Integer> getQueueDepths() {
+        Map<URI, Integer> depths = new HashMap<URI, Integer>();
+        for (Map.Entry<URI, EndpointQueue> e : queues.entrySet())
+            depths.put(e.getKey(), e.getValue().getQueueDepth());
+        return depths;
+    }
+
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "threads=" + getActiveThreads() + "/" + getMaxThreads() +
+                ", overflowThreads=" + getActiveOverflowThreads() + "/" + getMaxOverflowThreads() +
+                ", overflowTasks=" + getOverflowTasks() + ", endpoints=" + queues.values();
+    }
+
+    /**
+     * Runs the tasks that the pool rejects because all of its threads are busy.
+     */
+    private class OverflowHandler implements RejectedExecutionHandler {
+
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+            long timeout = queueTimeout;
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (!pool.isShutdown()) {
+                if (overflowThreads.tryAcquire()) {
+                    start(r);
+                    return;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0)
+                    throw new RejectedExecutionException("Timed out waiting for one of the " +
+                            (pool.getMaximumPoolSize() + maxOverflowThreads) + " threads of the request scheduler");
+
+                // hand the task over to the first thread of the pool that is done with its own
+                try {
+                    long wait = (timeout > 0) ? Math.min(remaining, CHECK_INTERVAL) : CHECK_INTERVAL;
+                    if (pool.getQueue().offer(r, wait, TimeUnit.MILLISECONDS))
+                        return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted waiting for a thread of the request scheduler", e);
+                }
+            }
+            throw new RejectedExecutionException("The request scheduler has been shut down");
+        }
+
+        private void start(final Runnable r) {
+            overflowTasks.incrementAndGet();
+            logger.debug("All " + getMaxThreads() + " threads are busy, running a task on an overflow thread");
+
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        overflowThreads.release();
+                    }
+                }
+            }, "semagrow-overflow-" + count.incrementAndGet());
+            t.setDaemon(true);
+            try {
+                t.start();
+            } catch (RuntimeException | Error e) {
+                overflowThreads.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A permission to run one request against an endpoint.
+     */
+    public static class Slot {
+
+        private final EndpointQueue queue;
+
+        private boolean released = false;
+
+        Slot(EndpointQueue queue) { this.queue = queue; }
+
+        public URI getEndpoint() { return queue.getEndpoint(); }
+
+        /**
+         * Returns the slot to the endpoint. Releasing a slot more than once has no effect.
+         */
+        public void release() {
+            synchronized (this) {
+                if (released)
+                    return;
+                released = true;
+            }
+            queue.release();
+        }
+    }
+
+    /**
+     * The running and the waiting requests to a single endpoint.
+     */
+    public static class EndpointQueue {
+
+        private final URI endpoint;
+
+        // guarded by this
+        private int maxRequests;
+
+        private int running = 0;
+
+        // the waiting requests of each session, the sessions in the order they are served
+        private final LinkedHashMap<Object, Deque<Waiter>> waiting = new LinkedHashMap<Object, Deque<Waiter>>();
+        private int depth = 0;
+
+        private long requests = 0;
+        private long queued = 0;
+        private long totalWait = 0;
+        private long maxWait = 0;
+
+        EndpointQueue(URI endpoint, int maxRequests) {
+            this.endpoint = endpoint;
+            this.maxRequests = maxRequests;
+        }
+
+        public URI getEndpoint() { return endpoint; }
+
+        public synchronized int getMaxRequests() { return maxRequests; }
+
+        synchronized void setMaxRequests(int maxRequests) {
+            this.maxRequests = maxRequests;
+            dispatch();
+        }
+
+        public synchronized int getRunning() { return running; }
+
+        /**
+         * @return the number of requests that wait for a slot.
+         */
+        public synchronized int getQueueDepth() { return depth; }
+
+        /**
+         * @return the number of requests that have been granted a slot.
+         */
+        public synchronized long getRequests() { return requests; }
+
+        /**
+         * @return the number of requests that had to wait for a slot.
+         */
+        public synchronized long getQueued() { return queued; }
+
+        /**
+         * @return the average time in milliseconds the requests waited for a slot.
+         */
+        public synchronized double getAverageWait() {
+            return (requests == 0) ? 0 : (double) totalWait / requests;
+        }
+
+        /**
+         * @return the longest time in milliseconds a request waited for a slot.
+         */
+        public synchronized long getMaxWait() { return maxWait; }
+
+        Slot acquire(Object session, long timeout) throws QueryEvaluationException {
+            long start = System.currentTimeMillis();
+            Waiter waiter;
+
+            synchronized (this) {
+                if (running < maxRequests && depth == 0) {
+                    running++;
+                    granted(0);
+                    return new Slot(this);
+                }
+
+                waiter = new Waiter();
+                Deque<Waiter> q = waiting.get(session);
+                if (q == null) {
+                    q = new ArrayDeque<Waiter>();
+                    waiting.put(session, q);
+                }
+                q.addLast(waiter);
+                depth++;
+                queued++;
+
+                long deadline = start + timeout;
+
+                try {
+                    while (!waiter.granted) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (timeout > 0 && remaining <= 0)
+                            break;
+                        wait(timeout > 0 ? remaining : 0);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (!abandon(session, waiter))
+                        release();
+                    throw new QueryEvaluationException(e);
+                }
+
+                if (!waiter.granted) {
+                    abandon(session, waiter);
+                    throw new QueryEvaluationException("Timed out waiting to send a request to " + endpoint +
+                            " (" + running + " requests running, " + depth + " waiting)");
+                }
+
+                granted(System.currentTimeMillis() - start);
+            }
+
+            return new Slot(this);
+        }
+
+        // must be called while holding the monitor
+        private void granted(long wait) {
+            requests++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+            if (wait > 0)
+                logger.debug("Request to " + endpoint + " waited " + wait + "ms for a slot");
+        }
+
+        /**
+         * Removes a waiter that gave up; must be called while holding the monitor.
+         * @return true if it was still waiting, false if it had already been granted a slot
+         */
+        private boolean abandon(Object session, Waiter waiter) {
+            if (waiter.granted)
+                return false;
+
+            Deque<Waiter> q = waiting.get(session);
+            if (q != null && q.remove(waiter)) {
+                depth--;
+                if (q.isEmpty())
+                    waiting.remove(session);
+            }
+            return true;
+        }
+
+        synchronized void release() {
+            running--;
+            dispatch();
+        }
+
+        /**
+         * Passes the free slots to the waiting requests, taking the first
+         * request of each session in turn; must be called while holding the monitor.
+         */
+        private void dispatch() {
+            boolean granted = false;
+
+            while (running < maxRequests && !waiting.isEmpty()) {
+                Iterator<Map.Entry<Object, Deque<Waiter>>> it = waiting.entrySet().iterator();
+                Map.Entry<Object, Deque<Waiter>> next = it.next();
+                it.remove();
+
+                next.getValue().pollFirst().granted = true;
+                running++;
+                depth--;
+                granted = true;
+
+                // the session moves to the back of the line
+                if (!next.getValue().isEmpty())
+                    waiting.put(next.getKey(), next.getValue());
+            }
+
+            if (granted)
+                notifyAll();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return endpoint + "{running=" + running + "/" + maxRequests + ", waiting=" + depth +
+                    ", requests=" + requests + ", queued=" + queued +
+                    ", avgWait=" + Math.round(getAverageWait()) + "ms, maxWait=" + maxWait + "ms}";
+        }
+    }
+
+    private static class Waiter {
+        // guarded by the monitor of the queue
+        boolean granted = false;
+    }
+}
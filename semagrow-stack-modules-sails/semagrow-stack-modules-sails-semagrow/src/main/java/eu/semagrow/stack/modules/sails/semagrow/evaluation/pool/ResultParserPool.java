@@ -0,0 +1,174 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import org.openrdf.query.TupleQueryResultHandler;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses result streams on a small, fixed set of threads instead of a new thread per stream.
+ * <p>
+ * A stream is parsed by one of the threads of the pool into the bounded buffer of its
+ * {@link PooledTupleResult}; the thread waits while the buffer is full. When the consumer
+ * of a result needs a row before any thread of the pool has started on it, the stream is
+ * handed to an overflow thread, which parses it into the same bounded buffer, so a result
+ * never waits for the threads that are busy with other results. Overflow threads are only
+ * started for the results that are being read, each of which holds a connection, and are
+ * reused once idle. A single pool is shared by all the evaluation sessions of a SemagrowSail.
+ */
+public class ResultParserPool {
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ThreadPoolExecutor overflowExecutor;
+
+    private volatile int capacity = DEFAULT_CAPACITY;
+
+    private final AtomicLong pooled = new AtomicLong(0);
+
+    private final AtomicLong overflow = new AtomicLong(0);
+
+    public ResultParserPool() {
+        this(DEFAULT_THREADS);
+    }
+
+    public ResultParserPool(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Number of parser threads must be positive");
+
+        final AtomicInteger count = new AtomicInteger(0);
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "semagrow-parser-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        final AtomicInteger overflowCount = new AtomicInteger(0);
+
+        overflowExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "semagrow-parser-overflow-" + overflowCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public int getThreads() { return executor.getMaximumPoolSize(); }
+
+    /**
+     * @return the number of threads that are currently alive.
+     */
+    public int getPoolSize() { return executor.getPoolSize(); }
+
+    /**
+     * @return the number of overflow threads that are currently alive.
+     */
+    public int getOverflowPoolSize() { return overflowExecutor.getPoolSize(); }
+
+    public int getCapacity() { return capacity; }
+
+    /**
+     * Sets the number of rows of a result that are buffered before its parser waits for the consumer.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Schedules the parsing of a result stream.
+     * @return the result, whose rows become available as they are parsed
+     */
+    public PooledTupleResult parse(ParseTask task) {
+        final PooledTupleResult result = new PooledTupleResult(task, capacity, this);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    result.runOnPool();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool is shut down; the result fails when it is read
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses a result whose consumer needs a row before any thread of the pool has started on it.
+     * @return false if the pool is shut down
+     */
+    boolean takeOver(final PooledTupleResult result) {
+        try {
+            overflowExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    result.runOnOverflow();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    void parsed(boolean onPool) {
+        if (onPool)
+            pooled.incrementAndGet();
+        else
+            overflow.incrementAndGet();
+    }
+
+    public void shutDown() {
+        executor.shutdownNow();
+        overflowExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultParserPool(threads = " + getThreads() + ", parsed on the pool = " + pooled.get() +
+               ", parsed on overflow threads = " + overflow.get() + ")";
+    }
+
+    /**
+     * The parsing of a result stream.
+     */
+    public static abstract class ParseTask {
+
+        /**
+         * Parses the whole stream into the handler, and releases the stream.
+         * The handler throws a {@link org.openrdf.query.TupleQueryResultHandlerException}
+         * once the result has been closed, so that the parsing stops early.
+         */
+        public abstract void parse(TupleQueryResultHandler handler) throws Exception;
+
+        /**
+         * Releases the stream of a result that was closed before its parsing started.
+         */
+        public void cancel() { }
+    }
+}
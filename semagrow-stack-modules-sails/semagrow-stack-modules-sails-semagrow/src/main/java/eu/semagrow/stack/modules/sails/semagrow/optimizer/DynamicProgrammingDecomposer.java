@@ -9,6 +9,7 @@ import eu.semagrow.stack.modules.api.estimator.CostEstimator;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.BindJoin;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.HashJoin;
 import eu.semagrow.stack.modules.sails.semagrow.algebra.SourceQuery;
+import eu.semagrow.stack.modules.sails.semagrow.algebra.SymmetricHashJoin;
 import eu.semagrow.stack.modules.sails.semagrow.helpers.BPGCollector;
 import eu.semagrow.stack.modules.sails.semagrow.helpers.CombinationIterator;
 import eu.semagrow.stack.modules.sails.semagrow.helpers.FilterCollector;
@@ -17,6 +18,7 @@ import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.algebra.*;
 import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.evaluation.util.QueryOptimizerList;
 import org.openrdf.query.algebra.helpers.StatementPatternCollector;
 import org.openrdf.query.algebra.helpers.VarNameCollector;
 import org.slf4j.Logger;
@@ -30,10 +32,16 @@ import java.util.*;
  */
 public class DynamicProgrammingDecomposer implements QueryDecomposer {
 
+    public static final long DEFAULT_SYMMETRIC_JOIN_THRESHOLD = 10000;
+
     private CostEstimator costEstimator;
     private CardinalityEstimator cardinalityEstimator;
     private SourceSelector sourceSelector;
 
+    private long symmetricJoinThreshold = DEFAULT_SYMMETRIC_JOIN_THRESHOLD;
+
+    private boolean preferFirstRows = false;
+
     final private Logger logger = LoggerFactory.getLogger(DynamicProgrammingDecomposer.class);
 
     public DynamicProgrammingDecomposer(CostEstimator estimator,
@@ -44,6 +52,23 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
         this.cardinalityEstimator = cardinalityEstimator;
     }
 
+    /**
+     * Sets the estimated cardinality up to which both inputs of a join of two remote plans
+     * can be joined by a symmetric hash join, which holds the rows of both inputs.
+     * @param threshold the number of rows, or 0 to never consider the symmetric hash join
+     */
+    public void setSymmetricJoinThreshold(long threshold) { this.symmetricJoinThreshold = threshold; }
+
+    public long getSymmetricJoinThreshold() { return symmetricJoinThreshold; }
+
+    /**
+     * Makes the symmetric hash join a candidate for every join of two remote plans whatever
+     * their cardinalities, so that plans that return their first rows early can be chosen.
+     */
+    public void setPreferFirstRows(boolean preferFirstRows) { this.preferFirstRows = preferFirstRows; }
+
+    public boolean isPreferFirstRows() { return preferFirstRows; }
+
     /**
      * Will extract the base expressions (i.e. relations) and create alternative access plans
      * for each one. This is a different implementation from the traditional dynamic programming
@@ -82,7 +107,7 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
             for (SourceMetadata sourceMetadata : sources) {
                 //URI source = sourceMetadata.getEndpoints().get(0);
                 //Plan p1 = createPlan(exprLabel, sourceMetadata.target(), source, ctx);
-                // FIXME: Don't use always the first source.
+                // the endpoints of a source are mirrors; the first is the site and the rest are kept as alternatives
                 Plan p1 = createPlan(exprLabel, sourceMetadata.target().clone(), sourceMetadata, ctx);
                 sourcePlans.add(p1);
             }
@@ -231,6 +256,12 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
 
         }
 
+        // both inputs are source queries, so they can be read concurrently and joined as they arrive
+        if (!e1.getSite().equals(Plan.LOCAL) && !e2.getSite().equals(Plan.LOCAL) && isSymmetricJoinCandidate(e1, e2)) {
+            expr = new SymmetricHashJoin(enforceLocalSite(e1, ctx), enforceLocalSite(e2, ctx));
+            plans.add(expr);
+        }
+
         /*
         expr = new HashJoin(enforceLocalSite(e1, ctx), enforceLocalSite(e2, ctx));
         plans.add(expr);
@@ -241,6 +272,16 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
         return plans;
     }
 
+    private boolean isSymmetricJoinCandidate(Plan e1, Plan e2) {
+        if (preferFirstRows)
+            return true;
+
+        // the join holds the rows of both inputs, so it is only worth it when they are small
+        return symmetricJoinThreshold > 0
+                && e1.getCardinality() <= symmetricJoinThreshold
+                && e2.getCardinality() <= symmetricJoinThreshold;
+    }
+
     private Plan pushJoinRemote(Plan e1, Plan e2, DecomposerContext ctx) {
 
         URI site1 = e1.getSite();
@@ -249,7 +290,13 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
         if (site1.equals(site2) && !site1.equals(Plan.LOCAL)) {
             Set<TupleExpr> planid = new HashSet<TupleExpr>(e1.getPlanId());
             planid.addAll(e2.getPlanId());
-            return createPlan(planid, new Join(e1,e2), site1, ctx);
+            Plan p = createPlan(planid, new Join(e1,e2), site1, ctx);
+
+            // the joined plan can be evaluated only by the mirrors that have both of its parts
+            List<URI> mirrors = new LinkedList<URI>(e1.getMirrors());
+            mirrors.retainAll(e2.getMirrors());
+            p.setMirrors(mirrors);
+            return p;
         }
 
         return null;
@@ -297,6 +344,9 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
         Plan p = new Plan(planId, innerExpr);
         p.setSite(source);
 
+        if (metadata.getEndpoints().size() > 1)
+            p.setMirrors(new LinkedList<URI>(metadata.getEndpoints()));
+
         Set<String> varNames = innerExpr.getBindingNames();
         for (String varName : varNames) {
             Collection<URI> schemas = metadata.getSchema(varName);
@@ -354,7 +404,7 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
         if (p.getSite() == Plan.LOCAL)
             return p;
         else
-            return createPlan(p.getPlanId(), new SourceQuery(p, p.getSite()), Plan.LOCAL, ctx);
+            return createPlan(p.getPlanId(), new SourceQuery(p, p.getSite(), p.getMirrors()), Plan.LOCAL, ctx);
     }
 
     protected Collection<SourceMetadata> getSources(StatementPattern pattern, Dataset dataset, BindingSet bindings) {
@@ -408,7 +458,9 @@ public class DynamicProgrammingDecomposer implements QueryDecomposer {
         for (TupleExpr bgp : basicGraphPatterns)
             decomposebgp(bgp, dataset, bindings);
 
-        QueryOptimizer finalizeOptimizers = new LimitPushDownOptimizer();
+        QueryOptimizer finalizeOptimizers = new QueryOptimizerList(
+                new LimitPushDownOptimizer(),
+                new ProjectionPushDownOptimizer());
         finalizeOptimizers.optimize(tupleExpr, dataset, bindings);
     }
 
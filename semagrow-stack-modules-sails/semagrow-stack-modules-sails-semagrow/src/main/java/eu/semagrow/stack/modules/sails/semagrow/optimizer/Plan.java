@@ -27,6 +27,9 @@ public class Plan extends UnaryTupleOperator {
 
     private URI site;
 
+    // endpoints that mirror the site; null if the site has no mirrors
+    private List<URI> mirrors;
+
     private Map<String, Collection<URI>> schemas = new HashMap<String, Collection<URI>>();
 
     public Plan(TupleExpr arg) {
@@ -56,6 +59,15 @@ public class Plan extends UnaryTupleOperator {
 
     public void setSite(URI site) { this.site = site; }
 
+    /**
+     * Gets the endpoints that can evaluate the plan, starting with its site.
+     */
+    public List<URI> getMirrors() {
+        return (mirrors != null) ? mirrors : Collections.singletonList(site);
+    }
+
+    public void setMirrors(List<URI> mirrors) { this.mirrors = mirrors; }
+
     public Collection<URI> getSchemas(String var) {
         if (schemas.containsKey(var))
             return schemas.get(var);
@@ -0,0 +1,138 @@
+package eu.semagrow.stack.modules.sails.semagrow.optimizer;
+
+import eu.semagrow.stack.modules.sails.semagrow.algebra.SourceQuery;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.*;
+import org.openrdf.query.algebra.evaluation.QueryOptimizer;
+import org.openrdf.query.algebra.helpers.VarNameCollector;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Restricts the variables that each {@link SourceQuery} requests from its sources
+ * to those that are used by the rest of the plan: the variables of the final projection,
+ * the join variables and the variables of the filters, extensions, orderings and groupings
+ * that are evaluated locally. The required variables are propagated from the root of the
+ * plan downwards; operators that are not understood require every variable below them.
+ */
+public class ProjectionPushDownOptimizer implements QueryOptimizer {
+
+    public void optimize(TupleExpr tupleExpr, Dataset dataset, BindingSet bindings) {
+        pushDown(tupleExpr, null);
+    }
+
+    /**
+     * @param required the variables that the parent needs from the expression, or null for all of them
+     */
+    protected void pushDown(TupleExpr expr, Set<String> required) {
+
+        if (expr instanceof SourceQuery) {
+            restrict((SourceQuery) expr, required);
+        }
+        else if (expr instanceof Projection) {
+            Set<String> vars = new HashSet<String>();
+            for (ProjectionElem elem : ((Projection) expr).getProjectionElemList().getElements())
+                vars.add(elem.getSourceName());
+            pushDown(((Projection) expr).getArg(), vars);
+        }
+        else if (expr instanceof Extension) {
+            Extension extension = (Extension) expr;
+            Set<String> vars = copy(required);
+            if (vars != null) {
+                for (ExtensionElem elem : extension.getElements()) {
+                    vars.remove(elem.getName());
+                    vars.addAll(VarNameCollector.process(elem.getExpr()));
+                }
+            }
+            pushDown(extension.getArg(), vars);
+        }
+        else if (expr instanceof Filter) {
+            Filter filter = (Filter) expr;
+            pushDown(filter.getArg(), union(required, VarNameCollector.process(filter.getCondition())));
+        }
+        else if (expr instanceof Order) {
+            Order order = (Order) expr;
+            Set<String> vars = copy(required);
+            if (vars != null) {
+                for (OrderElem elem : order.getElements())
+                    vars.addAll(VarNameCollector.process(elem.getExpr()));
+            }
+            pushDown(order.getArg(), vars);
+        }
+        else if (expr instanceof Group) {
+            Group group = (Group) expr;
+            Set<String> vars = new HashSet<String>(group.getGroupBindingNames());
+            for (GroupElem elem : group.getGroupElements())
+                vars.addAll(VarNameCollector.process(elem.getOperator()));
+            pushDown(group.getArg(), vars);
+        }
+        else if (expr instanceof Plan || expr instanceof Slice || expr instanceof QueryRoot ||
+                 expr instanceof Distinct || expr instanceof Reduced)
+        {
+            pushDown(((UnaryTupleOperator) expr).getArg(), required);
+        }
+        else if (expr instanceof Join || expr instanceof LeftJoin || expr instanceof Difference) {
+            BinaryTupleOperator op = (BinaryTupleOperator) expr;
+
+            Set<String> shared = new HashSet<String>(op.getLeftArg().getBindingNames());
+            shared.retainAll(op.getRightArg().getBindingNames());
+
+            Set<String> vars = union(required, shared);
+
+            if (expr instanceof LeftJoin && ((LeftJoin) expr).hasCondition())
+                vars = union(vars, VarNameCollector.process(((LeftJoin) expr).getCondition()));
+
+            pushDown(op.getLeftArg(), vars);
+            pushDown(op.getRightArg(), vars);
+        }
+        else if (expr instanceof Union && expr.getClass() == Union.class) {
+            pushDown(((Union) expr).getLeftArg(), required);
+            pushDown(((Union) expr).getRightArg(), required);
+        }
+        else {
+            // unknown operator, e.g. a Merge whose ordering depends on variables it does not name;
+            // keep every variable of the subqueries below it
+            for (TupleExpr child : children(expr))
+                pushDown(child, null);
+        }
+    }
+
+    private void restrict(SourceQuery query, Set<String> required) {
+        if (required == null)
+            return;
+
+        Set<String> available = query.getArg().getBindingNames();
+        Set<String> projection = new HashSet<String>(available);
+        projection.retainAll(required);
+
+        if (projection.size() < available.size())
+            query.setProjection(projection);
+    }
+
+    private static Iterable<TupleExpr> children(TupleExpr expr) {
+        List<TupleExpr> children = new ArrayList<TupleExpr>();
+        if (expr instanceof UnaryTupleOperator)
+            children.add(((UnaryTupleOperator) expr).getArg());
+        else if (expr instanceof BinaryTupleOperator) {
+            children.add(((BinaryTupleOperator) expr).getLeftArg());
+            children.add(((BinaryTupleOperator) expr).getRightArg());
+        }
+        return children;
+    }
+
+    private static Set<String> copy(Set<String> vars) {
+        return (vars == null) ? null : new HashSet<String>(vars);
+    }
+
+    private static Set<String> union(Set<String> vars, Set<String> more) {
+        if (vars == null)
+            return null;
+        Set<String> result = new HashSet<String>(vars);
+        result.addAll(more);
+        return result;
+    }
+}
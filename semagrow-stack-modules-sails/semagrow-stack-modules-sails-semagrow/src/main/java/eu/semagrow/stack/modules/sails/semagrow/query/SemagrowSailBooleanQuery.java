@@ -54,7 +54,7 @@ public class SemagrowSailBooleanQuery extends SemagrowSailQuery
 
             CloseableIteration<? extends BindingSet, QueryEvaluationException> bindingsIter;
             bindingsIter = sailCon.evaluate(tupleExpr, dataset, getBindings(), getIncludeInferred(), false,
-                    getIncludedSources(), getExcludedSources());
+                    getIncludedSources(), getExcludedSources(), getMaxQueryTime() * 1000L);
 
             bindingsIter = enforceMaxQueryTime(bindingsIter);
 
@@ -43,7 +43,7 @@ public class SemagrowSailTupleQuery extends SemagrowSailQuery implements Semagro
 
             bindingsIter = sailCon.evaluate(tupleExpr, getActiveDataset(), getBindings(),
                     getIncludeInferred(), getIncludeProvenanceData(),
-                    getIncludedSources(), getExcludedSources());
+                    getIncludedSources(), getExcludedSources(), getMaxQueryTime() * 1000L);
 
             bindingsIter = enforceMaxQueryTime(bindingsIter);
 
@@ -0,0 +1,88 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import junit.framework.TestCase;
+
+public class BatchSizeControllerTest extends TestCase {
+
+    public void testGrowsWhileThroughputImproves() {
+        BatchSizeController controller = new BatchSizeController();
+        int size = controller.getBatchSize();
+
+        // constant round-trip time: larger batches always pay off
+        for (int i = 0; i < 5; i++)
+            controller.update(controller.getBatchSize(), 0, 100, 0);
+
+        assertTrue(controller.getBatchSize() > size);
+    }
+
+    public void testTurnsAroundWhenThroughputDrops() {
+        BatchSizeController controller = new BatchSizeController(100, 1, 1000, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        controller.update(100, 0, 100, 0);
+        int grown = controller.getBatchSize();
+        assertTrue(grown > 100);
+
+        // the larger batch is slower per binding
+        controller.update(grown, 0, 1000, 0);
+        assertTrue(controller.getBatchSize() < grown);
+    }
+
+    public void testShrinksOnFailure() {
+        BatchSizeController controller = new BatchSizeController(100, 1, 1000, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        controller.failure();
+        assertEquals(50, controller.getBatchSize());
+        assertEquals(1, controller.getFailures());
+
+        // the size that failed is not tried again right away
+        for (int i = 0; i < 3; i++)
+            controller.update(controller.getBatchSize(), 0, 100, 0);
+        assertTrue(controller.getBatchSize() < 100);
+    }
+
+    public void testRequestSizeLimit() {
+        BatchSizeController controller = new BatchSizeController(10, 1, 1000, 1000, Long.MAX_VALUE);
+
+        for (int i = 0; i < 10; i++) {
+            int size = controller.getBatchSize();
+            controller.update(size, size * 100, 100, 0);
+        }
+
+        assertTrue(controller.getBatchSize() <= 10);
+    }
+
+    public void testRowsPerRequestLimit() {
+        BatchSizeController controller = new BatchSizeController(10, 1, 1000, Long.MAX_VALUE, 1000);
+
+        for (int i = 0; i < 10; i++) {
+            int size = controller.getBatchSize();
+            controller.update(size, 0, 100, size * 200);
+        }
+
+        assertTrue(controller.getBatchSize() <= 5);
+    }
+
+    public void testSizesTheNextBatchWhenTheResponseStarts() {
+        BatchSizeController controller = new BatchSizeController(100, 1, 1000, Long.MAX_VALUE, 1000);
+
+        controller.responded(100, 0, 100);
+        int grown = controller.getBatchSize();
+        assertTrue(grown > 100);
+        assertEquals(1, controller.getProbes());
+
+        // the rows of the response limit the batches that follow it
+        controller.completed(100, 100 * 100);
+        assertTrue(controller.getBatchSize() <= 10);
+        assertEquals(1, controller.getProbes());
+    }
+
+    public void testReportsToParent() {
+        BatchSizeController parent = new BatchSizeController();
+        BatchSizeController child = new BatchSizeController(parent);
+
+        child.update(child.getBatchSize(), 0, 100, 10);
+
+        assertEquals(1, parent.getProbes());
+        assertEquals(parent.getBatchSize(), new BatchSizeController(parent).getBatchSize());
+    }
+}
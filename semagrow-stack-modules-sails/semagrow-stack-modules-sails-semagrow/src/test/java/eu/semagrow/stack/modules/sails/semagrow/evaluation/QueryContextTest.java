@@ -0,0 +1,98 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import info.aduna.iteration.CloseableIteration;
+import junit.framework.TestCase;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class QueryContextTest extends TestCase {
+
+    private static class RemoteResult extends CollectionIteration<Integer, QueryEvaluationException> {
+
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        RemoteResult() { super(Arrays.asList(1, 2, 3)); }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            closed.countDown();
+        }
+    }
+
+    public void testCancelClosesInFlightResults() throws Exception {
+        QueryContext context = new QueryContext();
+
+        RemoteResult r1 = new RemoteResult();
+        RemoteResult r2 = new RemoteResult();
+        context.track(r1);
+        CloseableIteration<Integer, QueryEvaluationException> t2 = context.track(r2);
+
+        t2.close();
+        assertEquals(1, context.getInFlight());
+
+        context.cancel();
+
+        assertEquals(0, r1.closed.getCount());
+        assertEquals(0, context.getInFlight());
+        assertTrue(context.isCancelled());
+
+        try {
+            context.check();
+            fail();
+        } catch (QueryInterruptedException e) {
+            // expected
+        }
+    }
+
+    public void testTrackAfterCancel() throws Exception {
+        QueryContext context = new QueryContext();
+        context.cancel();
+
+        RemoteResult r = new RemoteResult();
+        try {
+            context.track(r);
+            fail();
+        } catch (QueryInterruptedException e) {
+            assertEquals(0, r.closed.getCount());
+        }
+    }
+
+    public void testDeadline() throws Exception {
+        QueryContext context = new QueryContext();
+        assertFalse(context.hasDeadline());
+        assertEquals(Long.MAX_VALUE, context.getRemainingTime());
+
+        context.setMaxExecutionTime(50);
+        assertTrue(context.hasDeadline());
+
+        RemoteResult r = new RemoteResult();
+        context.track(r);
+
+        // the result is closed by the timer, without anyone polling the context
+        assertTrue(r.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(context.isCancelled());
+
+        try {
+            context.check();
+            fail();
+        } catch (QueryInterruptedException e) {
+            assertTrue(e.getMessage().contains("maximum execution time"));
+        }
+    }
+
+    public void testNoDeadline() throws Exception {
+        QueryContext context = new QueryContext();
+        context.setMaxExecutionTime(50);
+        context.setMaxExecutionTime(0);
+
+        Thread.sleep(100);
+        assertFalse(context.isCancelled());
+        context.check();
+    }
+}
@@ -0,0 +1,295 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import junit.framework.TestCase;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class QueryExecutorImplTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final URI endpoint = vf.createURI("http://example.org/sparql");
+
+    private RecordingExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new RecordingExecutor();
+    }
+
+    private TupleExpr pattern() {
+        return new StatementPattern(new Var("s"), new Var("p", vf.createURI("http://example.org/p")), new Var("o"));
+    }
+
+    private List<BindingSet> subjects(int count) {
+        List<BindingSet> bindings = new ArrayList<BindingSet>();
+        for (int i = 0; i < count; i++) {
+            MapBindingSet b = new MapBindingSet();
+            b.addBinding("s", vf.createURI("http://example.org/s" + i));
+            bindings.add(b);
+        }
+        return bindings;
+    }
+
+    private CloseableIteration<BindingSet, QueryEvaluationException> iteration(List<BindingSet> rows) {
+        return new CollectionIteration<BindingSet, QueryEvaluationException>(rows);
+    }
+
+    public void testSequentialBatchSendsOneRequestAtATime() throws Exception {
+        executor.getEndpointRegistry().setBindJoinMode(endpoint, BindJoinMode.SEQUENTIAL);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.evaluate(endpoint, pattern(), iteration(subjects(100)));
+
+        // nothing is sent before the result is read
+        assertTrue(executor.queries.isEmpty());
+
+        List<BindingSet> rows = Iterations.asList(result);
+        assertEquals(100, rows.size());
+        assertEquals(100, executor.queries.size());
+        assertEquals(1, executor.maxOpen);
+        assertEquals(0, executor.open);
+    }
+
+    public void testClosingSequentialBatchClosesTheCurrentRequest() throws Exception {
+        executor.getEndpointRegistry().setBindJoinMode(endpoint, BindJoinMode.SEQUENTIAL);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.evaluate(endpoint, pattern(), iteration(subjects(10)));
+
+        assertTrue(result.hasNext());
+        result.next();
+        result.close();
+
+        assertEquals(1, executor.queries.size());
+        assertEquals(0, executor.open);
+    }
+
+    public void testValuesBatchIsSentAsOneQuery() throws Exception {
+        List<BindingSet> subjects = subjects(10);
+        executor.answer = new ArrayList<BindingSet>();
+        for (int i : new int[] { 3, 7 }) {
+            MapBindingSet row = new MapBindingSet();
+            row.addBinding("s", subjects.get(i).getValue("s"));
+            row.addBinding("o", vf.createLiteral(i));
+            executor.answer.add(row);
+        }
+
+        List<BindingSet> rows = Iterations.asList(executor.evaluate(endpoint, pattern(), iteration(subjects)));
+
+        assertEquals(1, executor.queries.size());
+        String query = executor.queries.get(0);
+        assertTrue(query, query.contains("VALUES ( ?s)"));
+        for (BindingSet b : subjects)
+            assertTrue(query, query.contains("<" + b.getValue("s").stringValue() + ">"));
+
+        assertEquals(2, rows.size());
+        for (BindingSet row : rows) {
+            int i = ((Literal) row.getValue("o")).intValue();
+            assertEquals(subjects.get(i).getValue("s"), row.getValue("s"));
+        }
+        assertEquals(0, executor.open);
+    }
+
+    public void testValuesQueryRejectedOnFirstReadFailsOverToSequential() throws Exception {
+        executor.valuesFailure = new QueryRejectedException(endpoint, 400, "Unsupported VALUES");
+        executor.failOnRead = true;
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.evaluate(endpoint, pattern(), iteration(subjects(10)));
+
+        assertEquals(BindJoinMode.VALUES, executor.getEndpointRegistry().getBindJoinMode(endpoint));
+
+        List<BindingSet> rows = Iterations.asList(result);
+
+        assertEquals(10, rows.size());
+        assertEquals(11, executor.queries.size());
+        assertEquals(BindJoinMode.SEQUENTIAL, executor.getEndpointRegistry().getBindJoinMode(endpoint));
+        assertEquals(0, executor.open);
+    }
+
+    public void testTransientFailureOnFirstReadIsThrown() throws Exception {
+        executor.valuesFailure = new QueryEvaluationException("Read timed out");
+        executor.failOnRead = true;
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.evaluate(endpoint, pattern(), iteration(subjects(10)));
+        try {
+            result.hasNext();
+            fail("the failure should be thrown");
+        } catch (QueryEvaluationException e) {
+            assertSame(executor.valuesFailure, e);
+        } finally {
+            result.close();
+        }
+        assertEquals(BindJoinMode.VALUES, executor.getEndpointRegistry().getBindJoinMode(endpoint));
+        assertEquals(0, executor.open);
+    }
+
+    public void testRejectedValuesQueryFailsOverToSequential() throws Exception {
+        executor.valuesFailure = new QueryRejectedException(endpoint, 400, "Unsupported VALUES");
+
+        List<BindingSet> rows = Iterations.asList(executor.evaluate(endpoint, pattern(), iteration(subjects(10))));
+
+        assertEquals(10, rows.size());
+        assertEquals(BindJoinMode.SEQUENTIAL, executor.getEndpointRegistry().getBindJoinMode(endpoint));
+    }
+
+    public void testInterruptedValuesQueryKeepsTheMode() throws Exception {
+        executor.valuesFailure = new QueryInterruptedException("Query evaluation was cancelled");
+
+        try {
+            executor.evaluate(endpoint, pattern(), iteration(subjects(10)));
+            fail("the interruption should be thrown");
+        } catch (QueryInterruptedException e) {
+            // expected
+        }
+        assertEquals(BindJoinMode.VALUES, executor.getEndpointRegistry().getBindJoinMode(endpoint));
+        assertEquals(1, executor.queries.size());
+    }
+
+    public void testTransientFailureKeepsTheMode() throws Exception {
+        executor.valuesFailure = new QueryEvaluationException("Read timed out");
+
+        try {
+            executor.evaluate(endpoint, pattern(), iteration(subjects(10)));
+            fail("the failure should be thrown");
+        } catch (QueryEvaluationException e) {
+            assertSame(executor.valuesFailure, e);
+        }
+        assertEquals(BindJoinMode.VALUES, executor.getEndpointRegistry().getBindJoinMode(endpoint));
+    }
+
+    public void testUnionBatchRenamesTheVariablesOfEachCopy() throws Exception {
+        executor.getEndpointRegistry().setBindJoinMode(endpoint, BindJoinMode.UNION);
+        List<BindingSet> subjects = subjects(3);
+        executor.answer = new ArrayList<BindingSet>();
+        for (int i : new int[] { 1, 2 }) {
+            MapBindingSet row = new MapBindingSet();
+            row.addBinding("o_" + i, vf.createLiteral(i));
+            executor.answer.add(row);
+        }
+
+        List<BindingSet> rows = Iterations.asList(executor.evaluate(endpoint, pattern(), iteration(subjects)));
+
+        assertEquals(1, executor.queries.size());
+        String query = executor.queries.get(0);
+        assertTrue(query, query.contains("UNION"));
+        for (int i = 0; i < subjects.size(); i++) {
+            assertTrue(query, query.contains("<" + subjects.get(i).getValue("s").stringValue() + ">"));
+            assertTrue(query, query.contains("?o_" + i));
+        }
+        assertFalse(query, query.contains("?s"));
+
+        assertEquals(2, rows.size());
+        for (BindingSet row : rows) {
+            int i = ((Literal) row.getValue("o")).intValue();
+            assertEquals(subjects.get(i).getValue("s"), row.getValue("s"));
+            assertEquals(2, row.size());
+        }
+    }
+
+    public void testUnionBatchMarksCopiesWithoutFreeVariables() throws Exception {
+        executor.getEndpointRegistry().setBindJoinMode(endpoint, BindJoinMode.UNION);
+        List<BindingSet> bindings = new ArrayList<BindingSet>();
+        for (int i = 0; i < 3; i++) {
+            MapBindingSet b = new MapBindingSet();
+            b.addBinding("s", vf.createURI("http://example.org/s" + i));
+            b.addBinding("o", vf.createLiteral(i));
+            bindings.add(b);
+        }
+        MapBindingSet answer = new MapBindingSet();
+        answer.addBinding("s_1", bindings.get(1).getValue("s"));
+        executor.answer = Collections.<BindingSet>singletonList(answer);
+
+        List<BindingSet> rows = Iterations.asList(executor.evaluate(endpoint, pattern(), iteration(bindings)));
+
+        String query = executor.queries.get(0);
+        for (int i = 0; i < bindings.size(); i++) {
+            // the subject stays free in every copy, restricted to its value by a filter
+            assertTrue(query, query.contains("sameTerm(?s_" + i + ", <http://example.org/s" + i + ">)"));
+            assertFalse(query, query.contains("?o_" + i));
+        }
+
+        assertEquals(1, rows.size());
+        assertEquals(bindings.get(1), rows.get(0));
+    }
+
+    /**
+     * Answers every query with one row, or with the given rows, and records the queries
+     * and the results that are open.
+     */
+    private class RecordingExecutor extends QueryExecutorImpl {
+
+        private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+
+        private int open = 0;
+
+        private int maxOpen = 0;
+
+        // the rows of every answer, or null to answer with one row
+        private List<BindingSet> answer;
+
+        // thrown when a query with a VALUES clause is sent
+        private QueryEvaluationException valuesFailure;
+
+        // whether the failure is thrown when the result is first read rather than when it is sent
+        private boolean failOnRead = false;
+
+        @Override
+        protected synchronized CloseableIteration<BindingSet, QueryEvaluationException>
+            sendTupleQueryInternal(URI endpoint, String sparqlQuery, BindingSet bindings)
+                throws QueryEvaluationException
+        {
+            queries.add(sparqlQuery);
+
+            final QueryEvaluationException failure =
+                    sparqlQuery.contains("VALUES") ? valuesFailure : null;
+
+            if (failure != null && !failOnRead)
+                throw failure;
+
+            maxOpen = Math.max(maxOpen, ++open);
+
+            List<BindingSet> rows = answer;
+            if (rows == null) {
+                MapBindingSet row = new MapBindingSet();
+                row.addBinding("o", vf.createLiteral(queries.size()));
+                rows = Collections.<BindingSet>singletonList(row);
+            }
+
+            return new CollectionIteration<BindingSet, QueryEvaluationException>(rows) {
+                @Override
+                public boolean hasNext() throws QueryEvaluationException {
+                    if (failure != null)
+                        throw failure;
+                    return super.hasNext();
+                }
+
+                @Override
+                protected void handleClose() throws QueryEvaluationException {
+                    super.handleClose();
+                    synchronized (RecordingExecutor.this) {
+                        open--;
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class QueryTemplateTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final URI a = vf.createURI("http://example.org/a");
+
+    private final URI b = vf.createURI("http://example.org/b");
+
+    private String param(int i) {
+        return "?" + QueryTemplate.getParameterVar(i);
+    }
+
+    public void testSubstitutesEveryOccurrenceOfTheParameters() throws Exception {
+        String query = "SELECT ?o WHERE { " + param(0) + " <http://example.org/p> ?o . " +
+                       "?o <http://example.org/q> " + param(1) + " . ?o <http://example.org/r> " + param(0) + " . }";
+
+        QueryTemplate template = QueryTemplate.create(query, Arrays.asList("s", "x"), false);
+
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("s", a);
+        bindings.addBinding("x", b);
+
+        assertEquals("SELECT ?o WHERE { <http://example.org/a> <http://example.org/p> ?o . " +
+                     "?o <http://example.org/q> <http://example.org/b> . " +
+                     "?o <http://example.org/r> <http://example.org/a> . }",
+                     template.instantiate(bindings));
+        assertFalse(template.isAsk());
+        assertFalse(template.hasValues());
+    }
+
+    public void testDollarParameters() throws Exception {
+        QueryTemplate template = QueryTemplate.create(
+                "ASK { $" + QueryTemplate.getParameterVar(0) + " ?p ?o }", Collections.singletonList("s"), true);
+
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("s", a);
+
+        assertEquals("ASK { <http://example.org/a> ?p ?o }", template.instantiate(bindings));
+        assertTrue(template.isAsk());
+    }
+
+    public void testVariablesWithDigitsAndUnderscores() throws Exception {
+        List<String> params = new ArrayList<String>();
+        for (int i = 0; i < 11; i++)
+            params.add("v" + i);
+
+        // ?sgparam1_x and ?sgparam1_2 are variables of the query, not parameter 1
+        String query = "SELECT * WHERE { " + param(10) + " ?x1_2 ?sgparam1_x . ?sgparam1_x ?p ?sgparam1_2 . " +
+                       param(1) + " ?p_1 ?o }";
+
+        QueryTemplate template = QueryTemplate.create(query, params, false);
+
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("v1", a);
+        bindings.addBinding("v10", b);
+
+        assertEquals("SELECT * WHERE { <http://example.org/b> ?x1_2 ?sgparam1_x . ?sgparam1_x ?p ?sgparam1_2 . " +
+                     "<http://example.org/a> ?p_1 ?o }",
+                     template.instantiate(bindings));
+    }
+
+    public void testParameterVarNames() throws Exception {
+        assertTrue(QueryTemplate.isParameterVar(QueryTemplate.getParameterVar(0)));
+        assertTrue(QueryTemplate.isParameterVar(QueryTemplate.getParameterVar(12)));
+        assertFalse(QueryTemplate.isParameterVar(QueryTemplate.getParameterVar(1) + "x"));
+        assertFalse(QueryTemplate.isParameterVar("sgparam_"));
+        assertFalse(QueryTemplate.isParameterVar("x_1_"));
+    }
+
+    public void testValuesClause() throws Exception {
+        QueryTemplate template = QueryTemplate.createValues("SELECT * WHERE { ?s ?p ?o }",
+                Arrays.asList("s", "o"), "__rowIdx", false);
+
+        MapBindingSet first = new MapBindingSet();
+        first.addBinding("s", a);
+        first.addBinding("o", b);
+        MapBindingSet second = new MapBindingSet();
+        second.addBinding("s", b);
+
+        assertTrue(template.hasValues());
+        assertEquals("SELECT * WHERE { ?s ?p ?o } VALUES ( ?s ?o) { " +
+                     " (<http://example.org/a> <http://example.org/b> )" +
+                     " (<http://example.org/b> UNDEF ) }",
+                     template.instantiate(Arrays.<BindingSet>asList(first, second)));
+    }
+
+    public void testValuesClauseWithRowIds() throws Exception {
+        QueryTemplate template = QueryTemplate.createValues("SELECT * WHERE { ?s ?p ?o }",
+                Collections.singletonList("s"), "__rowIdx", true);
+
+        MapBindingSet first = new MapBindingSet();
+        first.addBinding("s", a);
+        MapBindingSet second = new MapBindingSet();
+        second.addBinding("s", b);
+
+        assertEquals("SELECT * WHERE { ?s ?p ?o } VALUES ( ?__rowIdx ?s) { " +
+                     " (\"0\" <http://example.org/a> )" +
+                     " (\"1\" <http://example.org/b> ) }",
+                     template.instantiate(Arrays.<BindingSet>asList(first, second)));
+    }
+}
@@ -0,0 +1,80 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
+import org.openrdf.query.algebra.ProjectionElemList;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.parser.ParsedTupleQuery;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.queryrender.sparql.SPARQLQueryRenderer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SPARQLSerializer} with the {@link SPARQLQueryRenderer} on
+ * the kind of subqueries that are sent to the endpoints.
+ * Run the main method with the test classpath of the module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SPARQLSerializerBenchmark {
+
+    @Param({ "bgp", "filter", "union" })
+    public String shape;
+
+    private TupleExpr expr;
+
+    private List<String> projection;
+
+    @Setup
+    public void setup() throws Exception {
+        String query;
+
+        if (shape.equals("bgp"))
+            query = "SELECT * WHERE { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> ?z . ?z <http://ex.org/r> \"x\"@en }";
+        else if (shape.equals("filter"))
+            query = "SELECT * WHERE { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> ?z " +
+                    "FILTER (?z > 10 && regex(str(?o), \"^http://ex.org/\")) }";
+        else
+            query = "SELECT * WHERE { { ?s <http://ex.org/p> ?o } UNION { ?s <http://ex.org/q> ?o } " +
+                    "UNION { ?s <http://ex.org/r> ?o FILTER (?o != <http://ex.org/a>) } }";
+
+        expr = new SPARQLParser().parseQuery(query, null).getTupleExpr();
+
+        if (expr instanceof Projection)
+            expr = ((Projection) expr).getArg();
+
+        projection = Arrays.asList("s", "o");
+    }
+
+    @Benchmark
+    public String serializer() {
+        return SPARQLSerializer.serializeSelect(expr, projection);
+    }
+
+    @Benchmark
+    public String renderer() throws Exception {
+        Projection proj = new Projection(expr.clone(),
+                new ProjectionElemList(new ProjectionElem("s"), new ProjectionElem("o")));
+
+        return new SPARQLQueryRenderer().render(new ParsedTupleQuery(proj));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(SPARQLSerializerBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
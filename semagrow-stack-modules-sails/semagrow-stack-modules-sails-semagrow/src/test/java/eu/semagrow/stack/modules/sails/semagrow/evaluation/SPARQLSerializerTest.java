@@ -0,0 +1,89 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation;
+
+import junit.framework.TestCase;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+
+import java.util.Arrays;
+import java.util.Set;
+
+public class SPARQLSerializerTest extends TestCase {
+
+    private TupleExpr parse(String query) throws Exception {
+        return new SPARQLParser().parseQuery(query, null).getTupleExpr();
+    }
+
+    private void assertRoundTrip(String query) throws Exception {
+        TupleExpr expr = parse(query);
+        assertTrue(SPARQLSerializer.isSupported(expr));
+
+        String serialized = SPARQLSerializer.serializeSelect(expr, null);
+        String reserialized = SPARQLSerializer.serializeSelect(parse(serialized), null);
+
+        assertEquals(serialized, reserialized);
+    }
+
+    public void testBasicGraphPattern() throws Exception {
+        assertRoundTrip("SELECT ?s ?o WHERE { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> \"a\"@en }");
+    }
+
+    public void testFilterUnion() throws Exception {
+        assertRoundTrip("SELECT * WHERE { { ?s <http://ex.org/p> ?o FILTER (?o > 5 && !bound(?x)) } " +
+                        "UNION { ?s <http://ex.org/q> ?o FILTER regex(str(?o), \"^a\", \"i\") } }");
+    }
+
+    public void testModifiers() throws Exception {
+        assertRoundTrip("SELECT DISTINCT ?s WHERE { ?s <http://ex.org/p> ?o } ORDER BY DESC(?o) LIMIT 10 OFFSET 5");
+    }
+
+    public void testExternalProjection() throws Exception {
+        TupleExpr expr = parse("SELECT * WHERE { ?s <http://ex.org/p> ?o }");
+
+        String query = SPARQLSerializer.serializeSelect(expr, Arrays.asList("s"));
+
+        assertTrue(query.startsWith("SELECT ?s\n"));
+        assertEquals(1, parse(query).getBindingNames().size());
+    }
+
+    public void testAsk() throws Exception {
+        TupleExpr expr = parse("SELECT * WHERE { <http://ex.org/a> <http://ex.org/p> ?o }");
+
+        String query = SPARQLSerializer.serializeAsk(expr);
+
+        assertTrue(query.startsWith("ASK"));
+        new SPARQLParser().parseQuery(query, null);
+    }
+
+    public void testLiteralEscaping() throws Exception {
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+
+        StringBuilder sb = new StringBuilder();
+        SPARQLSerializer.appendValue(sb, vf.createLiteral("a \"quoted\"\nline\\", "el"));
+        assertEquals("\"a \\\"quoted\\\"\\nline\\\\\"@el", sb.toString());
+
+        sb.setLength(0);
+        SPARQLSerializer.appendValue(sb, vf.createLiteral(5));
+        assertEquals("\"5\"^^<http://www.w3.org/2001/XMLSchema#int>", sb.toString());
+    }
+
+    public void testInvalidVariableNamesStayDistinct() throws Exception {
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+        Var p = new Var("p", vf.createURI("http://ex.org/p"));
+
+        // "_sga_002db" is the escaped form of "a-b", so it must be escaped too
+        TupleExpr expr = new Join(
+                new StatementPattern(new Var("a-b"), p, new Var("a.b")),
+                new StatementPattern(new Var("_sga_002db"), p, new Var("x_1")));
+
+        String query = SPARQLSerializer.serializeSelect(expr, null);
+
+        Set<String> names = parse(query).getBindingNames();
+        assertEquals(query, 4, names.size());
+        assertTrue(query, names.contains("x_1"));
+    }
+}
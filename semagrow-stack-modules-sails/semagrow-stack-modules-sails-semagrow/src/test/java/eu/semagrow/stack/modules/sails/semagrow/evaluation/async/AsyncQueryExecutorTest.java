@@ -0,0 +1,365 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.pool.EndpointRegistry;
+import info.aduna.iteration.CloseableIteration;
+import junit.framework.TestCase;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+public class AsyncQueryExecutorTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private HttpServer server;
+
+    private AsyncHttpClient client;
+
+    private AsyncQueryExecutor executor;
+
+    private String lastQuery;
+
+    private String lastAccept;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    @Override
+    protected void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+
+        server.createContext("/tsv", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);   // chunked
+                OutputStream out = exchange.getResponseBody();
+                out.write("?s\t?o\n".getBytes("UTF-8"));
+                for (int i = 0; i < 5000; i++)
+                    out.write(("<http://example.org/s" + i + ">\t" + i + "\n").getBytes("UTF-8"));
+                out.write("<http://example.org/last>\t\"\u03ba\u03b1\u03bb\u03b7\u03bc\u03ad\u03c1\u03b1\\t\"@el\n".getBytes("UTF-8"));
+                out.write("_:b1\t".getBytes("UTF-8"));
+                out.close();
+            }
+        });
+
+        server.createContext("/xml", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                byte[] body = ("<?xml version='1.0' encoding='UTF-8'?>"
+                        + "<sparql xmlns='http://www.w3.org/2005/sparql-results#'>"
+                        + "<head><variable name='s'/></head><results>"
+                        + "<result><binding name='s'><uri>http://example.org/a</uri></binding></result>"
+                        + "<result><binding name='s'><literal datatype='http://www.w3.org/2001/XMLSchema#int'>42</literal></binding></result>"
+                        + "</results></sparql>").getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+xml");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+
+        server.createContext("/ask", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                byte[] body = ("<?xml version='1.0'?><sparql xmlns='http://www.w3.org/2005/sparql-results#'>"
+                        + "<head/><boolean>true</boolean></sparql>").getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+xml");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+
+        server.createContext("/error", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                byte[] body = "Parse error".getBytes("UTF-8");
+                exchange.sendResponseHeaders(400, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+
+        server.createContext("/slow", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                waiting.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "?x\n\"done\"\n".getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+
+        server.createContext("/json", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                // answers in JSON whatever is preferred; the body is compressed if allowed
+                boolean gzip = "gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+json");
+                if (gzip)
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody(), 64) : exchange.getResponseBody();
+                out.write("{\"head\":{\"vars\":[\"s\"]},\"results\":{\"bindings\":[".getBytes("UTF-8"));
+                for (int i = 0; i < 1000; i++) {
+                    out.write(((i > 0 ? "," : "") + "{\"s\":{\"type\":\"uri\",\"value\":\"http://example.org/s" + i + "\"}}").getBytes("UTF-8"));
+                    out.flush();
+                }
+                out.write("]}}".getBytes("UTF-8"));
+                out.close();
+            }
+        });
+
+        server.createContext("/binary", new StubEndpoint() {
+            @Override
+            void respond(HttpExchange exchange) throws IOException {
+                // claims the binary format but sends something else
+                byte[] body = "not binary".getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", TupleQueryResultFormat.BINARY.getDefaultMIMEType());
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+
+        server.start();
+
+        client = new AsyncHttpClient(2);
+        executor = new AsyncQueryExecutor(new EndpointRegistry(), client);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        release.countDown();
+        client.shutDown();
+        server.stop(0);
+    }
+
+    public void testStreamsTSVResult() throws Exception {
+        // a small buffer makes the response pause and resume many times
+        executor.setBufferCapacity(16);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.sendTupleQueryInternal(endpoint("/tsv"), "SELECT * { ?s ?p ?o }", EmptyBindingSet.getInstance());
+
+        List<BindingSet> rows = drain(result);
+        assertEquals(5002, rows.size());
+        assertEquals("SELECT * { ?s ?p ?o }", lastQuery);
+
+        BindingSet first = rows.get(0);
+        assertEquals(vf.createURI("http://example.org/s0"), first.getValue("s"));
+        assertEquals(0, ((Literal) first.getValue("o")).intValue());
+
+        Literal greeting = (Literal) rows.get(5000).getValue("o");
+        assertEquals("\u03ba\u03b1\u03bb\u03b7\u03bc\u03ad\u03c1\u03b1\t", greeting.getLabel());
+        assertEquals("el", greeting.getLanguage());
+
+        BindingSet last = rows.get(5001);
+        assertNotNull(last.getValue("s"));
+        assertFalse(last.hasBinding("o"));
+    }
+
+    public void testBufferedXMLResult() throws Exception {
+        List<BindingSet> rows = drain(executor.sendTupleQueryInternal(
+                endpoint("/xml"), "SELECT ?s { ?s ?p ?o }", EmptyBindingSet.getInstance()));
+
+        assertEquals(2, rows.size());
+        assertEquals(vf.createURI("http://example.org/a"), rows.get(0).getValue("s"));
+        assertEquals(42, ((Literal) rows.get(1).getValue("s")).intValue());
+    }
+
+    public void testBooleanQuery() throws Exception {
+        assertTrue(executor.sendBooleanQueryInternal(endpoint("/ask"), "ASK { ?s ?p ?o }", EmptyBindingSet.getInstance()));
+    }
+
+    public void testErrorStatus() throws Exception {
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.sendTupleQueryInternal(endpoint("/error"), "SELECT * { ?s ?p ?o }", EmptyBindingSet.getInstance());
+        try {
+            result.hasNext();
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertTrue(e.getMessage().contains("400"));
+            assertTrue(e.getMessage().contains("Parse error"));
+        } finally {
+            result.close();
+        }
+    }
+
+    public void testManyRequestsInFlightOnFewThreads() throws Exception {
+        int requests = 100;
+        List<CloseableIteration<BindingSet, QueryEvaluationException>> results =
+                new ArrayList<CloseableIteration<BindingSet, QueryEvaluationException>>();
+
+        // every request is sent without waiting for its response
+        for (int i = 0; i < requests; i++)
+            results.add(executor.sendTupleQueryInternal(endpoint("/slow"), "SELECT ?x { ?x ?p ?o }", EmptyBindingSet.getInstance()));
+
+        for (int i = 0; i < 500 && waiting.get() < requests; i++)
+            Thread.sleep(10);
+        assertEquals(requests, waiting.get());
+
+        release.countDown();
+
+        for (CloseableIteration<BindingSet, QueryEvaluationException> result : results) {
+            List<BindingSet> rows = drain(result);
+            assertEquals(1, rows.size());
+            assertEquals("done", rows.get(0).getValue("x").stringValue());
+        }
+    }
+
+    public void testCloseAbortsRequest() throws Exception {
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.sendTupleQueryInternal(endpoint("/slow"), "SELECT ?x { ?x ?p ?o }", EmptyBindingSet.getInstance());
+
+        result.close();
+        assertFalse(result.hasNext());
+    }
+
+    public void testNegotiatesFormatAndCompression() throws Exception {
+        ResultFormatSelector selector = executor.getEndpointRegistry().getResultFormatSelector(endpoint("/json"));
+        assertEquals(ResultFormatSelector.DEFAULT_PREFERENCE, selector.getCandidates());
+
+        for (int i = 0; i < 2; i++) {
+            List<BindingSet> rows = drain(executor.sendTupleQueryInternal(
+                    endpoint("/json"), "SELECT ?s { ?s ?p ?o }", EmptyBindingSet.getInstance()));
+
+            assertEquals(1000, rows.size());
+            assertEquals(vf.createURI("http://example.org/s999"), rows.get(999).getValue("s"));
+        }
+
+        // binary was asked for first, the endpoint answered in JSON
+        assertTrue(lastAccept.startsWith(TupleQueryResultFormat.JSON.getDefaultMIMEType()));
+        assertEquals(TupleQueryResultFormat.JSON, selector.getFormat());
+        assertFalse(selector.getCandidates().contains(TupleQueryResultFormat.BINARY));
+        assertTrue(selector.isCompressionEnabled());
+
+        ResultFormatSelector.Statistics statistics = selector.getStatistics().get(0);
+        assertEquals(TupleQueryResultFormat.JSON, statistics.getFormat());
+        assertEquals(2, statistics.getResponses());
+        assertEquals(2000, statistics.getRows());
+        assertTrue(statistics.getBytesPerRow() > 0);
+    }
+
+    public void testFallsBackFromUnparsableFormat() throws Exception {
+        CloseableIteration<BindingSet, QueryEvaluationException> result =
+                executor.sendTupleQueryInternal(endpoint("/binary"), "SELECT * { ?s ?p ?o }", EmptyBindingSet.getInstance());
+        try {
+            result.hasNext();
+            fail();
+        } catch (QueryEvaluationException e) {
+            // expected
+        } finally {
+            result.close();
+        }
+
+        ResultFormatSelector selector = executor.getEndpointRegistry().getResultFormatSelector(endpoint("/binary"));
+        assertFalse(selector.getCandidates().contains(TupleQueryResultFormat.BINARY));
+        assertTrue(selector.getAcceptHeader().startsWith(TupleQueryResultFormat.JSON.getDefaultMIMEType()));
+    }
+
+    public void testGzipDecoderAcceptsAnySplit() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            text.append("row ").append(i).append('\n');
+        gzip.write(text.toString().getBytes("UTF-8"));
+        gzip.close();
+        byte[] bytes = compressed.toByteArray();
+
+        for (int split : new int[] { 1, 7, 4096, bytes.length }) {
+            GzipDecoder decoder = new GzipDecoder();
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            for (int i = 0; i < bytes.length; i += split) {
+                ByteBuffer out = decoder.decode(ByteBuffer.wrap(bytes, i, Math.min(split, bytes.length - i)));
+                decoded.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+            }
+            decoder.finish();
+            assertEquals(text.toString(), decoded.toString("UTF-8"));
+        }
+    }
+
+    public void testBindQuery() throws Exception {
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("s", vf.createURI("http://example.org/a"));
+        bindings.addBinding("b", vf.createBNode());
+
+        String query = AsyncQueryExecutor.bindQuery("SELECT ?s ?o { ?s ?p ?o . ?b ?p ?so }", bindings);
+        assertEquals("SELECT ?s ?o { <http://example.org/a> ?p ?o . ?b ?p ?so }", query);
+    }
+
+    private URI endpoint(String path) {
+        return vf.createURI("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static List<BindingSet> drain(CloseableIteration<BindingSet, QueryEvaluationException> result)
+            throws QueryEvaluationException
+    {
+        List<BindingSet> rows = new ArrayList<BindingSet>();
+        try {
+            while (result.hasNext())
+                rows.add(result.next());
+        } finally {
+            result.close();
+        }
+        return rows;
+    }
+
+    private abstract class StubEndpoint implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                body.write(buf, 0, n);
+
+            lastAccept = exchange.getRequestHeaders().getFirst("Accept");
+
+            String form = body.toString("US-ASCII");
+            if (form.startsWith("query="))
+                lastQuery = URLDecoder.decode(form.substring("query=".length()), "UTF-8");
+
+            respond(exchange);
+        }
+
+        abstract void respond(HttpExchange exchange) throws IOException;
+    }
+}
@@ -0,0 +1,127 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.TupleQueryResultHandlerBase;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.impl.ListBindingSet;
+import org.openrdf.query.resultio.QueryResultIO;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+import org.openrdf.query.resultio.TupleQueryResultWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link JSONResultParser} with the parsers of Sesame on large results,
+ * shaped like the answers of the endpoints: a few variables, URIs that share their
+ * namespaces and repeat, and typed and language tagged literals.
+ * Run the main method with the test classpath of the module.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JSONResultParserBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int rows;
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private byte[] json;
+
+    private byte[] xml;
+
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws Exception {
+        List<String> names = Arrays.asList("s", "p", "o", "label");
+
+        ByteArrayOutputStream jsonOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream xmlOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+
+        TupleQueryResultWriter[] writers = {
+                QueryResultIO.createWriter(TupleQueryResultFormat.JSON, jsonOut),
+                QueryResultIO.createWriter(TupleQueryResultFormat.SPARQL, xmlOut),
+                QueryResultIO.createWriter(TupleQueryResultFormat.BINARY, binaryOut)
+        };
+
+        for (TupleQueryResultWriter writer : writers)
+            writer.startQueryResult(names);
+
+        for (int i = 0; i < rows; i++) {
+            Value[] values = {
+                    vf.createURI("http://example.org/resource/" + (i / 10)),
+                    vf.createURI("http://example.org/ontology/p" + (i % 20)),
+                    vf.createLiteral(i),
+                    (i % 3 == 0) ? null : vf.createLiteral("label of " + i, "en")
+            };
+            BindingSet row = new ListBindingSet(names, values);
+            for (TupleQueryResultWriter writer : writers)
+                writer.handleSolution(row);
+        }
+
+        for (TupleQueryResultWriter writer : writers)
+            writer.endQueryResult();
+
+        json = jsonOut.toByteArray();
+        xml = xmlOut.toByteArray();
+        binary = binaryOut.toByteArray();
+    }
+
+    @Benchmark
+    public void jackson(Blackhole bh) throws Exception {
+        JSONResultParser parser = new JSONResultParser(json, 0, json.length, vf);
+        BindingSet row;
+        while ((row = parser.next()) != null)
+            bh.consume(row);
+        parser.close();
+    }
+
+    @Benchmark
+    public void sesameJSON(Blackhole bh) throws Exception {
+        parse(json, TupleQueryResultFormat.JSON, bh);
+    }
+
+    @Benchmark
+    public void sesameXML(Blackhole bh) throws Exception {
+        parse(xml, TupleQueryResultFormat.SPARQL, bh);
+    }
+
+    @Benchmark
+    public void sesameBinary(Blackhole bh) throws Exception {
+        parse(binary, TupleQueryResultFormat.BINARY, bh);
+    }
+
+    private void parse(byte[] bytes, TupleQueryResultFormat format, final Blackhole bh) throws Exception {
+        QueryResultIO.parse(new ByteArrayInputStream(bytes), format, new TupleQueryResultHandlerBase() {
+            @Override
+            public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+                bh.consume(bindingSet);
+            }
+        }, vf);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(JSONResultParserBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
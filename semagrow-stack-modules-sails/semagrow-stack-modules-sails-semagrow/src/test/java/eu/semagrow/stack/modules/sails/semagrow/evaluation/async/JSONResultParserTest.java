@@ -0,0 +1,124 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.async;
+
+import junit.framework.TestCase;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class JSONResultParserTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    public void testParsesEveryKindOfValue() throws Exception {
+        String json = "{ \"head\": { \"vars\": [ \"s\", \"o\" ], \"link\": [ \"http://example.org/doc\" ] },\n" +
+                "  \"results\": { \"distinct\": false, \"bindings\": [\n" +
+                "    { \"s\": { \"type\": \"uri\", \"value\": \"http://example.org/a\" },\n" +
+                "      \"o\": { \"type\": \"literal\", \"value\": \"chat\", \"xml:lang\": \"fr\" } },\n" +
+                "    { \"o\": { \"datatype\": \"http://www.w3.org/2001/XMLSchema#int\", \"type\": \"typed-literal\", \"value\": \"42\" },\n" +
+                "      \"s\": { \"type\": \"bnode\", \"value\": \"b0\" } },\n" +
+                "    { \"s\": { \"type\": \"uri\", \"value\": \"http://example.org/a\" } },\n" +
+                "    { \"o\": { \"type\": \"literal\", \"value\": \"plain \\\"quoted\\\" \\u00e9\" } }\n" +
+                "  ] } }";
+
+        JSONResultParser parser = parser(json);
+        assertEquals(Arrays.asList("s", "o"), parser.getBindingNames());
+
+        List<BindingSet> rows = drain(parser);
+        assertEquals(4, rows.size());
+
+        assertEquals(vf.createURI("http://example.org/a"), rows.get(0).getValue("s"));
+        assertEquals(vf.createLiteral("chat", "fr"), rows.get(0).getValue("o"));
+
+        Literal number = (Literal) rows.get(1).getValue("o");
+        assertEquals(XMLSchema.INT, number.getDatatype());
+        assertEquals(42, number.intValue());
+        assertTrue(rows.get(1).getValue("s") instanceof BNode);
+
+        assertEquals(1, rows.get(2).size());
+        assertFalse(rows.get(2).hasBinding("o"));
+
+        // repeated URIs are the same object
+        assertSame(rows.get(0).getValue("s"), rows.get(2).getValue("s"));
+
+        assertEquals(vf.createLiteral("plain \"quoted\" \u00e9"), rows.get(3).getValue("o"));
+        assertEquals(rows.get(0).getBindingNames(), rows.get(3).getBindingNames());
+    }
+
+    public void testResultsBeforeHead() throws Exception {
+        String json = "{ \"results\": { \"bindings\": [ { \"x\": { \"type\": \"uri\", \"value\": \"http://example.org/x\" } }," +
+                " { \"y\": { \"type\": \"literal\", \"value\": \"y\" } } ] }, \"head\": { \"vars\": [ \"x\", \"y\" ] } }";
+
+        List<BindingSet> rows = drain(parser(json));
+        assertEquals(2, rows.size());
+        assertEquals(vf.createURI("http://example.org/x"), rows.get(0).getValue("x"));
+        assertEquals(vf.createLiteral("y"), rows.get(1).getValue("y"));
+        assertFalse(rows.get(1).hasBinding("x"));
+    }
+
+    public void testEmptyResult() throws Exception {
+        JSONResultParser parser = parser("{ \"head\": { \"vars\": [ \"x\" ] }, \"results\": { \"bindings\": [] } }");
+        assertEquals(Arrays.asList("x"), parser.getBindingNames());
+        assertNull(parser.next());
+        assertNull(parser.next());
+    }
+
+    public void testStreamResult() throws Exception {
+        StringBuilder json = new StringBuilder("{ \"head\": { \"vars\": [ \"n\" ] }, \"results\": { \"bindings\": [");
+        for (int i = 0; i < 10000; i++)
+            json.append(i == 0 ? "" : ",").append("{ \"n\": { \"type\": \"literal\", \"value\": \"").append(i).append("\" } }");
+        json.append("] } }");
+
+        JSONTupleResult result = new JSONTupleResult(new ByteArrayInputStream(json.toString().getBytes("UTF-8")), vf);
+        int count = 0;
+        try {
+            while (result.hasNext()) {
+                assertEquals(String.valueOf(count), result.next().getValue("n").stringValue());
+                count++;
+            }
+        } finally {
+            result.close();
+        }
+        assertEquals(10000, count);
+    }
+
+    public void testMalformedResult() throws Exception {
+        JSONResultParser parser = parser("{ \"head\": { \"vars\": [ \"x\" ] }, \"results\": { \"bindings\": [ { \"x\": { \"type\": \"uri\" } } ] } }");
+        try {
+            parser.next();
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertTrue(e.getMessage().contains("Incomplete value"));
+        }
+
+        parser = parser("{ \"head\": { \"vars\": [ \"x\" ] }, \"results\": { \"bindings\": [ { \"x\": ");
+        try {
+            parser.next();
+            fail();
+        } catch (QueryEvaluationException e) {
+            // expected
+        }
+    }
+
+    private JSONResultParser parser(String json) throws Exception {
+        byte[] bytes = json.getBytes("UTF-8");
+        return new JSONResultParser(bytes, 0, bytes.length, vf);
+    }
+
+    private static List<BindingSet> drain(JSONResultParser parser) throws QueryEvaluationException {
+        List<BindingSet> rows = new ArrayList<BindingSet>();
+        BindingSet row;
+        while ((row = parser.next()) != null)
+            rows.add(row);
+        parser.close();
+        return rows;
+    }
+}
@@ -0,0 +1,126 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the rows that the operators build, as {@link QueryBindingSet}s and as
+ * {@link CompactBindingSet}s: the merge of two rows by a join, and the projection of a row.
+ * Run the main method with the test classpath of the module. The benchmarks run with the
+ * GC profiler, whose {@code gc.alloc.rate.norm} is the number of bytes allocated per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompactBindingSetBenchmark {
+
+    private static final List<String> LEFT = Arrays.asList("s", "p", "o", "label");
+
+    private static final List<String> RIGHT = Arrays.asList("o", "type", "date");
+
+    private static final List<String> PROJECTION = Arrays.asList("s", "label", "date");
+
+    private BindingSet queryLeft;
+
+    private BindingSet queryRight;
+
+    private BindingSet compactLeft;
+
+    private BindingSet compactRight;
+
+    private BindingSetMerger merger;
+
+    private BindingSchema view;
+
+    @Setup
+    public void setup() {
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+
+        Value o = vf.createURI("http://example.org/resource/2");
+        Value[] left = {
+                vf.createURI("http://example.org/resource/1"),
+                vf.createURI("http://example.org/ontology/p"),
+                o,
+                vf.createLiteral("label", "en")
+        };
+        Value[] right = {
+                o,
+                vf.createURI("http://example.org/ontology/Type"),
+                vf.createLiteral(2015)
+        };
+
+        queryLeft = queryBindingSet(LEFT, left);
+        queryRight = queryBindingSet(RIGHT, right);
+
+        compactLeft = new CompactBindingSet(BindingSchema.of(LEFT), left);
+        compactRight = new CompactBindingSet(BindingSchema.of(RIGHT), right);
+
+        merger = new BindingSetMerger();
+        view = merger.merge(compactLeft, compactRight).getSchema().view(PROJECTION, PROJECTION);
+    }
+
+    private static BindingSet queryBindingSet(List<String> names, Value[] values) {
+        QueryBindingSet bindings = new QueryBindingSet();
+        for (int i = 0; i < names.size(); i++)
+            bindings.addBinding(names.get(i), values[i]);
+        return bindings;
+    }
+
+    @Benchmark
+    public BindingSet queryBindingSetMerge() {
+        QueryBindingSet result = new QueryBindingSet();
+        for (Binding b : queryLeft)
+            result.addBinding(b);
+        for (Binding b : queryRight)
+            if (!result.hasBinding(b.getName()))
+                result.addBinding(b);
+        return result;
+    }
+
+    @Benchmark
+    public BindingSet compactMerge() {
+        return merger.merge(compactLeft, compactRight);
+    }
+
+    @Benchmark
+    public BindingSet queryBindingSetMergeAndProject() {
+        BindingSet merged = queryBindingSetMerge();
+        QueryBindingSet result = new QueryBindingSet();
+        for (String name : PROJECTION) {
+            Value value = merged.getValue(name);
+            if (value != null)
+                result.setBinding(name, value);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public BindingSet compactMergeAndProject() {
+        return compactMerge().view(view);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(CompactBindingSetBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,119 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import junit.framework.TestCase;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class CompactBindingSetTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final Value a = vf.createURI("http://example.org/a");
+
+    private final Value b = vf.createLiteral("b");
+
+    private final Value c = vf.createLiteral(3);
+
+    public void testBehavesLikeOtherBindingSets() throws Exception {
+        BindingSchema schema = BindingSchema.of("x", "y", "z");
+        CompactBindingSet row = new CompactBindingSet(schema, new Value[] { a, null, c });
+
+        MapBindingSet expected = new MapBindingSet();
+        expected.addBinding("x", a);
+        expected.addBinding("z", c);
+
+        assertEquals(2, row.size());
+        assertTrue(row.hasBinding("x"));
+        assertFalse(row.hasBinding("y"));
+        assertFalse(row.hasBinding("w"));
+        assertNull(row.getBinding("y"));
+        assertEquals(c, row.getBinding("z").getValue());
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("x", "z")), row.getBindingNames());
+
+        Set<String> iterated = new HashSet<String>();
+        for (Binding binding : row)
+            iterated.add(binding.getName());
+        assertEquals(expected.getBindingNames(), iterated);
+
+        assertEquals(expected, row);
+        assertEquals(row, expected);
+        assertEquals(expected.hashCode(), row.hashCode());
+
+        CompactBindingSet other = CompactBindingSet.copyOf(BindingSchema.of("z", "x"), expected);
+        assertEquals(row, other);
+        assertEquals(row.hashCode(), other.hashCode());
+    }
+
+    public void testViewSharesTheValues() throws Exception {
+        BindingSchema schema = BindingSchema.of("x", "y", "z");
+        Value[] values = { a, b, c };
+        CompactBindingSet row = new CompactBindingSet(schema, values);
+
+        BindingSchema view = schema.view(Arrays.asList("z", "x", "missing"), Arrays.asList("n", "x", "m"));
+        CompactBindingSet projected = row.view(view);
+
+        assertEquals(2, projected.size());
+        assertEquals(c, projected.getValue("n"));
+        assertEquals(a, projected.getValue("x"));
+        assertNull(projected.getValue("y"));
+        assertNull(projected.getValue("m"));
+
+        // the view reads the array of the row
+        values[2] = b;
+        assertEquals(b, projected.getValue("n"));
+    }
+
+    public void testMergesSlotBySlot() throws Exception {
+        BindingSetMerger merger = new BindingSetMerger();
+
+        CompactBindingSet left = new CompactBindingSet(BindingSchema.of("x", "y"), new Value[] { a, b });
+        CompactBindingSet right = new CompactBindingSet(BindingSchema.of("y", "z"), new Value[] { b, c });
+
+        CompactBindingSet merged = merger.merge(left, right);
+        assertEquals(Arrays.asList("x", "y", "z"), merged.getSchema().getNames());
+        assertEquals(a, merged.getValue("x"));
+        assertEquals(b, merged.getValue("y"));
+        assertEquals(c, merged.getValue("z"));
+
+        // rows of the same schemas share the schema of the result
+        CompactBindingSet again = merger.merge(left, right);
+        assertSame(merged.getSchema(), again.getSchema());
+
+        // rows that are not compact are merged as well
+        MapBindingSet map = new MapBindingSet();
+        map.addBinding("z", c);
+        map.addBinding("w", a);
+        merged = merger.merge(left, map);
+        assertEquals(4, merged.size());
+        assertEquals(a, merged.getValue("w"));
+    }
+
+    public void testMergeResolvesSharedVariables() throws Exception {
+        BindingSetMerger merger = new BindingSetMerger("__rowIdx") {
+            @Override
+            protected Value merge(String name, Value left, Value right) {
+                return right;
+            }
+        };
+
+        MapBindingSet left = new MapBindingSet();
+        left.addBinding("x", a);
+        left.addBinding("__rowIdx", vf.createLiteral("0"));
+        CompactBindingSet right = new CompactBindingSet(BindingSchema.of("x", "y"), new Value[] { b, c });
+
+        BindingSet merged = merger.merge(left, right);
+        assertEquals(2, merged.size());
+        assertFalse(merged.hasBinding("__rowIdx"));
+        assertEquals(b, merged.getValue("x"));
+        assertEquals(c, merged.getValue("y"));
+    }
+}
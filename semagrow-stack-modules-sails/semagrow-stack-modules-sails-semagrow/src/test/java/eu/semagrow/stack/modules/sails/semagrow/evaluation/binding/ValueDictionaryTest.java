@@ -0,0 +1,113 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.binding;
+
+import junit.framework.TestCase;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class ValueDictionaryTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    public void testEncodesEqualValuesOnce() throws Exception {
+        ValueDictionary dictionary = new ValueDictionary();
+
+        Value a1 = dictionary.encode(vf.createURI("http://example.org/a"));
+        Value a2 = dictionary.encode(vf.createURI("http://example.org/a"));
+        Value b = dictionary.encode(vf.createLiteral("b", "en"));
+        Value c = dictionary.encode(vf.createLiteral(42));
+
+        assertSame(a1, a2);
+        assertEquals(1, dictionary.getId(a1));
+        assertEquals(2, dictionary.getId(b));
+        assertEquals(3, dictionary.getId(c));
+        assertEquals(3, dictionary.size());
+
+        assertSame(a1, dictionary.decode(1));
+        assertSame(c, dictionary.decode(3));
+        assertNull(dictionary.decode(4));
+
+        // the encoded values are values of the same kind
+        assertTrue(a1 instanceof URI);
+        assertEquals("en", ((Literal) b).getLanguage());
+        assertEquals(XMLSchema.INT, ((Literal) c).getDatatype());
+        assertEquals(42, ((Literal) c).intValue());
+    }
+
+    public void testEqualToValuesThatAreNotEncoded() throws Exception {
+        ValueDictionary dictionary = new ValueDictionary();
+        ValueDictionary other = new ValueDictionary();
+
+        URI plain = vf.createURI("http://example.org/a");
+        Value encoded = dictionary.encode(plain);
+        Value otherEncoded = other.encode(vf.createURI("http://example.org/a"));
+
+        assertEquals(plain, encoded);
+        assertEquals(encoded, plain);
+        assertEquals(plain.hashCode(), encoded.hashCode());
+
+        assertEquals(encoded, otherEncoded);
+        assertEquals(otherEncoded, encoded);
+
+        assertSame(encoded, dictionary.lookup(plain));
+        assertSame(encoded, dictionary.lookup(otherEncoded));
+
+        assertFalse(encoded.equals(dictionary.encode(vf.createURI("http://example.org/b"))));
+        assertFalse(encoded.equals(dictionary.encode(vf.createLiteral("http://example.org/a"))));
+    }
+
+    public void testFullDictionaryPassesValuesThrough() throws Exception {
+        ValueDictionary dictionary = new ValueDictionary(2);
+
+        dictionary.encode(vf.createURI("http://example.org/a"));
+        dictionary.encode(vf.createURI("http://example.org/b"));
+
+        URI c = vf.createURI("http://example.org/c");
+        assertSame(c, dictionary.encode(c));
+        assertEquals(ValueDictionary.NO_ID, dictionary.getId(c));
+        assertNull(dictionary.lookup(c));
+        assertEquals(2, dictionary.size());
+
+        // values already in the dictionary are still encoded
+        assertEquals(1, dictionary.getId(dictionary.encode(vf.createURI("http://example.org/a"))));
+    }
+
+    public void testEncodesConcurrently() throws Exception {
+        final ValueDictionary dictionary = new ValueDictionary();
+        final CountDownLatch start = new CountDownLatch(1);
+        final int values = 10000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < values; i++)
+                        dictionary.encode(vf.createLiteral(i));
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(values, dictionary.size());
+        for (long id = 1; id <= values; id++)
+            assertEquals(id, dictionary.getId(dictionary.decode(id)));
+    }
+}
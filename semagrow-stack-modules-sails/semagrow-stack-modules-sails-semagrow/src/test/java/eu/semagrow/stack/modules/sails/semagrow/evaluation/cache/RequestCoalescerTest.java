@@ -0,0 +1,317 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.QueryContext;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryInterruptedException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class RequestCoalescerTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final URI endpoint = vf.createURI("http://example.org/sparql");
+
+    private final RequestKey key = RequestKey.create(endpoint, "SELECT * WHERE { ?s ?p ?o }", EmptyBindingSet.getInstance(), false);
+
+    private List<BindingSet> createRows(int n) {
+        List<BindingSet> rows = new ArrayList<BindingSet>();
+        for (int i = 0; i < n; i++) {
+            QueryBindingSet b = new QueryBindingSet();
+            b.addBinding("s", vf.createURI("http://example.org/s" + i));
+            rows.add(b);
+        }
+        return rows;
+    }
+
+    private RequestCoalescer.TupleRequest request(final List<BindingSet> rows, final CountDownLatch latch) {
+        return new RequestCoalescer.TupleRequest() {
+            @Override
+            public CloseableIteration<BindingSet, QueryEvaluationException> send() throws Exception {
+                if (latch != null)
+                    latch.await();
+                return new CollectionIteration<BindingSet, QueryEvaluationException>(rows);
+            }
+        };
+    }
+
+    public void testCoalescedWhileInFlight() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final List<BindingSet> rows = createRows(100);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<BindingSet>> first = executor.submit(new Callable<List<BindingSet>>() {
+                @Override
+                public List<BindingSet> call() throws Exception {
+                    return Iterations.asList(coalescer.getTuples(key, request(rows, latch)));
+                }
+            });
+
+            while (coalescer.getInFlightRequests() == 0)
+                Thread.sleep(1);
+
+            CloseableIteration<BindingSet, QueryEvaluationException> second =
+                    coalescer.getTuples(key, request(createRows(1), null));
+
+            latch.countDown();
+
+            assertEquals(rows, Iterations.asList(second));
+            assertEquals(rows, first.get(10, TimeUnit.SECONDS));
+            assertEquals(1, coalescer.getSentRequests());
+            assertEquals(1, coalescer.getCoalescedRequests());
+            assertEquals(0, coalescer.getInFlightRequests());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testNotCoalescedAfterCompletion() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        List<BindingSet> rows = createRows(10);
+
+        assertEquals(rows, Iterations.asList(coalescer.getTuples(key, request(rows, null))));
+        assertEquals(rows, Iterations.asList(coalescer.getTuples(key, request(rows, null))));
+
+        assertEquals(2, coalescer.getSentRequests());
+        assertEquals(0, coalescer.getCoalescedRequests());
+    }
+
+    public void testNotSharedBeyondBufferLimit() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(5);
+        List<BindingSet> rows = createRows(10);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> first = coalescer.getTuples(key, request(rows, null));
+        for (int i = 0; i < 5; i++)
+            first.next();
+
+        CloseableIteration<BindingSet, QueryEvaluationException> second = coalescer.getTuples(key, request(rows, null));
+
+        assertEquals(5, Iterations.asList(first).size());
+        assertEquals(rows, Iterations.asList(second));
+        assertEquals(2, coalescer.getSentRequests());
+    }
+
+    public void testFailure() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+
+        try {
+            coalescer.getTuples(key, new RequestCoalescer.TupleRequest() {
+                @Override
+                public CloseableIteration<BindingSet, QueryEvaluationException> send() throws Exception {
+                    throw new QueryEvaluationException("failed");
+                }
+            });
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertEquals(0, coalescer.getInFlightRequests());
+        }
+    }
+
+    public void testWaitingForAnAnswerStopsWhenTheQueryIsCancelled() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final RequestKey ask = RequestKey.create(endpoint, "ASK { ?s ?p ?o }", EmptyBindingSet.getInstance(), true);
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return coalescer.getBoolean(ask, new RequestCoalescer.BooleanRequest() {
+                        @Override
+                        public boolean send() throws Exception {
+                            latch.await();
+                            return true;
+                        }
+                    });
+                }
+            });
+
+            while (coalescer.getInFlightRequests() == 0)
+                Thread.sleep(1);
+
+            QueryContext context = new QueryContext();
+            context.setMaxExecutionTime(200);
+
+            long start = System.currentTimeMillis();
+            try {
+                coalescer.getBoolean(ask, new RequestCoalescer.BooleanRequest() {
+                    @Override
+                    public boolean send() throws Exception {
+                        throw new AssertionError("the request is in flight");
+                    }
+                }, context);
+                fail("the wait should stop at the deadline");
+            } catch (QueryInterruptedException e) {
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    public void testCancelledFollowerStopsWaitingForTheRows() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(new Callable<List<BindingSet>>() {
+                @Override
+                public List<BindingSet> call() throws Exception {
+                    return Iterations.asList(coalescer.getTuples(key, request(createRows(10), latch)));
+                }
+            });
+
+            while (coalescer.getInFlightRequests() == 0)
+                Thread.sleep(1);
+
+            final QueryContext context = new QueryContext();
+            CloseableIteration<BindingSet, QueryEvaluationException> follower =
+                    coalescer.getTuples(key, request(createRows(10), null), context);
+            assertEquals(1, coalescer.getCoalescedRequests());
+
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    context.cancel();
+                }
+            });
+
+            long start = System.currentTimeMillis();
+            try {
+                follower.hasNext();
+                fail("the wait should stop when the query is cancelled");
+            } catch (QueryInterruptedException e) {
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            } finally {
+                follower.close();
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    public void testCursorStopsWaitingForAnotherCursorAtTheDeadline() throws Exception {
+        SharedResult shared = new SharedResult(5, null);
+        final CloseableIteration<BindingSet, QueryEvaluationException> leader = shared.attach();
+        QueryContext context = new QueryContext();
+        context.setMaxExecutionTime(200);
+        CloseableIteration<BindingSet, QueryEvaluationException> follower = shared.attach(context);
+
+        final CountDownLatch pulling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        shared.setSource(new CollectionIteration<BindingSet, QueryEvaluationException>(createRows(1)) {
+            @Override
+            public boolean hasNext() throws QueryEvaluationException {
+                pulling.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new QueryInterruptedException(e);
+                }
+                return super.hasNext();
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return leader.hasNext();
+                }
+            });
+            assertTrue(pulling.await(5, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            try {
+                follower.hasNext();
+                fail("the wait should stop at the deadline");
+            } catch (QueryInterruptedException e) {
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            }
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    public void testUnsharedResultReleasesTheRowsReadByAllCursors() throws Exception {
+        SharedResult shared = new SharedResult(5, null);
+        CloseableIteration<BindingSet, QueryEvaluationException> first = shared.attach();
+        CloseableIteration<BindingSet, QueryEvaluationException> second = shared.attach();
+        List<BindingSet> rows = createRows(5000);
+        shared.setSource(new CollectionIteration<BindingSet, QueryEvaluationException>(rows));
+
+        for (BindingSet row : rows) {
+            assertEquals(row, first.next());
+            assertEquals(row, second.next());
+            assertTrue(shared.getBuffered() <= 1026);
+        }
+        assertFalse(first.hasNext());
+        assertFalse(second.hasNext());
+    }
+
+    public void testLastCursorReadsTheSourceDirectly() throws Exception {
+        SharedResult shared = new SharedResult(5, null);
+        CloseableIteration<BindingSet, QueryEvaluationException> first = shared.attach();
+        CloseableIteration<BindingSet, QueryEvaluationException> second = shared.attach();
+        List<BindingSet> rows = createRows(100);
+        shared.setSource(new CollectionIteration<BindingSet, QueryEvaluationException>(rows));
+
+        List<BindingSet> read = new ArrayList<BindingSet>();
+        for (int i = 0; i < 10; i++)
+            read.add(first.next());
+        second.next();
+        second.close();
+
+        read.addAll(Iterations.asList(first));
+
+        assertEquals(rows, read);
+        assertEquals(0, shared.getBuffered());
+    }
+
+    public void testClosingCursorStopsWaitingForTheSource() throws Exception {
+        SharedResult shared = new SharedResult(5, null);
+        final CloseableIteration<BindingSet, QueryEvaluationException> cursor = shared.attach();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> hasNext = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return cursor.hasNext();
+                }
+            });
+
+            Thread.sleep(50);
+            cursor.close();
+
+            assertFalse(hasNext.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.cache;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.EmptyBindingSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ResultCacheTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final URI endpoint = vf.createURI("http://example.org/sparql");
+
+    private List<BindingSet> createRows(int n) {
+        List<BindingSet> rows = new ArrayList<BindingSet>();
+        for (int i = 0; i < n; i++) {
+            QueryBindingSet b = new QueryBindingSet();
+            b.addBinding("s", vf.createURI("http://example.org/s" + i));
+            b.addBinding("o", vf.createLiteral("value \"" + i + "\"", "en"));
+            b.addBinding("n", vf.createLiteral(i));
+            rows.add(b);
+        }
+        return rows;
+    }
+
+    private CloseableIteration<BindingSet, QueryEvaluationException> iterate(List<BindingSet> rows) {
+        return new CollectionIteration<BindingSet, QueryEvaluationException>(rows);
+    }
+
+    public void testCachedAfterConsumed() throws Exception {
+        ResultCache cache = new ResultCache();
+        List<BindingSet> rows = createRows(10);
+
+        RequestKey key = cache.createKey(endpoint, "SELECT * WHERE { ?s ?p ?o }", EmptyBindingSet.getInstance(), false);
+        assertNull(cache.getTuples(key));
+
+        assertEquals(rows, Iterations.asList(cache.cache(key, iterate(rows))));
+
+        RequestKey same = cache.createKey(endpoint, "SELECT *  WHERE {\n ?s ?p ?o }", EmptyBindingSet.getInstance(), false);
+        CloseableIteration<BindingSet, QueryEvaluationException> cached = cache.getTuples(same);
+
+        assertNotNull(cached);
+        assertEquals(rows, Iterations.asList(cached));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testNotCachedWhenClosedEarly() throws Exception {
+        ResultCache cache = new ResultCache();
+        RequestKey key = cache.createKey(endpoint, "SELECT * WHERE { ?s ?p ?o }", EmptyBindingSet.getInstance(), false);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> iter = cache.cache(key, iterate(createRows(10)));
+        iter.next();
+        iter.close();
+
+        assertNull(cache.getTuples(key));
+    }
+
+    public void testDisabledByTTL() throws Exception {
+        ResultCache cache = new ResultCache();
+        cache.setTTL(endpoint, 0);
+
+        RequestKey key = cache.createKey(endpoint, "ASK { ?s ?p ?o }", EmptyBindingSet.getInstance(), true);
+        cache.putBoolean(key, true);
+
+        assertNull(cache.getBoolean(key));
+    }
+
+    public void testBindingsArePartOfTheKey() throws Exception {
+        ResultCache cache = new ResultCache();
+
+        QueryBindingSet b1 = new QueryBindingSet();
+        b1.addBinding("s", vf.createURI("http://example.org/a"));
+        QueryBindingSet b2 = new QueryBindingSet();
+        b2.addBinding("s", vf.createURI("http://example.org/b"));
+
+        cache.putBoolean(cache.createKey(endpoint, "ASK { ?s ?p ?o }", b1, true), true);
+
+        assertEquals(Boolean.TRUE, cache.getBoolean(cache.createKey(endpoint, "ASK { ?s ?p ?o }", b1, true)));
+        assertNull(cache.getBoolean(cache.createKey(endpoint, "ASK { ?s ?p ?o }", b2, true)));
+    }
+
+    public void testEviction() throws Exception {
+        ResultCache cache = new ResultCache(64 * 1024, ResultCache.DEFAULT_TTL);
+
+        for (int i = 0; i < 100; i++) {
+            RequestKey key = cache.createKey(endpoint, "SELECT * WHERE { ?s ?p " + i + " }", EmptyBindingSet.getInstance(), false);
+            Iterations.asList(cache.cache(key, iterate(createRows(20))));
+        }
+
+        assertTrue(cache.getSize() <= cache.getMaxSize());
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    public void testNormalize() {
+        assertEquals("SELECT * WHERE { ?s ?p \"a  b\" }",
+                RequestKey.normalize("  SELECT *\n\tWHERE {  ?s ?p \"a  b\" } "));
+    }
+
+    public void testNormalizeSkipsQuotesInIris() {
+        assertEquals("SELECT * WHERE { <http://ex.org/o'neil> ?p \"a  b\" }",
+                RequestKey.normalize("SELECT * WHERE {  <http://ex.org/o'neil>\n  ?p  \"a  b\" }"));
+
+        assertEquals("SELECT * WHERE { ?s ?p ?o FILTER (?o < 5 && ?o > '1  2') }",
+                RequestKey.normalize("SELECT * WHERE { ?s ?p ?o FILTER (?o <  5 && ?o  > '1  2') }"));
+    }
+}
@@ -0,0 +1,97 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.health;
+
+import eu.semagrow.stack.modules.api.source.SourceStatusEvent;
+import eu.semagrow.stack.modules.api.source.SourceStatusListener;
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EndpointHealthRegistryTest extends TestCase {
+
+    private final URI endpoint = ValueFactoryImpl.getInstance().createURI("http://example.org/sparql");
+
+    private EndpointHealthRegistry registry;
+
+    private final List<SourceStatusEvent> events = new ArrayList<SourceStatusEvent>();
+
+    @Override
+    protected void setUp() throws Exception {
+        registry = new EndpointHealthRegistry();
+        registry.setMinRequests(4);
+        registry.setOpenTimeout(50);
+        registry.addListener(new SourceStatusListener() {
+            @Override
+            public void sourceStatusChanged(SourceStatusEvent event) {
+                events.add(event);
+            }
+        });
+    }
+
+    public void testOpensOnErrorRate() {
+        registry.recordSuccess(endpoint, 10);
+        registry.recordSuccess(endpoint, 10);
+        registry.recordFailure(endpoint, 10);
+        assertTrue(registry.allowRequest(endpoint));
+
+        registry.recordFailure(endpoint, 10);
+
+        assertEquals(EndpointHealth.State.OPEN, registry.getHealth(endpoint).getState());
+        assertFalse(registry.allowRequest(endpoint));
+        assertEquals(SourceStatusEvent.Status.UNAVAILABLE, events.get(events.size() - 1).getStatus());
+    }
+
+    public void testHalfOpenProbe() throws Exception {
+        for (int i = 0; i < 4; i++)
+            registry.recordFailure(endpoint, 10);
+
+        assertFalse(registry.allowRequest(endpoint));
+        Thread.sleep(100);
+
+        assertTrue(registry.allowRequest(endpoint));
+        assertEquals(EndpointHealth.State.HALF_OPEN, registry.getHealth(endpoint).getState());
+        // only a single probe is let through
+        assertFalse(registry.allowRequest(endpoint));
+
+        registry.recordSuccess(endpoint, 10);
+
+        assertEquals(EndpointHealth.State.CLOSED, registry.getHealth(endpoint).getState());
+        assertEquals(SourceStatusEvent.Status.AVAILABLE, events.get(events.size() - 1).getStatus());
+    }
+
+    public void testFailedProbeReopens() throws Exception {
+        for (int i = 0; i < 4; i++)
+            registry.recordFailure(endpoint, 10);
+
+        Thread.sleep(100);
+        assertTrue(registry.allowRequest(endpoint));
+
+        registry.recordFailure(endpoint, 10);
+
+        assertEquals(EndpointHealth.State.OPEN, registry.getHealth(endpoint).getState());
+        assertFalse(registry.allowRequest(endpoint));
+    }
+
+    public void testLatencyPercentiles() {
+        for (int i = 1; i <= 100; i++)
+            registry.recordSuccess(endpoint, i);
+
+        EndpointHealth health = registry.getHealth(endpoint);
+        assertEquals(50, health.getLatencyPercentile(0.5));
+        assertEquals(95, health.getLatencyPercentile(0.95));
+        assertEquals(SourceStatusEvent.Status.AVAILABLE, health.getStatus());
+        assertTrue(events.isEmpty());
+    }
+
+    public void testSlowEndpointIsDegraded() {
+        registry.setSlowThreshold(1000);
+
+        for (int i = 0; i < 10; i++)
+            registry.recordSuccess(endpoint, 5000);
+
+        assertEquals(SourceStatusEvent.Status.DEGRADED, registry.getStatus(endpoint));
+        assertTrue(registry.allowRequest(endpoint));
+    }
+}
@@ -0,0 +1,130 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iteration;
+import info.aduna.iteration.Iterations;
+import info.aduna.iteration.LookAheadIteration;
+import junit.framework.TestCase;
+import org.openrdf.query.QueryEvaluationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncCursorTest extends TestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private static class Counting extends LookAheadIteration<Integer, QueryEvaluationException> {
+
+        private final int size;
+
+        private final AtomicInteger produced = new AtomicInteger(0);
+
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        public Counting(int size) { this.size = size; }
+
+        @Override
+        protected Integer getNextElement() {
+            int i = produced.get();
+            if (i == size)
+                return null;
+            produced.incrementAndGet();
+            return i;
+        }
+
+        @Override
+        protected void handleClose() throws QueryEvaluationException {
+            super.handleClose();
+            closed.countDown();
+        }
+    }
+
+    private CloseableIteration<Integer, QueryEvaluationException>
+        cursor(final Iteration<Integer, QueryEvaluationException> iter, int highWaterMark, int batchSize)
+    {
+        return new AsyncCursor<Integer, QueryEvaluationException>(executor, highWaterMark, batchSize) {
+            @Override
+            protected Iteration<Integer, QueryEvaluationException> createIteration() {
+                return iter;
+            }
+        };
+    }
+
+    public void testAllElements() throws Exception {
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++)
+            expected.add(i);
+
+        assertEquals(expected, Iterations.asList(cursor(new Counting(1000), 16, 4)));
+    }
+
+    public void testPrefetchIsBounded() throws Exception {
+        Counting source = new Counting(Integer.MAX_VALUE);
+        CloseableIteration<Integer, QueryEvaluationException> cursor = cursor(source, 16, 4);
+
+        assertEquals(Integer.valueOf(0), cursor.next());
+        Thread.sleep(200);
+
+        assertTrue(source.produced.get() <= 16 + 4 + 4 + 1);
+        cursor.close();
+        assertTrue(source.closed.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testFailureAfterElements() throws Exception {
+        CloseableIteration<Integer, QueryEvaluationException> cursor = cursor(
+                new LookAheadIteration<Integer, QueryEvaluationException>() {
+                    private int i = 0;
+
+                    @Override
+                    protected Integer getNextElement() throws QueryEvaluationException {
+                        if (i == 3)
+                            throw new QueryEvaluationException("failed");
+                        return i++;
+                    }
+                }, 16, 4);
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(Integer.valueOf(i), cursor.next());
+
+        try {
+            cursor.hasNext();
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+
+    public void testFailureOnCreate() throws Exception {
+        CloseableIteration<Integer, QueryEvaluationException> cursor =
+                new AsyncCursor<Integer, QueryEvaluationException>(executor) {
+                    @Override
+                    protected Iteration<Integer, QueryEvaluationException> createIteration()
+                            throws QueryEvaluationException {
+                        throw new QueryEvaluationException("failed");
+                    }
+                };
+
+        try {
+            cursor.hasNext();
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+}
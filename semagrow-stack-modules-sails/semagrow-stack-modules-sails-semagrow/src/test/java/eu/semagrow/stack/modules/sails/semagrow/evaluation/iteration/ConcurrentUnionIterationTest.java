@@ -0,0 +1,125 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iteration;
+import info.aduna.iteration.Iterations;
+import info.aduna.iteration.LookAheadIteration;
+import junit.framework.TestCase;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrentUnionIterationTest extends TestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private Iteration<Integer, QueryEvaluationException> range(int from, int to) {
+        List<Integer> l = new ArrayList<Integer>();
+        for (int i = from; i < to; i++)
+            l.add(i);
+        return new CollectionIteration<Integer, QueryEvaluationException>(l);
+    }
+
+    public void testAllElements() throws Exception {
+        List<Iteration<Integer, QueryEvaluationException>> args =
+                new ArrayList<Iteration<Integer, QueryEvaluationException>>();
+        args.add(range(0, 100));
+        args.add(range(100, 150));
+        args.add(range(150, 150));
+
+        List<Integer> result = Iterations.asList(new ConcurrentUnionIteration<Integer>(executor, args, 4));
+        Collections.sort(result);
+
+        List<Integer> expected = Iterations.asList(range(0, 150));
+        assertEquals(expected, result);
+    }
+
+    public void testSlowArgumentDoesNotBlock() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        List<Iteration<Integer, QueryEvaluationException>> args =
+                new ArrayList<Iteration<Integer, QueryEvaluationException>>();
+        args.add(new LookAheadIteration<Integer, QueryEvaluationException>() {
+            @Override
+            protected Integer getNextElement() throws QueryEvaluationException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new QueryEvaluationException(e);
+                }
+                return null;
+            }
+        });
+        args.add(range(0, 1));
+
+        CloseableIteration<Integer, QueryEvaluationException> union =
+                new ConcurrentUnionIteration<Integer>(executor, args);
+
+        assertTrue(union.hasNext());
+        assertEquals(Integer.valueOf(0), union.next());
+
+        latch.countDown();
+        assertFalse(union.hasNext());
+    }
+
+    public void testEarlyClose() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        List<Iteration<Integer, QueryEvaluationException>> args =
+                new ArrayList<Iteration<Integer, QueryEvaluationException>>();
+        args.add(new LookAheadIteration<Integer, QueryEvaluationException>() {
+            private int i = 0;
+
+            @Override
+            protected Integer getNextElement() { return i++; }
+
+            @Override
+            protected void handleClose() throws QueryEvaluationException {
+                super.handleClose();
+                closed.countDown();
+            }
+        });
+
+        CloseableIteration<Integer, QueryEvaluationException> union =
+                new ConcurrentUnionIteration<Integer>(executor, args, 2);
+
+        union.next();
+        union.close();
+
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testFailure() throws Exception {
+        List<Iteration<Integer, QueryEvaluationException>> args =
+                new ArrayList<Iteration<Integer, QueryEvaluationException>>();
+        args.add(new LookAheadIteration<Integer, QueryEvaluationException>() {
+            @Override
+            protected Integer getNextElement() throws QueryEvaluationException {
+                throw new QueryEvaluationException("failed");
+            }
+        });
+        args.add(range(0, 10));
+
+        try {
+            Iterations.asList(new ConcurrentUnionIteration<Integer>(executor, args));
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+}
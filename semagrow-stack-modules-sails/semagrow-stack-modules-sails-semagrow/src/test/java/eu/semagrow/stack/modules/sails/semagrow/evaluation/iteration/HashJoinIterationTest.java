@@ -0,0 +1,260 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.algebra.ProvenanceValue;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.EvaluationStrategyImpl;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import info.aduna.iteration.LookAheadIteration;
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class HashJoinIterationTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final Set<String> joinAttributes = Collections.singleton("y");
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private Value value(String var, int i) {
+        return vf.createURI("http://example.org/" + var + "/" + i);
+    }
+
+    private BindingSet row(String v1, Value a, String v2, Value b) {
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding(v1, a);
+        bindings.addBinding(v2, b);
+        return bindings;
+    }
+
+    private List<BindingSet> left(int rows, int keys) {
+        List<BindingSet> l = new ArrayList<BindingSet>();
+        for (int i = 0; i < rows; i++)
+            l.add(row("x", value("x", i), "y", value("y", i % keys)));
+        return l;
+    }
+
+    private List<BindingSet> right(int rows, int keys) {
+        List<BindingSet> l = new ArrayList<BindingSet>();
+        for (int i = 0; i < rows; i++)
+            l.add(row("y", value("y", i % keys), "z", value("z", i)));
+        return l;
+    }
+
+    private List<BindingSet> encode(List<BindingSet> rows, ValueDictionary dictionary) throws Exception {
+        return Iterations.asList(new EncodeValuesIteration(iteration(rows), dictionary));
+    }
+
+    private CloseableIteration<BindingSet, QueryEvaluationException> iteration(List<BindingSet> rows) {
+        return new CollectionIteration<BindingSet, QueryEvaluationException>(rows);
+    }
+
+    private static Map<Map<String, Value>, Integer> multiset(Collection<BindingSet> rows) {
+        Map<Map<String, Value>, Integer> counts = new HashMap<Map<String, Value>, Integer>();
+        for (BindingSet bindings : rows) {
+            Map<String, Value> m = new HashMap<String, Value>();
+            for (Binding b : bindings)
+                m.put(b.getName(), b.getValue());
+            Integer c = counts.get(m);
+            counts.put(m, c == null ? 1 : c + 1);
+        }
+        return counts;
+    }
+
+    private static List<BindingSet> nestedLoop(List<BindingSet> left, List<BindingSet> right) {
+        List<BindingSet> result = new ArrayList<BindingSet>();
+        for (BindingSet l : left) {
+            for (BindingSet r : right) {
+                if (l.getValue("y").equals(r.getValue("y"))) {
+                    MapBindingSet bindings = new MapBindingSet();
+                    for (Binding b : l)
+                        bindings.addBinding(b);
+                    bindings.addBinding("z", r.getValue("z"));
+                    result.add(bindings);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void testJoinsOnTheSharedVariables() throws Exception {
+        List<BindingSet> left = left(50, 7);
+        List<BindingSet> right = right(200, 10);
+
+        HashJoinIteration join = new HashJoinIteration(iteration(left), iteration(right), joinAttributes);
+
+        List<BindingSet> result = Iterations.asList(join);
+        assertEquals(multiset(nestedLoop(left, right)), multiset(result));
+    }
+
+    public void testBuildsTheSideWithTheSmallerEstimate() throws Exception {
+        List<BindingSet> left = left(300, 20);
+        List<BindingSet> right = right(40, 25);
+        Map<Map<String, Value>, Integer> expected = multiset(nestedLoop(left, right));
+
+        HashJoinIteration join =
+                new HashJoinIteration(iteration(left), iteration(right), joinAttributes, executor);
+        join.setCardinalities(300, 40);
+        assertEquals(expected, multiset(Iterations.asList(join)));
+
+        join = new HashJoinIteration(iteration(left), iteration(right), joinAttributes, executor);
+        join.setCardinalities(40, 300);
+        assertEquals(expected, multiset(Iterations.asList(join)));
+    }
+
+    public void testEmptyBuildSideDoesNotReadTheProbeSide() throws Exception {
+        CloseableIteration<BindingSet, QueryEvaluationException> probe =
+                new LookAheadIteration<BindingSet, QueryEvaluationException>() {
+                    @Override
+                    protected BindingSet getNextElement() {
+                        fail("The probe side was read");
+                        return null;
+                    }
+                };
+
+        HashJoinIteration join = new HashJoinIteration(
+                iteration(new ArrayList<BindingSet>()), probe, joinAttributes);
+        join.setCardinalities(1, 10);
+
+        assertFalse(join.hasNext());
+    }
+
+    public void testMatchesEncodedAndPlainKeys() throws Exception {
+        ValueDictionary dictionary = new ValueDictionary();
+        List<BindingSet> left = left(60, 12);
+        List<BindingSet> right = right(90, 15);
+        Map<Map<String, Value>, Integer> expected = multiset(nestedLoop(left, right));
+
+        // both sides encoded
+        List<BindingSet> result = Iterations.asList(new HashJoinIteration(
+                iteration(encode(left, dictionary)), iteration(encode(right, dictionary)), joinAttributes));
+        assertEquals(expected, multiset(result));
+
+        // the table is keyed on ids and probed with plain values
+        result = Iterations.asList(new HashJoinIteration(
+                iteration(encode(left, dictionary)), iteration(right), joinAttributes));
+        assertEquals(expected, multiset(result));
+
+        // keys of different dictionaries
+        result = Iterations.asList(new HashJoinIteration(
+                iteration(encode(left, dictionary)), iteration(encode(right, new ValueDictionary())), joinAttributes));
+        assertEquals(expected, multiset(result));
+    }
+
+    public void testProbesLargeInputsInParallel() throws Exception {
+        List<BindingSet> left = left(100, 50);
+        List<BindingSet> right = right(5000, 80);
+
+        HashJoinIteration join =
+                new HashJoinIteration(iteration(left), iteration(right), joinAttributes, executor);
+        join.setCardinalities(100, 5000);
+        join.setParallelism(4);
+        join.setParallelThreshold(100);
+
+        List<BindingSet> result = Iterations.asList(join);
+        assertEquals(multiset(nestedLoop(left, right)), multiset(result));
+    }
+
+    public void testEmptyBindingSetJoinsWithEveryRow() throws Exception {
+        List<BindingSet> left = left(5, 5);
+        List<BindingSet> right = new ArrayList<BindingSet>();
+        for (int i = 0; i < 10; i++)
+            right.add(EmptyBindingSet.getInstance());
+
+        HashJoinIteration join = new HashJoinIteration(iteration(left), iteration(right), joinAttributes);
+
+        List<BindingSet> result = Iterations.asList(join);
+        assertEquals(50, result.size());
+        for (BindingSet bindings : result)
+            assertTrue(left.contains(bindings));
+    }
+
+    public void testSpillsBothInputsOverTheMemoryBudget() throws Exception {
+        List<BindingSet> left = left(400, 30);
+        List<BindingSet> right = right(600, 40);
+        MemoryMaterializationManager manager = new MemoryMaterializationManager();
+
+        HashJoinIteration join = new HashJoinIteration(iteration(left), iteration(right), joinAttributes);
+        join.setMaterializationManager(manager, 2000);
+
+        List<BindingSet> result = Iterations.asList(join);
+        assertEquals(multiset(nestedLoop(left, right)), multiset(result));
+
+        // the partitions were partitioned again, and all of them are discarded
+        assertTrue(manager.created > 32);
+        assertEquals(0, manager.results.size());
+    }
+
+    public void testSpilledRowsKeepVariablesOfLaterRows() throws Exception {
+        List<BindingSet> left = left(100, 10);
+        for (int i = 50; i < 100; i++)
+            ((MapBindingSet) left.get(i)).addBinding("w", value("w", i));
+        List<BindingSet> right = right(100, 10);
+        right.add(EmptyBindingSet.getInstance());
+
+        MemoryMaterializationManager manager = new MemoryMaterializationManager();
+        HashJoinIteration join =
+                new HashJoinIteration(iteration(left), iteration(right), joinAttributes, executor);
+        join.setCardinalities(100, 101);
+        join.setMaterializationManager(manager, 1000);
+
+        List<BindingSet> result = Iterations.asList(join);
+
+        List<BindingSet> expected = nestedLoop(left, right.subList(0, 100));
+        expected.addAll(left);
+        assertEquals(multiset(expected), multiset(result));
+        assertEquals(0, manager.results.size());
+    }
+
+    public void testSpilledRowsKeepTheirProvenance() throws Exception {
+        URI a = vf.createURI("http://example.org/sparql/a");
+        URI b = vf.createURI("http://example.org/sparql/b");
+        String field = EvaluationStrategyImpl.provenanceField;
+
+        List<BindingSet> left = left(200, 20);
+        for (BindingSet row : left)
+            ((MapBindingSet) row).addBinding(field, new ProvenanceValue(a));
+        List<BindingSet> right = right(300, 20);
+        for (BindingSet row : right)
+            ((MapBindingSet) row).addBinding(field, new ProvenanceValue(b));
+
+        MemoryMaterializationManager manager = new MemoryMaterializationManager();
+        HashJoinIteration join = new HashJoinIteration(iteration(left), iteration(right), joinAttributes);
+        join.setMaterializationManager(manager, 1000);
+
+        List<BindingSet> result = Iterations.asList(join);
+
+        assertTrue(manager.created > 0);
+        assertEquals(nestedLoop(left, right).size(), result.size());
+        for (BindingSet row : result) {
+            Value provenance = row.getValue(field);
+            assertTrue(provenance instanceof ProvenanceValue);
+            assertEquals(new HashSet<URI>(Arrays.asList(a, b)),
+                         new HashSet<URI>(((ProvenanceValue) provenance).getProvenances()));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import junit.framework.TestCase;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class HedgedIterationTest extends TestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private Callable<CloseableIteration<Integer, QueryEvaluationException>>
+        attempt(final List<Integer> rows, final long delay)
+    {
+        return new Callable<CloseableIteration<Integer, QueryEvaluationException>>() {
+            @Override
+            public CloseableIteration<Integer, QueryEvaluationException> call() throws Exception {
+                Thread.sleep(delay);
+                return new CollectionIteration<Integer, QueryEvaluationException>(rows);
+            }
+        };
+    }
+
+    private Callable<CloseableIteration<Integer, QueryEvaluationException>> failing() {
+        return new Callable<CloseableIteration<Integer, QueryEvaluationException>>() {
+            @Override
+            public CloseableIteration<Integer, QueryEvaluationException> call() throws Exception {
+                throw new QueryEvaluationException("failed");
+            }
+        };
+    }
+
+    public void testFastPrimaryIsNotHedged() throws Exception {
+        List<Callable<CloseableIteration<Integer, QueryEvaluationException>>> attempts =
+                new ArrayList<Callable<CloseableIteration<Integer, QueryEvaluationException>>>();
+        attempts.add(attempt(Arrays.asList(1, 2), 0));
+        attempts.add(attempt(Arrays.asList(3, 4), 0));
+
+        HedgedIteration<Integer> iter = new HedgedIteration<Integer>(executor, attempts, 5000);
+
+        assertEquals(Arrays.asList(1, 2), Iterations.asList(iter));
+        assertEquals(0, iter.getWinner());
+        assertEquals(1, iter.getStarted());
+    }
+
+    public void testSlowPrimaryIsHedged() throws Exception {
+        List<Callable<CloseableIteration<Integer, QueryEvaluationException>>> attempts =
+                new ArrayList<Callable<CloseableIteration<Integer, QueryEvaluationException>>>();
+        attempts.add(attempt(Arrays.asList(1, 2), 2000));
+        attempts.add(attempt(Arrays.asList(3, 4), 0));
+
+        HedgedIteration<Integer> iter = new HedgedIteration<Integer>(executor, attempts, 50);
+
+        long start = System.currentTimeMillis();
+        assertEquals(Arrays.asList(3, 4), Iterations.asList(iter));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, iter.getWinner());
+        assertEquals(2, iter.getStarted());
+    }
+
+    public void testFailoverOnError() throws Exception {
+        List<Callable<CloseableIteration<Integer, QueryEvaluationException>>> attempts =
+                new ArrayList<Callable<CloseableIteration<Integer, QueryEvaluationException>>>();
+        attempts.add(failing());
+        attempts.add(attempt(Arrays.asList(3, 4), 0));
+
+        HedgedIteration<Integer> iter = new HedgedIteration<Integer>(executor, attempts, 5000);
+
+        assertEquals(Arrays.asList(3, 4), Iterations.asList(iter));
+    }
+
+    public void testAllFail() throws Exception {
+        List<Callable<CloseableIteration<Integer, QueryEvaluationException>>> attempts =
+                new ArrayList<Callable<CloseableIteration<Integer, QueryEvaluationException>>>();
+        attempts.add(failing());
+        attempts.add(failing());
+
+        try {
+            Iterations.asList(new HedgedIteration<Integer>(executor, attempts, 10));
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import info.aduna.iteration.Iterations;
+import junit.framework.TestCase;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class InsertUnionBindingsIterationTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private List<BindingSet> bindings(int count) {
+        List<BindingSet> bindings = new ArrayList<BindingSet>();
+        for (int i = 0; i < count; i++) {
+            MapBindingSet b = new MapBindingSet();
+            b.addBinding("s", vf.createURI("http://example.org/s" + i));
+            bindings.add(b);
+        }
+        return bindings;
+    }
+
+    public void testJoinsEachRowWithTheBindingOfItsSuffix() throws Exception {
+        List<BindingSet> bindings = bindings(12);
+
+        MapBindingSet first = new MapBindingSet();
+        first.addBinding("o_11", vf.createLiteral("a"));
+        MapBindingSet second = new MapBindingSet();
+        second.addBinding("o_2", vf.createLiteral("b"));
+        second.addBinding("p_2", vf.createLiteral("c"));
+
+        List<BindingSet> rows = Iterations.asList(new InsertUnionBindingsIteration(
+                new CollectionIteration<BindingSet, QueryEvaluationException>(Arrays.<BindingSet>asList(first, second)),
+                bindings));
+
+        assertEquals(2, rows.size());
+
+        assertEquals(bindings.get(11).getValue("s"), rows.get(0).getValue("s"));
+        assertEquals(vf.createLiteral("a"), rows.get(0).getValue("o"));
+        assertEquals(2, rows.get(0).size());
+
+        assertEquals(bindings.get(2).getValue("s"), rows.get(1).getValue("s"));
+        assertEquals(vf.createLiteral("b"), rows.get(1).getValue("o"));
+        assertEquals(vf.createLiteral("c"), rows.get(1).getValue("p"));
+        assertEquals(3, rows.get(1).size());
+    }
+
+    public void testKeepsDigitsAndUnderscoresOfTheVariableName() throws Exception {
+        List<BindingSet> bindings = bindings(4);
+
+        MapBindingSet row = new MapBindingSet();
+        row.addBinding("x_1_3", vf.createLiteral("a"));
+        row.addBinding("y2_3", vf.createLiteral("b"));
+
+        List<BindingSet> rows = Iterations.asList(new InsertUnionBindingsIteration(
+                new CollectionIteration<BindingSet, QueryEvaluationException>(Arrays.<BindingSet>asList(row)),
+                bindings));
+
+        assertEquals(1, rows.size());
+        assertEquals(vf.createLiteral("a"), rows.get(0).getValue("x_1"));
+        assertEquals(vf.createLiteral("b"), rows.get(0).getValue("y2"));
+        assertEquals(bindings.get(3).getValue("s"), rows.get(0).getValue("s"));
+    }
+
+    public void testMarkerIsReplacedByTheBinding() throws Exception {
+        List<BindingSet> bindings = bindings(2);
+
+        // a copy without free variables returns only its marker
+        MapBindingSet row = new MapBindingSet();
+        row.addBinding("s_1", bindings.get(1).getValue("s"));
+
+        List<BindingSet> rows = Iterations.asList(new InsertUnionBindingsIteration(
+                new CollectionIteration<BindingSet, QueryEvaluationException>(Arrays.<BindingSet>asList(row)),
+                bindings));
+
+        assertEquals(1, rows.size());
+        assertEquals(1, rows.get(0).size());
+        assertEquals(bindings.get(1).getValue("s"), rows.get(0).getValue("s"));
+    }
+}
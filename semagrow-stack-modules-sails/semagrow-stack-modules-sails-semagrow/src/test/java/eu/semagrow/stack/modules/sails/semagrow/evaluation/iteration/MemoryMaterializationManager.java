@@ -0,0 +1,74 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationHandle;
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.file.MaterializationManager;
+import info.aduna.iteration.CloseableIteration;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryResultHandlerException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.*;
+
+/**
+ * Stores results in memory and, like the stored results of the file manager,
+ * drops the variables that a result does not declare and holds only RDF values.
+ */
+class MemoryMaterializationManager implements MaterializationManager {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    final Map<URI, List<BindingSet>> results = Collections.synchronizedMap(new HashMap<URI, List<BindingSet>>());
+
+    volatile int created = 0;
+
+    @Override
+    public CloseableIteration<BindingSet, QueryEvaluationException> getResult(URI handle) {
+        return new CollectionIteration<BindingSet, QueryEvaluationException>(
+                new ArrayList<BindingSet>(results.get(handle)));
+    }
+
+    @Override
+    public synchronized MaterializationHandle saveResult() {
+        final URI id = vf.createURI("http://example.org/result/" + created++);
+        final List<BindingSet> rows = new ArrayList<BindingSet>();
+        results.put(id, rows);
+
+        return new MaterializationHandle() {
+
+            private List<String> names;
+
+            public URI getId() { return id; }
+
+            public void destroy() { results.remove(id); }
+
+            public void handleBoolean(boolean b) throws QueryResultHandlerException { }
+
+            public void handleLinks(List<String> links) throws QueryResultHandlerException { }
+
+            public void startQueryResult(List<String> names) { this.names = names; }
+
+            public void endQueryResult() { }
+
+            public void handleSolution(BindingSet bindings) {
+                MapBindingSet row = new MapBindingSet();
+                for (String name : names) {
+                    Value value = bindings.getValue(name);
+                    if (value == null)
+                        continue;
+                    if (!(value instanceof URI || value instanceof Literal || value instanceof BNode))
+                        throw new IllegalArgumentException("Cannot store " + value);
+                    row.addBinding(name, value);
+                }
+                rows.add(row);
+            }
+        };
+    }
+}
@@ -0,0 +1,254 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.iteration;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.binding.ValueDictionary;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.Iterations;
+import info.aduna.iteration.LookAheadIteration;
+import junit.framework.TestCase;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.evaluation.iterator.CollectionIteration;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SymmetricHashJoinIterationTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final Set<String> joinAttributes = Collections.singleton("y");
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private Value value(String var, int i) {
+        return vf.createURI("http://example.org/" + var + "/" + i);
+    }
+
+    private BindingSet row(String v1, Value a, String v2, Value b) {
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding(v1, a);
+        bindings.addBinding(v2, b);
+        return bindings;
+    }
+
+    private List<BindingSet> left(int rows, int keys) {
+        List<BindingSet> l = new ArrayList<BindingSet>();
+        for (int i = 0; i < rows; i++)
+            l.add(row("x", value("x", i), "y", value("y", i % keys)));
+        return l;
+    }
+
+    private List<BindingSet> right(int rows, int keys) {
+        List<BindingSet> l = new ArrayList<BindingSet>();
+        for (int i = 0; i < rows; i++)
+            l.add(row("y", value("y", i % keys), "z", value("z", i)));
+        return l;
+    }
+
+    private CloseableIteration<BindingSet, QueryEvaluationException> iteration(List<BindingSet> rows) {
+        return new CollectionIteration<BindingSet, QueryEvaluationException>(rows);
+    }
+
+    private static Map<Map<String, Value>, Integer> multiset(Collection<BindingSet> rows) {
+        Map<Map<String, Value>, Integer> counts = new HashMap<Map<String, Value>, Integer>();
+        for (BindingSet bindings : rows) {
+            Map<String, Value> m = new HashMap<String, Value>();
+            for (Binding b : bindings)
+                m.put(b.getName(), b.getValue());
+            Integer c = counts.get(m);
+            counts.put(m, c == null ? 1 : c + 1);
+        }
+        return counts;
+    }
+
+    private static List<BindingSet> nestedLoop(List<BindingSet> left, List<BindingSet> right) {
+        List<BindingSet> result = new ArrayList<BindingSet>();
+        for (BindingSet l : left) {
+            for (BindingSet r : right) {
+                if (l.getValue("y").equals(r.getValue("y"))) {
+                    MapBindingSet bindings = new MapBindingSet();
+                    for (Binding b : l)
+                        bindings.addBinding(b);
+                    bindings.addBinding("z", r.getValue("z"));
+                    result.add(bindings);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void testJoinsOnTheSharedVariables() throws Exception {
+        List<BindingSet> left = left(500, 70);
+        List<BindingSet> right = right(800, 100);
+        Map<Map<String, Value>, Integer> expected = multiset(nestedLoop(left, right));
+
+        List<BindingSet> result = Iterations.asList(
+                new SymmetricHashJoinIteration(iteration(left), iteration(right), joinAttributes, executor));
+        assertEquals(expected, multiset(result));
+
+        // the arguments are read in turn
+        result = Iterations.asList(
+                new SymmetricHashJoinIteration(iteration(left), iteration(right), joinAttributes));
+        assertEquals(expected, multiset(result));
+    }
+
+    public void testReturnsRowsBeforeEitherArgumentIsExhausted() throws Exception {
+        List<BindingSet> left = left(20, 5);
+        List<BindingSet> right = right(20, 5);
+        CountDownLatch release = new CountDownLatch(1);
+
+        final SymmetricHashJoinIteration join = new SymmetricHashJoinIteration(
+                new BlockingIteration(left, release), new BlockingIteration(right, release), joinAttributes, executor);
+
+        Future<BindingSet> first = executor.submit(new Callable<BindingSet>() {
+            @Override
+            public BindingSet call() throws Exception {
+                return join.next();
+            }
+        });
+        assertNotNull(first.get(10, TimeUnit.SECONDS));
+
+        release.countDown();
+        List<BindingSet> result = Iterations.asList(join);
+        result.add(first.get());
+        assertEquals(multiset(nestedLoop(left, right)), multiset(result));
+    }
+
+    public void testEmptyArgumentEndsTheJoin() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        final SymmetricHashJoinIteration join = new SymmetricHashJoinIteration(
+                iteration(new ArrayList<BindingSet>()), new BlockingIteration(right(10, 5), release),
+                joinAttributes, executor);
+
+        Future<Boolean> hasNext = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return join.hasNext();
+            }
+        });
+        assertFalse(hasNext.get(10, TimeUnit.SECONDS));
+    }
+
+    public void testMatchesEncodedAndPlainKeys() throws Exception {
+        ValueDictionary dictionary = new ValueDictionary();
+        List<BindingSet> left = left(60, 12);
+        List<BindingSet> right = right(90, 15);
+
+        List<BindingSet> result = Iterations.asList(new SymmetricHashJoinIteration(
+                new EncodeValuesIteration(iteration(left), dictionary), iteration(right), joinAttributes, executor));
+        assertEquals(multiset(nestedLoop(left, right)), multiset(result));
+    }
+
+    public void testEmptyBindingSetJoinsWithEveryRow() throws Exception {
+        List<BindingSet> left = left(5, 5);
+        List<BindingSet> right = new ArrayList<BindingSet>();
+        for (int i = 0; i < 10; i++)
+            right.add(EmptyBindingSet.getInstance());
+
+        List<BindingSet> result = Iterations.asList(
+                new SymmetricHashJoinIteration(iteration(left), iteration(right), joinAttributes, executor));
+        assertEquals(50, result.size());
+        for (BindingSet bindings : result)
+            assertTrue(left.contains(bindings));
+    }
+
+    public void testStoresTheLaterRowsOverTheMemoryBudget() throws Exception {
+        List<BindingSet> left = left(400, 30);
+        List<BindingSet> right = right(600, 40);
+        Map<Map<String, Value>, Integer> expected = multiset(nestedLoop(left, right));
+
+        for (ExecutorService e : Arrays.asList(executor, null)) {
+            MemoryMaterializationManager manager = new MemoryMaterializationManager();
+            SymmetricHashJoinIteration join =
+                    new SymmetricHashJoinIteration(iteration(left), iteration(right), joinAttributes, e);
+            join.setMaterializationManager(manager, 2000);
+
+            assertEquals(expected, multiset(Iterations.asList(join)));
+            assertTrue(manager.created > 0);
+            assertEquals(0, manager.results.size());
+        }
+    }
+
+    public void testStoresTheLaterRowsWithoutBindings() throws Exception {
+        List<BindingSet> left = left(100, 10);
+        left.add(60, EmptyBindingSet.getInstance());
+        left.add(80, EmptyBindingSet.getInstance());
+        List<BindingSet> right = right(100, 10);
+        right.add(3, EmptyBindingSet.getInstance());
+        right.add(70, EmptyBindingSet.getInstance());
+
+        Map<Map<String, Value>, Integer> expected = multiset(nestedLoopWithEmptyRows(left, right));
+
+        for (ExecutorService e : Arrays.asList(executor, null)) {
+            MemoryMaterializationManager manager = new MemoryMaterializationManager();
+            SymmetricHashJoinIteration join =
+                    new SymmetricHashJoinIteration(iteration(left), iteration(right), joinAttributes, e);
+            join.setMaterializationManager(manager, 1000);
+
+            assertEquals(expected, multiset(Iterations.asList(join)));
+            assertTrue(manager.created > 0);
+            assertEquals(0, manager.results.size());
+        }
+    }
+
+    private static List<BindingSet> nestedLoopWithEmptyRows(List<BindingSet> left, List<BindingSet> right) {
+        List<BindingSet> result = new ArrayList<BindingSet>();
+        for (BindingSet l : left) {
+            for (BindingSet r : right) {
+                if (l.size() == 0)
+                    result.add(r);
+                else if (r.size() == 0)
+                    result.add(l);
+                else
+                    result.addAll(nestedLoop(Collections.singletonList(l), Collections.singletonList(r)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns its rows and then waits until it is released or interrupted before it ends,
+     * like a remote result whose last rows are slow to arrive.
+     */
+    private static class BlockingIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+
+        private final Iterator<BindingSet> rows;
+
+        private final CountDownLatch release;
+
+        BlockingIteration(List<BindingSet> rows, CountDownLatch release) {
+            this.rows = rows.iterator();
+            this.release = release;
+        }
+
+        @Override
+        protected BindingSet getNextElement() {
+            if (rows.hasNext())
+                return rows.next();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class EndpointConnectionPoolTest extends TestCase {
+
+    private final URI endpoint = ValueFactoryImpl.getInstance().createURI("http://example.org/sparql");
+
+    private FakeRepository repository;
+
+    private EndpointConnectionPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        repository = new FakeRepository();
+        pool = new EndpointConnectionPool(endpoint, repository.proxy(), 2, 60000, 50);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutDown();
+    }
+
+    public void testAcquireTimesOutAtTheCap() throws Exception {
+        pool.acquire();
+        RepositoryConnection conn = pool.acquire();
+
+        long start = System.currentTimeMillis();
+        try {
+            pool.acquire();
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 40);
+        assertEquals(2, repository.getConnections().size());
+
+        pool.release(conn);
+        assertSame(conn, pool.acquire());
+    }
+
+    public void testReleasedConnectionIsReused() throws Exception {
+        RepositoryConnection conn = pool.acquire();
+        pool.release(conn);
+
+        assertTrue(conn.isOpen());
+        assertSame(conn, pool.acquire());
+        assertEquals(1, repository.getConnections().size());
+    }
+
+    public void testInvalidatedConnectionIsClosed() throws Exception {
+        RepositoryConnection conn = pool.acquire();
+        pool.invalidate(conn);
+
+        assertFalse(conn.isOpen());
+        assertNotSame(conn, pool.acquire());
+        assertEquals(2, repository.getConnections().size());
+    }
+
+    public void testConnectionClosedWhileLeasedIsNotReused() throws Exception {
+        RepositoryConnection conn = pool.acquire();
+        conn.close();
+        pool.release(conn);
+
+        assertEquals(0, pool.getOpenConnections());
+        assertNotSame(conn, pool.acquire());
+    }
+
+    public void testEvictsIdleConnections() throws Exception {
+        pool.shutDown();
+        pool = new EndpointConnectionPool(endpoint, repository.proxy(), 2, 50, 50);
+
+        RepositoryConnection first = pool.acquire();
+        RepositoryConnection second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(0, pool.evictIdle());
+
+        Thread.sleep(100);
+        assertEquals(2, pool.evictIdle());
+        assertFalse(first.isOpen());
+        assertFalse(second.isOpen());
+        assertEquals(0, pool.getOpenConnections());
+        assertEquals(0, pool.getIdleConnections());
+    }
+
+    public void testGauges() throws Exception {
+        RepositoryConnection first = pool.acquire();
+        RepositoryConnection second = pool.acquire();
+        assertEquals(2, pool.getOpenConnections());
+        assertEquals(2, pool.getLeasedConnections());
+        assertEquals(0, pool.getIdleConnections());
+
+        pool.release(first);
+        assertEquals(2, pool.getOpenConnections());
+        assertEquals(1, pool.getLeasedConnections());
+        assertEquals(1, pool.getIdleConnections());
+
+        pool.invalidate(second);
+        assertEquals(1, pool.getOpenConnections());
+        assertEquals(0, pool.getLeasedConnections());
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    public void testShutDownClosesTheIdleConnections() throws Exception {
+        RepositoryConnection idle = pool.acquire();
+        RepositoryConnection leased = pool.acquire();
+        pool.release(idle);
+
+        pool.shutDown();
+        assertFalse(idle.isOpen());
+        assertTrue(repository.isShutDown());
+
+        try {
+            pool.acquire();
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        pool.release(leased);
+        assertFalse(leased.isOpen());
+        assertEquals(0, pool.getOpenConnections());
+    }
+
+    /**
+     * A repository whose connections only know whether they are open.
+     */
+    static class FakeRepository implements InvocationHandler {
+
+        private final List<RepositoryConnection> connections =
+                Collections.synchronizedList(new ArrayList<RepositoryConnection>());
+
+        private volatile boolean initialized = false;
+
+        private volatile boolean shutDown = false;
+
+        public Repository proxy() {
+            return (Repository) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Repository.class }, this);
+        }
+
+        public List<RepositoryConnection> getConnections() { return connections; }
+
+        public boolean isShutDown() { return shutDown; }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+
+            if (name.equals("initialize")) {
+                initialized = true;
+                return null;
+            } else if (name.equals("isInitialized")) {
+                return initialized;
+            } else if (name.equals("shutDown")) {
+                shutDown = true;
+                return null;
+            } else if (name.equals("getConnection")) {
+                RepositoryConnection conn = connection();
+                connections.add(conn);
+                return conn;
+            }
+
+            return objectMethod(proxy, method, args);
+        }
+
+        private RepositoryConnection connection() {
+            return (RepositoryConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { RepositoryConnection.class }, new InvocationHandler() {
+
+                        private volatile boolean open = true;
+
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            String name = method.getName();
+
+                            if (name.equals("isOpen")) {
+                                return open;
+                            } else if (name.equals("close")) {
+                                open = false;
+                                return null;
+                            }
+
+                            return objectMethod(proxy, method, args);
+                        }
+                    });
+        }
+
+        private static Object objectMethod(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+
+            if (name.equals("equals"))
+                return proxy == args[0];
+            else if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            else if (name.equals("toString"))
+                return "fake@" + Integer.toHexString(System.identityHashCode(proxy));
+
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import eu.semagrow.stack.modules.sails.semagrow.evaluation.BindJoinMode;
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+
+public class EndpointRegistryTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final URI first = vf.createURI("http://example.org/first/sparql");
+
+    private final URI second = vf.createURI("http://example.org/second/sparql");
+
+    private EndpointRegistry registry;
+
+    private int created;
+
+    @Override
+    protected void setUp() throws Exception {
+        created = 0;
+        registry = new EndpointRegistry() {
+            @Override
+            protected EndpointConnectionPool createPool(URI endpoint) {
+                created++;
+                return new EndpointConnectionPool(endpoint,
+                        new EndpointConnectionPoolTest.FakeRepository().proxy(),
+                        getMaxConnectionsPerEndpoint(), getIdleTimeout(), getAcquireTimeout());
+            }
+        };
+        registry.setMaxConnectionsPerEndpoint(2);
+        registry.setAcquireTimeout(50);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        registry.shutDown();
+    }
+
+    public void testOnePoolPerEndpoint() throws Exception {
+        EndpointConnectionPool pool = registry.getPool(first);
+        assertSame(pool, registry.getPool(first));
+        assertNotSame(pool, registry.getPool(second));
+        assertEquals(2, created);
+        assertEquals(2, pool.getMaxConnections());
+    }
+
+    public void testReleasedConnectionIsReused() throws Exception {
+        RepositoryConnection conn = registry.getConnection(first);
+        registry.releaseConnection(first, conn);
+        assertSame(conn, registry.getConnection(first));
+    }
+
+    public void testGaugesSumOverTheEndpoints() throws Exception {
+        RepositoryConnection a = registry.getConnection(first);
+        registry.getConnection(first);
+        RepositoryConnection c = registry.getConnection(second);
+
+        assertEquals(3, registry.getOpenConnections());
+        assertEquals(3, registry.getLeasedConnections());
+
+        registry.releaseConnection(first, a);
+        registry.invalidateConnection(second, c);
+
+        assertEquals(2, registry.getOpenConnections());
+        assertEquals(1, registry.getLeasedConnections());
+    }
+
+    public void testRejectsUseAfterShutDown() throws Exception {
+        RepositoryConnection conn = registry.getConnection(first);
+        registry.shutDown();
+        assertTrue(registry.isShutDown());
+
+        try {
+            registry.getConnection(first);
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        try {
+            registry.getConnection(second);
+            fail();
+        } catch (RepositoryException e) {
+            // expected
+        }
+
+        assertEquals(1, created);
+        assertEquals(0, registry.getOpenConnections());
+
+        registry.releaseConnection(first, conn);
+        assertFalse(conn.isOpen());
+    }
+
+    public void testBindJoinModePerEndpoint() throws Exception {
+        registry.setDefaultBindJoinMode(BindJoinMode.UNION);
+        registry.setBindJoinMode(first, BindJoinMode.VALUES);
+
+        assertEquals(BindJoinMode.VALUES, registry.getBindJoinMode(first));
+        assertEquals(BindJoinMode.UNION, registry.getBindJoinMode(second));
+    }
+}
@@ -0,0 +1,88 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ReplicaSelectorTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private final URI a = vf.createURI("http://a.example.org/sparql");
+    private final URI b = vf.createURI("http://b.example.org/sparql");
+
+    private ReplicaSelector selector;
+
+    @Override
+    protected void setUp() throws Exception {
+        selector = new ReplicaSelector();
+    }
+
+    public void testIdleMirrorsAreBothUsed() {
+        Set<URI> first = new HashSet<URI>();
+        for (int i = 0; i < 100; i++)
+            first.add(selector.select(Arrays.asList(a, b)).get(0));
+
+        assertEquals(2, first.size());
+    }
+
+    public void testBusyMirrorIsPassedOver() {
+        selector.started(a);
+        selector.started(a);
+
+        assertEquals(b, selector.select(Arrays.asList(a, b)).get(0));
+
+        selector.finished(a);
+        selector.finished(a);
+        selector.started(b);
+
+        assertEquals(a, selector.select(Arrays.asList(a, b)).get(0));
+    }
+
+    public void testSlowMirrorIsPassedOver() {
+        selector.responded(a, 100);
+        selector.responded(b, 10);
+
+        assertEquals(b, selector.select(Arrays.asList(a, b)).get(0));
+
+        // the fast mirror gets more requests in flight before the slow one is preferred
+        for (int i = 0; i < 8; i++)
+            selector.started(b);
+        assertEquals(b, selector.select(Arrays.asList(a, b)).get(0));
+
+        selector.started(b);
+        selector.started(b);
+        assertEquals(a, selector.select(Arrays.asList(a, b)).get(0));
+    }
+
+    public void testRequestsAreSpread() {
+        selector.responded(a, 10);
+        selector.responded(b, 10);
+
+        int toA = 0;
+        for (int i = 0; i < 10; i++) {
+            List<URI> order = selector.select(Arrays.asList(a, b));
+            selector.started(order.get(0));
+            if (order.get(0).equals(a))
+                toA++;
+        }
+
+        assertEquals(5, toA);
+        assertEquals(5, selector.getLoad(a).getOutstanding());
+        assertEquals(5, selector.getLoad(b).getOutstanding());
+    }
+
+    public void testMovingAverage() {
+        selector.setAlpha(0.5);
+        selector.responded(a, 100);
+        selector.responded(a, 200);
+
+        assertEquals(150.0, selector.getLoad(a).getLatency(), 0.001);
+    }
+}
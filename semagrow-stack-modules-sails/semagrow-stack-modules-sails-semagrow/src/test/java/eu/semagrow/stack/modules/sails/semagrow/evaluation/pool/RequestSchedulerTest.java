@@ -0,0 +1,188 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.QueryEvaluationException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RequestSchedulerTest extends TestCase {
+
+    private final URI endpoint = ValueFactoryImpl.getInstance().createURI("http://example.org/sparql");
+
+    private RequestScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        scheduler = new RequestScheduler(4);
+        scheduler.setMaxRequestsPerEndpoint(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutDown();
+    }
+
+    public void testConcurrencyCap() throws Exception {
+        RequestScheduler.Slot slot = scheduler.acquire(endpoint, "s1");
+        scheduler.setQueueTimeout(50);
+
+        try {
+            scheduler.acquire(endpoint, "s1");
+            fail();
+        } catch (QueryEvaluationException e) {
+            // expected
+        }
+
+        RequestScheduler.EndpointQueue queue = scheduler.getQueue(endpoint);
+        assertEquals(1, queue.getRunning());
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(1, queue.getQueued());
+
+        slot.release();
+        slot.release();
+        assertEquals(0, queue.getRunning());
+
+        scheduler.acquire(endpoint, "s1").release();
+        assertEquals(2, queue.getRequests());
+    }
+
+    public void testSessionsAreServedInTurn() throws Exception {
+        RequestScheduler.Slot first = scheduler.acquire(endpoint, "wide");
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        // a session with many waiting requests, followed by a session with a single one
+        for (int i = 0; i < 3; i++)
+            threads.add(request("wide", order));
+        threads.add(request("narrow", order));
+
+        for (Thread t : threads) {
+            t.start();
+            waitForDepth(threads.indexOf(t) + 1);
+        }
+
+        first.release();
+
+        for (Thread t : threads)
+            t.join(5000);
+
+        assertEquals(4, order.size());
+        assertEquals("wide", order.get(0));
+        assertEquals("narrow", order.get(1));
+        assertTrue(scheduler.getQueue(endpoint).getMaxWait() > 0);
+    }
+
+    public void testRaisingTheCapAdmitsWaiters() throws Exception {
+        scheduler.acquire(endpoint, "s1");
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(endpoint, "s2");
+                    admitted.countDown();
+                } catch (QueryEvaluationException e) {
+                    // fails the test below
+                }
+            }
+        }.start();
+
+        waitForDepth(1);
+        scheduler.setMaxRequests(endpoint, 2);
+
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.getQueue(endpoint).getRunning());
+    }
+
+    public void testBusyPoolRunsTasksOnBoundedOverflowThreads() throws Exception {
+        // producers that wait for each other, as many as the pool and its overflow can run
+        final int tasks = scheduler.getMaxThreads() + scheduler.getMaxOverflowThreads();
+        final CountDownLatch started = new CountDownLatch(tasks);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        for (int i = 0; i < tasks; i++)
+            scheduler.getExecutor().execute(blocking(started, finish));
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(scheduler.getMaxOverflowThreads(), scheduler.getOverflowTasks());
+        assertEquals(scheduler.getMaxOverflowThreads(), scheduler.getActiveOverflowThreads());
+
+        scheduler.setQueueTimeout(50);
+        try {
+            scheduler.getExecutor().execute(blocking(new CountDownLatch(1), finish));
+            fail("no thread is left for the task");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        finish.countDown();
+    }
+
+    public void testBusyPoolMakesTheSubmitterWait() throws Exception {
+        final int tasks = scheduler.getMaxThreads() + scheduler.getMaxOverflowThreads();
+        final CountDownLatch started = new CountDownLatch(tasks);
+        final CountDownLatch finish = new CountDownLatch(1);
+
+        for (int i = 0; i < tasks; i++)
+            scheduler.getExecutor().execute(blocking(started, finish));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch late = new CountDownLatch(1);
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                scheduler.getExecutor().execute(blocking(late, new CountDownLatch(0)));
+            }
+        };
+        submitter.start();
+
+        assertFalse(late.await(100, TimeUnit.MILLISECONDS));
+        finish.countDown();
+        assertTrue(late.await(5, TimeUnit.SECONDS));
+        submitter.join(5000);
+    }
+
+    private static Runnable blocking(final CountDownLatch started, final CountDownLatch finish) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    // the scheduler is shut down
+                }
+            }
+        };
+    }
+
+    private Thread request(final String session, final List<String> order) {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    RequestScheduler.Slot slot = scheduler.acquire(endpoint, session);
+                    order.add(session);
+                    slot.release();
+                } catch (QueryEvaluationException e) {
+                    // the missing entry fails the test
+                }
+            }
+        };
+    }
+
+    private void waitForDepth(int depth) throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.getQueue(endpoint).getQueueDepth() < depth; i++)
+            Thread.sleep(10);
+        assertEquals(depth, scheduler.getQueue(endpoint).getQueueDepth());
+    }
+}
@@ -0,0 +1,225 @@
+package eu.semagrow.stack.modules.sails.semagrow.evaluation.pool;
+
+import info.aduna.iteration.CloseableIteration;
+import junit.framework.TestCase;
+import org.openrdf.model.Literal;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResultHandler;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResultParserPoolTest extends TestCase {
+
+    private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+    private ResultParserPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = new ResultParserPool(2);
+        pool.setCapacity(8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutDown();
+    }
+
+    public void testThreadsStayFlatWithManyResults() throws Exception {
+        int results = 300;
+        List<CloseableIteration<BindingSet, QueryEvaluationException>> iterations =
+                new ArrayList<CloseableIteration<BindingSet, QueryEvaluationException>>();
+
+        for (int i = 0; i < results; i++)
+            iterations.add(pool.parse(new Rows(i, 100)));
+
+        assertTrue(pool.getPoolSize() <= 2);
+
+        // the results are consumed one after the other, as a bind join does;
+        // the ones the pool has not reached are handed to overflow threads
+        for (int i = 0; i < results; i++) {
+            CloseableIteration<BindingSet, QueryEvaluationException> iter = iterations.get(i);
+            int count = 0;
+            while (iter.hasNext()) {
+                BindingSet row = iter.next();
+                assertEquals(i, ((Literal) row.getValue("result")).intValue());
+                assertEquals(count, ((Literal) row.getValue("row")).intValue());
+                count++;
+            }
+            iter.close();
+            assertEquals(100, count);
+        }
+
+        assertTrue(pool.getPoolSize() <= 2);
+    }
+
+    public void testCloseBeforeParsingCancels() throws Exception {
+        ResultParserPool idle = new ResultParserPool(1);
+        idle.shutDown();
+
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final AtomicBoolean parsed = new AtomicBoolean(false);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> iter = idle.parse(new ResultParserPool.ParseTask() {
+            @Override
+            public void parse(TupleQueryResultHandler handler) throws Exception {
+                parsed.set(true);
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+            }
+        });
+
+        iter.close();
+        assertTrue(cancelled.get());
+        assertFalse(parsed.get());
+        assertFalse(iter.hasNext());
+    }
+
+    public void testTakenOverResultIsBounded() throws Exception {
+        // both threads of the pool wait on the full buffers of results that are not read
+        List<Rows> unread = new ArrayList<Rows>();
+        List<CloseableIteration<BindingSet, QueryEvaluationException>> blocked =
+                new ArrayList<CloseableIteration<BindingSet, QueryEvaluationException>>();
+        for (int i = 0; i < 2; i++) {
+            Rows rows = new Rows(i, 1000);
+            unread.add(rows);
+            blocked.add(pool.parse(rows));
+        }
+        for (Rows rows : unread)
+            for (int i = 0; i < 500 && rows.produced.get() < 8; i++)
+                Thread.sleep(10);
+
+        Rows rows = new Rows(2, 100000);
+        CloseableIteration<BindingSet, QueryEvaluationException> iter = pool.parse(rows);
+
+        assertTrue(iter.hasNext());
+        iter.next();
+        Thread.sleep(200);
+
+        // the consumer did not parse the whole stream itself
+        assertTrue(rows.produced.get() <= 8 + 2);
+        assertEquals(1, pool.getOverflowPoolSize());
+
+        int count = 1;
+        while (iter.hasNext()) {
+            iter.next();
+            count++;
+        }
+        iter.close();
+        assertEquals(100000, count);
+
+        for (CloseableIteration<BindingSet, QueryEvaluationException> b : blocked)
+            b.close();
+    }
+
+    public void testReadAfterShutDownFails() throws Exception {
+        ResultParserPool idle = new ResultParserPool(1);
+        idle.shutDown();
+
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        CloseableIteration<BindingSet, QueryEvaluationException> iter = idle.parse(new ResultParserPool.ParseTask() {
+            @Override
+            public void parse(TupleQueryResultHandler handler) throws Exception {
+                fail();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+            }
+        });
+
+        try {
+            iter.hasNext();
+            fail();
+        } catch (QueryEvaluationException e) {
+            // expected
+        } finally {
+            iter.close();
+        }
+        assertTrue(cancelled.get());
+    }
+
+    public void testCloseStopsParsing() throws Exception {
+        Rows rows = new Rows(0, 1000000);
+        CloseableIteration<BindingSet, QueryEvaluationException> iter = pool.parse(rows);
+
+        // let the pool start on it, else this thread would parse all of it
+        for (int i = 0; i < 500 && rows.produced.get() == 0; i++)
+            Thread.sleep(10);
+
+        assertTrue(iter.hasNext());
+        iter.next();
+        iter.close();
+
+        for (int i = 0; i < 500 && !rows.stopped.get(); i++)
+            Thread.sleep(10);
+
+        assertTrue(rows.stopped.get());
+        assertTrue(rows.produced.get() < 1000000);
+    }
+
+    public void testFailureIsReported() throws Exception {
+        CloseableIteration<BindingSet, QueryEvaluationException> iter = pool.parse(new ResultParserPool.ParseTask() {
+            @Override
+            public void parse(TupleQueryResultHandler handler) throws Exception {
+                handler.handleSolution(new MapBindingSet());
+                throw new QueryEvaluationException("broken stream");
+            }
+        });
+
+        try {
+            while (iter.hasNext())
+                iter.next();
+            fail();
+        } catch (QueryEvaluationException e) {
+            assertEquals("broken stream", e.getMessage());
+        } finally {
+            iter.close();
+        }
+    }
+
+    private class Rows extends ResultParserPool.ParseTask {
+
+        private final int result;
+
+        private final int size;
+
+        final AtomicInteger produced = new AtomicInteger(0);
+
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        Rows(int result, int size) {
+            this.result = result;
+            this.size = size;
+        }
+
+        @Override
+        public void parse(TupleQueryResultHandler handler) throws Exception {
+            try {
+                for (int i = 0; i < size; i++) {
+                    MapBindingSet row = new MapBindingSet();
+                    row.addBinding("result", vf.createLiteral(result));
+                    row.addBinding("row", vf.createLiteral(i));
+                    handler.handleSolution(row);
+                    produced.incrementAndGet();
+                }
+            } catch (TupleQueryResultHandlerException e) {
+                stopped.set(true);
+                throw e;
+            }
+        }
+    }
+}
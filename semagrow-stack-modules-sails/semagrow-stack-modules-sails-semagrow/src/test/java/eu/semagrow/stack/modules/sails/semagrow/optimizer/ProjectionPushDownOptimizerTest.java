@@ -0,0 +1,86 @@
+package eu.semagrow.stack.modules.sails.semagrow.optimizer;
+
+import eu.semagrow.stack.modules.sails.semagrow.algebra.SourceQuery;
+import junit.framework.TestCase;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.algebra.QueryRoot;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.helpers.StatementPatternCollector;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ProjectionPushDownOptimizerTest extends TestCase {
+
+    private final URI source = ValueFactoryImpl.getInstance().createURI("http://example.org/sparql");
+
+    /**
+     * Parses the query, sends each of its triple patterns to the source
+     * and pushes the projection down.
+     * @return the source queries by the predicate of their pattern
+     */
+    private Map<String, SourceQuery> optimize(String query) throws Exception {
+        TupleExpr expr = new QueryRoot(new SPARQLParser().parseQuery(query, null).getTupleExpr());
+
+        Map<String, SourceQuery> queries = new LinkedHashMap<String, SourceQuery>();
+        for (StatementPattern pattern : StatementPatternCollector.process(expr)) {
+            SourceQuery q = new SourceQuery(pattern.clone(), source);
+            pattern.replaceWith(q);
+            queries.put(pattern.getPredicateVar().getValue().stringValue(), q);
+        }
+
+        new ProjectionPushDownOptimizer().optimize(expr, null, EmptyBindingSet.getInstance());
+        return queries;
+    }
+
+    public void testUnusedVariablesAreNotRequested() throws Exception {
+        Map<String, SourceQuery> queries = optimize(
+                "SELECT ?name { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> ?name . ?o <http://ex.org/r> ?z }");
+
+        assertEquals(Collections.singleton("o"), queries.get("http://ex.org/p").getProjection());
+        assertNull(queries.get("http://ex.org/q").getProjection());
+        assertEquals(Collections.singleton("o"), queries.get("http://ex.org/r").getProjection());
+        assertEquals(Collections.singleton("o"), queries.get("http://ex.org/r").getBindingNames());
+    }
+
+    public void testFilterAndOrderVariablesAreKept() throws Exception {
+        Map<String, SourceQuery> queries = optimize(
+                "SELECT ?name { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> ?name . ?o <http://ex.org/r> ?z " +
+                "FILTER (?z > 3) } ORDER BY ?s");
+
+        assertNull(queries.get("http://ex.org/p").getProjection());
+        assertNull(queries.get("http://ex.org/r").getProjection());
+    }
+
+    public void testGroupKeysAndAggregates() throws Exception {
+        Map<String, SourceQuery> queries = optimize(
+                "SELECT ?o (COUNT(?s) AS ?c) { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> ?name } GROUP BY ?o");
+
+        assertNull(queries.get("http://ex.org/p").getProjection());
+        assertEquals(Collections.singleton("o"), queries.get("http://ex.org/q").getProjection());
+    }
+
+    public void testOptionalAndUnion() throws Exception {
+        Map<String, SourceQuery> queries = optimize(
+                "SELECT ?s { { ?s <http://ex.org/p> ?o } UNION { ?s <http://ex.org/q> ?x } " +
+                "OPTIONAL { ?s <http://ex.org/r> ?y . ?y <http://ex.org/t> ?w } }");
+
+        assertEquals(Collections.singleton("s"), queries.get("http://ex.org/p").getProjection());
+        assertEquals(Collections.singleton("s"), queries.get("http://ex.org/q").getProjection());
+        assertNull(queries.get("http://ex.org/r").getProjection());
+        assertEquals(Collections.singleton("y"), queries.get("http://ex.org/t").getProjection());
+    }
+
+    public void testConstructTemplate() throws Exception {
+        Map<String, SourceQuery> queries = optimize(
+                "CONSTRUCT { ?s <http://ex.org/x> ?o } WHERE { ?s <http://ex.org/p> ?o . ?o <http://ex.org/q> ?z }");
+
+        assertNull(queries.get("http://ex.org/p").getProjection());
+        assertEquals(Collections.singleton("o"), queries.get("http://ex.org/q").getProjection());
+    }
+}